@@ -0,0 +1,285 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Collection;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.AbstractLongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Read-only {@link org.apache.mahout.cf.taste.model.DataModel} over preferences
+ * stored twice in CSR layout. User and item IDs are remapped to dense indices in
+ * ascending ID order; each user row is sorted by item index and each item row by
+ * user index, so rows can be intersected with a merge.
+ */
+public abstract class AbstractCsrDataModel extends AbstractDataModel {
+    private static final long serialVersionUID = 1L;
+
+    /** ID of the user at {@code user}. */
+    public abstract long userIdAt(int user);
+
+    /** ID of the item at {@code item}. */
+    public abstract long itemIdAt(int item);
+
+    /** Start of the row of {@code user}; the row ends at {@code userRowStart(user + 1)}. */
+    public abstract int userRowStart(int user);
+
+    /** Item index stored at {@code position} of a user row. */
+    public abstract int itemAt(int position);
+
+    /** Value stored at {@code position} of a user row. */
+    public abstract float userValueAt(int position);
+
+    /** Start of the row of {@code item}; the row ends at {@code itemRowStart(item + 1)}. */
+    public abstract int itemRowStart(int item);
+
+    /** User index stored at {@code position} of an item row. */
+    public abstract int userAt(int position);
+
+    /** Value stored at {@code position} of an item row. */
+    public abstract float itemValueAt(int position);
+
+    /** Index of {@code userID}, or {@code -1} if it is unknown. */
+    public int userIndex(final long userID) {
+        int low = 0;
+        int high = getNumUsers() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long value = userIdAt(mid);
+            if (value < userID) {
+                low = mid + 1;
+            } else if (value > userID) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Index of {@code itemID}, or {@code -1} if it is unknown. */
+    public int itemIndex(final long itemID) {
+        int low = 0;
+        int high = getNumItems() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long value = itemIdAt(mid);
+            if (value < itemID) {
+                low = mid + 1;
+            } else if (value > itemID) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Position of {@code item} in the row of {@code user}, or {@code -1}. */
+    public int positionOf(final int user, final int item) {
+        int low = userRowStart(user);
+        int high = userRowStart(user + 1) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int value = itemAt(mid);
+            if (value < item) {
+                low = mid + 1;
+            } else if (value > item) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public abstract int getNumUsers();
+
+    @Override
+    public abstract int getNumItems();
+
+    @Override
+    public LongPrimitiveIterator getUserIDs() {
+        return new IndexIterator(getNumUsers(), true);
+    }
+
+    @Override
+    public LongPrimitiveIterator getItemIDs() {
+        return new IndexIterator(getNumItems(), false);
+    }
+
+    @Override
+    public PreferenceArray getPreferencesFromUser(final long userID) throws TasteException {
+        final int user = existingUser(userID);
+        final int start = userRowStart(user);
+        final int end = userRowStart(user + 1);
+        final PreferenceArray prefs = new GenericUserPreferenceArray(end - start);
+        prefs.setUserID(0, userID);
+        for (int p = start; p < end; p++) {
+            prefs.setItemID(p - start, itemIdAt(itemAt(p)));
+            prefs.setValue(p - start, userValueAt(p));
+        }
+        return prefs;
+    }
+
+    @Override
+    public FastIDSet getItemIDsFromUser(final long userID) throws TasteException {
+        final int user = existingUser(userID);
+        final int start = userRowStart(user);
+        final int end = userRowStart(user + 1);
+        final FastIDSet result = new FastIDSet(end - start);
+        for (int p = start; p < end; p++) {
+            result.add(itemIdAt(itemAt(p)));
+        }
+        return result;
+    }
+
+    @Override
+    public PreferenceArray getPreferencesForItem(final long itemID) throws TasteException {
+        final int item = existingItem(itemID);
+        final int start = itemRowStart(item);
+        final int end = itemRowStart(item + 1);
+        final PreferenceArray prefs = new GenericItemPreferenceArray(end - start);
+        prefs.setItemID(0, itemID);
+        for (int p = start; p < end; p++) {
+            prefs.setUserID(p - start, userIdAt(userAt(p)));
+            prefs.setValue(p - start, itemValueAt(p));
+        }
+        return prefs;
+    }
+
+    @Override
+    public Float getPreferenceValue(final long userID, final long itemID) throws TasteException {
+        final int user = existingUser(userID);
+        final int item = itemIndex(itemID);
+        if (item < 0) {
+            return null;
+        }
+        final int p = positionOf(user, item);
+        return p < 0 ? null : userValueAt(p);
+    }
+
+    @Override
+    public Long getPreferenceTime(final long userID, final long itemID) throws TasteException {
+        return null;
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(final long itemID) throws TasteException {
+        final int item = itemIndex(itemID);
+        return item < 0 ? 0 : itemRowStart(item + 1) - itemRowStart(item);
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(final long itemID1, final long itemID2) throws TasteException {
+        final int item1 = itemIndex(itemID1);
+        final int item2 = itemIndex(itemID2);
+        if (item1 < 0 || item2 < 0) {
+            return 0;
+        }
+        int i = itemRowStart(item1);
+        int j = itemRowStart(item2);
+        final int end1 = itemRowStart(item1 + 1);
+        final int end2 = itemRowStart(item2 + 1);
+        int count = 0;
+        while (i < end1 && j < end2) {
+            final int u1 = userAt(i);
+            final int u2 = userAt(j);
+            if (u1 == u2) {
+                count++;
+                i++;
+                j++;
+            } else if (u1 < u2) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void setPreference(final long userID, final long itemID, final float value) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " is read-only.");
+    }
+
+    @Override
+    public void removePreference(final long userID, final long itemID) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " is read-only.");
+    }
+
+    @Override
+    public void refresh(final Collection<Refreshable> alreadyRefreshed) {
+        // immutable
+    }
+
+    @Override
+    public boolean hasPreferenceValues() {
+        return true;
+    }
+
+    private int existingUser(final long userID) throws NoSuchUserException {
+        final int user = userIndex(userID);
+        if (user < 0) {
+            throw new NoSuchUserException(userID);
+        }
+        return user;
+    }
+
+    private int existingItem(final long itemID) throws NoSuchItemException {
+        final int item = itemIndex(itemID);
+        if (item < 0) {
+            throw new NoSuchItemException(itemID);
+        }
+        return item;
+    }
+
+    private final class IndexIterator extends AbstractLongPrimitiveIterator {
+        private final int size;
+        private final boolean users;
+        private int position;
+
+        IndexIterator(final int size, final boolean users) {
+            this.size = size;
+            this.users = users;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < size;
+        }
+
+        @Override
+        public long nextLong() {
+            return peek0(position++);
+        }
+
+        @Override
+        public long peek() {
+            return peek0(position);
+        }
+
+        private long peek0(final int index) {
+            return users ? userIdAt(index) : itemIdAt(index);
+        }
+
+        @Override
+        public void skip(final int n) {
+            position = Math.min(size, position + n);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
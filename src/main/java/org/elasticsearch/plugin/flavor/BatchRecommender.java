@@ -0,0 +1,284 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.UserBasedRecommender;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.CompositeBytesReference;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+/**
+ * Answers many operations on one preloaded model in a single request. The
+ * recommenders are resolved once for the whole batch and shared by all its
+ * entries, which run in parallel on the {@link ParallelScorer} pool. Each
+ * entry is rendered to its own line of newline-delimited JSON as soon as it is
+ * computed, so only the rendered bytes are kept until the response is sent.
+ */
+public class BatchRecommender {
+    public static final Setting<Integer> MAX_ENTRIES_SETTING =
+            Setting.intSetting("flavor.batch.max_entries", 10000, 1, Property.NodeScope);
+
+    private static final BytesReference NEWLINE = new BytesArray(new byte[] { '\n' });
+
+    /**
+     * One line of the request: an operation on a user or item ID.
+     */
+    public static class Entry {
+        private final String operation;
+        private final long id;
+        private final int size;
+
+        public Entry(final String operation, final long id, final int size) {
+            this.operation = operation;
+            this.id = id;
+            this.size = size;
+        }
+
+        public String operation() {
+            return operation;
+        }
+
+        public long id() {
+            return id;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    private final ParallelScorer scorer;
+    private DataModel dataModel;
+    private UserBasedRecommender userBased;
+    private ItemBasedRecommender itemBased;
+    private SimilarityIndex similarityIndex;
+    private FactorizedModel factorization;
+
+    public BatchRecommender(final ParallelScorer scorer) {
+        this.scorer = scorer;
+    }
+
+    /** Model whose ratings {@code factorized_recommend} leaves out. */
+    public BatchRecommender dataModel(final DataModel dataModel) {
+        this.dataModel = dataModel;
+        return this;
+    }
+
+    public BatchRecommender userBased(final UserBasedRecommender userBased) {
+        this.userBased = userBased;
+        return this;
+    }
+
+    public BatchRecommender itemBased(final ItemBasedRecommender itemBased) {
+        this.itemBased = itemBased;
+        return this;
+    }
+
+    /** Serves {@code similar_items} when set. */
+    public BatchRecommender similarityIndex(final SimilarityIndex similarityIndex) {
+        this.similarityIndex = similarityIndex;
+        return this;
+    }
+
+    public BatchRecommender factorization(final FactorizedModel factorization) {
+        this.factorization = factorization;
+        return this;
+    }
+
+    /**
+     * Entries of a newline-delimited JSON body such as
+     * {@code {"operation": "user_based_recommend", "id": 1, "size": 5}}. Blank
+     * lines are skipped; {@code size} defaults to {@code defaultSize}.
+     */
+    public static List<Entry> parse(final String content, final int defaultSize, final int maxEntries) {
+        final List<Entry> entries = new ArrayList<>();
+        final Gson gson = new Gson();
+        int lineNumber = 0;
+        for (final String line : content.split("\n")) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (entries.size() == maxEntries) {
+                throw new IllegalArgumentException("Batch has more than " + maxEntries + " entries.");
+            }
+            final JsonObject json;
+            try {
+                json = gson.fromJson(line, JsonObject.class);
+            } catch (final JsonSyntaxException e) {
+                throw new IllegalArgumentException("Malformed batch entry on line " + lineNumber + ".", e);
+            }
+            final JsonElement operation = json.get("operation");
+            final JsonElement id = json.get("id");
+            if (operation == null || id == null) {
+                throw new IllegalArgumentException("Batch entry on line " + lineNumber + " needs an operation and an id.");
+            }
+            final JsonElement size = json.get("size");
+            entries.add(new Entry(operation.getAsString(), id.getAsLong(), size == null ? defaultSize : size.getAsInt()));
+        }
+        return entries;
+    }
+
+    /** Whether any of {@code entries} runs one of {@code operations}. */
+    public static boolean uses(final List<Entry> entries, final String... operations) {
+        for (final Entry entry : entries) {
+            for (final String operation : operations) {
+                if (operation.equals(entry.operation())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs {@code entries} and returns one line per entry, in their order. A
+     * failed entry gets an {@code error} line and does not fail the batch.
+     */
+    public BytesReference execute(final List<Entry> entries) {
+        final BytesReference[] lines = new BytesReference[entries.size() * 2];
+        scorer.forEach(entries.size(), i -> {
+            lines[2 * i] = render(entries.get(i));
+            lines[2 * i + 1] = NEWLINE;
+        });
+        return new CompositeBytesReference(lines);
+    }
+
+    private BytesReference render(final Entry entry) {
+        final long startTime = System.currentTimeMillis();
+        try {
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder
+                .startObject()
+                .field("operation", entry.operation())
+                .field("id", entry.id());
+            try {
+                final Object result = run(entry);
+                builder.field("took", System.currentTimeMillis() - startTime);
+                if (result == null) {
+                    builder
+                        .field("error", "Invalid operation: " + entry.operation())
+                        .field("status", 404);
+                } else {
+                    renderHits(builder, result);
+                }
+            } catch (final NoSuchUserException | NoSuchItemException e) {
+                builder
+                    .field("error", e.toString())
+                    .field("status", 404);
+            } catch (final Exception e) {
+                builder
+                    .field("error", e.toString())
+                    .field("status", 500);
+            }
+            return BytesReference.bytes(builder.endObject());
+        } catch (final IOException e) {
+            throw new IllegalStateException("Failed to render a batch entry.", e);
+        }
+    }
+
+    /**
+     * Runs {@code entry} and adds its {@code hits} to {@code builder}; used to
+     * write one document per entry.
+     */
+    void hits(final XContentBuilder builder, final Entry entry) throws IOException, TasteException {
+        final Object result = run(entry);
+        if (result == null) {
+            throw new IllegalArgumentException("Invalid operation: " + entry.operation());
+        }
+        renderHits(builder, result);
+    }
+
+    /** Items or user IDs answered for {@code entry}, {@code null} for an unknown operation. */
+    private Object run(final Entry entry) throws TasteException {
+        final long id = entry.id();
+        final int size = entry.size();
+        switch (entry.operation()) {
+            case "similar_items":
+                return similarityIndex != null
+                        ? similarityIndex.mostSimilarItems(id, size)
+                        : itemBased.mostSimilarItems(id, size);
+            case "item_based_recommend":
+                return itemBased.recommend(id, size);
+            case "similar_users":
+                return userBased.mostSimilarUserIDs(id, size);
+            case "user_based_recommend":
+                return userBased.recommend(id, size);
+            case "factorized_recommend": {
+                if (factorization == null) {
+                    throw new TasteException("No factorization for this model.");
+                }
+                FastIDSet rated;
+                try {
+                    rated = dataModel.getItemIDsFromUser(id);
+                } catch (final NoSuchUserException e) {
+                    rated = null;
+                }
+                return factorization.recommend(id, size, rated);
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static void renderHits(final XContentBuilder builder, final Object result) throws IOException {
+        if (result instanceof long[]) {
+            renderUserIds(builder, (long[]) result);
+        } else {
+            @SuppressWarnings("unchecked")
+            final List<RecommendedItem> items = (List<RecommendedItem>) result;
+            renderItems(builder, items);
+        }
+    }
+
+    private static void renderItems(final XContentBuilder builder, final List<RecommendedItem> items) throws IOException {
+        builder
+            .startObject("hits")
+            .field("total", items.size())
+            .startArray("hits");
+        for (final RecommendedItem item : items) {
+            builder
+                .startObject()
+                .field("item_id", item.getItemID())
+                .field("value", item.getValue())
+                .endObject();
+        }
+        builder
+            .endArray()
+            .endObject();
+    }
+
+    private static void renderUserIds(final XContentBuilder builder, final long[] userIds) throws IOException {
+        builder
+            .startObject("hits")
+            .field("total", userIds.length)
+            .startArray("hits");
+        for (final long userId : userIds) {
+            builder
+                .startObject()
+                .field("user_id", userId)
+                .endObject();
+        }
+        builder
+            .endArray()
+            .endObject();
+    }
+}
@@ -0,0 +1,40 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Collection;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.Cache;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+
+/**
+ * Like Mahout's {@code CachingUserNeighborhood}, but holding at most
+ * {@code maxCacheSize} neighborhoods instead of one per user of the model.
+ * Safe to share between threads.
+ */
+public class BoundedCachingUserNeighborhood implements UserNeighborhood {
+    private final UserNeighborhood neighborhood;
+    private final Cache<Long, long[]> neighborhoodCache;
+
+    public BoundedCachingUserNeighborhood(final UserNeighborhood neighborhood, final int maxCacheSize) {
+        this.neighborhood = neighborhood;
+        this.neighborhoodCache = new Cache<Long, long[]>(neighborhood::getUserNeighborhood, maxCacheSize);
+    }
+
+    @Override
+    public long[] getUserNeighborhood(final long userID) throws TasteException {
+        return neighborhoodCache.get(userID);
+    }
+
+    /** Drops every cached neighborhood. */
+    public void clear() {
+        neighborhoodCache.clear();
+    }
+
+    @Override
+    public void refresh(final Collection<Refreshable> alreadyRefreshed) {
+        neighborhoodCache.clear();
+        RefreshHelper.maybeRefresh(RefreshHelper.buildRefreshed(alreadyRefreshed), neighborhood);
+    }
+}
@@ -0,0 +1,105 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Collection;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.Cache;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.common.LongPair;
+
+/**
+ * Like Mahout's {@code CachingUserSimilarity} and {@code CachingItemSimilarity},
+ * but the pairs of changed users or items can be dropped in one pass over the
+ * cache with {@link #forget(FastIDSet)}, instead of one pass per ID. Wraps
+ * either a user or an item similarity; the methods of the other kind are not
+ * supported. Safe to share between threads.
+ */
+public class CachingSimilarity implements UserSimilarity, ItemSimilarity {
+    private final UserSimilarity userSimilarity;
+    private final ItemSimilarity itemSimilarity;
+    private final Cache<LongPair, Double> similarityCache;
+
+    private CachingSimilarity(final UserSimilarity userSimilarity, final ItemSimilarity itemSimilarity, final int maxCacheSize) {
+        this.userSimilarity = userSimilarity;
+        this.itemSimilarity = itemSimilarity;
+        this.similarityCache = new Cache<LongPair, Double>(pair -> userSimilarity != null
+                ? userSimilarity.userSimilarity(pair.getFirst(), pair.getSecond())
+                : itemSimilarity.itemSimilarity(pair.getFirst(), pair.getSecond()), maxCacheSize);
+    }
+
+    public static CachingSimilarity ofUsers(final UserSimilarity similarity, final int maxCacheSize) {
+        return new CachingSimilarity(similarity, null, maxCacheSize);
+    }
+
+    public static CachingSimilarity ofItems(final ItemSimilarity similarity, final int maxCacheSize) {
+        return new CachingSimilarity(null, similarity, maxCacheSize);
+    }
+
+    private double similarity(final long id1, final long id2) throws TasteException {
+        return similarityCache.get(id1 < id2 ? new LongPair(id1, id2) : new LongPair(id2, id1));
+    }
+
+    @Override
+    public double userSimilarity(final long userID1, final long userID2) throws TasteException {
+        if (userSimilarity == null) {
+            throw new UnsupportedOperationException("Caches item similarities.");
+        }
+        return similarity(userID1, userID2);
+    }
+
+    @Override
+    public void setPreferenceInferrer(final PreferenceInferrer inferrer) {
+        if (userSimilarity == null) {
+            throw new UnsupportedOperationException("Caches item similarities.");
+        }
+        similarityCache.clear();
+        userSimilarity.setPreferenceInferrer(inferrer);
+    }
+
+    @Override
+    public double itemSimilarity(final long itemID1, final long itemID2) throws TasteException {
+        if (itemSimilarity == null) {
+            throw new UnsupportedOperationException("Caches user similarities.");
+        }
+        return similarity(itemID1, itemID2);
+    }
+
+    @Override
+    public double[] itemSimilarities(final long itemID1, final long[] itemID2s) throws TasteException {
+        final double[] result = new double[itemID2s.length];
+        for (int i = 0; i < itemID2s.length; i++) {
+            result[i] = itemSimilarity(itemID1, itemID2s[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] allSimilarItemIDs(final long itemID) throws TasteException {
+        if (itemSimilarity == null) {
+            throw new UnsupportedOperationException("Caches user similarities.");
+        }
+        return itemSimilarity.allSimilarItemIDs(itemID);
+    }
+
+    /**
+     * Drops the cached pairs that have one of {@code ids}, whose preferences
+     * changed.
+     */
+    public void forget(final FastIDSet ids) {
+        if (!ids.isEmpty()) {
+            similarityCache.removeKeysMatching(pair -> ids.contains(pair.getFirst()) || ids.contains(pair.getSecond()));
+        }
+    }
+
+    @Override
+    public void refresh(final Collection<Refreshable> alreadyRefreshed) {
+        similarityCache.clear();
+        RefreshHelper.maybeRefresh(RefreshHelper.buildRefreshed(alreadyRefreshed),
+                                   userSimilarity != null ? userSimilarity : itemSimilarity);
+    }
+}
@@ -0,0 +1,48 @@
+package org.elasticsearch.plugin.flavor;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.recommender.AbstractCandidateItemsStrategy;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Items co-rated with the preferred items, like Mahout's
+ * {@code PreferredItemsNeighborhoodCandidateItemsStrategy}, but walking at most
+ * {@link FanOutLimits#maxItemsPerUser()} preferred items,
+ * {@link FanOutLimits#maxUsersPerItem()} users of each item and
+ * {@link FanOutLimits#maxItemsPerUser()} items of each of those users, and
+ * stopping once {@link FanOutLimits#maxCandidateItems()} candidates are found.
+ * Preferred items are never candidates and do not count towards the cap.
+ */
+public class CappedCandidateItemsStrategy extends AbstractCandidateItemsStrategy {
+    private final FanOutLimits limits;
+
+    public CappedCandidateItemsStrategy(final FanOutLimits limits) {
+        this.limits = limits;
+    }
+
+    @Override
+    protected FastIDSet doGetCandidateItems(final long[] preferredItemIDs, final DataModel dataModel) throws TasteException {
+        final int maxCandidates = limits.maxCandidateItems() > 0 ? limits.maxCandidateItems() : Integer.MAX_VALUE;
+        final FastIDSet preferred = new FastIDSet(preferredItemIDs);
+        final FastIDSet candidates = new FastIDSet();
+        final long[] itemIds = FanOutLimits.sample(preferredItemIDs, limits.maxItemsPerUser(), preferredItemIDs.length);
+        for (final long itemId : itemIds) {
+            final long[] userIds = limits.sampleUsers(itemId, dataModel.getPreferencesForItem(itemId).getIDs());
+            for (final long userId : userIds) {
+                final PreferenceArray prefs = dataModel.getPreferencesFromUser(userId);
+                for (final long candidate : limits.sampleItems(userId, prefs.getIDs())) {
+                    if (preferred.contains(candidate)) {
+                        continue;
+                    }
+                    candidates.add(candidate);
+                    if (candidates.size() >= maxCandidates) {
+                        return candidates;
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+}
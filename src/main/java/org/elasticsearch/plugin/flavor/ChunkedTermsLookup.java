@@ -0,0 +1,209 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.GroupedActionListener;
+import org.elasticsearch.action.support.ThreadedActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+
+/**
+ * Finds the documents whose {@code field} matches any of a large set of IDs. The
+ * IDs are split into chunks of {@link #chunkSize(int)} terms, each chunk being a
+ * terms query in filter context so shards can cache it. Up to
+ * {@link #concurrency(int)} chunks are sent in one multi-search and scrolled in
+ * parallel; the next chunks follow once they are done.
+ *
+ * Pages are handed to the {@link HitsConsumer} as they arrive, possibly from
+ * several threads at once. Without an {@link #executor(String)} that is the
+ * search or transport thread that received the page. Once a chunk fails, the
+ * other chunks stop at their next page, so the consumer is not called after
+ * the listener was notified, and every scroll context is cleared.
+ */
+public class ChunkedTermsLookup {
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    public interface HitsConsumer {
+        void accept(SearchHit[] hits) throws Exception;
+    }
+
+    private Logger logger = Loggers.getLogger(ChunkedTermsLookup.class);
+    private final Client client;
+    private String executor;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int scrollSize = 2000;
+    private long keepAlive = 10000;
+
+    public ChunkedTermsLookup(final Client client) {
+        this.client = client;
+    }
+
+    public ChunkedTermsLookup chunkSize(final int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive.");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public ChunkedTermsLookup concurrency(final int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive.");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public ChunkedTermsLookup scrollSize(final int scrollSize) {
+        this.scrollSize = scrollSize;
+        return this;
+    }
+
+    public ChunkedTermsLookup keepAlive(final long keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Thread pool the pages are parsed on, instead of the thread that received them.
+     * Pages of an accepted lookup are forced so a full queue never drops them.
+     */
+    public ChunkedTermsLookup executor(final String executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public void lookup(final String index,
+                       final String type,
+                       final String field,
+                       final long[] ids,
+                       final PreferenceFetcher fetcher,
+                       final String[] fields,
+                       final HitsConsumer consumer,
+                       final ActionListener<Void> listener) {
+        lookup(index, type, field, ids, 0, fetcher, fields, consumer, new AtomicBoolean(), listener);
+    }
+
+    private void lookup(final String index,
+                        final String type,
+                        final String field,
+                        final long[] ids,
+                        final int from,
+                        final PreferenceFetcher fetcher,
+                        final String[] fields,
+                        final HitsConsumer consumer,
+                        final AtomicBoolean failed,
+                        final ActionListener<Void> listener) {
+        if (from >= ids.length) {
+            listener.onResponse(null);
+            return;
+        }
+        final MultiSearchRequestBuilder multiSearch = client
+            .prepareMultiSearch()
+            .setMaxConcurrentSearchRequests(concurrency);
+        int next = from;
+        int chunks = 0;
+        while (next < ids.length && chunks < concurrency) {
+            final int end = (int) Math.min(ids.length, (long) next + chunkSize);
+            final SearchRequestBuilder search = client
+                .prepareSearch(index)
+                .setTypes(type)
+                .addSort("_doc", SortOrder.ASC)
+                .setQuery(QueryBuilders.boolQuery().filter(QueryBuilders.termsQuery(field, Arrays.copyOfRange(ids, next, end))))
+                .setSize(scrollSize)
+                .setScroll(new TimeValue(keepAlive));
+            multiSearch.add(fetcher.prepare(search, fields));
+            next = end;
+            chunks++;
+        }
+
+        final int nextFrom = next;
+        final ActionListener<Collection<Boolean>> batch = ActionListener.wrap(
+            done -> lookup(index, type, field, ids, nextFrom, fetcher, fields, consumer, failed, listener),
+            listener::onFailure);
+        final GroupedActionListener<Boolean> chunkListener =
+            new GroupedActionListener<Boolean>(batch, chunks, Collections.<Boolean>emptyList());
+        multiSearch.execute(ActionListener.wrap(response -> {
+            for (MultiSearchResponse.Item item : response.getResponses()) {
+                if (item.isFailure()) {
+                    failed.set(true);
+                    chunkListener.onFailure(item.getFailure());
+                } else {
+                    scroll(item.getResponse(), consumer, failed, chunkListener);
+                }
+            }
+        }, listener::onFailure));
+    }
+
+    /**
+     * Scrolls one chunk. The scroll context is cleared when the chunk is done,
+     * fails, or stops because another chunk failed; a stopped chunk completes
+     * normally, and the grouped listener reports the failure of the other one.
+     */
+    private void scroll(final SearchResponse first,
+                        final HitsConsumer consumer,
+                        final AtomicBoolean failed,
+                        final ActionListener<Boolean> listener) {
+        final ActionListener<SearchResponse> pages = new ActionListener<SearchResponse>() {
+            private String scrollId;
+
+            @Override
+            public void onResponse(final SearchResponse scroll) {
+                scrollId = scroll.getScrollId();
+                try {
+                    final SearchHit[] hits = scroll.getHits().getHits();
+                    //Break condition: No hits are returned, or another chunk failed
+                    if (hits.length == 0 || failed.get()) {
+                        clearScroll();
+                        listener.onResponse(Boolean.TRUE);
+                        return;
+                    }
+                    consumer.accept(hits);
+                    client
+                        .prepareSearchScroll(scrollId)
+                        .setScroll(new TimeValue(keepAlive))
+                        .execute(onExecutor(this));
+                } catch (final Exception e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                failed.set(true);
+                clearScroll();
+                listener.onFailure(e);
+            }
+
+            private void clearScroll() {
+                if (scrollId != null) {
+                    client.prepareClearScroll().addScrollId(scrollId).execute();
+                    scrollId = null;
+                }
+            }
+        };
+        onExecutor(pages).onResponse(first);
+    }
+
+    private <T> ActionListener<T> onExecutor(final ActionListener<T> listener) {
+        if (executor == null) {
+            return listener;
+        }
+        return new ThreadedActionListener<T>(logger, client.threadPool(), executor, listener, true);
+    }
+}
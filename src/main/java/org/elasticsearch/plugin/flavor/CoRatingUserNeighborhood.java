@@ -0,0 +1,124 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.math.list.LongArrayList;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+
+/**
+ * Nearest-N or threshold neighborhood that only scores the users sharing at
+ * least one item with the target, found through the users of each of its
+ * items, instead of every user of the model. Users without a co-rated item are
+ * never neighbors, even where an inferrer would give them a similarity.
+ *
+ * With {@code maxCandidates}, only that many candidates with the most items in
+ * common are scored. {@link FanOutLimits} bound the items walked and the users
+ * taken from each of them.
+ */
+public class CoRatingUserNeighborhood implements UserNeighborhood {
+    private final int n;
+    private final double minSimilarity;
+    private final UserSimilarity similarity;
+    private final DataModel dataModel;
+    private final int maxCandidates;
+    private final FanOutLimits limits;
+
+    /**
+     * @param n             neighbors returned at most, {@link Integer#MAX_VALUE} for a threshold neighborhood
+     * @param minSimilarity neighbors have at least this similarity
+     * @param maxCandidates candidates scored at most, {@code 0} for all co-rating users
+     */
+    public CoRatingUserNeighborhood(final int n,
+                                    final double minSimilarity,
+                                    final UserSimilarity similarity,
+                                    final DataModel dataModel,
+                                    final int maxCandidates,
+                                    final FanOutLimits limits) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be at least 1.");
+        }
+        if (maxCandidates < 0) {
+            throw new IllegalArgumentException("maxCandidates must not be negative.");
+        }
+        this.n = n;
+        this.minSimilarity = minSimilarity;
+        this.similarity = similarity;
+        this.dataModel = dataModel;
+        this.maxCandidates = maxCandidates;
+        this.limits = limits;
+    }
+
+    @Override
+    public long[] getUserNeighborhood(final long userID) throws TasteException {
+        final long[] candidates = candidates(userID);
+        final long[] ids = new long[candidates.length];
+        final double[] values = new double[candidates.length];
+        int count = 0;
+        for (final long candidate : candidates) {
+            final double value = similarity.userSimilarity(userID, candidate);
+            if (!Double.isNaN(value) && value >= minSimilarity) {
+                ids[count] = candidate;
+                values[count] = value;
+                count++;
+            }
+        }
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[b], values[a]));
+        final long[] neighborhood = new long[Math.min(n, count)];
+        for (int i = 0; i < neighborhood.length; i++) {
+            neighborhood[i] = ids[order[i]];
+        }
+        return neighborhood;
+    }
+
+    /**
+     * Users sharing an item with {@code userID}, those with the most shared
+     * items first when capped by {@code maxCandidates}.
+     */
+    long[] candidates(final long userID) throws TasteException {
+        final OpenLongIntHashMap overlaps = new OpenLongIntHashMap();
+        final long[] itemIds = limits.sampleItems(userID, dataModel.getPreferencesFromUser(userID).getIDs());
+        for (final long itemId : itemIds) {
+            for (final long otherId : limits.sampleUsers(itemId, dataModel.getPreferencesForItem(itemId).getIDs())) {
+                if (otherId != userID) {
+                    overlaps.adjustOrPutValue(otherId, 1, 1);
+                }
+            }
+        }
+        final LongArrayList keys = new LongArrayList(overlaps.size());
+        overlaps.keys(keys);
+        final long[] candidates = Arrays.copyOf(keys.elements(), keys.size());
+        if (maxCandidates == 0 || candidates.length <= maxCandidates) {
+            return candidates;
+        }
+        final Long[] sorted = new Long[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            sorted[i] = candidates[i];
+        }
+        // most shared items first, ties by ID so the cut is deterministic
+        Arrays.sort(sorted, (a, b) -> {
+            final int byOverlap = Integer.compare(overlaps.get(b), overlaps.get(a));
+            return byOverlap != 0 ? byOverlap : Long.compare(a, b);
+        });
+        final long[] capped = new long[maxCandidates];
+        for (int i = 0; i < maxCandidates; i++) {
+            capped[i] = sorted[i];
+        }
+        return capped;
+    }
+
+    @Override
+    public void refresh(final Collection<Refreshable> alreadyRefreshed) {
+        RefreshHelper.maybeRefresh(RefreshHelper.buildRefreshed(alreadyRefreshed), similarity);
+    }
+}
@@ -0,0 +1,309 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Heap {@link AbstractCsrDataModel} over primitive arrays. Each preference costs
+ * two int indices plus either two floats or, with quantization, two bytes.
+ *
+ * Quantization is exact when there are at most 256 distinct values (typical
+ * star ratings or click weights); otherwise values are rounded to 256 evenly
+ * spaced levels between the minimum and maximum preference.
+ */
+public class CompactDataModel extends AbstractCsrDataModel implements Accountable {
+    private static final long serialVersionUID = 1L;
+    private static final int LEVELS = 256;
+
+    private final long[] userIds;
+    private final int[] userOffsets;
+    private final int[] userItems;
+    private final long[] itemIds;
+    private final int[] itemOffsets;
+    private final int[] itemUsers;
+
+    // either float values or byte codes into table
+    private final float[] userValues;
+    private final float[] itemValues;
+    private final byte[] userCodes;
+    private final byte[] itemCodes;
+    private final float[] table;
+
+    private CompactDataModel(final long[] userIds,
+                             final int[] userOffsets,
+                             final int[] userItems,
+                             final float[] userValues,
+                             final long[] itemIds,
+                             final int[] itemOffsets,
+                             final int[] itemUsers,
+                             final float[] itemValues,
+                             final boolean quantize) {
+        this.userIds = userIds;
+        this.userOffsets = userOffsets;
+        this.userItems = userItems;
+        this.itemIds = itemIds;
+        this.itemOffsets = itemOffsets;
+        this.itemUsers = itemUsers;
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (final float value : userValues) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if (userValues.length == 0) {
+            min = 0;
+            max = 0;
+        }
+        setMinPreference(min);
+        setMaxPreference(max);
+
+        if (quantize) {
+            this.table = table(userValues, min, max);
+            this.userCodes = encode(userValues, table);
+            this.itemCodes = encode(itemValues, table);
+            this.userValues = null;
+            this.itemValues = null;
+        } else {
+            this.table = null;
+            this.userCodes = null;
+            this.itemCodes = null;
+            this.userValues = userValues;
+            this.itemValues = itemValues;
+        }
+    }
+
+    public static CompactDataModel build(final FastByIDMap<PreferenceArray> users, final boolean quantize) {
+        final long[] userIds = new long[users.size()];
+        final FastIDSet itemIdSet = new FastIDSet();
+        long total = 0;
+        int u = 0;
+        for (Map.Entry<Long, PreferenceArray> entry : users.entrySet()) {
+            userIds[u++] = entry.getKey();
+            final PreferenceArray prefs = entry.getValue();
+            for (int i = 0; i < prefs.length(); i++) {
+                itemIdSet.add(prefs.getItemID(i));
+            }
+            total += prefs.length();
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many preferences: " + total);
+        }
+        Arrays.sort(userIds);
+        final long[] itemIds = itemIdSet.toArray();
+        Arrays.sort(itemIds);
+
+        final int[] userOffsets = new int[userIds.length + 1];
+        int[] userItems = new int[(int) total];
+        float[] userValues = new float[(int) total];
+        final int[] itemOffsets = new int[itemIds.length + 1];
+        int p = 0;
+        for (u = 0; u < userIds.length; u++) {
+            final PreferenceArray prefs = users.get(userIds[u]).clone();
+            prefs.sortByItem();
+            final int start = p;
+            for (int i = 0; i < prefs.length(); i++) {
+                final int item = Arrays.binarySearch(itemIds, prefs.getItemID(i));
+                if (p > start && userItems[p - 1] == item) {
+                    // duplicate preference, keep a single value
+                    userValues[p - 1] = prefs.getValue(i);
+                    continue;
+                }
+                userItems[p] = item;
+                userValues[p] = prefs.getValue(i);
+                itemOffsets[item + 1]++;
+                p++;
+            }
+            userOffsets[u + 1] = p;
+        }
+        if (p < total) {
+            userItems = Arrays.copyOf(userItems, p);
+            userValues = Arrays.copyOf(userValues, p);
+        }
+        for (int i = 0; i < itemIds.length; i++) {
+            itemOffsets[i + 1] += itemOffsets[i];
+        }
+
+        // users are visited in index order, so every item row ends up sorted by user
+        final int[] itemUsers = new int[p];
+        final float[] itemValues = new float[p];
+        final int[] fill = Arrays.copyOf(itemOffsets, itemIds.length);
+        for (u = 0; u < userIds.length; u++) {
+            for (int q = userOffsets[u]; q < userOffsets[u + 1]; q++) {
+                final int position = fill[userItems[q]]++;
+                itemUsers[position] = u;
+                itemValues[position] = userValues[q];
+            }
+        }
+
+        return new CompactDataModel(userIds, userOffsets, userItems, userValues,
+                                    itemIds, itemOffsets, itemUsers, itemValues, quantize);
+    }
+
+    public static CompactDataModel copyOf(final DataModel dataModel, final boolean quantize) throws TasteException {
+        if (dataModel instanceof CompactDataModel && ((CompactDataModel) dataModel).isQuantized() == quantize) {
+            return (CompactDataModel) dataModel;
+        }
+        final FastByIDMap<PreferenceArray> users = new FastByIDMap<PreferenceArray>(dataModel.getNumUsers());
+        final LongPrimitiveIterator it = dataModel.getUserIDs();
+        while (it.hasNext()) {
+            final long userId = it.nextLong();
+            users.put(userId, dataModel.getPreferencesFromUser(userId));
+        }
+        return build(users, quantize);
+    }
+
+    public boolean isQuantized() {
+        return table != null;
+    }
+
+    /** Number of stored preferences. */
+    public int numPreferences() {
+        return userItems.length;
+    }
+
+    @Override
+    public long userIdAt(final int user) {
+        return userIds[user];
+    }
+
+    @Override
+    public long itemIdAt(final int item) {
+        return itemIds[item];
+    }
+
+    @Override
+    public int userRowStart(final int user) {
+        return userOffsets[user];
+    }
+
+    @Override
+    public int itemAt(final int position) {
+        return userItems[position];
+    }
+
+    @Override
+    public float userValueAt(final int position) {
+        return userValues != null ? userValues[position] : table[userCodes[position] & 0xFF];
+    }
+
+    @Override
+    public int itemRowStart(final int item) {
+        return itemOffsets[item];
+    }
+
+    @Override
+    public int userAt(final int position) {
+        return itemUsers[position];
+    }
+
+    @Override
+    public float itemValueAt(final int position) {
+        return itemValues != null ? itemValues[position] : table[itemCodes[position] & 0xFF];
+    }
+
+    @Override
+    public int userIndex(final long userID) {
+        final int user = Arrays.binarySearch(userIds, userID);
+        return user < 0 ? -1 : user;
+    }
+
+    @Override
+    public int itemIndex(final long itemID) {
+        final int item = Arrays.binarySearch(itemIds, itemID);
+        return item < 0 ? -1 : item;
+    }
+
+    @Override
+    public int positionOf(final int user, final int item) {
+        final int p = Arrays.binarySearch(userItems, userOffsets[user], userOffsets[user + 1], item);
+        return p < 0 ? -1 : p;
+    }
+
+    @Override
+    public int getNumUsers() {
+        return userIds.length;
+    }
+
+    @Override
+    public int getNumItems() {
+        return itemIds.length;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(userIds)
+                + RamUsageEstimator.sizeOf(userOffsets)
+                + RamUsageEstimator.sizeOf(userItems)
+                + RamUsageEstimator.sizeOf(itemIds)
+                + RamUsageEstimator.sizeOf(itemOffsets)
+                + RamUsageEstimator.sizeOf(itemUsers)
+                + (userValues == null ? 0 : RamUsageEstimator.sizeOf(userValues))
+                + (itemValues == null ? 0 : RamUsageEstimator.sizeOf(itemValues))
+                + (userCodes == null ? 0 : RamUsageEstimator.sizeOf(userCodes))
+                + (itemCodes == null ? 0 : RamUsageEstimator.sizeOf(itemCodes))
+                + (table == null ? 0 : RamUsageEstimator.sizeOf(table));
+    }
+
+    private static float[] table(final float[] values, final float min, final float max) {
+        final float[] distinct = new float[LEVELS];
+        int size = 0;
+        for (final float value : values) {
+            if (size > 0 && Arrays.binarySearch(distinct, 0, size, value) >= 0) {
+                continue;
+            }
+            if (size == LEVELS) {
+                size = -1;
+                break;
+            }
+            final int insert = -Arrays.binarySearch(distinct, 0, size, value) - 1;
+            System.arraycopy(distinct, insert, distinct, insert + 1, size - insert);
+            distinct[insert] = value;
+            size++;
+        }
+        if (size >= 0) {
+            return Arrays.copyOf(distinct, Math.max(size, 1));
+        }
+        final float[] levels = new float[LEVELS];
+        final float step = (max - min) / (LEVELS - 1);
+        for (int i = 0; i < LEVELS; i++) {
+            levels[i] = min + step * i;
+        }
+        return levels;
+    }
+
+    private static byte[] encode(final float[] values, final float[] table) {
+        final byte[] codes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            int code = Arrays.binarySearch(table, values[i]);
+            if (code < 0) {
+                // nearest level
+                final int insert = -code - 1;
+                if (insert == 0) {
+                    code = 0;
+                } else if (insert == table.length) {
+                    code = table.length - 1;
+                } else {
+                    code = values[i] - table[insert - 1] <= table[insert] - values[i] ? insert - 1 : insert;
+                }
+            }
+            codes[i] = (byte) code;
+        }
+        return codes;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactDataModel[users:" + getNumUsers() + " items:" + getNumItems()
+                + " preferences:" + numPreferences() + (isQuantized() ? " quantized" : "") + "]";
+    }
+}
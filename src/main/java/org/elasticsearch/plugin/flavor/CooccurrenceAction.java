@@ -0,0 +1,184 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Counts the preference documents of every value of {@code groupField} among
+ * the documents whose {@code field} is one of {@code values}, on all shards of
+ * an index. Shards answer with their partial counts only and the coordinating
+ * node sums them, so what crosses the network is proportional to the distinct
+ * values counted, not to the matching documents.
+ *
+ * With {@code field=user_id} and {@code groupField=item_id}, the counts are the
+ * number of the given users who rated each item; with both fields the same, the
+ * number of preferences of each given value.
+ */
+public class CooccurrenceAction extends Action<CooccurrenceAction.Request, CooccurrenceAction.Response, CooccurrenceAction.RequestBuilder> {
+    public static final CooccurrenceAction INSTANCE = new CooccurrenceAction();
+    public static final String NAME = "indices:data/read/flavor/cooccurrence";
+
+    private CooccurrenceAction() {
+        super(NAME);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(final ElasticsearchClient client) {
+        return new RequestBuilder(client, this);
+    }
+
+    public static class Request extends BroadcastRequest<Request> {
+        private String field;
+        private long[] values = new long[0];
+        private String groupField;
+
+        public Request() {
+        }
+
+        public Request(final String... indices) {
+            super(indices);
+        }
+
+        public String field() {
+            return field;
+        }
+
+        public Request field(final String field) {
+            this.field = field;
+            return this;
+        }
+
+        public long[] values() {
+            return values;
+        }
+
+        public Request values(final long[] values) {
+            this.values = values;
+            return this;
+        }
+
+        public String groupField() {
+            return groupField;
+        }
+
+        public Request groupField(final String groupField) {
+            this.groupField = groupField;
+            return this;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException e = super.validate();
+            if (field == null) {
+                e = addValidationError("field is missing", e);
+            }
+            if (groupField == null) {
+                e = addValidationError("groupField is missing", e);
+            }
+            return e;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            field = in.readString();
+            values = in.readLongArray();
+            groupField = in.readString();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(field);
+            out.writeLongArray(values);
+            out.writeString(groupField);
+        }
+
+        @Override
+        public String toString() {
+            return "cooccurrence[" + field + ":" + values.length + " values -> " + groupField + "]";
+        }
+    }
+
+    /**
+     * Summed counts, in ascending order of value.
+     */
+    public static class Response extends BroadcastResponse {
+        private long[] ids = new long[0];
+        private int[] counts = new int[0];
+
+        Response() {
+        }
+
+        Response(final long[] ids,
+                 final int[] counts,
+                 final int totalShards,
+                 final int successfulShards,
+                 final int failedShards,
+                 final List<DefaultShardOperationFailedException> shardFailures) {
+            super(totalShards, successfulShards, failedShards, shardFailures);
+            this.ids = ids;
+            this.counts = counts;
+        }
+
+        public long[] ids() {
+            return ids;
+        }
+
+        public int[] counts() {
+            return counts;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            ids = in.readLongArray();
+            counts = in.readVIntArray();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeLongArray(ids);
+            out.writeVIntArray(counts);
+        }
+    }
+
+    public static class RequestBuilder extends BroadcastOperationRequestBuilder<Request, Response, RequestBuilder> {
+        RequestBuilder(final ElasticsearchClient client, final CooccurrenceAction action) {
+            super(client, action, new Request());
+        }
+
+        public RequestBuilder setField(final String field) {
+            request.field(field);
+            return this;
+        }
+
+        public RequestBuilder setValues(final long[] values) {
+            request.values(values);
+            return this;
+        }
+
+        public RequestBuilder setGroupField(final String groupField) {
+            request.groupField(groupField);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Collection;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.similarity.AveragingPreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.math.stats.LogLikelihood;
+
+/**
+ * Similarities computed directly on the rows of an {@link AbstractCsrDataModel}.
+ * Rows are sorted by dense index, so every metric is a merge of two int arrays;
+ * when one row is much shorter than the other, its indices are galloped through
+ * the longer one instead. No objects are allocated per pair.
+ *
+ * Results match Mahout's unweighted {@code PearsonCorrelationSimilarity},
+ * {@code EuclideanDistanceSimilarity}, {@code TanimotoCoefficientSimilarity} and
+ * {@code LogLikelihoodSimilarity}, including {@link AveragingPreferenceInferrer}
+ * for user similarities. Any other inferrer is not supported.
+ */
+public class CsrSimilarity implements UserSimilarity, ItemSimilarity {
+    // rows this many times longer than the other one are galloped through
+    private static final int GALLOP_RATIO = 32;
+
+    public enum Metric {
+        PEARSON, EUCLIDEAN, TANIMOTO, LOG_LIKELIHOOD;
+
+        /** The metric behind a similarity name of the REST API, or {@code null}. */
+        public static Metric of(final String similarityName) {
+            switch (similarityName) {
+                case "PearsonCorrelationSimilarity":
+                    return PEARSON;
+                case "EuclideanDistanceSimilarity":
+                    return EUCLIDEAN;
+                case "TanimotoCoefficientSimilarity":
+                    return TANIMOTO;
+                case "LogLikelihoodSimilarity":
+                    return LOG_LIKELIHOOD;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final AbstractCsrDataModel model;
+    private final Metric metric;
+    private boolean averaging;
+
+    public CsrSimilarity(final AbstractCsrDataModel model, final Metric metric) {
+        this.model = model;
+        this.metric = metric;
+    }
+
+    public Metric metric() {
+        return metric;
+    }
+
+    @Override
+    public double userSimilarity(final long userID1, final long userID2) throws TasteException {
+        final int user1 = model.userIndex(userID1);
+        if (user1 < 0) {
+            throw new NoSuchUserException(userID1);
+        }
+        final int user2 = model.userIndex(userID2);
+        if (user2 < 0) {
+            throw new NoSuchUserException(userID2);
+        }
+        final int a0 = model.userRowStart(user1);
+        final int a1 = model.userRowStart(user1 + 1);
+        final int b0 = model.userRowStart(user2);
+        final int b1 = model.userRowStart(user2 + 1);
+        switch (metric) {
+            case TANIMOTO:
+                return tanimoto(a1 - a0, b1 - b0, intersectionSize(true, a0, a1, b0, b1), true);
+            case LOG_LIKELIHOOD:
+                return logLikelihood(a1 - a0, b1 - b0, intersectionSize(true, a0, a1, b0, b1), model.getNumItems());
+            default:
+                if (averaging) {
+                    return inferred(a0, a1, b0, b1);
+                }
+                return correlation(true, a0, a1, b0, b1);
+        }
+    }
+
+    @Override
+    public double itemSimilarity(final long itemID1, final long itemID2) throws TasteException {
+        final int item1 = model.itemIndex(itemID1);
+        if (item1 < 0) {
+            throw new NoSuchItemException(itemID1);
+        }
+        return itemSimilarity(item1, itemID2);
+    }
+
+    private double itemSimilarity(final int item1, final long itemID2) throws TasteException {
+        final int item2 = model.itemIndex(itemID2);
+        if (item2 < 0) {
+            throw new NoSuchItemException(itemID2);
+        }
+        final int a0 = model.itemRowStart(item1);
+        final int a1 = model.itemRowStart(item1 + 1);
+        final int b0 = model.itemRowStart(item2);
+        final int b1 = model.itemRowStart(item2 + 1);
+        switch (metric) {
+            case TANIMOTO:
+                return tanimoto(a1 - a0, b1 - b0, intersectionSize(false, a0, a1, b0, b1), false);
+            case LOG_LIKELIHOOD:
+                return logLikelihood(a1 - a0, b1 - b0, intersectionSize(false, a0, a1, b0, b1), model.getNumUsers());
+            default:
+                return correlation(false, a0, a1, b0, b1);
+        }
+    }
+
+    @Override
+    public double[] itemSimilarities(final long itemID1, final long[] itemID2s) throws TasteException {
+        final int item1 = model.itemIndex(itemID1);
+        if (item1 < 0) {
+            throw new NoSuchItemException(itemID1);
+        }
+        final double[] result = new double[itemID2s.length];
+        for (int i = 0; i < itemID2s.length; i++) {
+            result[i] = itemSimilarity(item1, itemID2s[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] allSimilarItemIDs(final long itemID) throws TasteException {
+        final int item = model.itemIndex(itemID);
+        if (item < 0) {
+            throw new NoSuchItemException(itemID);
+        }
+        final FastIDSet similar = new FastIDSet();
+        for (int p = model.itemRowStart(item); p < model.itemRowStart(item + 1); p++) {
+            final int user = model.userAt(p);
+            for (int q = model.userRowStart(user); q < model.userRowStart(user + 1); q++) {
+                final int other = model.itemAt(q);
+                if (other != item) {
+                    final long otherId = model.itemIdAt(other);
+                    if (!similar.contains(otherId) && !Double.isNaN(itemSimilarity(item, otherId))) {
+                        similar.add(otherId);
+                    }
+                }
+            }
+        }
+        return similar.toArray();
+    }
+
+    @Override
+    public void setPreferenceInferrer(final PreferenceInferrer inferrer) {
+        if (inferrer != null && !(inferrer instanceof AveragingPreferenceInferrer)) {
+            throw new UnsupportedOperationException("Only AveragingPreferenceInferrer is supported: " + inferrer);
+        }
+        this.averaging = inferrer != null;
+    }
+
+    @Override
+    public void refresh(final Collection<Refreshable> alreadyRefreshed) {
+        // read-only model
+    }
+
+    private int indexAt(final boolean userRows, final int position) {
+        return userRows ? model.itemAt(position) : model.userAt(position);
+    }
+
+    private float valueAt(final boolean userRows, final int position) {
+        return userRows ? model.userValueAt(position) : model.itemValueAt(position);
+    }
+
+    /**
+     * First position in [{@code from}, {@code to}) whose index is at least
+     * {@code key}: exponential probing, then binary search.
+     */
+    private int gallop(final boolean userRows, final int key, final int from, final int to) {
+        int step = 1;
+        int low = from;
+        int high = from;
+        while (high < to && indexAt(userRows, high) < key) {
+            low = high + 1;
+            high = from + step;
+            step <<= 1;
+        }
+        high = Math.min(high, to);
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (indexAt(userRows, mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    int intersectionSize(final boolean userRows, int a0, int a1, int b0, int b1) {
+        if (a1 - a0 > b1 - b0) {
+            final int s0 = a0;
+            final int s1 = a1;
+            a0 = b0;
+            a1 = b1;
+            b0 = s0;
+            b1 = s1;
+        }
+        int count = 0;
+        if ((long) (a1 - a0) * GALLOP_RATIO < b1 - b0) {
+            for (int p = a0; p < a1 && b0 < b1; p++) {
+                final int key = indexAt(userRows, p);
+                b0 = gallop(userRows, key, b0, b1);
+                if (b0 < b1 && indexAt(userRows, b0) == key) {
+                    count++;
+                    b0++;
+                }
+            }
+            return count;
+        }
+        while (a0 < a1 && b0 < b1) {
+            final int x = indexAt(userRows, a0);
+            final int y = indexAt(userRows, b0);
+            // branch-free advance; the order of the two rows is unpredictable
+            count += x == y ? 1 : 0;
+            a0 += x <= y ? 1 : 0;
+            b0 += x >= y ? 1 : 0;
+        }
+        return count;
+    }
+
+    /** Pearson or Euclidean over the co-rated entries only. */
+    private double correlation(final boolean userRows, int a0, final int a1, int b0, final int b1) {
+        double sumX = 0;
+        double sumY = 0;
+        double sumXY = 0;
+        double sumX2 = 0;
+        double sumY2 = 0;
+        double sumXYdiff2 = 0;
+        int count = 0;
+        final boolean aShort = a1 - a0 <= b1 - b0;
+        final int shortLength = aShort ? a1 - a0 : b1 - b0;
+        final int longLength = aShort ? b1 - b0 : a1 - a0;
+        if ((long) shortLength * GALLOP_RATIO < longLength) {
+            // gallop the shorter row through the longer one; x stays the first row
+            int s0 = aShort ? a0 : b0;
+            final int s1 = aShort ? a1 : b1;
+            int l0 = aShort ? b0 : a0;
+            final int l1 = aShort ? b1 : a1;
+            for (; s0 < s1 && l0 < l1; s0++) {
+                final int key = indexAt(userRows, s0);
+                l0 = gallop(userRows, key, l0, l1);
+                if (l0 < l1 && indexAt(userRows, l0) == key) {
+                    final double x = valueAt(userRows, aShort ? s0 : l0);
+                    final double y = valueAt(userRows, aShort ? l0 : s0);
+                    sumX += x;
+                    sumY += y;
+                    sumXY += x * y;
+                    sumX2 += x * x;
+                    sumY2 += y * y;
+                    sumXYdiff2 += (x - y) * (x - y);
+                    count++;
+                    l0++;
+                }
+            }
+        } else {
+            while (a0 < a1 && b0 < b1) {
+                final int xi = indexAt(userRows, a0);
+                final int yi = indexAt(userRows, b0);
+                // branch-free: unmatched entries are accumulated as zeros
+                final int match = xi == yi ? 1 : 0;
+                final double x = valueAt(userRows, a0) * match;
+                final double y = valueAt(userRows, b0) * match;
+                sumX += x;
+                sumY += y;
+                sumXY += x * y;
+                sumX2 += x * x;
+                sumY2 += y * y;
+                sumXYdiff2 += (x - y) * (x - y);
+                count += match;
+                a0 += xi <= yi ? 1 : 0;
+                b0 += xi >= yi ? 1 : 0;
+            }
+        }
+        return result(count, sumX, sumY, sumXY, sumX2, sumY2, sumXYdiff2);
+    }
+
+    /**
+     * Pearson or Euclidean over the union of two user rows, the missing side of an
+     * entry being inferred as the average preference of its user.
+     */
+    private double inferred(int a0, final int a1, int b0, final int b1) {
+        if (a0 == a1 || b0 == b1) {
+            return Double.NaN;
+        }
+        final double meanA = mean(a0, a1);
+        final double meanB = mean(b0, b1);
+        double sumX = 0;
+        double sumY = 0;
+        double sumXY = 0;
+        double sumX2 = 0;
+        double sumY2 = 0;
+        double sumXYdiff2 = 0;
+        int count = 0;
+        while (a0 < a1 || b0 < b1) {
+            final int xi = a0 < a1 ? model.itemAt(a0) : Integer.MAX_VALUE;
+            final int yi = b0 < b1 ? model.itemAt(b0) : Integer.MAX_VALUE;
+            final double x;
+            final double y;
+            if (xi == yi) {
+                x = model.userValueAt(a0++);
+                y = model.userValueAt(b0++);
+            } else if (xi < yi) {
+                x = model.userValueAt(a0++);
+                y = meanB;
+            } else {
+                x = meanA;
+                y = model.userValueAt(b0++);
+            }
+            sumX += x;
+            sumY += y;
+            sumXY += x * y;
+            sumX2 += x * x;
+            sumY2 += y * y;
+            sumXYdiff2 += (x - y) * (x - y);
+            count++;
+        }
+        return result(count, sumX, sumY, sumXY, sumX2, sumY2, sumXYdiff2);
+    }
+
+    private double mean(final int from, final int to) {
+        // same float accumulation as Mahout's FullRunningAverage
+        double average = Double.NaN;
+        int count = 0;
+        for (int p = from; p < to; p++) {
+            count++;
+            final double value = model.userValueAt(p);
+            average = count == 1 ? value : average + (value - average) / count;
+        }
+        return (float) average;
+    }
+
+    private double result(final int count,
+                          final double sumX,
+                          final double sumY,
+                          final double sumXY,
+                          final double sumX2,
+                          final double sumY2,
+                          final double sumXYdiff2) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double result;
+        if (metric == Metric.PEARSON) {
+            // centered, like AbstractSimilarity with centerData
+            final double meanX = sumX / count;
+            final double meanY = sumY / count;
+            final double centeredSumXY = sumXY - meanY * sumX;
+            final double centeredSumX2 = sumX2 - meanX * sumX;
+            final double centeredSumY2 = sumY2 - meanY * sumY;
+            final double denominator = Math.sqrt(centeredSumX2) * Math.sqrt(centeredSumY2);
+            if (denominator == 0.0) {
+                return Double.NaN;
+            }
+            result = centeredSumXY / denominator;
+        } else {
+            result = 1.0 / (1.0 + Math.sqrt(sumXYdiff2) / Math.sqrt(count));
+        }
+        if (result < -1.0) {
+            result = -1.0;
+        } else if (result > 1.0) {
+            result = 1.0;
+        }
+        return result;
+    }
+
+    static double tanimoto(final int size1, final int size2, final int intersection, final boolean users) {
+        if (users) {
+            if (size1 == 0 && size2 == 0) {
+                return Double.NaN;
+            }
+            if (size1 == 0 || size2 == 0) {
+                return 0.0;
+            }
+        }
+        if (intersection == 0) {
+            return Double.NaN;
+        }
+        return (double) intersection / (size1 + size2 - intersection);
+    }
+
+    static double logLikelihood(final long size1, final long size2, final long intersection, final long total) {
+        if (intersection == 0) {
+            return Double.NaN;
+        }
+        final double logLikelihood = LogLikelihood.logLikelihoodRatio(intersection,
+                                                                      size1 - intersection,
+                                                                      size2 - intersection,
+                                                                      total - size1 - size2 + intersection);
+        return 1.0 - 1.0 / (1.0 + logLikelihood);
+    }
+
+    @Override
+    public String toString() {
+        return "CsrSimilarity[" + metric + "]";
+    }
+}
@@ -0,0 +1,206 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * Preloaded models of this node keyed by {@code index/type}. Models are kept in
+ * access order; when the estimated heap of all models exceeds
+ * {@link #MEMORY_BUDGET_SETTING}, the least recently used ones are closed.
+ * Room is made with {@link #reserve} before a model loads, and checked again
+ * with its actual size by {@link #put}. Sizes are read outside the lock, so
+ * requests looking up a model never wait for them.
+ */
+public class DataModelRegistry implements Closeable {
+    public static final Setting<ByteSizeValue> MEMORY_BUDGET_SETTING =
+            Setting.memorySizeSetting("flavor.preload.memory_budget", "20%", Property.NodeScope);
+
+    private Logger logger = Loggers.getLogger(DataModelRegistry.class);
+    private final long budget;
+    private final LinkedHashMap<String, ElasticsearchPreloadDataModelFactory> factories =
+            new LinkedHashMap<String, ElasticsearchPreloadDataModelFactory>(16, 0.75F, true);
+    private String latestKey;
+
+    public DataModelRegistry(final Settings settings) {
+        this(MEMORY_BUDGET_SETTING.get(settings).getBytes());
+    }
+
+    public DataModelRegistry(final long budget) {
+        this.budget = budget;
+    }
+
+    public static String key(final String index, final String type) {
+        return index + "/" + type;
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    /**
+     * Makes room for a model of index/type that is about to be loaded with an
+     * estimated size of {@code bytes}. Least recently used models of other keys
+     * are evicted first; when that is not enough, the model being replaced is
+     * evicted too, so the old and the new model never exceed the budget together.
+     *
+     * @throws CircuitBreakingException if the model alone does not fit the budget
+     */
+    public void reserve(final String index, final String type, final long bytes) {
+        final String key = key(index, type);
+        if (bytes > budget) {
+            throw new CircuitBreakingException("Preloaded model " + key
+                    + " is estimated to need " + new ByteSizeValue(bytes) + " which is larger than "
+                    + MEMORY_BUDGET_SETTING.getKey() + " [" + new ByteSizeValue(budget) + "]", bytes, budget);
+        }
+        final Map<ElasticsearchPreloadDataModelFactory, Long> sizes = sizes();
+        synchronized (this) {
+            long used = used(sizes);
+            final Iterator<Map.Entry<String, ElasticsearchPreloadDataModelFactory>> it = factories.entrySet().iterator();
+            while (used + bytes > budget && it.hasNext()) {
+                final Map.Entry<String, ElasticsearchPreloadDataModelFactory> entry = it.next();
+                if (entry.getKey().equals(key)) {
+                    continue;
+                }
+                used -= evict(entry.getKey(), entry.getValue(), sizes);
+                it.remove();
+            }
+            final ElasticsearchPreloadDataModelFactory previous = factories.get(key);
+            if (used + bytes > budget && previous != null) {
+                evict(key, previous, sizes);
+                factories.remove(key);
+                if (key.equals(latestKey)) {
+                    latestKey = null;
+                }
+            }
+        }
+    }
+
+    /** Sizes of the registered factories, read without holding the lock. */
+    private Map<ElasticsearchPreloadDataModelFactory, Long> sizes() {
+        final Map<ElasticsearchPreloadDataModelFactory, Long> sizes = new IdentityHashMap<>();
+        for (final ElasticsearchPreloadDataModelFactory factory : list()) {
+            sizes.put(factory, factory.ramBytesUsed());
+        }
+        return sizes;
+    }
+
+    /** Size of {@code factory} from {@code sizes}, or read now if it was registered since. */
+    private static long size(final ElasticsearchPreloadDataModelFactory factory,
+                             final Map<ElasticsearchPreloadDataModelFactory, Long> sizes) {
+        final Long size = sizes.get(factory);
+        return size != null ? size : factory.ramBytesUsed();
+    }
+
+    private long used(final Map<ElasticsearchPreloadDataModelFactory, Long> sizes) {
+        long used = 0;
+        for (final ElasticsearchPreloadDataModelFactory factory : factories.values()) {
+            used += size(factory, sizes);
+        }
+        return used;
+    }
+
+    private long evict(final String key,
+                       final ElasticsearchPreloadDataModelFactory factory,
+                       final Map<ElasticsearchPreloadDataModelFactory, Long> sizes) {
+        final long evicted = size(factory, sizes);
+        logger.info("Evict preloaded model {} ({}) to stay within {}",
+                key, new ByteSizeValue(evicted), new ByteSizeValue(budget));
+        factory.close();
+        return evicted;
+    }
+
+    /**
+     * Registers a loaded factory, replacing the one for the same index/type, and
+     * evicts least recently used models until the budget is met again.
+     *
+     * @throws CircuitBreakingException if the model alone does not fit the budget
+     */
+    public void put(final ElasticsearchPreloadDataModelFactory factory) {
+        final long bytes = factory.ramBytesUsed();
+        if (bytes > budget) {
+            factory.close();
+            throw new CircuitBreakingException("Preloaded model " + key(factory.index(), factory.type())
+                    + " needs " + new ByteSizeValue(bytes) + " which is larger than "
+                    + MEMORY_BUDGET_SETTING.getKey() + " [" + new ByteSizeValue(budget) + "]", bytes, budget);
+        }
+        final Map<ElasticsearchPreloadDataModelFactory, Long> sizes = sizes();
+        sizes.put(factory, bytes);
+        synchronized (this) {
+            final String key = key(factory.index(), factory.type());
+            final ElasticsearchPreloadDataModelFactory previous = factories.put(key, factory);
+            if (previous != null && previous != factory) {
+                previous.close();
+            }
+            latestKey = key;
+
+            long used = used(sizes);
+            final Iterator<Map.Entry<String, ElasticsearchPreloadDataModelFactory>> it = factories.entrySet().iterator();
+            while (used > budget && it.hasNext()) {
+                final Map.Entry<String, ElasticsearchPreloadDataModelFactory> entry = it.next();
+                if (entry.getValue() == factory) {
+                    continue;
+                }
+                used -= evict(entry.getKey(), entry.getValue(), sizes);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the model for index/type and marks it as recently used. When both are
+     * {@code null}, returns the most recently loaded model.
+     */
+    public synchronized ElasticsearchPreloadDataModelFactory get(final String index, final String type) {
+        if (index == null && type == null) {
+            return latestKey == null ? null : factories.get(latestKey);
+        }
+        return factories.get(key(index, type == null ? "preference" : type));
+    }
+
+    public synchronized ElasticsearchPreloadDataModelFactory remove(final String index, final String type) {
+        final String key = key(index, type);
+        final ElasticsearchPreloadDataModelFactory factory = factories.remove(key);
+        if (factory != null) {
+            factory.close();
+        }
+        if (key.equals(latestKey)) {
+            latestKey = null;
+        }
+        return factory;
+    }
+
+    /** Factories from least to most recently used. */
+    public synchronized List<ElasticsearchPreloadDataModelFactory> list() {
+        return new ArrayList<ElasticsearchPreloadDataModelFactory>(factories.values());
+    }
+
+    public long ramBytesUsed() {
+        long used = 0;
+        for (final ElasticsearchPreloadDataModelFactory factory : list()) {
+            used += factory.ramBytesUsed();
+        }
+        return used;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (final ElasticsearchPreloadDataModelFactory factory : factories.values()) {
+            factory.close();
+        }
+        factories.clear();
+        latestKey = null;
+    }
+}
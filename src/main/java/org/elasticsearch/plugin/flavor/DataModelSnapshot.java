@@ -0,0 +1,254 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+/**
+ * Binary snapshot of a preloaded model: sorted user and item ID dictionaries
+ * followed by the preferences in CSR layout twice, user to items and item to
+ * users. Every section is a flat big-endian array so {@link #open(Path)} can
+ * serve it through memory-mapped buffers.
+ *
+ * <pre>
+ * int    MAGIC, int FORMAT_VERSION, int headerLength, header
+ * long[] userIds      int[] userOffsets  int[] userItems  float[] userValues
+ * long[] itemIds      int[] itemOffsets  int[] itemUsers  float[] itemValues
+ * int    MAGIC
+ * </pre>
+ */
+public class DataModelSnapshot {
+    private static final int MAGIC = 0x464c5652;
+    private static final int FORMAT_VERSION = 2;
+
+    private DataModelSnapshot() {
+    }
+
+    /**
+     * Describes where a snapshot came from, so it can be validated against the
+     * preference index before it is served.
+     */
+    public static class Metadata {
+        private final String index;
+        private final String type;
+        private final long numPreferences;
+        private final Long watermark;
+        private final String indexState;
+
+        public Metadata(final String index,
+                        final String type,
+                        final long numPreferences,
+                        final Long watermark,
+                        final String indexState) {
+            this.index = index;
+            this.type = type;
+            this.numPreferences = numPreferences;
+            this.watermark = watermark;
+            this.indexState = indexState;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        /** Number of preferences in the snapshot. */
+        public long numPreferences() {
+            return numPreferences;
+        }
+
+        public Long watermark() {
+            return watermark;
+        }
+
+        /**
+         * State of the preference index the snapshot was loaded from, see
+         * {@link ElasticsearchPreloadDataModel#indexState()}, or {@code null}.
+         */
+        public String indexState() {
+            return indexState;
+        }
+    }
+
+    /**
+     * Writes {@code dataModel} to a temporary file next to {@code file} and moves it
+     * into place, so readers never see a partial snapshot.
+     */
+    public static void write(final DataModel dataModel,
+                             final String index,
+                             final String type,
+                             final Long watermark,
+                             final String indexState,
+                             final Path file) throws IOException, TasteException {
+        final AbstractCsrDataModel csr = dataModel instanceof AbstractCsrDataModel
+                ? (AbstractCsrDataModel) dataModel
+                : CompactDataModel.copyOf(dataModel, false);
+        final int numUsers = csr.getNumUsers();
+        final int numItems = csr.getNumItems();
+        final int numValues = csr.userRowStart(numUsers);
+        if (numValues > Integer.MAX_VALUE / Float.BYTES) {
+            throw new IOException("Too many preferences for a snapshot: " + numValues);
+        }
+
+        final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        try (DataOutputStream header = new DataOutputStream(headerBytes)) {
+            header.writeUTF(index);
+            header.writeUTF(type);
+            header.writeBoolean(watermark != null);
+            header.writeLong(watermark == null ? 0 : watermark);
+            header.writeBoolean(indexState != null);
+            header.writeUTF(indexState == null ? "" : indexState);
+            header.writeFloat(numValues == 0 ? 0 : csr.getMinPreference());
+            header.writeFloat(numValues == 0 ? 0 : csr.getMaxPreference());
+            header.writeInt(numUsers);
+            header.writeInt(numItems);
+            header.writeInt(numValues);
+        }
+
+        Files.createDirectories(file.getParent());
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(headerBytes.size());
+            headerBytes.writeTo(out);
+            for (int u = 0; u < numUsers; u++) {
+                out.writeLong(csr.userIdAt(u));
+            }
+            for (int u = 0; u <= numUsers; u++) {
+                out.writeInt(csr.userRowStart(u));
+            }
+            for (int p = 0; p < numValues; p++) {
+                out.writeInt(csr.itemAt(p));
+            }
+            for (int p = 0; p < numValues; p++) {
+                out.writeFloat(csr.userValueAt(p));
+            }
+            for (int i = 0; i < numItems; i++) {
+                out.writeLong(csr.itemIdAt(i));
+            }
+            for (int i = 0; i <= numItems; i++) {
+                out.writeInt(csr.itemRowStart(i));
+            }
+            for (int p = 0; p < numValues; p++) {
+                out.writeInt(csr.userAt(p));
+            }
+            for (int p = 0; p < numValues; p++) {
+                out.writeFloat(csr.itemValueAt(p));
+            }
+            out.writeInt(MAGIC);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps {@code file} read-only. The returned model keeps no heap copy of the
+     * preferences; pages are shared through the OS page cache.
+     */
+    public static MappedDataModel open(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            final ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES * 3);
+            readFully(channel, prefix, 0);
+            prefix.flip();
+            if (prefix.getInt() != MAGIC) {
+                throw new IOException("Not a flavor snapshot: " + file);
+            }
+            final int formatVersion = prefix.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot version " + formatVersion + ": " + file);
+            }
+            final int headerLength = prefix.getInt();
+            final ByteBuffer headerBuffer = ByteBuffer.allocate(headerLength);
+            readFully(channel, headerBuffer, prefix.capacity());
+
+            final DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBuffer.array()));
+            final String index = header.readUTF();
+            final String type = header.readUTF();
+            final boolean hasWatermark = header.readBoolean();
+            final long watermark = header.readLong();
+            final boolean hasIndexState = header.readBoolean();
+            final String indexState = header.readUTF();
+            final float minPreference = header.readFloat();
+            final float maxPreference = header.readFloat();
+            final int numUsers = header.readInt();
+            final int numItems = header.readInt();
+            final int numValues = header.readInt();
+
+            long position = prefix.capacity() + headerLength;
+            final long expectedSize = position
+                    + (long) Long.BYTES * (numUsers + numItems)
+                    + (long) Integer.BYTES * (numUsers + 1 + numItems + 1)
+                    + 2L * (Integer.BYTES + Float.BYTES) * numValues
+                    + Integer.BYTES;
+            if (fileSize != expectedSize) {
+                throw new IOException("Truncated snapshot " + file + ": " + fileSize + " bytes, expected " + expectedSize);
+            }
+
+            final ByteBuffer userIds = map(channel, position, (long) Long.BYTES * numUsers);
+            position += userIds.capacity();
+            final ByteBuffer userOffsets = map(channel, position, (long) Integer.BYTES * (numUsers + 1));
+            position += userOffsets.capacity();
+            final ByteBuffer userItems = map(channel, position, (long) Integer.BYTES * numValues);
+            position += userItems.capacity();
+            final ByteBuffer userValues = map(channel, position, (long) Float.BYTES * numValues);
+            position += userValues.capacity();
+            final ByteBuffer itemIds = map(channel, position, (long) Long.BYTES * numItems);
+            position += itemIds.capacity();
+            final ByteBuffer itemOffsets = map(channel, position, (long) Integer.BYTES * (numItems + 1));
+            position += itemOffsets.capacity();
+            final ByteBuffer itemUsers = map(channel, position, (long) Integer.BYTES * numValues);
+            position += itemUsers.capacity();
+            final ByteBuffer itemValues = map(channel, position, (long) Float.BYTES * numValues);
+            position += itemValues.capacity();
+
+            final ByteBuffer footer = ByteBuffer.allocate(Integer.BYTES);
+            readFully(channel, footer, position);
+            footer.flip();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Corrupted snapshot: " + file);
+            }
+
+            return new MappedDataModel(
+                    new Metadata(index, type, numValues, hasWatermark ? watermark : null, hasIndexState ? indexState : null),
+                    minPreference, maxPreference,
+                    userIds.asLongBuffer(), userOffsets.asIntBuffer(), userItems.asIntBuffer(), userValues.asFloatBuffer(),
+                    itemIds.asLongBuffer(), itemOffsets.asIntBuffer(), itemUsers.asIntBuffer(), itemValues.asFloatBuffer());
+        }
+    }
+
+    private static ByteBuffer map(final FileChannel channel, final long position, final long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot section too large to map: " + size);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.elasticsearch.plugin.flavor;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.StoredFieldsContext;
+
+/**
+ * Reads preference fields from doc values with {@code _source} and stored
+ * fields disabled, so no JSON is decoded per hit.
+ */
+public class DocValuesPreferenceFetcher implements PreferenceFetcher {
+    public static final DocValuesPreferenceFetcher INSTANCE = new DocValuesPreferenceFetcher();
+
+    private static final String FORMAT = "use_field_mapping";
+
+    @Override
+    public SearchRequestBuilder prepare(final SearchRequestBuilder search, final String... fields) {
+        search.setFetchSource(false);
+        search.storedFields(StoredFieldsContext._NONE_);
+        for (final String field : fields) {
+            search.addDocValueField(field, FORMAT);
+        }
+        return search;
+    }
+
+    @Override
+    public long getLong(final SearchHit hit, final String field) throws TasteException {
+        return getNumber(hit, field).longValue();
+    }
+
+    @Override
+    public float getFloat(final SearchHit hit, final String field) throws TasteException {
+        return getNumber(hit, field).floatValue();
+    }
+
+    protected Number getNumber(final SearchHit hit, final String field) throws TasteException {
+        final DocumentField documentField = hit.field(field);
+        if (documentField == null) {
+            throw new TasteException(field + " is not found.");
+        }
+        final Object result = documentField.getValue();
+        if (result == null) {
+            throw new TasteException(field + " is not found.");
+        }
+        if (! (result instanceof Number))
+            throw new TasteException(field + " is not Number.");
+        return (Number) result;
+    }
+
+    @Override
+    public String name() {
+        return DOC_VALUES;
+    }
+}
@@ -0,0 +1,230 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.List;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.support.ThreadedActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+
+/**
+ * Dynamic data model that finds the neighborhood with terms aggregations instead
+ * of scrolling it. Items of the user and candidate users are reduced on the shards;
+ * candidates are ranked by the number of items they share with the user and
+ * capped at {@code candidates}. Only the preferences of those candidates are
+ * fetched.
+ *
+ * Every user of an item shares exactly that item, so counts cannot rank them;
+ * for similar items the candidates are a random sample of the users of the
+ * item instead, seeded with the item so repeated requests use the same sample.
+ *
+ * The items of the user are read with a terms aggregation too, so they are
+ * capped at {@code targetItems} (default {@value #TARGET_ITEMS}), or at
+ * {@code maxItemsPerUser} when that is set. Items beyond the cap are not used
+ * to find neighbors.
+ */
+public class ElasticsearchAggregationDataModelFactory implements DataModelFactory {
+    public static final String NAME = "aggregation";
+    private static final String AGGREGATION = "flavor_terms";
+    public static final int TARGET_ITEMS = 10000;
+
+    private final FlavorRestAction action;
+    private Logger logger = Loggers.getLogger(ElasticsearchAggregationDataModelFactory.class);
+    private final Client client;
+
+    private int scrollSize = 2000;
+    private long keepAlive = 10000;
+    private int candidates = 500;
+    private int targetItems = TARGET_ITEMS;
+
+    public ElasticsearchAggregationDataModelFactory(final Client client, final FlavorRestAction action) {
+        this.client = client;
+        this.action = action;
+    }
+
+    public void createItemBasedDataModel(final String index,
+                                         final String type,
+                                         final long itemId,
+                                         final RestChannel ch,
+                                         final long startTime,
+                                         final RestRequest request) throws TasteException {
+        final PreferenceFetcher fetcher = PreferenceFetcher.of(request.param("fetch"));
+        final int size = request.paramAsInt("candidates", candidates);
+        final FanOutLimits limits = FanOutLimits.of(request);
+        final ActionListener<DataModel> listener = render(ch, startTime, request);
+        sampleTerms(index, type, QueryBuilders.termQuery("item_id", itemId), "user_id", itemId, size, fetcher,
+                 ActionListener.wrap(userIds -> {
+                     if (userIds.length == 0) {
+                         throw new NoSuchItemException(itemId);
+                     }
+                     fetchPreferences(index, type, userIds, fetcher, request, limits,
+                                      new FastIDSet(new long[] { itemId }), listener);
+                 }, listener::onFailure));
+    }
+
+    public void createUserBasedDataModel(final String index,
+                                         final String type,
+                                         final long userId,
+                                         final RestChannel ch,
+                                         final long startTime,
+                                         final RestRequest request) throws TasteException {
+        final PreferenceFetcher fetcher = PreferenceFetcher.of(request.param("fetch"));
+        final int size = request.paramAsInt("candidates", candidates);
+        final FanOutLimits limits = FanOutLimits.of(request);
+        final int maxItems = limits.maxItemsPerUser() > 0
+                ? limits.maxItemsPerUser()
+                : request.paramAsInt("targetItems", targetItems);
+        final ActionListener<DataModel> listener = render(ch, startTime, request);
+        topTerms(index, type, QueryBuilders.termQuery("user_id", userId), "item_id", maxItems,
+                 ActionListener.wrap(itemIds -> {
+                     if (itemIds.length == 0) {
+                         throw new NoSuchUserException(userId);
+                     }
+                     final QueryBuilder neighbors = QueryBuilders
+                             .boolQuery()
+                             .filter(QueryBuilders.termsQuery("item_id", itemIds))
+                             .mustNot(QueryBuilders.termQuery("user_id", userId));
+                     topTerms(index, type, neighbors, "user_id", size, ActionListener.wrap(userIds -> {
+                         final long[] withTarget = new long[userIds.length + 1];
+                         System.arraycopy(userIds, 0, withTarget, 0, userIds.length);
+                         withTarget[userIds.length] = userId;
+                         fetchPreferences(index, type, withTarget, fetcher, request, limits,
+                                          new FastIDSet(itemIds), listener);
+                     }, listener::onFailure));
+                 }, listener::onFailure));
+    }
+
+    public void setCandidates(final int value) {
+        this.candidates = value;
+    }
+
+    public void setTargetItems(final int value) {
+        this.targetItems = value;
+    }
+
+    private ActionListener<DataModel> render(final RestChannel ch, final long startTime, final RestRequest request) {
+        return onFlavorThread(new ActionListener<DataModel>() {
+            @Override
+            public void onResponse(final DataModel dataModel) {
+                try {
+                    action.similar_items(dataModel, request, ch, startTime);
+                } catch (final Exception e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                if (e instanceof NoSuchItemException || e instanceof NoSuchUserException) {
+                    action.renderNotFound(ch, e.toString());
+                    return;
+                }
+                action.handleErrorRequest(ch, e);
+            }
+        });
+    }
+
+    /**
+     * IDs of the top {@code size} terms of {@code field} among documents matching
+     * {@code query}, by document count.
+     */
+    private void topTerms(final String index,
+                          final String type,
+                          final QueryBuilder query,
+                          final String field,
+                          final int size,
+                          final ActionListener<long[]> listener) {
+        client
+            .prepareSearch(index)
+            .setTypes(type)
+            .setSize(0)
+            .setQuery(QueryBuilders.constantScoreQuery(query))
+            .addAggregation(AggregationBuilders.terms(AGGREGATION).field(field).size(size))
+            .execute(onFlavorThread(ActionListener.wrap(response -> {
+                final Terms terms = response.getAggregations().get(AGGREGATION);
+                final List<? extends Terms.Bucket> buckets = terms.getBuckets();
+                final long[] ids = new long[buckets.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = buckets.get(i).getKeyAsNumber().longValue();
+                }
+                listener.onResponse(ids);
+            }, listener::onFailure)));
+    }
+
+    /**
+     * Distinct values of {@code field} of up to {@code size} documents matching
+     * {@code query}, drawn at random with {@code seed}. Documents are scored on
+     * their {@code field}, so a seed always draws the same values.
+     */
+    private void sampleTerms(final String index,
+                             final String type,
+                             final QueryBuilder query,
+                             final String field,
+                             final long seed,
+                             final int size,
+                             final PreferenceFetcher fetcher,
+                             final ActionListener<long[]> listener) {
+        final SearchRequestBuilder search = client
+            .prepareSearch(index)
+            .setTypes(type)
+            .setSize(size)
+            .setQuery(QueryBuilders.functionScoreQuery(QueryBuilders.constantScoreQuery(query),
+                    ScoreFunctionBuilders.randomFunction().seed(seed).setField(field)));
+        fetcher.prepare(search, field);
+        search.execute(onFlavorThread(ActionListener.wrap(response -> {
+            final FastIDSet ids = new FastIDSet(size);
+            for (final SearchHit hit : response.getHits().getHits()) {
+                ids.add(fetcher.getLong(hit, field));
+            }
+            listener.onResponse(ids.toArray());
+        }, listener::onFailure)));
+    }
+
+    private void fetchPreferences(final String index,
+                                  final String type,
+                                  final long[] userIds,
+                                  final PreferenceFetcher fetcher,
+                                  final RestRequest request,
+                                  final FanOutLimits limits,
+                                  final FastIDSet required,
+                                  final ActionListener<DataModel> listener) {
+        final PreferenceArrayBuilder users = new PreferenceArrayBuilder(userIds.length);
+        new ChunkedTermsLookup(client)
+            .executor(FlavorPlugin.THREAD_POOL_NAME)
+            .chunkSize(request.paramAsInt("chunkSize", ChunkedTermsLookup.DEFAULT_CHUNK_SIZE))
+            .concurrency(request.paramAsInt("concurrency", ChunkedTermsLookup.DEFAULT_CONCURRENCY))
+            .scrollSize(scrollSize)
+            .keepAlive(keepAlive)
+            .lookup(index, type, "user_id", userIds, fetcher, new String[] { "user_id", "item_id", "value" }, hits -> {
+                synchronized (users) {
+                    for (SearchHit hit : hits) {
+                        users.add(fetcher.getLong(hit, "user_id"),
+                                  fetcher.getLong(hit, "item_id"),
+                                  fetcher.getFloat(hit, "value"));
+                    }
+                }
+            }, ActionListener.wrap(
+                done -> listener.onResponse(new GenericDataModel(limits.sampleRows(users.build(), required))),
+                listener::onFailure));
+    }
+
+    private <T> ActionListener<T> onFlavorThread(final ActionListener<T> listener) {
+        return new ThreadedActionListener<T>(logger, client.threadPool(), FlavorPlugin.THREAD_POOL_NAME, listener, true);
+    }
+}
@@ -0,0 +1,269 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.ThreadedActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+
+/**
+ * Dynamic engine answering {@code similar_items} and {@code similar_users}
+ * with {@code LogLikelihoodSimilarity} or {@code TanimotoCoefficientSimilarity}
+ * from counts reduced on the shards with {@link CooccurrenceAction}, without
+ * building a data model. For an item, the shards find its users, then count
+ * how many of them rated each other item, then the preferences of each of
+ * those items; a user is served the same way through its items. The number of
+ * users or items of the index comes from a cardinality aggregation, cached for
+ * a minute.
+ *
+ * Counts assume one preference document per user and item. Other operations
+ * and similarities need the preferences themselves and go to
+ * {@code fallback}.
+ */
+public class ElasticsearchCooccurrenceDataModelFactory implements DataModelFactory {
+    public static final String NAME = "shard";
+    private static final String AGGREGATION = "flavor_total";
+    // exact below this many distinct values
+    private static final int PRECISION_THRESHOLD = 40000;
+
+    private final FlavorRestAction action;
+    private final DataModelFactory fallback;
+    private Logger logger = Loggers.getLogger(ElasticsearchCooccurrenceDataModelFactory.class);
+    private final Client client;
+    private final Cache<String, Long> totals = CacheBuilder.<String, Long>builder()
+            .setExpireAfterWrite(TimeValue.timeValueMinutes(1))
+            .build();
+
+    public ElasticsearchCooccurrenceDataModelFactory(final Client client,
+                                                     final FlavorRestAction action,
+                                                     final DataModelFactory fallback) {
+        this.client = client;
+        this.action = action;
+        this.fallback = fallback;
+    }
+
+    public void createItemBasedDataModel(final String index,
+                                         final String type,
+                                         final long itemId,
+                                         final RestChannel ch,
+                                         final long startTime,
+                                         final RestRequest request) throws TasteException {
+        final CsrSimilarity.Metric metric = metric(request);
+        if (metric == null || !"similar_items".equals(request.param("operation"))) {
+            fallback.createItemBasedDataModel(index, type, itemId, ch, startTime, request);
+            return;
+        }
+        final FanOutLimits limits = FanOutLimits.of(request);
+        final int size = request.paramAsInt("size", 10);
+        final ActionListener<List<RecommendedItem>> listener = render(ch, startTime,
+                items -> new ResultCache.Result(items));
+        count(index, "item_id", new long[] { itemId }, "user_id", ActionListener.wrap(users -> {
+            if (users.ids().length == 0) {
+                throw new NoSuchItemException(itemId);
+            }
+            final long[] userIds = limits.sampleUsers(itemId, users.ids());
+            mostSimilar(index, itemId, userIds, "user_id", "item_id", limits.maxCandidateItems(), metric, size, listener);
+        }, listener::onFailure));
+    }
+
+    public void createUserBasedDataModel(final String index,
+                                         final String type,
+                                         final long userId,
+                                         final RestChannel ch,
+                                         final long startTime,
+                                         final RestRequest request) throws TasteException {
+        final CsrSimilarity.Metric metric = metric(request);
+        if (metric == null || !"similar_users".equals(request.param("operation"))) {
+            fallback.createUserBasedDataModel(index, type, userId, ch, startTime, request);
+            return;
+        }
+        final FanOutLimits limits = FanOutLimits.of(request);
+        final int size = request.paramAsInt("size", 10);
+        final ActionListener<List<RecommendedItem>> listener = render(ch, startTime, users -> {
+            final long[] userIds = new long[users.size()];
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = users.get(i).getItemID();
+            }
+            return new ResultCache.Result(userIds);
+        });
+        count(index, "user_id", new long[] { userId }, "item_id", ActionListener.wrap(items -> {
+            if (items.ids().length == 0) {
+                throw new NoSuchUserException(userId);
+            }
+            final long[] itemIds = limits.sampleItems(userId, items.ids());
+            mostSimilar(index, userId, itemIds, "item_id", "user_id", 0, metric, size, listener);
+        }, listener::onFailure));
+    }
+
+    private static CsrSimilarity.Metric metric(final RestRequest request) {
+        final String similarity = request.param("similarity");
+        final CsrSimilarity.Metric metric = similarity == null ? null : CsrSimilarity.Metric.of(similarity);
+        return metric == CsrSimilarity.Metric.TANIMOTO || metric == CsrSimilarity.Metric.LOG_LIKELIHOOD ? metric : null;
+    }
+
+    /**
+     * Ranks the rows sharing a column with {@code targetId}, whose columns are
+     * {@code columns}. Rows are values of {@code rowField}, columns values of
+     * {@code columnField}: items and users for similar items, the other way
+     * around for similar users.
+     */
+    private void mostSimilar(final String index,
+                             final long targetId,
+                             final long[] columns,
+                             final String columnField,
+                             final String rowField,
+                             final int maxCandidates,
+                             final CsrSimilarity.Metric metric,
+                             final int size,
+                             final ActionListener<List<RecommendedItem>> listener) {
+        count(index, columnField, columns, rowField, ActionListener.wrap(cooccurrences -> {
+            final long[] candidates = candidates(targetId, cooccurrences.ids(), cooccurrences.counts(), maxCandidates);
+            if (candidates.length == 0) {
+                listener.onResponse(new TopN(0).toList());
+                return;
+            }
+            total(index, columnField, ActionListener.wrap(total ->
+                count(index, rowField, candidates, rowField, ActionListener.wrap(rows ->
+                    listener.onResponse(mostSimilar(columns.length, cooccurrences.ids(), cooccurrences.counts(),
+                                                    rows.ids(), rows.counts(), candidates, total, metric, size)),
+                    listener::onFailure)),
+                listener::onFailure));
+        }, listener::onFailure));
+    }
+
+    /**
+     * Rows co-occurring with the target, without the target itself. With
+     * {@code max}, only that many with the most co-occurrences, ties by ID.
+     */
+    static long[] candidates(final long targetId, final long[] ids, final int[] cooccurrences, final int max) {
+        final TopN top = new TopN(max > 0 ? max : ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != targetId) {
+                top.offer(ids[i], cooccurrences[i]);
+            }
+        }
+        final List<RecommendedItem> kept = top.toList();
+        final long[] candidates = new long[kept.size()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = kept.get(i).getItemID();
+        }
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
+    /**
+     * Top {@code howMany} of {@code candidates} by {@code metric}, best first.
+     * {@code ids}/{@code cooccurrences} and {@code countedIds}/{@code counts}
+     * are sorted by ID; {@code targetCount} is the number of preferences of the
+     * target and {@code total} the number of rows of the index.
+     */
+    static List<RecommendedItem> mostSimilar(final int targetCount,
+                                             final long[] ids,
+                                             final int[] cooccurrences,
+                                             final long[] countedIds,
+                                             final int[] counts,
+                                             final long[] candidates,
+                                             final long total,
+                                             final CsrSimilarity.Metric metric,
+                                             final int howMany) {
+        final TopN top = new TopN(howMany);
+        for (final long candidate : candidates) {
+            final int i = Arrays.binarySearch(ids, candidate);
+            final int j = Arrays.binarySearch(countedIds, candidate);
+            if (i < 0 || j < 0) {
+                continue;
+            }
+            // rows may have been added between the requests; keep the counts consistent
+            final int count = Math.max(counts[j], cooccurrences[i]);
+            final double similarity = metric == CsrSimilarity.Metric.TANIMOTO
+                    ? CsrSimilarity.tanimoto(targetCount, count, cooccurrences[i], false)
+                    : CsrSimilarity.logLikelihood(targetCount, count, cooccurrences[i],
+                                                  Math.max(total, targetCount + count - cooccurrences[i]));
+            top.offer(candidate, (float) similarity);
+        }
+        return top.toList();
+    }
+
+    private void count(final String index,
+                       final String field,
+                       final long[] values,
+                       final String groupField,
+                       final ActionListener<CooccurrenceAction.Response> listener) {
+        client.execute(CooccurrenceAction.INSTANCE,
+                       new CooccurrenceAction.Request(index).field(field).values(values).groupField(groupField),
+                       ActionListener.wrap(response -> {
+                           if (response.getFailedShards() > 0) {
+                               // partial counts would silently change the ranking
+                               final ElasticsearchException e = new ElasticsearchException(
+                                       "Counting " + groupField + " failed on " + response.getFailedShards() + " shards");
+                               for (final DefaultShardOperationFailedException failure : response.getShardFailures()) {
+                                   e.addSuppressed(failure.getCause());
+                               }
+                               throw e;
+                           }
+                           listener.onResponse(response);
+                       }, listener::onFailure));
+    }
+
+    /**
+     * Number of distinct values of {@code field} in {@code index}.
+     */
+    private void total(final String index, final String field, final ActionListener<Long> listener) {
+        final String key = index + "/" + field;
+        final Long cached = totals.get(key);
+        if (cached != null) {
+            listener.onResponse(cached);
+            return;
+        }
+        client
+            .prepareSearch(index)
+            .setSize(0)
+            .addAggregation(AggregationBuilders.cardinality(AGGREGATION).field(field).precisionThreshold(PRECISION_THRESHOLD))
+            .execute(ActionListener.wrap(response -> {
+                final Cardinality cardinality = response.getAggregations().get(AGGREGATION);
+                final long total = cardinality.getValue();
+                totals.put(key, total);
+                listener.onResponse(total);
+            }, listener::onFailure));
+    }
+
+    @FunctionalInterface
+    private interface ResultMaker {
+        ResultCache.Result make(List<RecommendedItem> items);
+    }
+
+    private ActionListener<List<RecommendedItem>> render(final RestChannel ch, final long startTime, final ResultMaker maker) {
+        return new ThreadedActionListener<List<RecommendedItem>>(logger, client.threadPool(), FlavorPlugin.THREAD_POOL_NAME,
+                                                                 new ActionListener<List<RecommendedItem>>() {
+            @Override
+            public void onResponse(final List<RecommendedItem> items) {
+                action.cooccurrence(maker.make(items), ch, startTime);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                if (e instanceof NoSuchItemException || e instanceof NoSuchUserException) {
+                    action.renderNotFound(ch, e.toString());
+                    return;
+                }
+                action.handleErrorRequest(ch, e);
+            }
+        }, true);
+    }
+}
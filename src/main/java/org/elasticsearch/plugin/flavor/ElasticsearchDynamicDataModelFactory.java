@@ -1,7 +1,9 @@
 package org.elasticsearch.plugin.flavor;
 
+import java.util.Arrays;
 
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ThreadedActionListener;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoRequest;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
 import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
@@ -14,13 +16,14 @@ import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestResponse;
-import org.elasticsearch.rest.action.RestActionListener;
 import org.elasticsearch.rest.action.RestResponseListener;
 import org.elasticsearch.rest.action.cat.RestPluginsAction;
 import org.elasticsearch.rest.action.cat.RestTable;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 
 import org.apache.mahout.cf.taste.common.TasteException;
@@ -40,12 +43,22 @@ public class ElasticsearchDynamicDataModelFactory implements DataModelFactory {
     private Logger logger = Loggers.getLogger(ElasticsearchDynamicDataModelFactory.class);
     private final Client client;
 
+    private static final String[] PREFERENCE_FIELDS = { "user_id", "item_id", "value" };
+
     private int scrollSize = 2000;
     private long keepAlive = 10000;
+    private final PreferenceCache cache;
 
     public ElasticsearchDynamicDataModelFactory(final Client client, final FlavorRestAction action) {
+        this(client, action, new PreferenceCache(0, TimeValue.ZERO));
+    }
+
+    public ElasticsearchDynamicDataModelFactory(final Client client,
+                                                final FlavorRestAction action,
+                                                final PreferenceCache cache) {
         this.client = client;
         this.action = action;
+        this.cache = cache;
     }
 
     public void createItemBasedDataModel(final String index,
@@ -54,71 +67,28 @@ public class ElasticsearchDynamicDataModelFactory implements DataModelFactory {
                                          final RestChannel ch,
                                          final long startTime,
                                          final RestRequest request) throws TasteException {
-        client
-                .prepareSearch(index)
-                .setTypes(type)
-                .addSort("_doc", SortOrder.ASC)
-                .setScroll(new TimeValue(keepAlive))
-                .setPostFilter(QueryBuilders.termQuery("item_id", itemId))
-                .setFetchSource(new String[]{"user_id"}, null)
-                .setSize(scrollSize)
-                .execute(new RestActionListener<SearchResponse>(ch) {
-                    public void processResponse(SearchResponse userIdsResponse) throws Exception {
-
-                        final long numUsers = userIdsResponse.getHits().getTotalHits();
-                        FastIDSet userIds = new FastIDSet((int) numUsers);
-                        loop2(userIdsResponse, userIds);
-                        client
-                                .prepareSearch(index)
-                                .setTypes(type)
-                                .addSort("_doc", SortOrder.ASC)
-                                .setPostFilter(QueryBuilders.termsQuery("user_id", userIds.toArray()))
-                                .setFetchSource(new String[]{"user_id", "item_id", "value"}, null)
-                                .setSize(scrollSize)
-                                .setScroll(new TimeValue(keepAlive))
-                                .execute(new ActionListener<SearchResponse>() {
-                                    @Override
-                                    public void onResponse(SearchResponse scroll) {
-
-                                        final long total = scroll.getHits().getTotalHits();
-                                        FastByIDMap<PreferenceArray> users = new FastByIDMap<PreferenceArray>((int) total);
-                                        loop(scroll, users);
-                                        final String operation = request.param("operation");
-                                        switch (operation) {
-                                            case "preload":
-                                                action.renderStatus(channel, new GenericDataModel(users));
-                                                break;
-                                            case "similar_items":
-                                                try {
-                                                    action.similar_items(new GenericDataModel(users), request, ch, startTime);
-                                                } catch (TasteException e) {
-                                                    try {
-                                                        channel.sendResponse(new BytesRestResponse(channel, e));
-                                                    } catch (Exception inner) {
-                                                        inner.addSuppressed(e);
-                                                        logger.error("failed to send failure response", inner);
-                                                    }
-                                                }
-                                                break;
-                                            default:
-                                                action.renderNotFound(ch, "Invalid operation: " + operation);
-                                                break;
-                                        }
-                                    }
-
-                                    @Override
-                                    public void onFailure(Exception e) {
-                                        try {
-                                            channel.sendResponse(new BytesRestResponse(channel, e));
-                                        } catch (Exception inner) {
-                                            inner.addSuppressed(e);
-                                            logger.error("failed to send failure response", inner);
-                                        }
-                                    }
-                                });
+        final PreferenceFetcher fetcher = PreferenceFetcher.of(request.param("fetch"));
+        final ChunkedTermsLookup lookup = lookup(request);
+        final FanOutLimits limits = FanOutLimits.of(request);
+        final ActionListener<FastByIDMap<PreferenceArray>> respond = onFlavorThread(ActionListener.wrap(users -> {
+            limits.sampleRows(users, new FastIDSet(new long[] { itemId }));
+            final String operation = request.param("operation");
+            switch (operation) {
+                case "preload":
+                    action.renderStatus(ch, new GenericDataModel(users));
+                    break;
+                case "similar_items":
+                    action.similar_items(new GenericDataModel(users), request, ch, startTime);
+                    break;
+                default:
+                    action.renderNotFound(ch, "Invalid operation: " + operation);
+                    break;
+            }
+        }, e -> action.handleErrorRequest(ch, e)));
 
-                    }
-                });
+        usersOfItems(index, type, new long[] { itemId }, fetcher, lookup, limits, ActionListener.wrap(
+                userIds -> preferencesOfUsers(index, type, userIds.toArray(), fetcher, lookup, respond),
+                respond::onFailure));
     }
 
     public void createUserBasedDataModel(final String index,
@@ -127,179 +97,203 @@ public class ElasticsearchDynamicDataModelFactory implements DataModelFactory {
                                          final RestChannel ch,
                                          final long startTime,
                                          final RestRequest request) throws TasteException {
-        client
-                .prepareSearch(index)
-                .setTypes(type)
-                .addSort("_doc", SortOrder.ASC)
-                .setScroll(new TimeValue(keepAlive))
-                .setPostFilter(QueryBuilders.termQuery("user_id", targetUserId))
-                .setFetchSource(new String[]{"item_id"}, null)
-                .setSize(scrollSize)
-                .execute(new RestActionListener<SearchResponse>(ch) {
-                    public void processResponse(SearchResponse itemIdsResponse) throws Exception {
-
-                        final long numItems = itemIdsResponse.getHits().getTotalHits();
-                        if (numItems <= 0) {
-                            throw new NoSuchItemException("No such user_id:" + targetUserId);
-                        }
-
-                        FastIDSet itemIds = new FastIDSet((int) numItems);
-                        while (true) {
-                            for (SearchHit hit : itemIdsResponse.getHits().getHits()) {
-                                final long itemId = getLongValue(hit, "item_id");
-                                itemIds.add(itemId);
-                            }
-                            //Break condition: No hits are returned
-                            itemIdsResponse = client
-                                    .prepareSearchScroll(itemIdsResponse.getScrollId())
-                                    .setScroll(new TimeValue(keepAlive))
-                                    .execute()
-                                    .actionGet();
-                            if (itemIdsResponse.getHits().getHits().length == 0) {
-                                break;
-                            }
-                        }
-
-                        SearchResponse userIdsResponse = client
-                                .prepareSearch(index)
-                                .setTypes(type)
-                                .addSort("_doc", SortOrder.ASC)
-                                .setScroll(new TimeValue(keepAlive))
-                                .setPostFilter(QueryBuilders.termsQuery("item_id", itemIds.toArray()))
-                                .setFetchSource(new String[]{"user_id"}, null)
-                                .setSize(scrollSize)
-                                .execute()
-                                .actionGet();
-                        final long numUsers = userIdsResponse.getHits().getTotalHits();
-                        FastIDSet userIds = new FastIDSet((int) numUsers);
-                        loop2(userIdsResponse, userIds);
-                        // logger.info("itemIds: {}, userIds: {}", itemIds, userIds);
+        final PreferenceFetcher fetcher = PreferenceFetcher.of(request.param("fetch"));
+        final ChunkedTermsLookup lookup = lookup(request);
+        final FanOutLimits limits = FanOutLimits.of(request);
+        final FastIDSet targetItems = new FastIDSet();
+        final ActionListener<FastByIDMap<PreferenceArray>> respond = onFlavorThread(ActionListener.wrap(users -> {
+            limits.sampleRows(users, targetItems);
+            final String operation = request.param("operation");
+            switch (operation) {
+                case "similar_users":
+                case "user_based_recommend":
+                case "item_based_recommend":
+                    action.similar_items(new GenericDataModel(users), request, ch, startTime);
+                    break;
+                default:
+                    action.renderNotFound(ch, "Invalid operation: " + operation);
+                    break;
+            }
+        }, e -> action.handleErrorRequest(ch, e)));
 
-                        client
-                                .prepareSearch(index)
-                                .setTypes(type)
-                                .addSort("_doc", SortOrder.ASC)
-                                .setPostFilter(QueryBuilders.termsQuery("user_id", userIds.toArray()))
-                                .setFetchSource(new String[]{"user_id", "item_id", "value"}, null)
-                                .setSize(scrollSize)
-                                .setScroll(new TimeValue(keepAlive))
-                                .execute(new ActionListener<SearchResponse>() {
-                                    @Override
-                                    public void onResponse(SearchResponse scroll) {
+        preferencesOfUsers(index, type, new long[] { targetUserId }, fetcher, lookup, ActionListener.wrap(target -> {
+            final PreferenceArray prefs = target.get(targetUserId);
+            if (prefs == null) {
+                throw new NoSuchItemException("No such user_id:" + targetUserId);
+            }
+            final long[] itemIds = limits.sampleItems(targetUserId, prefs.getIDs());
+            for (final long itemId : itemIds) {
+                targetItems.add(itemId);
+            }
+            usersOfItems(index, type, itemIds, fetcher, lookup, limits, ActionListener.wrap(
+                    userIds -> preferencesOfUsers(index, type, userIds.toArray(), fetcher, lookup, respond),
+                    respond::onFailure));
+        }, respond::onFailure));
+    }
 
-                                        final long total = scroll.getHits().getTotalHits();
-                                        FastByIDMap<PreferenceArray> users = new FastByIDMap<PreferenceArray>((int) total);
-                                        loop(scroll, users);
-                                        final String operation = request.param("operation");
-                                        switch (operation) {
-                                            case "similar_users":
-                                            case "user_based_recommend":
-                                            case "item_based_recommend":
-                                                try {
-                                                    action.similar_items(new GenericDataModel(users), request, ch, startTime);
-                                                } catch (TasteException e) {
-                                                    e.printStackTrace();
-                                                }
-                                                break;
-                                            default:
-                                                action.renderNotFound(ch, "Invalid operation: " + operation);
-                                                break;
-                                        }
-                                    }
+    /**
+     * Users who have a preference for any of {@code itemIds}, at most
+     * {@link FanOutLimits#maxUsersPerItem()} per item. Cached items are answered
+     * from the {@link PreferenceCache}, the others are looked up and cached whole.
+     */
+    private void usersOfItems(final String index,
+                              final String type,
+                              final long[] itemIds,
+                              final PreferenceFetcher fetcher,
+                              final ChunkedTermsLookup lookup,
+                              final FanOutLimits limits,
+                              final ActionListener<FastIDSet> listener) {
+        final FastIDSet userIds = new FastIDSet();
+        final long[] misses = new long[itemIds.length];
+        int numMisses = 0;
+        for (final long itemId : itemIds) {
+            final long[] cached = cache.getItem(index, type, itemId);
+            if (cached == null) {
+                misses[numMisses++] = itemId;
+            } else {
+                for (final long userId : limits.sampleUsers(itemId, cached)) {
+                    userIds.add(userId);
+                }
+            }
+        }
+        if (numMisses == 0) {
+            listener.onResponse(userIds);
+            return;
+        }
 
-                                    @Override
-                                    public void onFailure(Exception e) {
-                                        e.printStackTrace();
-                                    }
-                                });
+        final long[] missed = Arrays.copyOf(misses, numMisses);
+        final long stamp = cache.stamp();
+        final FastByIDMap<FastIDSet> usersByItem = new FastByIDMap<FastIDSet>(numMisses);
+        lookup.lookup(index, type, "item_id", missed, fetcher, new String[] { "user_id", "item_id" }, hits -> {
+            final long[] users = new long[hits.length];
+            final long[] items = new long[hits.length];
+            for (int i = 0; i < hits.length; i++) {
+                users[i] = getLongValue(fetcher, hits[i], "user_id");
+                items[i] = getLongValue(fetcher, hits[i], "item_id");
+            }
+            synchronized (usersByItem) {
+                for (int i = 0; i < hits.length; i++) {
+                    FastIDSet set = usersByItem.get(items[i]);
+                    if (set == null) {
+                        set = new FastIDSet();
+                        usersByItem.put(items[i], set);
                     }
-                });
+                    set.add(users[i]);
+                }
+            }
+        }, ActionListener.wrap(done -> {
+            for (final long itemId : missed) {
+                final FastIDSet set = usersByItem.get(itemId);
+                final long[] users = set == null ? new long[0] : set.toArray();
+                cache.putItem(index, type, itemId, users, stamp);
+                for (final long userId : limits.sampleUsers(itemId, users)) {
+                    userIds.add(userId);
+                }
+            }
+            listener.onResponse(userIds);
+        }, listener::onFailure));
     }
 
-    private void loop2(SearchResponse userIdsResponse, FastIDSet userIds) {
-        while (true) {
-            for (SearchHit hit : userIdsResponse.getHits().getHits()) {
-                final long userId = getLongValue(hit, "user_id");
-                userIds.add(userId);
-            }
-            //Break condition: No hits are returned
-            userIdsResponse = client
-                    .prepareSearchScroll(userIdsResponse.getScrollId())
-                    .setScroll(new TimeValue(keepAlive))
-                    .execute()
-                    .actionGet();
-            if (userIdsResponse.getHits().getHits().length == 0) {
-                break;
+    /**
+     * Preferences of {@code userIds}, keyed by user. Users without preferences are
+     * left out. Cached users are answered from the {@link PreferenceCache}, the
+     * others are looked up and cached. Arrays are copied on the way in and out of
+     * the cache because {@link GenericDataModel} sorts them in place.
+     */
+    private void preferencesOfUsers(final String index,
+                                    final String type,
+                                    final long[] userIds,
+                                    final PreferenceFetcher fetcher,
+                                    final ChunkedTermsLookup lookup,
+                                    final ActionListener<FastByIDMap<PreferenceArray>> listener) {
+        final FastByIDMap<PreferenceArray> result = new FastByIDMap<PreferenceArray>(userIds.length);
+        final long[] misses = new long[userIds.length];
+        int numMisses = 0;
+        for (final long userId : userIds) {
+            final PreferenceArray cached = cache.getUser(index, type, userId);
+            if (cached == null) {
+                misses[numMisses++] = userId;
+            } else if (cached.length() > 0) {
+                result.put(userId, cached.clone());
             }
         }
-    }
+        if (numMisses == 0) {
+            listener.onResponse(result);
+            return;
+        }
 
-    private void loop(SearchResponse scroll, FastByIDMap<PreferenceArray> users) {
-        while (true) {
-            for (SearchHit hit : scroll.getHits().getHits()) {
-                final long userId = getLongValue(hit, "user_id");
-                final long itemId = getLongValue(hit, "item_id");
-                final float value = getFloatValue(hit, "value");
+        final long[] missed = Arrays.copyOf(misses, numMisses);
+        final long stamp = cache.stamp();
+        final PreferenceArrayBuilder users = new PreferenceArrayBuilder(numMisses);
+        lookup.lookup(index, type, "user_id", missed, fetcher, PREFERENCE_FIELDS,
+                      preferences(fetcher, users),
+                      ActionListener.wrap(done -> {
+                          final FastByIDMap<PreferenceArray> loaded = users.build();
+                          for (final long userId : missed) {
+                              final PreferenceArray prefs = loaded.get(userId);
+                              if (prefs == null) {
+                                  cache.putUser(index, type, userId, new GenericUserPreferenceArray(0), stamp);
+                              } else {
+                                  if (cache.enabled()) {
+                                      cache.putUser(index, type, userId, prefs.clone(), stamp);
+                                  }
+                                  result.put(userId, prefs);
+                              }
+                          }
+                          listener.onResponse(result);
+                      }, listener::onFailure));
+    }
 
-                if (users.containsKey(userId)) {
-                    GenericUserPreferenceArray user = (GenericUserPreferenceArray) users.get(userId);
-                    GenericUserPreferenceArray newUser = new GenericUserPreferenceArray(user.length() + 1);
-                    int currentLength = user.length();
-                    for (int i = 0; i < currentLength; i++) {
-                        newUser.setUserID(i, user.getUserID(i));
-                        newUser.setItemID(i, user.getItemID(i));
-                        newUser.setValue(i, user.getValue(i));
-                    }
-                    newUser.setUserID(currentLength, userId);
-                    newUser.setItemID(currentLength, itemId);
-                    newUser.setValue(currentLength, value);
-                    users.put(userId, newUser);
+    private ChunkedTermsLookup lookup(final RestRequest request) {
+        return new ChunkedTermsLookup(client)
+                .executor(FlavorPlugin.THREAD_POOL_NAME)
+                .chunkSize(request.paramAsInt("chunkSize", ChunkedTermsLookup.DEFAULT_CHUNK_SIZE))
+                .concurrency(request.paramAsInt("concurrency", ChunkedTermsLookup.DEFAULT_CONCURRENCY))
+                .scrollSize(scrollSize)
+                .keepAlive(keepAlive);
+    }
 
-                } else {
-                    GenericUserPreferenceArray user = new GenericUserPreferenceArray(1);
-                    user.setUserID(0, userId);
-                    user.setItemID(0, itemId);
-                    user.setValue(0, value);
-                    users.put(userId, user);
-                }
+    private ChunkedTermsLookup.HitsConsumer preferences(final PreferenceFetcher fetcher, final PreferenceArrayBuilder users) {
+        return hits -> {
+            final long[] userIds = new long[hits.length];
+            final long[] itemIds = new long[hits.length];
+            final float[] values = new float[hits.length];
+            for (int i = 0; i < hits.length; i++) {
+                userIds[i] = getLongValue(fetcher, hits[i], "user_id");
+                itemIds[i] = getLongValue(fetcher, hits[i], "item_id");
+                values[i] = getFloatValue(fetcher, hits[i], "value");
             }
-            //Break condition: No hits are returned
-            scroll = client
-                    .prepareSearchScroll(scroll.getScrollId())
-                    .setScroll(new TimeValue(keepAlive))
-                    .execute()
-                    .actionGet();
-            if (scroll.getHits().getHits().length == 0) {
-                break;
+            synchronized (users) {
+                for (int i = 0; i < hits.length; i++) {
+                    users.add(userIds[i], itemIds[i], values[i]);
+                }
             }
-        }
+        };
     }
 
-    private long getLongValue(final SearchHit hit, final String field) {
-        final Object result = hit.getSourceAsMap().get(field);
-        if (result == null) {
-            return 0;
-        }
-        if (! (result instanceof Number))
-            return 0;
-        final Number longValue = (Number) result;
-        if (longValue == null) {
-            return 0;
-        }
-        return longValue.longValue();
+    /**
+     * Continues on the flavor pool, where the model is built and scored without
+     * holding a network or search thread; the lookup parses its hits there too, see
+     * {@link ChunkedTermsLookup#executor(String)}. Continuations of an accepted
+     * request are forced so they are never dropped by a full queue.
+     */
+    private <T> ActionListener<T> onFlavorThread(final ActionListener<T> listener) {
+        return new ThreadedActionListener<T>(logger, client.threadPool(), FlavorPlugin.THREAD_POOL_NAME, listener, true);
     }
 
-    private float getFloatValue(final SearchHit hit, final String field) {
-        final Object result = hit.getSourceAsMap().get(field);
-        if (result == null) {
+    private long getLongValue(final PreferenceFetcher fetcher, final SearchHit hit, final String field) {
+        try {
+            return fetcher.getLong(hit, field);
+        } catch (final TasteException e) {
             return 0;
         }
-        if (! (result instanceof Number))
-            return 0;
-        final Number floatValue = (Number) result;
-        if (floatValue == null) {
+    }
+
+    private float getFloatValue(final PreferenceFetcher fetcher, final SearchHit hit, final String field) {
+        try {
+            return fetcher.getFloat(hit, field);
+        } catch (final TasteException e) {
             return 0;
         }
-        return floatValue.floatValue();
     }
 }
@@ -1,6 +1,7 @@
 package org.elasticsearch.plugin.flavor;
 
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.Accountable;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
@@ -9,30 +10,95 @@ import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.admin.indices.stats.ShardStats;
+import org.elasticsearch.action.support.GroupedActionListener;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.routing.ShardRouting;
 import org.elasticsearch.common.document.DocumentField;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.action.RestActionListener;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.slice.SliceBuilder;
 import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ElasticsearchPreloadDataModel extends AbstractDataModel {
+public class ElasticsearchPreloadDataModel extends AbstractDataModel implements Accountable {
     private Logger logger = Loggers.getLogger(ElasticsearchPreloadDataModel.class);
     private Client client;
     private String preferenceIndex;
     private String preferenceType;
-    private GenericDataModel delegate = new GenericDataModel(new FastByIDMap<PreferenceArray>());
+    private volatile DataModel delegate = new GenericDataModel(new FastByIDMap<PreferenceArray>());
 
     private long keepAlive = 60000;
     private int scrollSize = 2000;
+    private int slices = 1;
+    private PreferenceFetcher fetcher = SourcePreferenceFetcher.INSTANCE;
+    private boolean compact = false;
+    private boolean quantize = false;
+
+    // map entry, array object and the headers of its id and value arrays
+    private static final long PREFERENCE_ARRAY_OVERHEAD = 96;
+    private static final String WATERMARK_AGGREGATION = "flavor_watermark";
+    private String watermarkField;
+    private volatile Long watermark;
+    private volatile String indexState;
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    // the served model ramBytesUsed() last measured, with its size
+    private volatile RamUsage ramUsage;
+    private volatile long version;
+    private volatile long baseVersion;
+    private volatile Delta delta;
+    // the version of the last ingested batch that changed each user and item on the current base
+    private final FastByIDMap<Long> userVersions = new FastByIDMap<>();
+    private final FastByIDMap<Long> itemVersions = new FastByIDMap<>();
+    private volatile long persistedVersion = -1;
+    private Path snapshotPath;
+    private final Object persistLock = new Object();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Scheduler.Cancellable scheduledRefresh;
+
+    // ingested changes wait in the queue until applyPending publishes them as an overlay
+    private final ConcurrentLinkedQueue<OverlayDataModel.Change> pending = new ConcurrentLinkedQueue<>();
+    // orders every change of the served model; take it before this object's monitor
+    private final Object writeLock = new Object();
+    // the model without the overlay, the last ingested batch it contains and when it was read from the index
+    private volatile DataModel base = delegate;
+    private long baseSeq;
+    private long baseTime;
+    private long appliedSeq;
+    // ingested batches a reload may not find in the index yet, replayed over every new base
+    private final ArrayDeque<Batch> replayLog = new ArrayDeque<>();
+    private long replayWindow = 60000;
 
     public ElasticsearchPreloadDataModel(Client client,
                                          String preferenceIndex,
@@ -43,82 +109,660 @@ public class ElasticsearchPreloadDataModel extends AbstractDataModel {
     }
 
     public void reload() throws TasteException {
-        FastByIDMap<PreferenceArray> users = new FastByIDMap<PreferenceArray>();
-        ElasticsearchPreloadDataModel t = this;
+        final PlainActionFuture<ElasticsearchPreloadDataModel> future = PlainActionFuture.newFuture();
+        reload(future);
+        await(future);
+    }
+
+    public void refreshDelta() throws TasteException {
+        final PlainActionFuture<ElasticsearchPreloadDataModel> future = PlainActionFuture.newFuture();
+        refreshDelta(future);
+        await(future);
+    }
+
+    private void await(final PlainActionFuture<ElasticsearchPreloadDataModel> future) throws TasteException {
+        try {
+            future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TasteException(e);
+        } catch (final ExecutionException e) {
+            throw new TasteException(e.getCause());
+        }
+    }
+
+    /**
+     * Scrolls the whole preference index, one scroll per slice when {@link #slices()}
+     * is greater than one, and swaps in the new model once every slice is done.
+     */
+    public void reload(final ActionListener<ElasticsearchPreloadDataModel> listener) {
+        final long startTime = System.currentTimeMillis();
+        final ElasticsearchPreloadDataModel t = this;
+        loadIndexState(ActionListener.wrap(nextIndexState -> loadWatermark(ActionListener.wrap(nextWatermark -> {
+            scrollAll(QueryBuilders.matchAllQuery(), ActionListener.wrap(users -> {
+                t.rebase(newModel(users.build()), startTime);
+                t.watermark = nextWatermark;
+                t.indexState = nextIndexState;
+
+                logger.info("Reload {}/{} {} users. {} items. {} slices. {}ms",
+                        preferenceIndex, preferenceType,
+                        delegate.getNumUsers(), delegate.getNumItems(),
+                        slices, System.currentTimeMillis() - startTime);
+                listener.onResponse(t);
+            }, e -> onLoadFailure("Reload", e, listener)));
+        }, e -> onLoadFailure("Reload", e, listener))), e -> onLoadFailure("Reload", e, listener)));
+    }
+
+    /**
+     * Scrolls only the preferences whose {@link #watermarkField()} is at or after the
+     * watermark of the last load, merges them into a copy of the current model and
+     * swaps the copy in. Falls back to {@link #reload(ActionListener)} when no
+     * watermark field is configured or nothing has been loaded yet.
+     * Deleted preferences are only dropped by a full reload.
+     */
+    public void refreshDelta(final ActionListener<ElasticsearchPreloadDataModel> listener) {
+        final Long currentWatermark = watermark;
+        if (watermarkField == null || currentWatermark == null) {
+            reload(listener);
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        final ElasticsearchPreloadDataModel t = this;
+        loadWatermark(ActionListener.wrap(nextWatermark -> {
+            scrollAll(QueryBuilders.rangeQuery(watermarkField).gte(currentWatermark), ActionListener.wrap(changes -> {
+                if (changes.size() > 0) {
+                    t.refreshBase(changes.build(), startTime);
+                }
+                t.watermark = nextWatermark;
+
+                logger.info("Refresh {}/{} {} changed preferences of {} users. {} users. {} items. {}ms",
+                        preferenceIndex, preferenceType,
+                        changes.size(), changes.numUsers(),
+                        delegate.getNumUsers(), delegate.getNumItems(),
+                        System.currentTimeMillis() - startTime);
+                listener.onResponse(t);
+            }, e -> onLoadFailure("Refresh", e, listener)));
+        }, e -> onLoadFailure("Refresh", e, listener)));
+    }
+
+    /**
+     * Scrolls the preferences whose {@link #watermarkField()} is at or after
+     * {@code since}, by user, without touching the served model.
+     */
+    public void changesSince(final long since, final ActionListener<FastByIDMap<PreferenceArray>> listener) {
+        if (watermarkField == null) {
+            listener.onFailure(new IllegalStateException("No watermarkField for " + preferenceIndex + "/" + preferenceType));
+            return;
+        }
+        scrollAll(QueryBuilders.rangeQuery(watermarkField).gte(since),
+                  ActionListener.wrap(changes -> listener.onResponse(changes.build()), listener::onFailure));
+    }
+
+    /**
+     * Serves the snapshot at {@link #snapshotPath()} if it is still valid for the
+     * index, otherwise falls back to {@link #reload(ActionListener)}. With a
+     * watermark field the snapshot is served and brought up to date with a delta
+     * refresh; without one it is only used when the {@link #indexState()} it was
+     * written with still matches the index.
+     */
+    public void load(final ActionListener<ElasticsearchPreloadDataModel> listener) {
+        if (snapshotPath == null || !Files.exists(snapshotPath)) {
+            reload(listener);
+            return;
+        }
+        final MappedDataModel snapshot;
+        try {
+            snapshot = DataModelSnapshot.open(snapshotPath);
+        } catch (final IOException e) {
+            logger.warn("Snapshot " + snapshotPath + " is not readable. Reloading " + preferenceIndex + "/" + preferenceType + ".", e);
+            reload(listener);
+            return;
+        }
+        final ElasticsearchPreloadDataModel t = this;
+        final DataModelSnapshot.Metadata metadata = snapshot.metadata();
+        if (watermarkField != null && metadata.watermark() != null) {
+            try {
+                // read at an unknown time, so nothing is trimmed before the delta refresh
+                t.persistedVersion = t.rebase(snapshot, 0);
+            } catch (final TasteException e) {
+                onLoadFailure("Load", e, listener);
+                return;
+            }
+            t.watermark = metadata.watermark();
+            logger.info("Loaded snapshot {} for {}/{}. Applying changes since {}.",
+                    snapshotPath, preferenceIndex, preferenceType, metadata.watermark());
+            refreshDelta(listener);
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        loadIndexState(ActionListener.wrap(currentIndexState -> {
+            if (metadata.indexState() == null || !metadata.indexState().equals(currentIndexState)) {
+                logger.info("Snapshot {} was written at {}, {}/{} is at {}. Reloading.",
+                        snapshotPath, metadata.indexState(), preferenceIndex, preferenceType, currentIndexState);
+                reload(listener);
+                return;
+            }
+            t.persistedVersion = t.rebase(snapshot, startTime);
+            t.indexState = currentIndexState;
+            logger.info("Loaded snapshot {} for {}/{}. {} users. {} items.",
+                    snapshotPath, preferenceIndex, preferenceType,
+                    snapshot.getNumUsers(), snapshot.getNumItems());
+            listener.onResponse(t);
+        }, e -> onLoadFailure("Load", e, listener)));
+    }
+
+    public void load() throws TasteException {
+        final PlainActionFuture<ElasticsearchPreloadDataModel> future = PlainActionFuture.newFuture();
+        load(future);
+        await(future);
+    }
+
+    /**
+     * Writes the current model to {@link #snapshotPath()} unless it is already
+     * persisted, and serves the memory-mapped copy from then on.
+     */
+    public void persist() throws IOException, TasteException {
+        if (snapshotPath == null) {
+            return;
+        }
+        synchronized (persistLock) {
+            final DataModel current;
+            final DataModel currentBase;
+            final long currentVersion;
+            final long currentSeq;
+            synchronized (writeLock) {
+                current = delegate;
+                currentBase = base;
+                currentVersion = version;
+                currentSeq = appliedSeq;
+            }
+            if (currentVersion == persistedVersion) {
+                return;
+            }
+            final long startTime = System.currentTimeMillis();
+            DataModelSnapshot.write(current, preferenceIndex, preferenceType, watermark, indexState, snapshotPath);
+            final MappedDataModel snapshot = DataModelSnapshot.open(snapshotPath);
+            try {
+                fold(currentBase, currentSeq, snapshot);
+            } catch (final TasteException e) {
+                throw new IOException(e);
+            }
+            persistedVersion = currentVersion;
+            logger.info("Wrote snapshot {} for {}/{}. {}ms",
+                    snapshotPath, preferenceIndex, preferenceType, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private synchronized long swap(final DataModel dataModel) {
+        this.delegate = dataModel;
+        this.version = VERSIONS.incrementAndGet();
+        this.baseVersion = version;
+        this.delta = null;
+        userVersions.clear();
+        itemVersions.clear();
+        return version;
+    }
+
+    private synchronized long swap(final DataModel dataModel, final FastByIDMap<PreferenceArray> changed) {
+        final FastIDSet userIds = new FastIDSet(changed.size());
+        final FastIDSet itemIds = new FastIDSet();
+        for (final Map.Entry<Long, PreferenceArray> entry : changed.entrySet()) {
+            userIds.add(entry.getKey());
+            for (final long itemId : entry.getValue().getIDs()) {
+                itemIds.add(itemId);
+            }
+        }
+        final long from = version;
+        swap(dataModel);
+        this.delta = new Delta(from, version, userIds, itemIds);
+        return version;
+    }
+
+    /**
+     * Serves a batch of ingested changes on the same base: unlike a reload or
+     * a delta refresh, it keeps the {@link #baseVersion()} and records the
+     * version for each changed ID instead.
+     */
+    private synchronized long publish(final DataModel dataModel, final FastIDSet userIds, final FastIDSet itemIds) {
+        final long from = version;
+        this.delegate = dataModel;
+        this.version = VERSIONS.incrementAndGet();
+        this.delta = new Delta(from, version, userIds, itemIds);
+        final Long changed = version;
+        for (final LongPrimitiveIterator it = userIds.iterator(); it.hasNext(); ) {
+            userVersions.put(it.nextLong(), changed);
+        }
+        for (final LongPrimitiveIterator it = itemIds.iterator(); it.hasNext(); ) {
+            itemVersions.put(it.nextLong(), changed);
+        }
+        return version;
+    }
+
+    /**
+     * Serves a freshly loaded model, read from the index from {@code readTime}
+     * on, with the ingested batches of the replay log on top, since the
+     * write-behind may not have indexed them before the load started. Batches
+     * older than the window are in the index and are dropped instead.
+     */
+    private long rebase(final DataModel dataModel, final long readTime) throws TasteException {
+        synchronized (writeLock) {
+            base = dataModel;
+            baseSeq = replayLog.isEmpty() ? appliedSeq : replayLog.peekFirst().seq - 1;
+            baseTime = readTime;
+            trimReplayLog();
+            baseSeq = replayLog.isEmpty() ? appliedSeq : replayLog.peekFirst().seq - 1;
+            return swap(replay(dataModel));
+        }
+    }
+
+    /**
+     * Merges the changes of a delta refresh into the base and serves it with
+     * the batches the base does not contain yet. The merge is done outside the
+     * write lock unless a compaction replaced the base meanwhile.
+     */
+    private void refreshBase(final FastByIDMap<PreferenceArray> changed, final long readTime) throws TasteException {
+        final DataModel current = base;
+        final DataModel merged = newModel(applyDelta(rawUserData(current), changed));
+        synchronized (writeLock) {
+            base = base == current ? merged : newModel(applyDelta(rawUserData(base), changed));
+            baseTime = Math.max(baseTime, readTime);
+            trimReplayLog();
+            swap(replay(base), changed);
+        }
+    }
+
+    /**
+     * Replaces the base by {@code folded}, which holds {@code from} and the
+     * batches up to {@code seq}, unless a load replaced {@code from}
+     * meanwhile. The served preferences do not change, so neither does the
+     * version.
+     */
+    private boolean fold(final DataModel from, final long seq, final DataModel folded) throws TasteException {
+        synchronized (writeLock) {
+            if (base != from) {
+                return false;
+            }
+            base = folded;
+            baseSeq = seq;
+            trimReplayLog();
+            final DataModel served = replay(folded);
+            synchronized (this) {
+                delegate = served;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Drops the batches no load can miss anymore: those ingested a window
+     * before the base was read, which the base holds, and those folded into
+     * the base that are older than the window, which the index holds by now.
+     * Call with the write lock held.
+     */
+    private void trimReplayLog() {
+        final long expired = System.currentTimeMillis() - replayWindow;
+        for (final Iterator<Batch> it = replayLog.iterator(); it.hasNext(); ) {
+            final Batch batch = it.next();
+            if (batch.time >= baseTime - replayWindow && (batch.seq > baseSeq || batch.time >= expired)) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    /** {@code dataModel} with the batches after {@link #baseSeq} applied. */
+    private DataModel replay(final DataModel dataModel) throws TasteException {
+        final List<OverlayDataModel.Change> changes = new ArrayList<>();
+        for (final Batch batch : replayLog) {
+            if (batch.seq > baseSeq) {
+                changes.addAll(batch.changes);
+            }
+        }
+        return changes.isEmpty() ? dataModel : OverlayDataModel.apply(dataModel, changes);
+    }
+
+    /**
+     * Queues a change for the next {@link #applyPending()}. Safe to call from
+     * any thread.
+     */
+    public void enqueue(final OverlayDataModel.Change change) {
+        pending.add(change);
+    }
+
+    /**
+     * Publishes the queued changes as a new version: the served model becomes
+     * an {@link OverlayDataModel} with the changed rows replaced, and the
+     * changed users and items are recorded as its {@link #delta()}. Readers
+     * keep the previous version until the swap. The {@link #baseVersion()}
+     * stays the same.
+     *
+     * @return the number of changes applied
+     */
+    public int applyPending() throws TasteException {
+        synchronized (writeLock) {
+            final List<OverlayDataModel.Change> changes = new ArrayList<>();
+            for (OverlayDataModel.Change change = pending.poll(); change != null; change = pending.poll()) {
+                changes.add(change);
+            }
+            if (changes.isEmpty()) {
+                return 0;
+            }
+            final FastIDSet userIds = new FastIDSet();
+            final FastIDSet itemIds = new FastIDSet();
+            for (final OverlayDataModel.Change change : changes) {
+                userIds.add(change.userId());
+                itemIds.add(change.itemId());
+            }
+            final OverlayDataModel overlay = OverlayDataModel.apply(delegate, changes);
+            replayLog.addLast(new Batch(++appliedSeq, System.currentTimeMillis(), changes));
+            trimReplayLog();
+            publish(overlay, userIds, itemIds);
+            return changes.size();
+        }
+    }
+
+    /**
+     * Number of ingested changes not folded into the base yet. They stay in the
+     * replay log until a compaction folds them, even when few users change.
+     */
+    public int unfoldedChanges() {
+        synchronized (writeLock) {
+            int count = 0;
+            for (final Batch batch : replayLog) {
+                if (batch.seq > baseSeq) {
+                    count += batch.changes.size();
+                }
+            }
+            return count;
+        }
+    }
+
+    /** Number of ingested batches kept for replay. */
+    int replayLogSize() {
+        synchronized (writeLock) {
+            return replayLog.size();
+        }
+    }
+
+    /** How long ingested batches are replayed over newly loaded models. */
+    void setReplayWindow(final long millis) {
+        synchronized (writeLock) {
+            this.replayWindow = millis;
+        }
+    }
+
+    /** Number of users whose rows are served from the overlay. */
+    public int overlaySize() {
+        final DataModel current = delegate;
+        return current instanceof OverlayDataModel ? ((OverlayDataModel) current).numChangedUsers() : 0;
+    }
+
+    /**
+     * Rebuilds the base with the overlay folded in, so readers get back the
+     * fast paths of the base model. The copy is built without blocking
+     * ingestion; batches applied meanwhile stay in the new overlay.
+     *
+     * @return {@code false} if there was nothing to fold or a load replaced the base meanwhile
+     */
+    public boolean compact() throws TasteException {
+        final DataModel current;
+        final DataModel currentBase;
+        final long currentSeq;
+        synchronized (writeLock) {
+            current = delegate;
+            currentBase = base;
+            currentSeq = appliedSeq;
+        }
+        if (current == currentBase) {
+            return false;
+        }
+        final long startTime = System.currentTimeMillis();
+        final boolean folded = fold(currentBase, currentSeq, newModel(rawUserData(current)));
+        logger.info("Compact {}/{} {}. {}ms", preferenceIndex, preferenceType,
+                folded ? "done" : "skipped, the model was reloaded", System.currentTimeMillis() - startTime);
+        return folded;
+    }
+
+    private static class RamUsage {
+        private final DataModel dataModel;
+        private final long bytes;
+
+        RamUsage(final DataModel dataModel, final long bytes) {
+            this.dataModel = dataModel;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Batch {
+        private final long seq;
+        private final long time;
+        private final List<OverlayDataModel.Change> changes;
+
+        Batch(final long seq, final long time, final List<OverlayDataModel.Change> changes) {
+            this.seq = seq;
+            this.time = time;
+            this.changes = changes;
+        }
+    }
+
+    private DataModel newModel(final FastByIDMap<PreferenceArray> users) {
+        if (compact) {
+            return CompactDataModel.build(users, quantize);
+        }
+        return new GenericDataModel(users);
+    }
+
+    private static FastByIDMap<PreferenceArray> rawUserData(final DataModel dataModel) throws TasteException {
+        if (dataModel instanceof GenericDataModel) {
+            return ((GenericDataModel) dataModel).getRawUserData();
+        }
+        return GenericDataModel.toDataMap(dataModel);
+    }
+
+    private void onLoadFailure(final String operation,
+                               final Exception e,
+                               final ActionListener<ElasticsearchPreloadDataModel> listener) {
+        logger.error(operation + " " + preferenceIndex + "/" + preferenceType + " failed.", e);
+        listener.onFailure(e);
+    }
+
+    /**
+     * Copy-on-write merge: users without changes keep their existing arrays, changed
+     * users get a new array where the changed items replace the old values.
+     */
+    private static FastByIDMap<PreferenceArray> applyDelta(final FastByIDMap<PreferenceArray> current,
+                                                           final FastByIDMap<PreferenceArray> changes) {
+        final FastByIDMap<PreferenceArray> users = new FastByIDMap<PreferenceArray>(current.size() + changes.size());
+        for (Map.Entry<Long, PreferenceArray> entry : current.entrySet()) {
+            users.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<Long, PreferenceArray> entry : changes.entrySet()) {
+            final long userId = entry.getKey();
+            final PreferenceArray changed = entry.getValue();
+            final PreferenceArray existing = users.get(userId);
+            if (existing == null) {
+                users.put(userId, changed);
+                continue;
+            }
+            final FastByIDMap<Float> values = new FastByIDMap<Float>(existing.length() + changed.length());
+            for (int i = 0; i < existing.length(); i++) {
+                values.put(existing.getItemID(i), existing.getValue(i));
+            }
+            for (int i = 0; i < changed.length(); i++) {
+                values.put(changed.getItemID(i), changed.getValue(i));
+            }
+            final PreferenceArray merged = new GenericUserPreferenceArray(values.size());
+            merged.setUserID(0, userId);
+            int i = 0;
+            for (Map.Entry<Long, Float> value : values.entrySet()) {
+                merged.setItemID(i, value.getKey());
+                merged.setValue(i, value.getValue());
+                i++;
+            }
+            users.put(userId, merged);
+        }
+        return users;
+    }
+
+    /**
+     * Reads the {@link #indexState()} before a full scan starts, only when the
+     * model is persisted.
+     */
+    private void loadIndexState(final ActionListener<String> listener) {
+        if (snapshotPath == null) {
+            listener.onResponse(null);
+            return;
+        }
+        client
+            .admin()
+            .indices()
+            .prepareStats(preferenceIndex)
+            .clear()
+            .execute(ActionListener.wrap(response -> listener.onResponse(indexState(response)), listener::onFailure));
+    }
+
+    /**
+     * The UUID and the highest sequence number of every primary shard of the
+     * preference indices. Any index, update or delete raises a sequence number,
+     * and a recreated index gets a new UUID, so two equal states mean the
+     * documents did not change.
+     */
+    static String indexState(final IndicesStatsResponse response) {
+        final TreeMap<String, Long> shards = new TreeMap<>();
+        for (final ShardStats shard : response.getShards()) {
+            final ShardRouting routing = shard.getShardRouting();
+            if (routing.primary() && shard.getSeqNoStats() != null) {
+                shards.put(routing.index().getUUID() + "/" + routing.id(), shard.getSeqNoStats().getMaxSeqNo());
+            }
+        }
+        final StringBuilder state = new StringBuilder();
+        for (final Map.Entry<String, Long> shard : shards.entrySet()) {
+            if (state.length() > 0) {
+                state.append(',');
+            }
+            state.append(shard.getKey()).append(':').append(shard.getValue());
+        }
+        return state.toString();
+    }
+
+    /**
+     * Reads the current maximum of {@link #watermarkField()} before a scan starts, so
+     * preferences indexed while scrolling are picked up again by the next delta.
+     */
+    private void loadWatermark(final ActionListener<Long> listener) {
+        if (watermarkField == null) {
+            listener.onResponse(null);
+            return;
+        }
         client
+            .prepareSearch(preferenceIndex)
+            .setTypes(preferenceType)
+            .setSize(0)
+            .addAggregation(AggregationBuilders.max(WATERMARK_AGGREGATION).field(watermarkField))
+            .execute(ActionListener.wrap(response -> {
+                final Max max = response.getAggregations().get(WATERMARK_AGGREGATION);
+                final double value = max.getValue();
+                listener.onResponse(Double.isInfinite(value) ? Long.MIN_VALUE : (long) value);
+            }, listener::onFailure));
+    }
+
+    private void scrollAll(final QueryBuilder query, final ActionListener<PreferenceArrayBuilder> listener) {
+        final ActionListener<Collection<PreferenceArrayBuilder>> merge = ActionListener.wrap(builders -> {
+            PreferenceArrayBuilder users = null;
+            for (final PreferenceArrayBuilder builder : builders) {
+                if (users == null) {
+                    users = builder;
+                } else {
+                    users.addAll(builder);
+                }
+            }
+            listener.onResponse(users == null ? new PreferenceArrayBuilder() : users);
+        }, listener::onFailure);
+
+        // set by the first failing slice, so the others stop at their next page
+        final AtomicBoolean failed = new AtomicBoolean();
+        if (slices <= 1) {
+            scrollSlice(query, null, failed, new GroupedActionListener<PreferenceArrayBuilder>(merge, 1, Collections.emptyList()));
+        } else {
+            final GroupedActionListener<PreferenceArrayBuilder> sliceListener =
+                    new GroupedActionListener<PreferenceArrayBuilder>(merge, slices, Collections.emptyList());
+            for (int i = 0; i < slices; i++) {
+                scrollSlice(query, new SliceBuilder(i, slices), failed, sliceListener);
+            }
+        }
+    }
+
+    /**
+     * Scrolls one slice into its own builder. The scroll context is cleared
+     * when the slice is done, fails, or stops because another slice failed;
+     * a stopped slice completes with its partial builder, which the grouped
+     * listener discards in favor of the failure.
+     */
+    private void scrollSlice(final QueryBuilder query,
+                             final SliceBuilder slice,
+                             final AtomicBoolean failed,
+                             final ActionListener<PreferenceArrayBuilder> listener) {
+        final PreferenceArrayBuilder users = new PreferenceArrayBuilder();
+        final SearchRequestBuilder search = client
             .prepareSearch(preferenceIndex)
             .setTypes(preferenceType)
             .addSort("_doc", SortOrder.ASC)
-            .setFetchSource(new String[]{"user_id", "item_id", "value"},null)
-            .setQuery(QueryBuilders.matchAllQuery())
+            .setQuery(query)
             .setSize(scrollSize)
-            .setScroll(new TimeValue(keepAlive))
-                .execute(new ActionListener<SearchResponse>() {
-                    public void onResponse(SearchResponse scroll) {
-
-                        try {
-                        while (true) {
-                            for (SearchHit hit : scroll.getHits().getHits()) {
-                                final long userId= getLongValue(hit, "user_id");
-                                final long itemId = getLongValue(hit, "item_id");
-                                final float value = getFloatValue(hit, "value");
-
-                                if (users.containsKey(userId)) {
-                                    GenericUserPreferenceArray user = (GenericUserPreferenceArray) users.get(userId);
-                                    GenericUserPreferenceArray newUser = new GenericUserPreferenceArray(user.length() + 1);
-                                    int currentLength = user.length();
-                                    for (int i = 0; i < currentLength; i++) {
-                                        newUser.setUserID(i, user.getUserID(i));
-                                        newUser.setItemID(i, user.getItemID(i));
-                                        newUser.setValue(i, user.getValue(i));
-                                    }
-                                    newUser.setUserID(currentLength, userId);
-                                    newUser.setItemID(currentLength, itemId);
-                                    newUser.setValue(currentLength, value);
-                                    users.put(userId, newUser);
-
-                                } else {
-                                    GenericUserPreferenceArray user = new GenericUserPreferenceArray(1);
-                                    user.setUserID(0, userId);
-                                    user.setItemID(0, itemId);
-                                    user.setValue(0, value);
-                                    users.put(userId, user);
-                                }
-                            }
-                            //Break condition: No hits are returned
-                            scroll = client
-                                    .prepareSearchScroll(scroll.getScrollId())
-                                    .setScroll(new TimeValue(keepAlive))
-                                    .execute()
-                                    .actionGet();
-                            if (scroll.getHits().getHits().length == 0) {
-                                break;
-                            }
-                        }
-
-                        t.delegate = new GenericDataModel(users);
-                        // LongPrimitiveIterator iter = delegate.getUserIDs();
-                        // while (iter.hasNext()) {
-                        //     long userId = iter.nextLong();
-                        //     PreferenceArray user = delegate.getPreferencesFromUser(userId);
-                        //     logger.info("userId: {} ({})", userId, user.getIDs());
-                        // }
-
-                        logger.info("Reload {}/{} {} users. {} items.",
-                                preferenceIndex, preferenceType,
-                                delegate.getNumUsers(), delegate.getNumItems());
-
-                        } catch (TasteException e) {
-                            e.printStackTrace();
-                        }
+            .setScroll(new TimeValue(keepAlive));
+        fetcher.prepare(search, "user_id", "item_id", "value");
+        if (slice != null) {
+            search.slice(slice);
+        }
+        search.execute(new ActionListener<SearchResponse>() {
+            private String scrollId;
+
+            @Override
+            public void onResponse(final SearchResponse scroll) {
+                scrollId = scroll.getScrollId();
+                try {
+                    if (failed.get()) {
+                        clearScroll();
+                        listener.onResponse(users);
+                        return;
                     }
+                    final SearchHit[] hits = scroll.getHits().getHits();
+                    for (SearchHit hit : hits) {
+                        final long userId = fetcher.getLong(hit, "user_id");
+                        final long itemId = fetcher.getLong(hit, "item_id");
+                        final float value = fetcher.getFloat(hit, "value");
 
-                    @Override
-                    public void onFailure(Exception e) {
-                        e.printStackTrace();
+                        users.add(userId, itemId, value);
+                    }
+                    //Break condition: No hits are returned
+                    if (hits.length == 0) {
+                        clearScroll();
+                        listener.onResponse(users);
+                        return;
                     }
+                    client
+                        .prepareSearchScroll(scrollId)
+                        .setScroll(new TimeValue(keepAlive))
+                        .execute(this);
+                } catch (final Exception e) {
+                    onFailure(e);
+                }
+            }
 
-                });
+            @Override
+            public void onFailure(final Exception e) {
+                failed.set(true);
+                clearScroll();
+                listener.onFailure(e);
+            }
+
+            private void clearScroll() {
+                if (scrollId != null) {
+                    client.prepareClearScroll().addScrollId(scrollId).execute();
+                    scrollId = null;
+                }
+            }
+        });
     }
 
     public Client client() {
@@ -141,6 +785,215 @@ public class ElasticsearchPreloadDataModel extends AbstractDataModel {
         return scrollSize;
     }
 
+    public int slices() {
+        return slices;
+    }
+
+    public PreferenceFetcher fetcher() {
+        return fetcher;
+    }
+
+    public Path snapshotPath() {
+        return snapshotPath;
+    }
+
+    public String watermarkField() {
+        return watermarkField;
+    }
+
+    public Long watermark() {
+        return watermark;
+    }
+
+    /**
+     * State of the preference index read before the last full scan, stored
+     * with snapshots to validate them without a watermark field. Only read
+     * when {@link #snapshotPath()} is set.
+     */
+    public String indexState() {
+        return indexState;
+    }
+
+    /**
+     * Estimated heap held by the current model. Memory-mapped snapshots live in
+     * the page cache and only count their dictionaries' object overhead. Measured
+     * once per served model, since a generic model is measured row by row.
+     */
+    @Override
+    public long ramBytesUsed() {
+        final DataModel current = delegate;
+        final RamUsage last = ramUsage;
+        if (last != null && last.dataModel == current) {
+            return last.bytes;
+        }
+        final long bytes = ramBytesUsed(current);
+        ramUsage = new RamUsage(current, bytes);
+        return bytes;
+    }
+
+    private long ramBytesUsed(final DataModel current) {
+        if (current instanceof CompactDataModel) {
+            return ((CompactDataModel) current).ramBytesUsed();
+        }
+        if (current instanceof MappedDataModel) {
+            return 0;
+        }
+        try {
+            // GenericDataModel keeps every preference twice, as user and as item arrays
+            long numPreferences = 0;
+            final LongPrimitiveIterator it = current.getUserIDs();
+            while (it.hasNext()) {
+                numPreferences += current.getPreferencesFromUser(it.nextLong()).length();
+            }
+            return 2 * numPreferences * (Long.BYTES + Float.BYTES)
+                    + (long) (current.getNumUsers() + current.getNumItems()) * PREFERENCE_ARRAY_OVERHEAD;
+        } catch (final TasteException e) {
+            logger.warn("Failed to estimate the size of " + preferenceIndex + "/" + preferenceType, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Estimated heap of the model once loaded, from the number of preference
+     * documents, so a load can be rejected before it scans the index. Counts
+     * what {@link #ramBytesUsed()} would report for a full scan, also when the
+     * model ends up being served from a snapshot.
+     */
+    public long estimateRamBytes() throws TasteException {
+        final long numPreferences;
+        try {
+            numPreferences = client
+                .prepareSearch(preferenceIndex)
+                .setTypes(preferenceType)
+                .setSize(0)
+                .get()
+                .getHits()
+                .getTotalHits();
+        } catch (final Exception e) {
+            throw new TasteException("Failed to count preferences of " + preferenceIndex + "/" + preferenceType, e);
+        }
+        final long bytesPerPreference;
+        if (!compact) {
+            // as user and as item arrays, see ramBytesUsed()
+            bytesPerPreference = 2 * (Long.BYTES + Float.BYTES);
+        } else {
+            // an int index into the other side's ids plus a value or a code, on both sides
+            bytesPerPreference = 2 * (Integer.BYTES + (quantize ? Byte.BYTES : Float.BYTES));
+        }
+        return numPreferences * bytesPerPreference;
+    }
+
+    /**
+     * Increases every time a reload, a delta refresh or a batch of ingested
+     * changes swaps in new data. Versions are unique across all models of the
+     * node, so a model that replaces another one for the same index never
+     * repeats its versions.
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Increases with every reload and delta refresh, but not with batches of
+     * ingested changes. Structures derived from the whole model, like the
+     * similarity index, stay valid as long as it does; see
+     * {@link #version(long, boolean)} and {@link #deltaSince(long)} for what
+     * the batches since changed.
+     */
+    public long baseVersion() {
+        return baseVersion;
+    }
+
+    /**
+     * The version of the last batch of ingested changes that changed the user
+     * {@code id}, or the item with {@code item}, since the last reload or delta
+     * refresh, or {@link #baseVersion()} if none did. An answer about that ID
+     * computed at this version is current as long as it stays the same.
+     */
+    public synchronized long version(final long id, final boolean item) {
+        final Long changed = (item ? itemVersions : userVersions).get(id);
+        return changed == null ? baseVersion : changed;
+    }
+
+    /**
+     * Users and items whose preferences changed from {@code fromVersion} to
+     * {@link #version()}: those of the batches of ingested changes since, when
+     * {@code fromVersion} is not older than the {@link #baseVersion()}, or those
+     * of the last delta refresh when it started from {@code fromVersion}; and
+     * {@code null} when a reload happened since. Read it while holding this
+     * object's monitor to pair it with {@link #delegate()}.
+     */
+    public synchronized Delta deltaSince(final long fromVersion) {
+        if (delta != null && delta.fromVersion() == fromVersion) {
+            return delta;
+        }
+        if (fromVersion < baseVersion) {
+            return null;
+        }
+        return new Delta(fromVersion, version, changedSince(userVersions, fromVersion), changedSince(itemVersions, fromVersion));
+    }
+
+    private static FastIDSet changedSince(final FastByIDMap<Long> versions, final long fromVersion) {
+        final FastIDSet ids = new FastIDSet();
+        for (final Map.Entry<Long, Long> entry : versions.entrySet()) {
+            if (entry.getValue() > fromVersion) {
+                ids.add(entry.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * The model currently served. Read it while holding this object's monitor to
+     * pair it with {@link #version()}.
+     */
+    public DataModel delegate() {
+        return delegate;
+    }
+
+    /**
+     * What changed with the last swap when it was a delta refresh or a batch
+     * of ingested changes, or
+     * {@code null} after a full reload. Read it while holding this object's
+     * monitor to pair it with {@link #version()}.
+     */
+    public Delta delta() {
+        return delta;
+    }
+
+    /**
+     * Users and items whose preferences changed between two versions.
+     */
+    public static class Delta {
+        private final long fromVersion;
+        private final long toVersion;
+        private final FastIDSet userIds;
+        private final FastIDSet itemIds;
+
+        Delta(final long fromVersion, final long toVersion, final FastIDSet userIds, final FastIDSet itemIds) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.userIds = userIds;
+            this.itemIds = itemIds;
+        }
+
+        public long fromVersion() {
+            return fromVersion;
+        }
+
+        public long toVersion() {
+            return toVersion;
+        }
+
+        public FastIDSet userIds() {
+            return userIds;
+        }
+
+        public FastIDSet itemIds() {
+            return itemIds;
+        }
+    }
+
     public void preferenceIndex(final String value) {
         this.preferenceIndex = value;
     }
@@ -157,32 +1010,65 @@ public class ElasticsearchPreloadDataModel extends AbstractDataModel {
         this.keepAlive = value;
     }
 
-    private long getLongValue(final SearchHit hit, final String field) throws TasteException {
-        final Object result = hit.getSourceAsMap().get(field);
-        if (result == null) {
-            throw new TasteException(field + " is not found.");
-        }
-        if (! (result instanceof Number))
-            throw new TasteException(field + " is not Number.");
-        final Number longValue = (Number) result;
-        if (longValue == null) {
-            throw new TasteException("The result of " + field + " is null.");
-        }
-        return longValue.longValue();
+    public void setSlices(final int value) {
+        this.slices = value;
+    }
+
+    public void setFetcher(final PreferenceFetcher value) {
+        this.fetcher = value;
+    }
+
+    /**
+     * Keeps loaded preferences in a {@link CompactDataModel} instead of a
+     * {@link GenericDataModel}. Delta refreshes then rebuild the compact arrays.
+     */
+    public void setCompact(final boolean value) {
+        this.compact = value;
+    }
+
+    /**
+     * Stores compact preference values as 8-bit codes. Only used with {@link #setCompact(boolean)}.
+     */
+    public void setQuantize(final boolean value) {
+        this.quantize = value;
+    }
+
+    /**
+     * File the model is persisted to by {@link #persist()} and served from by
+     * {@link #load(ActionListener)}.
+     */
+    public void setSnapshotPath(final Path value) {
+        this.snapshotPath = value;
+    }
+
+    /**
+     * Numeric or date field holding the last update time of a preference. Enables
+     * {@link #refreshDelta(ActionListener)}.
+     */
+    public void setWatermarkField(final String value) {
+        this.watermarkField = value;
     }
 
-    private float getFloatValue(final SearchHit hit, final String field) throws TasteException {
-        final Object result = hit.getSourceAsMap().get(field);
-        if (result == null) {
-            throw new TasteException(field + " is not found.");
+    /**
+     * Runs {@link #refresh(Collection)} on the generic thread pool every
+     * {@code interval}. A non-positive interval only cancels the current schedule.
+     */
+    public void scheduleRefresh(final TimeValue interval) {
+        cancelScheduledRefresh();
+        if (interval == null || interval.millis() <= 0) {
+            return;
         }
-        if (! (result instanceof Number))
-            throw new TasteException(field + " is not Number.");
-        final Number floatValue = (Number) result;
-        if (floatValue == null) {
-            throw new TasteException("The result of " + field + " is null.");
+        this.scheduledRefresh = client
+            .threadPool()
+            .scheduleWithFixedDelay(() -> refresh(null), interval, ThreadPool.Names.GENERIC);
+    }
+
+    public void cancelScheduledRefresh() {
+        final Scheduler.Cancellable cancellable = scheduledRefresh;
+        if (cancellable != null) {
+            cancellable.cancel();
+            scheduledRefresh = null;
         }
-        return floatValue.floatValue();
     }
 
     // 
@@ -243,28 +1129,41 @@ public class ElasticsearchPreloadDataModel extends AbstractDataModel {
     }
 
     /**
-     * Note that this method only updates the in-memory preference data that this
-     * maintains; it does not modify any data on disk. Therefore any updates from this method are only
-     * temporary, and lost when data is reloaded from a file. This method should also be considered relatively
-     * slow.
+     * Publishes the preference right away through {@link #applyPending()}.
+     * Only the in-memory model changes; use the ingestion API to also write it
+     * to the preference index. Batches of changes should go through
+     * {@link #enqueue(OverlayDataModel.Change)} instead.
      */
     @Override
     public void setPreference(long userID, long itemID, float value) throws TasteException {
-        delegate.setPreference(userID, itemID, value);
+        enqueue(OverlayDataModel.Change.set(userID, itemID, value));
+        applyPending();
     }
 
-    /** See the warning at {@link #setPreference(long, long, float)}. */
+    /** See {@link #setPreference(long, long, float)}. */
     @Override
     public void removePreference(long userID, long itemID) throws TasteException {
-        delegate.removePreference(userID, itemID);
+        enqueue(OverlayDataModel.Change.remove(userID, itemID));
+        applyPending();
     }
 
     @Override
     public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        if (!refreshing.compareAndSet(false, true)) {
+            logger.info("Refresh {}/{} skipped. Previous refresh is still running.", preferenceIndex, preferenceType);
+            return;
+        }
         try {
-            reload();
-        } catch(final TasteException e) {
+            if (watermarkField == null) {
+                reload();
+            } else {
+                refreshDelta();
+            }
+            persist();
+        } catch(final TasteException | IOException e) {
             logger.info("reload failed. {}", e);
+        } finally {
+            refreshing.set(false);
         }
     }
 
@@ -1,12 +1,18 @@
 package org.elasticsearch.plugin.flavor;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.security.InvalidParameterException;
 
 import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.elasticsearch.client.Client;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
 
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.model.DataModel;
@@ -25,12 +31,34 @@ public class ElasticsearchPreloadDataModelFactory implements DataModelFactory {
     private Client client;
     private String index = "preference";
     private String type = "preference";
+    private int scrollSize = 2000;
+    private long keepAlive = 60000;
+    private int slices = 1;
+    private PreferenceFetcher fetcher = SourcePreferenceFetcher.INSTANCE;
+    private String watermarkField;
+    private TimeValue refreshInterval;
+    private boolean snapshot = false;
+    private boolean compact = false;
+    private boolean quantize = false;
+    private final Path dataPath;
     private DataModel dataModel;
+    private volatile SimilarityIndex similarityIndex;
+    private volatile FactorizedModel factorization;
+    private final ConcurrentMap<LshIndex.Kind, LshIndex> lshIndices = new ConcurrentHashMap<LshIndex.Kind, LshIndex>();
+    private final ConcurrentMap<LshIndex.Kind, Boolean> lshBuilding = new ConcurrentHashMap<LshIndex.Kind, Boolean>();
+    private final Object lshLock = new Object();
+    private int lshBands = 16;
+    private int lshRows = 0;
+    private RecommenderCache recommenders;
     private final FlavorRestAction action;
 
-    public ElasticsearchPreloadDataModelFactory(final Client client, final JsonObject settings, final FlavorRestAction action) {
+    public ElasticsearchPreloadDataModelFactory(final Client client,
+                                                final JsonObject settings,
+                                                final FlavorRestAction action,
+                                                final Path dataPath) {
         this.client = client;
         this.action = action;
+        this.dataPath = dataPath;
 
         final JsonElement preferenceSettingsElement = settings.getAsJsonObject("preference");
         if (preferenceSettingsElement.isJsonNull()) {
@@ -49,13 +77,326 @@ public class ElasticsearchPreloadDataModelFactory implements DataModelFactory {
         if (preferenceTypeElement != null && !preferenceTypeElement.isJsonNull()) {
             this.type = preferenceTypeElement.getAsString();
         }
-        // if (settings.containsKey("keepAlive")) {
-        //     dataModel.setKeepAlive(settings.get("keepAlive"));
-        // }
-        // if (settings.containsKey("scrollSize")) {
-        //     dataModel.setScrollSize(settings.get("scrollSize"));
-        // }
 
+        JsonElement scrollSizeElement = preferenceSettings.get("scrollSize");
+        if (scrollSizeElement != null && !scrollSizeElement.isJsonNull()) {
+            this.scrollSize = scrollSizeElement.getAsInt();
+            if (scrollSize <= 0) {
+                throw new InvalidParameterException("preference.scrollSize must be positive.");
+            }
+        }
+
+        JsonElement keepAliveElement = preferenceSettings.get("keepAlive");
+        if (keepAliveElement != null && !keepAliveElement.isJsonNull()) {
+            if (keepAliveElement.getAsJsonPrimitive().isNumber()) {
+                this.keepAlive = keepAliveElement.getAsLong();
+            } else {
+                this.keepAlive = TimeValue.parseTimeValue(keepAliveElement.getAsString(), "preference.keepAlive").millis();
+            }
+        }
+
+        JsonElement slicesElement = preferenceSettings.get("slices");
+        if (slicesElement != null && !slicesElement.isJsonNull()) {
+            this.slices = slicesElement.getAsInt();
+            if (slices <= 0) {
+                throw new InvalidParameterException("preference.slices must be positive.");
+            }
+        }
+
+        JsonElement fetchElement = preferenceSettings.get("fetch");
+        if (fetchElement != null && !fetchElement.isJsonNull()) {
+            this.fetcher = PreferenceFetcher.of(fetchElement.getAsString());
+        }
+
+        JsonElement watermarkFieldElement = preferenceSettings.get("watermarkField");
+        if (watermarkFieldElement != null && !watermarkFieldElement.isJsonNull()) {
+            this.watermarkField = watermarkFieldElement.getAsString();
+        }
+
+        JsonElement refreshIntervalElement = preferenceSettings.get("refreshInterval");
+        if (refreshIntervalElement != null && !refreshIntervalElement.isJsonNull()) {
+            this.refreshInterval = TimeValue.parseTimeValue(refreshIntervalElement.getAsString(), "preference.refreshInterval");
+        }
+
+        JsonElement snapshotElement = preferenceSettings.get("snapshot");
+        if (snapshotElement != null && !snapshotElement.isJsonNull()) {
+            this.snapshot = snapshotElement.getAsBoolean();
+        }
+
+        JsonElement modelElement = preferenceSettings.get("model");
+        if (modelElement != null && !modelElement.isJsonNull()) {
+            switch (modelElement.getAsString()) {
+                case "generic":
+                    this.compact = false;
+                    break;
+                case "compact":
+                    this.compact = true;
+                    break;
+                default:
+                    throw new InvalidParameterException("Unknown preference.model: " + modelElement.getAsString());
+            }
+        }
+
+        JsonElement quantizeElement = preferenceSettings.get("quantize");
+        if (quantizeElement != null && !quantizeElement.isJsonNull()) {
+            this.quantize = quantizeElement.getAsBoolean();
+        }
+
+        JsonElement lshBandsElement = preferenceSettings.get("lshBands");
+        if (lshBandsElement != null && !lshBandsElement.isJsonNull()) {
+            this.lshBands = lshBandsElement.getAsInt();
+            if (lshBands <= 0) {
+                throw new InvalidParameterException("preference.lshBands must be positive.");
+            }
+        }
+
+        JsonElement lshRowsElement = preferenceSettings.get("lshRows");
+        if (lshRowsElement != null && !lshRowsElement.isJsonNull()) {
+            this.lshRows = lshRowsElement.getAsInt();
+            if (lshRows <= 0 || lshRows > 64) {
+                throw new InvalidParameterException("preference.lshRows must be between 1 and 64.");
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (dataModel instanceof ElasticsearchPreloadDataModel) {
+            ((ElasticsearchPreloadDataModel) dataModel).cancelScheduledRefresh();
+        }
+        if (recommenders != null) {
+            recommenders.clear();
+        }
+    }
+
+    private ElasticsearchPreloadDataModel newDataModel() {
+        ElasticsearchPreloadDataModel preloadDataModel = new ElasticsearchPreloadDataModel(client, index, type);
+        preloadDataModel.setScrollSize(scrollSize);
+        preloadDataModel.setKeepAlive(keepAlive);
+        preloadDataModel.setSlices(slices);
+        preloadDataModel.setFetcher(fetcher);
+        preloadDataModel.setCompact(compact);
+        preloadDataModel.setQuantize(quantize);
+        preloadDataModel.setWatermarkField(watermarkField);
+        if (snapshot) {
+            if (dataPath == null) {
+                throw new InvalidParameterException("preference.snapshot requires a node data path.");
+            }
+            preloadDataModel.setSnapshotPath(dataPath.resolve(index).resolve(type + ".snapshot"));
+        }
+        return preloadDataModel;
+    }
+
+    public String index() {
+        return index;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public synchronized DataModel dataModel() {
+        return dataModel;
+    }
+
+    public long ramBytesUsed() {
+        final DataModel current = dataModel();
+        final SimilarityIndex currentIndex = similarityIndex;
+        final FactorizedModel currentFactorization = factorization;
+        return (current instanceof ElasticsearchPreloadDataModel
+                ? ((ElasticsearchPreloadDataModel) current).ramBytesUsed()
+                : 0)
+                + (currentIndex == null ? 0 : currentIndex.ramBytesUsed())
+                + (currentFactorization == null ? 0 : currentFactorization.ramBytesUsed())
+                + lshIndices.values().stream().mapToLong(LshIndex::ramBytesUsed).sum();
+    }
+
+    /**
+     * Estimated heap of the model before it is loaded, see
+     * {@link ElasticsearchPreloadDataModel#estimateRamBytes()}.
+     */
+    public long estimateRamBytes() throws TasteException {
+        return newDataModel().estimateRamBytes();
+    }
+
+    public synchronized RecommenderCache recommenders() {
+        return recommenders;
+    }
+
+    public SimilarityIndex similarityIndex() {
+        return similarityIndex;
+    }
+
+    /**
+     * The precomputed index if it can answer {@code request}: it was built from
+     * the base version currently served, with the requested similarity or with
+     * no similarity requested, and {@code precomputed} is not {@code false}.
+     * Batches of ingested changes keep the base version, so similarities of
+     * items they changed are those of the last reload or delta refresh.
+     */
+    public SimilarityIndex similarityIndex(final RestRequest request) {
+        return similarityIndex(request.param("similarity"), request.paramAsBoolean("precomputed", true));
+    }
+
+    public SimilarityIndex similarityIndex(final String similarity, final boolean precomputed) {
+        final SimilarityIndex current = similarityIndex;
+        final DataModel model = dataModel();
+        if (current == null
+                || !(model instanceof ElasticsearchPreloadDataModel)
+                || current.modelVersion() != ((ElasticsearchPreloadDataModel) model).baseVersion()
+                || !precomputed) {
+            return null;
+        }
+        if (similarity != null && !similarity.isEmpty() && !similarity.equals(current.similarity())) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * Computes the top {@code k} neighbors of every item of the loaded model and
+     * swaps them in once complete; requests keep using the previous index, or
+     * live similarities, meanwhile.
+     */
+    public SimilarityIndex buildSimilarityIndex(final String similarity,
+                                                final int k,
+                                                final Executor executor,
+                                                final int parallelism) throws TasteException {
+        load();
+        final ElasticsearchPreloadDataModel model = (ElasticsearchPreloadDataModel) dataModel();
+        final DataModel current;
+        final long version;
+        synchronized (model) {
+            current = model.delegate();
+            version = model.baseVersion();
+        }
+        final RecommenderBuilder builder = RecommenderBuilder
+                .builder()
+                .dataModel(current)
+                .similarity(similarity);
+        final long startTime = System.currentTimeMillis();
+        final SimilarityIndex built = SimilarityIndex.build(current, builder.itemSimilarity(),
+                similarity == null || similarity.isEmpty() ? "PearsonCorrelationSimilarity" : similarity,
+                k, version, executor, parallelism);
+        this.similarityIndex = built;
+        logger.info("Built {} for {}/{}. {}ms", built, index, type, System.currentTimeMillis() - startTime);
+        return built;
+    }
+
+    public Iterable<LshIndex> lshIndices() {
+        return lshIndices.values();
+    }
+
+    /**
+     * The LSH index for the similarity of {@code request} when it asks for
+     * {@code approximate=true} and the index reflects the model currently
+     * served. An index one delta refresh behind, or behind by batches of
+     * ingested changes only, is updated in place for the changed users and
+     * items, see {@link ElasticsearchPreloadDataModel#deltaSince(long)}; otherwise a full build is started on the generic
+     * pool and {@code null} is returned, so the request is answered exactly
+     * until the build is done.
+     */
+    public LshIndex approximateIndex(final RestRequest request) throws TasteException {
+        if (!request.paramAsBoolean("approximate", false)) {
+            return null;
+        }
+        final String similarity = request.param("similarity");
+        final CsrSimilarity.Metric metric = CsrSimilarity.Metric.of(
+                similarity == null || similarity.isEmpty() ? "PearsonCorrelationSimilarity" : similarity);
+        final DataModel model = dataModel();
+        if (metric == null || !(model instanceof ElasticsearchPreloadDataModel)) {
+            return null;
+        }
+        final ElasticsearchPreloadDataModel preloadDataModel = (ElasticsearchPreloadDataModel) model;
+        final LshIndex.Kind kind = LshIndex.Kind.of(metric);
+        synchronized (lshLock) {
+            final DataModel current;
+            final long version;
+            final LshIndex index;
+            final ElasticsearchPreloadDataModel.Delta delta;
+            synchronized (preloadDataModel) {
+                current = preloadDataModel.delegate();
+                version = preloadDataModel.version();
+                index = lshIndices.get(kind);
+                delta = index == null || index.modelVersion() == version ? null : preloadDataModel.deltaSince(index.modelVersion());
+            }
+            if (index != null && index.modelVersion() == version) {
+                return index;
+            }
+            if (index != null && delta != null) {
+                index.update(current, delta.userIds(), delta.itemIds(), version);
+                return index;
+            }
+            if (lshBuilding.putIfAbsent(kind, Boolean.TRUE) == null) {
+                buildLshIndex(kind, current, version);
+            }
+            return null;
+        }
+    }
+
+    private void buildLshIndex(final LshIndex.Kind kind, final DataModel current, final long version) {
+        client.threadPool().generic().execute(() -> {
+            try {
+                final long startTime = System.currentTimeMillis();
+                final LshIndex built = LshIndex.build(current, kind, lshBands,
+                        lshRows > 0 ? lshRows : kind.defaultRows(), version);
+                lshIndices.put(kind, built);
+                logger.info("Built {} for {}/{}. {}ms", built, index, type, System.currentTimeMillis() - startTime);
+            } catch (final Exception e) {
+                logger.error("Failed to build LSH index for " + index + "/" + type, e);
+            } finally {
+                lshBuilding.remove(kind);
+            }
+        });
+    }
+
+    public FactorizedModel factorization() {
+        return factorization;
+    }
+
+    /**
+     * Trains the factorization of the loaded model and swaps it in once
+     * complete; requests keep using the previous factorization meanwhile.
+     */
+    public FactorizedModel trainFactorization(final int features,
+                                              final double lambda,
+                                              final int iterations,
+                                              final boolean implicit,
+                                              final double alpha,
+                                              final int threads) throws TasteException {
+        load();
+        final ElasticsearchPreloadDataModel model = (ElasticsearchPreloadDataModel) dataModel();
+        final DataModel current;
+        final long version;
+        synchronized (model) {
+            current = model.delegate();
+            version = model.version();
+        }
+        final long startTime = System.currentTimeMillis();
+        final FactorizedModel trained = FactorizedModel.train(current, features, lambda, iterations, implicit, alpha,
+                threads, version);
+        this.factorization = trained;
+        logger.info("Trained {} for {}/{}. {}ms", trained, index, type, System.currentTimeMillis() - startTime);
+        return trained;
+    }
+
+    /**
+     * Loads the model unless it is already loaded, writes its snapshot and
+     * schedules the periodic refresh.
+     */
+    public synchronized void load() throws TasteException {
+        if (dataModel != null) {
+            return;
+        }
+        ElasticsearchPreloadDataModel preloadDataModel = newDataModel();
+        preloadDataModel.load();
+        try {
+            preloadDataModel.persist();
+        } catch (final IOException e) {
+            logger.warn("Failed to write snapshot " + preloadDataModel.snapshotPath(), e);
+        }
+        preloadDataModel.scheduleRefresh(refreshInterval);
+        this.recommenders = new RecommenderCache(preloadDataModel);
+        this.dataModel = preloadDataModel;
     }
 
     public void createItemBasedDataModel(final String _index,
@@ -64,11 +405,7 @@ public class ElasticsearchPreloadDataModelFactory implements DataModelFactory {
                                          final RestChannel ch,
                                          final long startTime,
                                          final RestRequest request) throws TasteException {
-        if (dataModel == null) {
-            ElasticsearchPreloadDataModel preloadDataModel = new ElasticsearchPreloadDataModel(client, index, type);
-            preloadDataModel.reload();
-            this.dataModel = preloadDataModel;
-        }
+        load();
 
         final String operation = request.param("operation");
         if (operation ==null)
@@ -79,7 +416,14 @@ public class ElasticsearchPreloadDataModelFactory implements DataModelFactory {
                 action.renderStatus(ch, dataModel);
                 break;
             case "similar_items":
-                action.similar_items(dataModel, request, ch, startTime);
+                final LshIndex lshIndex = approximateIndex(request);
+                if (request.paramAsBoolean("factorized", false)) {
+                    action.factorized(dataModel, factorization, request, ch, startTime);
+                } else if (lshIndex != null) {
+                    action.approximate(dataModel, lshIndex, request, ch, startTime);
+                } else {
+                    action.similar_items(dataModel, similarityIndex(request), recommenders, request, ch, startTime);
+                }
                 break;
             default:
                 action.renderNotFound(ch, "Invalid operation: " + operation);
@@ -93,17 +437,24 @@ public class ElasticsearchPreloadDataModelFactory implements DataModelFactory {
                                          final RestChannel ch,
                                          final long startTime,
                                          final RestRequest request) throws TasteException {
-        if (dataModel == null) {
-            ElasticsearchPreloadDataModel preloadDataModel = new ElasticsearchPreloadDataModel(client, index, type);
-            preloadDataModel.reload();
-            this.dataModel = preloadDataModel;
-        }
+        load();
         final String operation = request.param("operation");
         switch (operation) {
-            case "similar_users":
+            case "similar_users": {
+                final LshIndex lshIndex = approximateIndex(request);
+                if (lshIndex != null) {
+                    action.approximate(dataModel, lshIndex, request, ch, startTime);
+                } else {
+                    action.similar_items(dataModel, similarityIndex(request), recommenders, request, ch, startTime);
+                }
+                break;
+            }
             case "user_based_recommend":
             case "item_based_recommend":
-                action.similar_items(dataModel, request, ch, startTime);
+                action.similar_items(dataModel, similarityIndex(request), recommenders, request, ch, startTime);
+                break;
+            case "factorized_recommend":
+                action.factorized(dataModel, factorization, request, ch, startTime);
                 break;
             default:
                 action.renderNotFound(ch, "Invalid operation: " + operation);
@@ -0,0 +1,237 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.recommender.svd.ALSWRFactorizer;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+/**
+ * User and item factors of a preloaded model, trained with Mahout's ALS-WR.
+ * Factors are stored row after row in one float array per side, in ascending
+ * ID order, so a query is a binary search followed by a scan of dot products
+ * over all items. Request cost depends on the number of items and features
+ * only, not on neighborhoods.
+ */
+public class FactorizedModel implements Accountable {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    // items scored into the buffer before it is merged into the top-K
+    private static final int BLOCK_SIZE = 256;
+
+    private final int numFeatures;
+    private final long modelVersion;
+    private final long version;
+    private final long[] userIds;
+    private final float[] userFactors;
+    private final long[] itemIds;
+    private final float[] itemFactors;
+    private final float[] itemNorms;
+
+    private FactorizedModel(final int numFeatures,
+                            final long modelVersion,
+                            final long[] userIds,
+                            final float[] userFactors,
+                            final long[] itemIds,
+                            final float[] itemFactors) {
+        this.numFeatures = numFeatures;
+        this.modelVersion = modelVersion;
+        this.version = VERSIONS.incrementAndGet();
+        this.userIds = userIds;
+        this.userFactors = userFactors;
+        this.itemIds = itemIds;
+        this.itemFactors = itemFactors;
+        this.itemNorms = new float[itemIds.length];
+        for (int item = 0; item < itemIds.length; item++) {
+            itemNorms[item] = (float) Math.sqrt(dot(itemFactors, item * numFeatures, itemFactors, item * numFeatures, numFeatures));
+        }
+    }
+
+    /**
+     * Factorizes {@code dataModel} with {@code numFeatures} features, running
+     * each ALS iteration on {@code threads} threads.
+     */
+    public static FactorizedModel train(final DataModel dataModel,
+                                        final int numFeatures,
+                                        final double lambda,
+                                        final int numIterations,
+                                        final boolean implicit,
+                                        final double alpha,
+                                        final int threads,
+                                        final long modelVersion) throws TasteException {
+        if (numFeatures <= 0) {
+            throw new IllegalArgumentException("features must be positive.");
+        }
+        if (numIterations <= 0) {
+            throw new IllegalArgumentException("iterations must be positive.");
+        }
+        final ALSWRFactorizer factorizer = new ALSWRFactorizer(dataModel, numFeatures, lambda, numIterations,
+                                                               implicit, alpha, Math.max(1, threads));
+        return of(factorizer.factorize(), modelVersion);
+    }
+
+    /** Copies {@code factorization} into contiguous arrays. */
+    public static FactorizedModel of(final Factorization factorization, final long modelVersion) {
+        final int numFeatures = factorization.numFeatures();
+        final double[][] allUserFeatures = factorization.allUserFeatures();
+        final double[][] allItemFeatures = factorization.allItemFeatures();
+        final long[] userIds = sortedIds(factorization.getUserIDMappings(), factorization.numUsers());
+        final long[] itemIds = sortedIds(factorization.getItemIDMappings(), factorization.numItems());
+        final float[] userFactors = new float[userIds.length * numFeatures];
+        final float[] itemFactors = new float[itemIds.length * numFeatures];
+        for (final Map.Entry<Long, Integer> entry : factorization.getUserIDMappings()) {
+            copy(allUserFeatures[entry.getValue()], userFactors, Arrays.binarySearch(userIds, entry.getKey()) * numFeatures);
+        }
+        for (final Map.Entry<Long, Integer> entry : factorization.getItemIDMappings()) {
+            copy(allItemFeatures[entry.getValue()], itemFactors, Arrays.binarySearch(itemIds, entry.getKey()) * numFeatures);
+        }
+        return new FactorizedModel(numFeatures, modelVersion, userIds, userFactors, itemIds, itemFactors);
+    }
+
+    private static long[] sortedIds(final Iterable<Map.Entry<Long, Integer>> mappings, final int size) {
+        final long[] ids = new long[size];
+        int i = 0;
+        for (final Map.Entry<Long, Integer> entry : mappings) {
+            ids[i++] = entry.getKey();
+        }
+        Arrays.sort(ids, 0, i);
+        return i == size ? ids : Arrays.copyOf(ids, i);
+    }
+
+    private static void copy(final double[] features, final float[] factors, final int offset) {
+        for (int f = 0; f < features.length; f++) {
+            factors[offset + f] = (float) features[f];
+        }
+    }
+
+    public int numFeatures() {
+        return numFeatures;
+    }
+
+    /** Version of the preloaded model this factorization was trained on. */
+    public long modelVersion() {
+        return modelVersion;
+    }
+
+    /** Training version, unique across the factorizations of this node. */
+    public long version() {
+        return version;
+    }
+
+    public int numUsers() {
+        return userIds.length;
+    }
+
+    public int numItems() {
+        return itemIds.length;
+    }
+
+    /** Predicted preference of {@code userId} for {@code itemId}. */
+    public float estimatePreference(final long userId, final long itemId) throws TasteException {
+        final int user = userIndex(userId);
+        final int item = Arrays.binarySearch(itemIds, itemId);
+        if (item < 0) {
+            throw new NoSuchItemException(itemId);
+        }
+        return (float) dot(userFactors, user * numFeatures, itemFactors, item * numFeatures, numFeatures);
+    }
+
+    /**
+     * Up to {@code howMany} items with the highest predicted preference of
+     * {@code userId}, skipping {@code excluded} (typically the items the user
+     * already rated), best first.
+     */
+    public List<RecommendedItem> recommend(final long userId, final int howMany, final FastIDSet excluded) throws TasteException {
+        final int user = userIndex(userId);
+        return topK(userFactors, user * numFeatures, howMany, -1, excluded, false);
+    }
+
+    /** Items the most similar to {@code itemId} by cosine of their factors, best first. */
+    public List<RecommendedItem> mostSimilarItems(final long itemId, final int howMany) throws TasteException {
+        final int item = Arrays.binarySearch(itemIds, itemId);
+        if (item < 0) {
+            throw new NoSuchItemException(itemId);
+        }
+        return topK(itemFactors, item * numFeatures, howMany, item, null, true);
+    }
+
+    private int userIndex(final long userId) throws NoSuchUserException {
+        final int user = Arrays.binarySearch(userIds, userId);
+        if (user < 0) {
+            throw new NoSuchUserException(userId);
+        }
+        return user;
+    }
+
+    /**
+     * Scores every item against the query vector {@code query[offset..]} one
+     * block at a time and keeps the best {@code howMany} in a {@link TopN}.
+     * Scores not beating the current K-th are dropped before touching the heap.
+     */
+    private List<RecommendedItem> topK(final float[] query,
+                                       final int offset,
+                                       final int howMany,
+                                       final int skip,
+                                       final FastIDSet excluded,
+                                       final boolean cosine) {
+        final TopN top = new TopN(howMany);
+        if (howMany <= 0) {
+            return top.toList();
+        }
+        final float queryNorm = cosine ? (float) Math.sqrt(dot(query, offset, query, offset, numFeatures)) : 1F;
+        final float[] block = new float[BLOCK_SIZE];
+        for (int from = 0; from < itemIds.length; from += BLOCK_SIZE) {
+            final int to = Math.min(itemIds.length, from + BLOCK_SIZE);
+            for (int item = from; item < to; item++) {
+                block[item - from] = (float) dot(query, offset, itemFactors, item * numFeatures, numFeatures);
+            }
+            for (int item = from; item < to; item++) {
+                float score = block[item - from];
+                if (cosine) {
+                    final float norm = queryNorm * itemNorms[item];
+                    score = norm == 0F ? Float.NaN : score / norm;
+                }
+                if (Float.isNaN(score) || (top.isFull() && score < top.threshold()) || item == skip) {
+                    continue;
+                }
+                if (excluded != null && excluded.contains(itemIds[item])) {
+                    continue;
+                }
+                top.offer(itemIds[item], score);
+            }
+        }
+        return top.toList();
+    }
+
+    private static double dot(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+        double sum = 0;
+        for (int f = 0; f < length; f++) {
+            sum += x[xOffset + f] * y[yOffset + f];
+        }
+        return sum;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(userIds)
+                + RamUsageEstimator.sizeOf(userFactors)
+                + RamUsageEstimator.sizeOf(itemIds)
+                + RamUsageEstimator.sizeOf(itemFactors)
+                + RamUsageEstimator.sizeOf(itemNorms);
+    }
+
+    @Override
+    public String toString() {
+        return "FactorizedModel[features:" + numFeatures + " users:" + userIds.length + " items:" + itemIds.length
+                + " version:" + version + " modelVersion:" + modelVersion + "]";
+    }
+}
@@ -0,0 +1,159 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Caps on how far one request fans out: items read per user, users read per
+ * item and candidate items scored. A cap of {@code 0} means no limit.
+ *
+ * Rows over a cap are reservoir-sampled with a seed derived from the user or
+ * item ID, so the same request always sees the same sample and stays consistent
+ * with the result cache.
+ */
+public class FanOutLimits {
+    public static final FanOutLimits UNLIMITED = new FanOutLimits(0, 0, 0);
+
+    private final int maxItemsPerUser;
+    private final int maxUsersPerItem;
+    private final int maxCandidateItems;
+
+    public FanOutLimits(final int maxItemsPerUser, final int maxUsersPerItem, final int maxCandidateItems) {
+        if (maxItemsPerUser < 0 || maxUsersPerItem < 0 || maxCandidateItems < 0) {
+            throw new IllegalArgumentException("Fan-out limits must not be negative.");
+        }
+        this.maxItemsPerUser = maxItemsPerUser;
+        this.maxUsersPerItem = maxUsersPerItem;
+        this.maxCandidateItems = maxCandidateItems;
+    }
+
+    public static FanOutLimits of(final RestRequest request) {
+        return new FanOutLimits(request.paramAsInt("maxItemsPerUser", 0),
+                                request.paramAsInt("maxUsersPerItem", 0),
+                                request.paramAsInt("maxCandidateItems", 0));
+    }
+
+    public int maxItemsPerUser() {
+        return maxItemsPerUser;
+    }
+
+    public int maxUsersPerItem() {
+        return maxUsersPerItem;
+    }
+
+    public int maxCandidateItems() {
+        return maxCandidateItems;
+    }
+
+    public boolean isLimited() {
+        return maxItemsPerUser > 0 || maxUsersPerItem > 0 || maxCandidateItems > 0;
+    }
+
+    /** Items of a user, sampled down to {@link #maxItemsPerUser()}. */
+    public long[] sampleItems(final long userId, final long[] itemIds) {
+        return sample(itemIds, maxItemsPerUser, userId);
+    }
+
+    /** Users of an item, sampled down to {@link #maxUsersPerItem()}. */
+    public long[] sampleUsers(final long itemId, final long[] userIds) {
+        return sample(userIds, maxUsersPerItem, itemId);
+    }
+
+    /**
+     * Samples every row of {@code users} down to {@link #maxItemsPerUser()},
+     * always keeping the preferences for {@code required} items such as the
+     * target item or the items of the target user.
+     */
+    public FastByIDMap<PreferenceArray> sampleRows(final FastByIDMap<PreferenceArray> users, final FastIDSet required) {
+        if (maxItemsPerUser <= 0) {
+            return users;
+        }
+        for (Map.Entry<Long, PreferenceArray> entry : users.entrySet()) {
+            final PreferenceArray prefs = entry.getValue();
+            if (prefs.length() > maxItemsPerUser) {
+                entry.setValue(sample(prefs, maxItemsPerUser, entry.getKey(), required));
+            }
+        }
+        return users;
+    }
+
+    static long[] sample(final long[] ids, final int limit, final long seed) {
+        if (limit <= 0 || ids.length <= limit) {
+            return ids;
+        }
+        final int[] positions = positions(ids.length, limit, new Random(seed), null);
+        final long[] sampled = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            sampled[i] = ids[positions[i]];
+        }
+        return sampled;
+    }
+
+    static PreferenceArray sample(final PreferenceArray prefs,
+                                  final int limit,
+                                  final long seed,
+                                  final FastIDSet required) {
+        if (limit <= 0 || prefs.length() <= limit) {
+            return prefs;
+        }
+        final boolean[] keep = new boolean[prefs.length()];
+        int kept = 0;
+        if (required != null) {
+            for (int i = 0; i < keep.length && kept < limit; i++) {
+                if (required.contains(prefs.getItemID(i))) {
+                    keep[i] = true;
+                    kept++;
+                }
+            }
+        }
+        final int[] positions = positions(keep.length, limit - kept, new Random(seed), keep);
+        for (final int position : positions) {
+            keep[position] = true;
+        }
+
+        final PreferenceArray sampled = new GenericUserPreferenceArray(kept + positions.length);
+        sampled.setUserID(0, prefs.getUserID(0));
+        int p = 0;
+        for (int i = 0; i < keep.length; i++) {
+            if (keep[i]) {
+                sampled.setItemID(p, prefs.getItemID(i));
+                sampled.setValue(p, prefs.getValue(i));
+                p++;
+            }
+        }
+        return sampled;
+    }
+
+    /**
+     * Reservoir sample of {@code limit} positions out of {@code length}, skipping
+     * positions already taken. Returned in ascending order.
+     */
+    private static int[] positions(final int length, final int limit, final Random random, final boolean[] taken) {
+        final int[] reservoir = new int[limit];
+        int seen = 0;
+        for (int i = 0; i < length; i++) {
+            if (taken != null && taken[i]) {
+                continue;
+            }
+            if (seen < limit) {
+                reservoir[seen] = i;
+            } else {
+                final int j = random.nextInt(seen + 1);
+                if (j < limit) {
+                    reservoir[j] = i;
+                }
+            }
+            seen++;
+        }
+        final int[] positions = seen < limit ? Arrays.copyOf(reservoir, seen) : reservoir;
+        Arrays.sort(positions);
+        return positions;
+    }
+}
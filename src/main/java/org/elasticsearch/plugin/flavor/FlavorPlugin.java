@@ -1,22 +1,147 @@
 package org.elasticsearch.plugin.flavor;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
 import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.function.Supplier;
 
 import static java.util.Collections.singletonList;
 
 public class FlavorPlugin extends Plugin implements ActionPlugin {
+    public static final String THREAD_POOL_NAME = "flavor";
+
+    private Path dataPath;
+    private DataModelRegistry registry;
+    private PreferenceCache cache;
+    private ResultCache resultCache;
+    private ParallelScorer scorer;
+    private PreferenceIngester ingester;
+
+    @Override
+    public Collection<Object> createComponents(final Client client,
+                                               final ClusterService clusterService,
+                                               final ThreadPool threadPool,
+                                               final ResourceWatcherService resourceWatcherService,
+                                               final ScriptService scriptService,
+                                               final NamedXContentRegistry xContentRegistry,
+                                               final Environment environment,
+                                               final NodeEnvironment nodeEnvironment,
+                                               final NamedWriteableRegistry namedWriteableRegistry) {
+        if (nodeEnvironment.hasNodeFile()) {
+            this.dataPath = nodeEnvironment.nodeDataPaths()[0].resolve("flavor");
+        }
+        this.registry = new DataModelRegistry(clusterService.getSettings());
+        this.cache = new PreferenceCache(clusterService.getSettings());
+        this.resultCache = new ResultCache(clusterService.getSettings());
+        this.scorer = new ParallelScorer(clusterService.getSettings());
+        this.ingester = new PreferenceIngester(clusterService.getSettings(), client, threadPool, registry);
+        // injected into TransportPrecomputeAction
+        return Arrays.asList(registry, scorer);
+    }
+
+    /**
+     * Fixed pool for loading preferences and scoring. Size and queue can be changed
+     * with {@code thread_pool.flavor.size} and {@code thread_pool.flavor.queue_size}.
+     */
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(final Settings settings) {
+        return singletonList(new FixedExecutorBuilder(settings, THREAD_POOL_NAME,
+                EsExecutors.numberOfProcessors(settings), 100, "thread_pool." + THREAD_POOL_NAME));
+    }
+
+    /**
+     * Lets the {@link PreferenceCache} see every write to local shards, so cached
+     * preferences are invalidated once the change is visible.
+     */
+    @Override
+    public void onIndexModule(final IndexModule indexModule) {
+        if (cache != null) {
+            indexModule.addIndexOperationListener(cache);
+            indexModule.addIndexEventListener(cache);
+        }
+    }
+
+    /**
+     * Shard-side counting behind {@code engine=shard}, see
+     * {@link ElasticsearchCooccurrenceDataModelFactory}, and the precompute job,
+     * see {@link PrecomputeJob}.
+     */
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(new ActionHandler<>(CooccurrenceAction.INSTANCE, TransportCooccurrenceAction.class),
+                             new ActionHandler<>(PrecomputeAction.INSTANCE, TransportPrecomputeAction.class));
+    }
+
+    /**
+     * Progress of precompute jobs in {@code _tasks}.
+     */
+    @Override
+    public List<NamedWriteableRegistry.Entry> getNamedWriteables() {
+        return singletonList(new NamedWriteableRegistry.Entry(Task.Status.class, PrecomputeTask.Status.NAME,
+                                                              PrecomputeTask.Status::new));
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(DataModelRegistry.MEMORY_BUDGET_SETTING,
+                             PreferenceCache.SIZE_SETTING,
+                             PreferenceCache.EXPIRE_SETTING,
+                             ResultCache.SIZE_SETTING,
+                             ResultCache.EXPIRE_SETTING,
+                             ResultCache.GENERATION_INTERVAL_SETTING,
+                             ParallelScorer.PARALLELISM_SETTING,
+                             ParallelScorer.THRESHOLD_SETTING,
+                             BatchRecommender.MAX_ENTRIES_SETTING,
+                             PreferenceIngester.INTERVAL_SETTING,
+                             PreferenceIngester.COMPACT_THRESHOLD_SETTING,
+                             PreferenceIngester.BULK_ACTIONS_SETTING,
+                             PreferenceIngester.FLUSH_INTERVAL_SETTING,
+                             PreferenceIngester.CONCURRENT_REQUESTS_SETTING);
+    }
+
+    @Override
+    public void close() {
+        // flush ingested preferences before the models go away
+        if (ingester != null) {
+            ingester.close();
+        }
+        if (registry != null) {
+            registry.close();
+        }
+        if (scorer != null) {
+            scorer.close();
+        }
+    }
+
     @Override
     public List<RestHandler> getRestHandlers(final Settings settings,
                                              final RestController restController,
@@ -26,6 +151,6 @@ public class FlavorPlugin extends Plugin implements ActionPlugin {
                                              final IndexNameExpressionResolver indexNameExpressionResolver,
                                              final Supplier<DiscoveryNodes> nodesInCluster) {
 
-        return singletonList(new FlavorRestAction(settings, restController));
+        return singletonList(new FlavorRestAction(settings, restController, dataPath, registry, cache, resultCache, scorer, ingester));
     }
 }
@@ -4,34 +4,85 @@ import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import org.apache.logging.log4j.Logger;
 import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.similarity.AveragingPreferenceInferrer;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.UserBasedRecommender;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.cache.Cache;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.rest.*;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.security.InvalidParameterException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static org.elasticsearch.rest.RestRequest.Method.DELETE;
 import static org.elasticsearch.rest.RestRequest.Method.GET;
 import static org.elasticsearch.rest.RestRequest.Method.POST;
 import static org.elasticsearch.rest.RestStatus.NOT_FOUND;
 import static org.elasticsearch.rest.RestStatus.OK;
 
 public class FlavorRestAction extends BaseRestHandler {
-    private DataModelFactory dataModelFactory;
+    private ElasticsearchDynamicDataModelFactory dynamicDataModelFactory;
+    private ElasticsearchAggregationDataModelFactory aggregationDataModelFactory;
+    private ElasticsearchCooccurrenceDataModelFactory cooccurrenceDataModelFactory;
     private Logger logger = Loggers.getLogger(FlavorRestAction.class);
 
-    public FlavorRestAction(final Settings settings, final RestController controller) {
+    private final Path dataPath;
+    private final DataModelRegistry registry;
+    private final PreferenceCache cache;
+    private final ResultCache resultCache;
+    private final ParallelScorer scorer;
+    private final PreferenceIngester ingester;
+    private final int maxBatchEntries;
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    public FlavorRestAction(final Settings settings,
+                            final RestController controller,
+                            final Path dataPath,
+                            final DataModelRegistry registry,
+                            final PreferenceCache cache,
+                            final ResultCache resultCache,
+                            final ParallelScorer scorer,
+                            final PreferenceIngester ingester) {
         super(settings);
+        this.dataPath = dataPath;
+        this.registry = registry;
+        this.cache = cache;
+        this.resultCache = resultCache;
+        this.scorer = scorer;
+        this.ingester = ingester;
+        this.maxBatchEntries = BatchRecommender.MAX_ENTRIES_SETTING.get(settings);
+        controller.registerHandler(GET, "/_flavor/stats", this);
         controller.registerHandler(POST, "/_flavor/preload", this);
+        controller.registerHandler(GET, "/_flavor/preload", this);
+        controller.registerHandler(DELETE, "/_flavor/preload/{index}/{type}", this);
+        controller.registerHandler(POST, "/_flavor/similarity/{index}/{type}", this);
+        controller.registerHandler(POST, "/_flavor/factorize/{index}/{type}", this);
+        controller.registerHandler(POST, "/_flavor/precompute/{index}/{type}", this);
+        controller.registerHandler(POST, "/{index}/{type}/_flavor/_batch", this);
+        controller.registerHandler(POST, "/_flavor/preferences/_bulk", this);
+        controller.registerHandler(POST, "/{index}/{type}/_flavor/preferences/_bulk", this);
         controller.registerHandler(GET,  "/{index}/{type}/_flavor/{operation}/{id}", this);
         controller.registerHandler(GET,  "/_flavor/{operation}/{id}", this);
     }
@@ -39,79 +90,541 @@ public class FlavorRestAction extends BaseRestHandler {
 
     @Override
     protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
-        return channel -> {
-            switch (request.method()) {
-                case POST:
-                    try {
-                        final String jsonString = XContentHelper.convertToJson(request.content(), true);
-                        JsonObject json = new Gson().fromJson(jsonString, JsonObject.class);
-                        final long startTime = System.currentTimeMillis();
+        return channel -> client.threadPool().executor(FlavorPlugin.THREAD_POOL_NAME).execute(new AbstractRunnable() {
+            @Override
+            public void onFailure(final Exception e) {
+                handleErrorRequest(channel, e);
+            }
+
+            @Override
+            protected void doRun() throws Exception {
+                handleRequest(request, client, channel);
+            }
+        });
+    }
+
+    /**
+     * Runs on the {@link FlavorPlugin#THREAD_POOL_NAME} pool, so loading and scoring
+     * never block network threads. A full queue is answered with 429.
+     */
+    private void handleRequest(final RestRequest request, final NodeClient client, final RestChannel channel) {
+        switch (request.method()) {
+            case POST:
+                if (request.path().startsWith("/_flavor/similarity/")) {
+                    buildSimilarityIndex(request, client, channel);
+                    break;
+                }
+                if (request.path().startsWith("/_flavor/factorize/")) {
+                    trainFactorization(request, client, channel);
+                    break;
+                }
+                if (request.path().startsWith("/_flavor/precompute/")) {
+                    precompute(request, client, channel);
+                    break;
+                }
+                if (request.path().endsWith("/_flavor/_batch")) {
+                    batch(request, channel);
+                    break;
+                }
+                if (request.path().endsWith("/_flavor/preferences/_bulk")) {
+                    ingest(request, channel);
+                    break;
+                }
+                try {
+                    final String jsonString = XContentHelper.convertToJson(request.content(), true);
+                    JsonObject json = new Gson().fromJson(jsonString, JsonObject.class);
+                    final long startTime = System.currentTimeMillis();
+
+                    ElasticsearchPreloadDataModelFactory factory = new ElasticsearchPreloadDataModelFactory(client, json, this, dataPath);
+                    registry.reserve(factory.index(), factory.type(), factory.estimateRamBytes());
+                    factory.load();
+                    registry.put(factory);
+                    factory.createItemBasedDataModel(null, null, 0,channel,startTime,request);
+
+                } catch (final Exception e) {
+                    handleErrorRequest(channel, e);
+                }
+                break;
+            case DELETE:
+                try {
+                    final ElasticsearchPreloadDataModelFactory factory =
+                            registry.remove(request.param("index"), request.param("type"));
+                    if (factory == null) {
+                        renderNotFound(channel, "No preloaded model for " + request.param("index") + "/" + request.param("type"));
+                    } else {
+                        renderPreloaded(channel, Collections.singletonList(factory));
+                    }
+                } catch (final Exception e) {
+                    handleErrorRequest(channel, e);
+                }
+                break;
+            case GET: {
+                RestChannel target = channel;
+                try {
+                    final String operation = request.param("operation");
+                    if (operation == null) {
+                        if (request.path().endsWith("/_flavor/stats")) {
+                            renderStats(channel);
+                        } else {
+                            renderPreloaded(channel, registry.list());
+                        }
+                        break;
+                    }
+                    final String index = request.param("index");
+                    final String type = request.param("type");
+                    final long id = request.paramAsLong("id", 0);
+                    final int size = request.paramAsInt("size", 10);
+
+                    final long startTime = System.currentTimeMillis();
+
+                    final RecommenderBuilder builder = RecommenderBuilder
+                            .builder()
+                            .similarity(request.param("similarity"))
+                            .neighborhood(request.param("neighborhood"))
+                            .neighborhoodNearestN(request.paramAsInt("neighborhoodN", 10))
+                            .neighborhoodThreshold((double) request.paramAsFloat("neighborhoodThreshold", 0.1F));
+
+                    final boolean useCache = resultCache.enabled() && request.paramAsBoolean("cache", true);
+                    final ElasticsearchPreloadDataModelFactory preloaded = registry.get(index, type);
+                    final DataModelFactory dataModelFactory;
+                    final String generation;
+                    if (preloaded != null && preloaded.dataModel() instanceof ElasticsearchPreloadDataModel) {
+                        dataModelFactory = preloaded;
+                        final SimilarityIndex similarityIndex = preloaded.similarityIndex(request);
+                        final FactorizedModel factorization = preloaded.factorization();
+                        // ingested batches only start a new generation for the users and items they changed
+                        generation = "v" + ((ElasticsearchPreloadDataModel) preloaded.dataModel())
+                                        .version(id, "similar_items".equals(operation))
+                                + "s" + (similarityIndex == null ? 0 : similarityIndex.version())
+                                + "f" + (factorization == null ? 0 : factorization.version());
+                    } else if (isFactorized(request)) {
+                        renderNotFound(channel, "No preloaded model for " + index + "/" + type);
+                        break;
+                    } else {
+                        dataModelFactory = dynamicDataModelFactory(client, request.param("engine"));
+                        // in-flight requests are coalesced within the same generation anyway
+                        generation = useCache ? "g" + resultCache.generation(client, index) : "g";
+                    }
+
+                    final String key = ResultCache.key(request, generation);
+                    if (useCache) {
+                        final ResultCache.Result cached = resultCache.get(key);
+                        if (cached != null) {
+                            renderResult(channel, cached, startTime, true);
+                            break;
+                        }
+                    }
+                    if (!coalescer.join(key, channel, startTime)) {
+                        // answered when the identical request in flight completes
+                        break;
+                    }
+                    target = new KeyedRestChannel(channel, key, useCache, coalescer);
+
+                    switch (operation) {
+                        case "similar_items":
+                            dataModelFactory.createItemBasedDataModel(index, type, id, target, startTime, request);
+                            break;
+                        case "similar_users":
+                        case "user_based_recommend":
+                        case "item_based_recommend":
+                        case "factorized_recommend":
+                            dataModelFactory.createUserBasedDataModel(index, type, id, target, startTime, request);
+                            break;
+                        default:
+                            renderNotFound(target, "Invalid operation: " + operation);
+                            break;
+                    }
+
+                } catch (final NoSuchItemException e) {
+                    renderNotFound(target, e.toString());
+                } catch (final Exception e) {
+                    handleErrorRequest(target, e);
+                }
+                break;
+            }
+            default:
+                renderNotFound(channel, "No such action");
+                break;
+        }
+    }
+
+    /**
+     * Runs the newline-delimited entries of the body on a preloaded model, with
+     * the recommender parameters of the URL, and answers one line per entry.
+     */
+    private void batch(final RestRequest request, final RestChannel channel) {
+        try {
+            final String index = request.param("index");
+            final String type = request.param("type");
+            final ElasticsearchPreloadDataModelFactory factory = registry.get(index, type);
+            if (factory == null || !(factory.dataModel() instanceof ElasticsearchPreloadDataModel)) {
+                renderNotFound(channel, "No preloaded model for " + index + "/" + type);
+                return;
+            }
+            final List<BatchRecommender.Entry> entries = BatchRecommender.parse(
+                    request.content().utf8ToString(), request.paramAsInt("size", 10), maxBatchEntries);
+            final RecommenderCache recommenders = factory.recommenders();
+            final SimilarityIndex similarityIndex = factory.similarityIndex(request);
+            final BatchRecommender batch = new BatchRecommender(scorer)
+                    .dataModel(((ElasticsearchPreloadDataModel) factory.dataModel()).delegate())
+                    .similarityIndex(similarityIndex)
+                    .factorization(factory.factorization());
+            if (BatchRecommender.uses(entries, "similar_users", "user_based_recommend")) {
+                batch.userBased(recommenders.userBased(batchBuilder(request)));
+            }
+            if (BatchRecommender.uses(entries, "similar_items", "item_based_recommend")) {
+                batch.itemBased(recommenders.itemBased(batchBuilder(request)
+                        .similarityIndex(similarityIndex)
+                        .parallelScorer(scorer)));
+            }
+            channel.sendResponse(new BytesRestResponse(OK, "application/x-ndjson", batch.execute(entries)));
+        } catch (final Exception e) {
+            handleErrorRequest(channel, e);
+        }
+    }
+
+    /**
+     * Applies the newline-delimited preference events of the body to the
+     * preloaded models and writes them behind to the preference indices, see
+     * {@link PreferenceIngester}. Answers once the events are queued; with
+     * {@code refresh=true} the touched models publish them before answering.
+     */
+    private void ingest(final RestRequest request, final RestChannel channel) {
+        try {
+            final long startTime = System.currentTimeMillis();
+            final List<PreferenceIngester.Event> events = PreferenceIngester.parse(
+                    request.content().utf8ToString(), request.param("index"), request.param("type"));
+            final Set<ElasticsearchPreloadDataModel> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+            int applied = 0;
+            for (final PreferenceIngester.Event event : events) {
+                final ElasticsearchPreloadDataModel model = ingester.ingest(event.index(), event.type(), event.change());
+                if (model != null) {
+                    touched.add(model);
+                    applied++;
+                }
+            }
+            if (request.paramAsBoolean("refresh", false)) {
+                for (final ElasticsearchPreloadDataModel model : touched) {
+                    model.applyPending();
+                }
+            }
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder
+                .startObject()
+                .field("took", System.currentTimeMillis() - startTime)
+                .field("events", events.size())
+                .field("applied", applied)
+                .endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (final Exception e) {
+            handleErrorRequest(channel, e);
+        }
+    }
 
-                        ElasticsearchPreloadDataModelFactory factory = new ElasticsearchPreloadDataModelFactory(client, json,this);
-                        this.dataModelFactory = factory;
-                        factory.createItemBasedDataModel(null, null, 0,channel,startTime,request);
+    private static RecommenderBuilder batchBuilder(final RestRequest request) {
+        return RecommenderBuilder
+                .builder()
+                .similarity(request.param("similarity"))
+                .neighborhood(request.param("neighborhood"))
+                .neighborhoodNearestN(request.paramAsInt("neighborhoodN", 10))
+                .neighborhoodThreshold((double) request.paramAsFloat("neighborhoodThreshold", 0.1F))
+                .neighborhoodScan(request.param("neighborhoodScan", "co_rated"))
+                .neighborhoodCandidates(request.paramAsInt("neighborhoodCandidates", 0))
+                .fanOutLimits(FanOutLimits.of(request));
+    }
 
-                    } catch (final Exception e) {
+    /**
+     * Starts a {@link PrecomputeAction} job on this node as a task. Answers with
+     * the task ID, to follow or cancel it with {@code _tasks}, unless
+     * {@code wait_for_completion} is set.
+     */
+    private void precompute(final RestRequest request, final NodeClient client, final RestChannel channel) {
+        try {
+            final String index = request.param("index");
+            final String type = request.param("type");
+            if (registry.get(index, type) == null) {
+                renderNotFound(channel, "No preloaded model for " + index + "/" + type);
+                return;
+            }
+            final Map<String, String> params = new HashMap<>();
+            for (final String name : PrecomputeJob.RECOMMENDER_PARAMS) {
+                final String value = request.param(name);
+                if (value != null) {
+                    params.put(name, value);
+                }
+            }
+            final PrecomputeAction.Request precompute = new PrecomputeAction.Request(index, type)
+                    .target(request.param("target"))
+                    .operation(request.param("operation", "user_based_recommend"))
+                    .size(request.paramAsInt("size", 10))
+                    .params(params)
+                    .incremental(request.paramAsBoolean("incremental", false))
+                    .resume(request.paramAsBoolean("resume", true))
+                    .bulkActions(request.paramAsInt("bulk_actions", 1000))
+                    .concurrentRequests(request.paramAsInt("concurrent_requests", 1))
+                    .checkpointInterval(request.paramAsInt("checkpoint_interval", 10000))
+                    .maxFailures(request.paramAsInt("max_failures", 0));
+            final ActionRequestValidationException validation = precompute.validate();
+            if (validation != null) {
+                throw validation;
+            }
+            if (request.paramAsBoolean("wait_for_completion", false)) {
+                client.executeLocally(PrecomputeAction.INSTANCE, precompute, ActionListener.wrap(response -> {
+                    final XContentBuilder builder = JsonXContent.contentBuilder();
+                    response.toXContent(builder, ToXContent.EMPTY_PARAMS);
+                    channel.sendResponse(new BytesRestResponse(OK, builder));
+                }, e -> handleErrorRequest(channel, e)));
+                return;
+            }
+            // nobody waits for the answer, so it ends up in the log
+            final Task task = client.executeLocally(PrecomputeAction.INSTANCE, precompute, ActionListener.wrap(
+                    response -> logger.info("{} done: {} written, {} skipped", precompute, response.written(), response.skipped()),
+                    e -> {
+                        if (!(e instanceof TaskCancelledException)) {
+                            logger.warn(() -> precompute + " failed", e);
+                        }
+                    }));
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder
+                .startObject()
+                .field("acknowledged", true)
+                .field("index", index)
+                .field("type", type)
+                .field("task", client.getLocalNodeId() + ":" + task.getId())
+                .endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (final Exception e) {
+            handleErrorRequest(channel, e);
+        }
+    }
+
+    /**
+     * Builds the precomputed similarity index of a preloaded model from the
+     * generic pool. Its ranges run on threads of their own, one per processor,
+     * since the generic pool is bounded and the build waits for them. The index
+     * is optionally written to the index named by {@code persist}. Answers once
+     * the build is accepted unless {@code wait_for_completion} is set.
+     */
+    private void buildSimilarityIndex(final RestRequest request, final NodeClient client, final RestChannel channel) {
+        try {
+            final ElasticsearchPreloadDataModelFactory factory =
+                    registry.get(request.param("index"), request.param("type"));
+            if (factory == null) {
+                renderNotFound(channel, "No preloaded model for " + request.param("index") + "/" + request.param("type"));
+                return;
+            }
+            final String similarity = request.param("similarity");
+            final int k = request.paramAsInt("k", 20);
+            final String persist = request.param("persist");
+            final boolean wait = request.paramAsBoolean("wait_for_completion", false);
+            client.threadPool().generic().execute(new AbstractRunnable() {
+                @Override
+                public void onFailure(final Exception e) {
+                    logger.error("Failed to build similarity index for " + factory.index() + "/" + factory.type(), e);
+                    if (wait) {
                         handleErrorRequest(channel, e);
                     }
-                    break;
-                case GET:
+                }
+
+                @Override
+                protected void doRun() throws Exception {
+                    final int parallelism = EsExecutors.numberOfProcessors(settings);
+                    final ExecutorService ranges = Executors.newFixedThreadPool(parallelism,
+                            EsExecutors.daemonThreadFactory(settings, "flavor_similarity_index"));
+                    final SimilarityIndex built;
                     try {
-                        final String operation = request.param("operation");
-                        final String index = request.param("index");
-                        final String type = request.param("type");
-                        final long id = request.paramAsLong("id", 0);
-                        final int size = request.paramAsInt("size", 10);
-
-                        final long startTime = System.currentTimeMillis();
-
-                        final RecommenderBuilder builder = RecommenderBuilder
-                                .builder()
-                                .similarity(request.param("similarity"))
-                                .neighborhood(request.param("neighborhood"))
-                                .neighborhoodNearestN(request.paramAsInt("neighborhoodN", 10))
-                                .neighborhoodThreshold((double) request.paramAsFloat("neighborhoodThreshold", 0.1F));
-
-                        if(dataModelFactory == null){
-                            ElasticsearchDynamicDataModelFactory factory = new ElasticsearchDynamicDataModelFactory(client,this);
-                            this.dataModelFactory = factory;
+                        built = factory.buildSimilarityIndex(similarity, k, ranges, parallelism);
+                    } finally {
+                        ranges.shutdown();
+                    }
+                    if (persist == null) {
+                        if (wait) {
+                            renderSimilarityIndex(channel, built, -1);
                         }
-
-                        switch (operation) {
-                            case "similar_items":
-                                dataModelFactory.createItemBasedDataModel(index, type, id, channel, startTime, request);
-                                break;
-                            case "similar_users":
-                            case "user_based_recommend":
-                            case "item_based_recommend":
-                                dataModelFactory.createUserBasedDataModel(index, type, id, channel, startTime, request);
-                                break;
-                            default:
-                                renderNotFound(channel, "Invalid operation: " + operation);
-                                break;
+                        return;
+                    }
+                    new SimilarityIndexWriter(client).write(built, persist, ActionListener.wrap(written -> {
+                        logger.info("Wrote {} to [{}]", built, persist);
+                        if (wait) {
+                            renderSimilarityIndex(channel, built, written);
                         }
+                    }, this::onFailure));
+                }
+            });
+            if (!wait) {
+                final XContentBuilder builder = JsonXContent.contentBuilder();
+                builder
+                    .startObject()
+                    .field("acknowledged", true)
+                    .field("index", factory.index())
+                    .field("type", factory.type())
+                    .endObject();
+                channel.sendResponse(new BytesRestResponse(OK, builder));
+            }
+        } catch (final Exception e) {
+            handleErrorRequest(channel, e);
+        }
+    }
 
-                    } catch (final NoSuchItemException e) {
-                        renderNotFound(channel, e.toString());
-                    } catch (final Exception e) {
+    private static boolean isFactorized(final RestRequest request) {
+        return "factorized_recommend".equals(request.param("operation"))
+                || ("similar_items".equals(request.param("operation")) && request.paramAsBoolean("factorized", false));
+    }
+
+    /**
+     * Trains the factorization of a preloaded model on the generic pool, with
+     * one ALS thread per processor. Answers once training is accepted unless
+     * {@code wait_for_completion} is set.
+     */
+    private void trainFactorization(final RestRequest request, final NodeClient client, final RestChannel channel) {
+        try {
+            final ElasticsearchPreloadDataModelFactory factory =
+                    registry.get(request.param("index"), request.param("type"));
+            if (factory == null) {
+                renderNotFound(channel, "No preloaded model for " + request.param("index") + "/" + request.param("type"));
+                return;
+            }
+            final int features = request.paramAsInt("features", 10);
+            final double lambda = (double) request.paramAsFloat("lambda", 0.065F);
+            final int iterations = request.paramAsInt("iterations", 10);
+            final boolean implicit = request.paramAsBoolean("implicit", false);
+            final double alpha = (double) request.paramAsFloat("alpha", 40F);
+            final boolean wait = request.paramAsBoolean("wait_for_completion", false);
+            if (features <= 0 || iterations <= 0) {
+                throw new InvalidParameterException("features and iterations must be positive.");
+            }
+            client.threadPool().generic().execute(new AbstractRunnable() {
+                @Override
+                public void onFailure(final Exception e) {
+                    logger.error("Failed to train factorization for " + factory.index() + "/" + factory.type(), e);
+                    if (wait) {
                         handleErrorRequest(channel, e);
                     }
-                    break;
-                default:
-                    renderNotFound(channel, "No such action");
-                    break;
+                }
+
+                @Override
+                protected void doRun() throws Exception {
+                    final FactorizedModel trained = factory.trainFactorization(features, lambda, iterations, implicit,
+                            alpha, EsExecutors.numberOfProcessors(settings));
+                    if (wait) {
+                        final XContentBuilder builder = JsonXContent.contentBuilder();
+                        builder.startObject();
+                        renderFactorization(builder, trained);
+                        builder.endObject();
+                        channel.sendResponse(new BytesRestResponse(OK, builder));
+                    }
+                }
+            });
+            if (!wait) {
+                final XContentBuilder builder = JsonXContent.contentBuilder();
+                builder
+                    .startObject()
+                    .field("acknowledged", true)
+                    .field("index", factory.index())
+                    .field("type", factory.type())
+                    .endObject();
+                channel.sendResponse(new BytesRestResponse(OK, builder));
+            }
+        } catch (final Exception e) {
+            handleErrorRequest(channel, e);
+        }
+    }
+
+    private void renderFactorization(final XContentBuilder builder, final FactorizedModel factorization) throws IOException {
+        builder
+            .startObject("factorization")
+            .field("features", factorization.numFeatures())
+            .field("version", factorization.version())
+            .field("model_version", factorization.modelVersion())
+            .field("total_users", factorization.numUsers())
+            .field("total_items", factorization.numItems())
+            .field("memory_in_bytes", factorization.ramBytesUsed())
+            .endObject();
+    }
+
+    private void renderSimilarityIndex(final RestChannel channel, final SimilarityIndex similarityIndex, final int written) {
+        try {
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder.startObject();
+            renderSimilarityIndex(builder, similarityIndex);
+            if (written >= 0) {
+                builder.field("persisted", written);
             }
-        };
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (final Exception e) {
+            handleErrorRequest(channel, e);
+        }
+    }
+
+    private void renderSimilarityIndex(final XContentBuilder builder, final SimilarityIndex similarityIndex) throws IOException {
+        builder
+            .startObject("similarity_index")
+            .field("similarity", similarityIndex.similarity())
+            .field("k", similarityIndex.k())
+            .field("version", similarityIndex.version())
+            .field("model_version", similarityIndex.modelVersion())
+            .field("total_items", similarityIndex.numItems())
+            .field("memory_in_bytes", similarityIndex.ramBytesUsed())
+            .endObject();
+    }
+
+    private synchronized DataModelFactory dynamicDataModelFactory(final NodeClient client, final String engine) {
+        if (engine == null || "scroll".equals(engine)) {
+            if (dynamicDataModelFactory == null) {
+                dynamicDataModelFactory = new ElasticsearchDynamicDataModelFactory(client, this, cache);
+            }
+            return dynamicDataModelFactory;
+        } else if (ElasticsearchAggregationDataModelFactory.NAME.equals(engine)) {
+            if (aggregationDataModelFactory == null) {
+                aggregationDataModelFactory = new ElasticsearchAggregationDataModelFactory(client, this);
+            }
+            return aggregationDataModelFactory;
+        } else if (ElasticsearchCooccurrenceDataModelFactory.NAME.equals(engine)) {
+            if (cooccurrenceDataModelFactory == null) {
+                cooccurrenceDataModelFactory = new ElasticsearchCooccurrenceDataModelFactory(
+                        client, this, dynamicDataModelFactory(client, "scroll"));
+            }
+            return cooccurrenceDataModelFactory;
+        }
+        throw new InvalidParameterException("Unknown engine: " + engine);
+    }
+
+    private void renderResult(final RestChannel channel,
+                              final ResultCache.Result result,
+                              final long startTime,
+                              final Boolean cacheHit) {
+        if (result.items() != null) {
+            renderRecommendedItems(channel, result.items(), startTime, cacheHit);
+        } else {
+            renderUserIds(channel, result.userIds(), startTime, cacheHit);
+        }
+    }
+
+    private void renderCache(final XContentBuilder builder, final Boolean cacheHit) throws IOException {
+        if (cacheHit == null) {
+            return;
+        }
+        final Cache.CacheStats stats = resultCache.stats();
+        builder
+            .startObject("cache")
+            .field("hit", cacheHit.booleanValue())
+            .field("hits", stats.getHits())
+            .field("misses", stats.getMisses())
+            .endObject();
     }
 
     private void renderRecommendedItems(final RestChannel channel,
                                         final List<RecommendedItem> items,
-                                        final long startTime) {
+                                        final long startTime,
+                                        final Boolean cacheHit) {
         try {
             final XContentBuilder builder = JsonXContent.contentBuilder();
             builder
                 .startObject()
-                .field("took", System.currentTimeMillis() - startTime)
+                .field("took", System.currentTimeMillis() - startTime);
+            renderCache(builder, cacheHit);
+            builder
                 .startObject("hits")
                 .field("total", items.size())
                 .startArray("hits");
@@ -135,12 +648,15 @@ public class FlavorRestAction extends BaseRestHandler {
 
     private void renderUserIds(final RestChannel channel,
                                final long[] userIds,
-                               final long startTime) {
+                               final long startTime,
+                               final Boolean cacheHit) {
         try {
             final XContentBuilder builder = JsonXContent.contentBuilder();
             builder
                 .startObject()
-                .field("took", System.currentTimeMillis() - startTime)
+                .field("took", System.currentTimeMillis() - startTime);
+            renderCache(builder, cacheHit);
+            builder
                 .startObject("hits")
                 .field("total", userIds.length)
                 .startArray("hits");
@@ -152,6 +668,7 @@ public class FlavorRestAction extends BaseRestHandler {
             }
             builder
                 .endArray()
+                .endObject()
                 .endObject();
             channel.sendResponse(new BytesRestResponse(OK, builder));
 
@@ -190,9 +707,108 @@ public class FlavorRestAction extends BaseRestHandler {
         }
     }
 
-    private void handleErrorRequest(final RestChannel channel, final Exception e) {
+    private void renderPreloaded(final RestChannel channel, final List<ElasticsearchPreloadDataModelFactory> factories) {
+        try {
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder
+                .startObject()
+                .field("memory_budget_in_bytes", registry.budget())
+                .field("memory_used_in_bytes", registry.ramBytesUsed())
+                .startArray("models");
+            for (final ElasticsearchPreloadDataModelFactory factory : factories) {
+                final DataModel dataModel = factory.dataModel();
+                builder
+                    .startObject()
+                    .field("index", factory.index())
+                    .field("type", factory.type())
+                    .field("preloadDataModel", String.valueOf(dataModel))
+                    .field("total_users", dataModel == null ? 0 : dataModel.getNumUsers())
+                    .field("total_items", dataModel == null ? 0 : dataModel.getNumItems())
+                    .field("memory_in_bytes", factory.ramBytesUsed());
+                final SimilarityIndex similarityIndex = factory.similarityIndex();
+                if (similarityIndex != null) {
+                    renderSimilarityIndex(builder, similarityIndex);
+                    builder.field("similarity_index_current", dataModel instanceof ElasticsearchPreloadDataModel
+                            && similarityIndex.modelVersion() == ((ElasticsearchPreloadDataModel) dataModel).baseVersion());
+                }
+                final FactorizedModel factorization = factory.factorization();
+                if (factorization != null) {
+                    renderFactorization(builder, factorization);
+                    builder.field("factorization_current", dataModel instanceof ElasticsearchPreloadDataModel
+                            && factorization.modelVersion() == ((ElasticsearchPreloadDataModel) dataModel).version());
+                }
+                builder.startArray("lsh_indices");
+                for (final LshIndex lshIndex : factory.lshIndices()) {
+                    builder
+                        .startObject()
+                        .field("kind", lshIndex.kind().name().toLowerCase(Locale.ROOT))
+                        .field("bands", lshIndex.bands())
+                        .field("rows", lshIndex.rows())
+                        .field("version", lshIndex.version())
+                        .field("model_version", lshIndex.modelVersion())
+                        .field("memory_in_bytes", lshIndex.ramBytesUsed())
+                        .endObject();
+                }
+                builder.endArray();
+                builder.endObject();
+            }
+            builder
+                .endArray()
+                .endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (final Exception e) {
+            handleErrorRequest(channel, e);
+        }
+    }
+
+    private void renderStats(final RestChannel channel) {
+        try {
+            final Cache.CacheStats stats = cache.stats();
+            final long lookups = stats.getHits() + stats.getMisses();
+            final Cache.CacheStats resultStats = resultCache.stats();
+            final long resultLookups = resultStats.getHits() + resultStats.getMisses();
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder
+                .startObject()
+                .startObject("cache")
+                .field("entries", cache.count())
+                .field("memory_size_in_bytes", cache.ramBytesUsed())
+                .field("hits", stats.getHits())
+                .field("misses", stats.getMisses())
+                .field("evictions", stats.getEvictions())
+                .field("hit_rate", lookups == 0 ? 0.0 : (double) stats.getHits() / lookups)
+                .endObject()
+                .startObject("result_cache")
+                .field("entries", resultCache.count())
+                .field("memory_size_in_bytes", resultCache.ramBytesUsed())
+                .field("hits", resultStats.getHits())
+                .field("misses", resultStats.getMisses())
+                .field("evictions", resultStats.getEvictions())
+                .field("hit_rate", resultLookups == 0 ? 0.0 : (double) resultStats.getHits() / resultLookups)
+                .endObject()
+                .startObject("coalescing")
+                .field("in_flight", coalescer.inFlight())
+                .field("coalesced", coalescer.coalesced())
+                .endObject()
+                .startObject("preload")
+                .field("models", registry.list().size())
+                .field("memory_budget_in_bytes", registry.budget())
+                .field("memory_used_in_bytes", registry.ramBytesUsed())
+                .endObject()
+                .endObject();
+            channel.sendResponse(new BytesRestResponse(OK, builder));
+        } catch (final Exception e) {
+            handleErrorRequest(channel, e);
+        }
+    }
+
+    protected void handleErrorRequest(final RestChannel channel, final Exception e) {
         try {
-            channel.sendResponse(new BytesRestResponse(channel, e));
+            if (channel instanceof KeyedRestChannel) {
+                ((KeyedRestChannel) channel).sendFailure(e);
+            } else {
+                channel.sendResponse(new BytesRestResponse(channel, e));
+            }
         } catch (final IOException e1) {
             logger.error("Failed to send a failure response.", e1);
         }
@@ -203,6 +819,15 @@ public class FlavorRestAction extends BaseRestHandler {
         return "flavor";
     }
 
+    /**
+     * Accepts {@code application/x-ndjson} bodies for batches and preference
+     * events.
+     */
+    @Override
+    public boolean supportsContentStream() {
+        return true;
+    }
+
     private static final Set<String> RESPONSE_PARAMS;
 
     static {
@@ -216,6 +841,36 @@ public class FlavorRestAction extends BaseRestHandler {
         responseParams.add("neighborhood");
         responseParams.add("neighborhoodN");
         responseParams.add("neighborhoodThreshold");
+        responseParams.add("fetch");
+        responseParams.add("engine");
+        responseParams.add("candidates");
+        responseParams.add("targetItems");
+        responseParams.add("chunkSize");
+        responseParams.add("concurrency");
+        responseParams.add("cache");
+        responseParams.add("maxItemsPerUser");
+        responseParams.add("maxUsersPerItem");
+        responseParams.add("maxCandidateItems");
+        responseParams.add("precomputed");
+        responseParams.add("k");
+        responseParams.add("persist");
+        responseParams.add("wait_for_completion");
+        responseParams.add("factorized");
+        responseParams.add("approximate");
+        responseParams.add("neighborhoodScan");
+        responseParams.add("neighborhoodCandidates");
+        responseParams.add("features");
+        responseParams.add("lambda");
+        responseParams.add("iterations");
+        responseParams.add("implicit");
+        responseParams.add("alpha");
+        responseParams.add("target");
+        responseParams.add("incremental");
+        responseParams.add("resume");
+        responseParams.add("bulk_actions");
+        responseParams.add("concurrent_requests");
+        responseParams.add("checkpoint_interval");
+        responseParams.add("refresh");
         RESPONSE_PARAMS = Collections.unmodifiableSet(responseParams);
     }
 
@@ -225,6 +880,20 @@ public class FlavorRestAction extends BaseRestHandler {
     }
 
     protected void similar_items(DataModel dataModelFromUserIds, RestRequest request, RestChannel channel, long startTime) throws TasteException {
+        similar_items(dataModelFromUserIds, null, null, request, channel, startTime);
+    }
+
+    /**
+     * Same as above, serving {@code similar_items} and {@code item_based_recommend}
+     * from {@code similarityIndex} and taking recommenders from {@code recommenders}
+     * when they are not {@code null}.
+     */
+    protected void similar_items(DataModel dataModelFromUserIds,
+                                 SimilarityIndex similarityIndex,
+                                 RecommenderCache recommenders,
+                                 RestRequest request,
+                                 RestChannel channel,
+                                 long startTime) throws TasteException {
 
         final String operation = request.param("operation");
         final String index = request.param("index");
@@ -237,45 +906,153 @@ public class FlavorRestAction extends BaseRestHandler {
                 .similarity(request.param("similarity"))
                 .neighborhood(request.param("neighborhood"))
                 .neighborhoodNearestN(request.paramAsInt("neighborhoodN", 10))
-                .neighborhoodThreshold((double) request.paramAsFloat("neighborhoodThreshold", 0.1F));
+                .neighborhoodThreshold((double) request.paramAsFloat("neighborhoodThreshold", 0.1F))
+                .neighborhoodScan(request.param("neighborhoodScan", recommenders != null ? "co_rated" : "all"))
+                .neighborhoodCandidates(request.paramAsInt("neighborhoodCandidates", 0))
+                .fanOutLimits(FanOutLimits.of(request));
 
 
-        if (operation.equals("similar_items")) {
+        final ResultCache.Result result;
+        if (operation.equals("similar_items") && similarityIndex != null) {
+            result = new ResultCache.Result(similarityIndex.mostSimilarItems(id, size));
+
+        } else if (operation.equals("similar_items")) {
 
-            ItemBasedRecommender recommender = builder
-                    .dataModel(dataModelFromUserIds)
-                    .itemBasedRecommender();
+            ItemBasedRecommender recommender = recommenders != null
+                    ? recommenders.itemBased(builder)
+                    : builder.dataModel(dataModelFromUserIds).itemBasedRecommender();
 
-            List<RecommendedItem> items = recommender.mostSimilarItems(id, size);
-            renderRecommendedItems(channel, items, startTime);
+            result = new ResultCache.Result(recommender.mostSimilarItems(id, size));
 
         } else if (operation.equals("similar_users")) {
-            UserBasedRecommender recommender = builder
-                    .dataModel(dataModelFromUserIds)
-                    .userBasedRecommender();
+            UserBasedRecommender recommender = recommenders != null
+                    ? recommenders.userBased(builder)
+                    : builder.dataModel(dataModelFromUserIds).userBasedRecommender();
 
-            long[] userIds = recommender.mostSimilarUserIDs(id, size);
-            renderUserIds(channel, userIds, startTime);
+            result = new ResultCache.Result(recommender.mostSimilarUserIDs(id, size));
 
         } else if (operation.equals("user_based_recommend")) {
-            UserBasedRecommender recommender = builder
-                    .dataModel(dataModelFromUserIds)
-                    .userBasedRecommender();
-
-            List<RecommendedItem> items = recommender.recommend(id, size);
-            renderRecommendedItems(channel, items, startTime);
+            UserBasedRecommender recommender = recommenders != null
+                    ? recommenders.userBased(builder)
+                    : builder.dataModel(dataModelFromUserIds).userBasedRecommender();
 
+            result = new ResultCache.Result(recommender.recommend(id, size));
 
         } else if (operation.equals("item_based_recommend")) {
-            ItemBasedRecommender recommender = builder
-                    .dataModel(dataModelFromUserIds)
-                    .itemBasedRecommender();
+            builder.similarityIndex(similarityIndex).parallelScorer(scorer);
+            ItemBasedRecommender recommender = recommenders != null
+                    ? recommenders.itemBased(builder)
+                    : builder.dataModel(dataModelFromUserIds).itemBasedRecommender();
 
-            List<RecommendedItem> items = recommender.recommend(id, size);
-            renderRecommendedItems(channel, items, startTime);
+            result = new ResultCache.Result(recommender.recommend(id, size));
 
         } else {
             renderNotFound(channel, "Invalid operation: " + operation);
+            return;
+        }
+        respond(channel, result, startTime);
+    }
+
+    /**
+     * Serves {@code factorized_recommend}, excluding the items the user already
+     * rated in {@code dataModel}, and {@code similar_items} with
+     * {@code factorized=true} from {@code factorization}.
+     */
+    protected void factorized(DataModel dataModel,
+                              FactorizedModel factorization,
+                              RestRequest request,
+                              RestChannel channel,
+                              long startTime) throws TasteException {
+        final String operation = request.param("operation");
+        final long id = request.paramAsLong("id", 0);
+        final int size = request.paramAsInt("size", 10);
+        if (factorization == null) {
+            renderNotFound(channel, "No factorization for " + request.param("index") + "/" + request.param("type"));
+            return;
+        }
+
+        final ResultCache.Result result;
+        if (operation.equals("factorized_recommend")) {
+            FastIDSet rated;
+            try {
+                rated = dataModel.getItemIDsFromUser(id);
+            } catch (final NoSuchUserException e) {
+                rated = null;
+            }
+            result = new ResultCache.Result(factorization.recommend(id, size, rated));
+
+        } else if (operation.equals("similar_items")) {
+            result = new ResultCache.Result(factorization.mostSimilarItems(id, size));
+
+        } else {
+            renderNotFound(channel, "Invalid operation: " + operation);
+            return;
+        }
+        respond(channel, result, startTime);
+    }
+
+    /**
+     * Serves {@code similar_items} and {@code similar_users} with
+     * {@code approximate=true}: candidates come from the buckets of
+     * {@code lshIndex} and are ranked with the exact similarity on the served
+     * model.
+     */
+    protected void approximate(DataModel dataModel,
+                               LshIndex lshIndex,
+                               RestRequest request,
+                               RestChannel channel,
+                               long startTime) throws TasteException {
+        final String operation = request.param("operation");
+        final long id = request.paramAsLong("id", 0);
+        final int size = request.paramAsInt("size", 10);
+        final DataModel current = dataModel instanceof ElasticsearchPreloadDataModel
+                ? ((ElasticsearchPreloadDataModel) dataModel).delegate()
+                : dataModel;
+        final RecommenderBuilder builder = RecommenderBuilder
+                .builder()
+                .dataModel(current)
+                .similarity(request.param("similarity"));
+
+        final ResultCache.Result result;
+        if (operation.equals("similar_items")) {
+            // unknown items are reported as for the exact path
+            current.getPreferencesForItem(id);
+            result = new ResultCache.Result(lshIndex.mostSimilarItems(id, size, builder.itemSimilarity()));
+
+        } else if (operation.equals("similar_users")) {
+            current.getPreferencesFromUser(id);
+            final UserSimilarity similarity = builder.userSimilarity();
+            similarity.setPreferenceInferrer(new AveragingPreferenceInferrer(current));
+            result = new ResultCache.Result(lshIndex.mostSimilarUserIDs(id, size, similarity));
+
+        } else {
+            renderNotFound(channel, "Invalid operation: " + operation);
+            return;
+        }
+        respond(channel, result, startTime);
+    }
+
+    /**
+     * Serves {@code similar_items} and {@code similar_users} ranked by
+     * {@link ElasticsearchCooccurrenceDataModelFactory} from shard counts.
+     */
+    protected void cooccurrence(final ResultCache.Result result, final RestChannel channel, final long startTime) {
+        respond(channel, result, startTime);
+    }
+
+    private void respond(final RestChannel channel, final ResultCache.Result result, final long startTime) {
+        if (channel instanceof KeyedRestChannel) {
+            final KeyedRestChannel keyed = (KeyedRestChannel) channel;
+            final Boolean cacheHit = keyed.cache() ? Boolean.FALSE : null;
+            if (keyed.cache()) {
+                resultCache.put(keyed.key(), result);
+            }
+            for (final RequestCoalescer.Waiter waiter : keyed.complete()) {
+                renderResult(waiter.channel(), result, waiter.startTime(), cacheHit);
+            }
+            renderResult(channel, result, startTime, cacheHit);
+        } else {
+            renderResult(channel, result, startTime, null);
         }
     }
 }
@@ -0,0 +1,122 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+
+/**
+ * Channel of a request leading the computation of {@link #key()} in the
+ * {@link RequestCoalescer}. Its result is stored in the {@link ResultCache} when
+ * {@link #cache()} is set. A failure is sent with {@link #sendFailure(Exception)},
+ * which builds the error response of every waiting request on its own channel;
+ * any other response is also sent to them as is. Everything else is delegated to
+ * the original channel.
+ */
+public class KeyedRestChannel implements RestChannel {
+    private final RestChannel delegate;
+    private final String key;
+    private final boolean cache;
+    private final RequestCoalescer coalescer;
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    public KeyedRestChannel(final RestChannel delegate,
+                            final String key,
+                            final boolean cache,
+                            final RequestCoalescer coalescer) {
+        this.delegate = delegate;
+        this.key = key;
+        this.cache = cache;
+        this.coalescer = coalescer;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public boolean cache() {
+        return cache;
+    }
+
+    /**
+     * Ends the flight of this request once.
+     *
+     * @return the requests waiting for its result
+     */
+    public List<RequestCoalescer.Waiter> complete() {
+        if (completed.compareAndSet(false, true)) {
+            return coalescer.complete(key);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public XContentBuilder newBuilder() throws IOException {
+        return delegate.newBuilder();
+    }
+
+    @Override
+    public XContentBuilder newErrorBuilder() throws IOException {
+        return delegate.newErrorBuilder();
+    }
+
+    @Override
+    public XContentBuilder newBuilder(final XContentType xContentType, final boolean useFiltering) throws IOException {
+        return delegate.newBuilder(xContentType, useFiltering);
+    }
+
+    @Override
+    public BytesStreamOutput bytesOutput() {
+        return delegate.bytesOutput();
+    }
+
+    @Override
+    public RestRequest request() {
+        return delegate.request();
+    }
+
+    @Override
+    public boolean detailedErrorsEnabled() {
+        return delegate.detailedErrorsEnabled();
+    }
+
+    @Override
+    public void sendResponse(final RestResponse response) {
+        for (final RequestCoalescer.Waiter waiter : complete()) {
+            waiter.channel().sendResponse(response);
+        }
+        delegate.sendResponse(response);
+    }
+
+    /**
+     * Sends {@code e} to this request and to the requests waiting for it. Like a
+     * result, each error response is built from its own channel, so its format
+     * and detail follow that request's parameters.
+     */
+    public void sendFailure(final Exception e) throws IOException {
+        IOException failure = null;
+        for (final RequestCoalescer.Waiter waiter : complete()) {
+            try {
+                waiter.channel().sendResponse(new BytesRestResponse(waiter.channel(), e));
+            } catch (final IOException inner) {
+                if (failure == null) {
+                    failure = inner;
+                } else {
+                    failure.addSuppressed(inner);
+                }
+            }
+        }
+        delegate.sendResponse(new BytesRestResponse(delegate, e));
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+/**
+ * Banded locality-sensitive hashing of the users and items of a preloaded
+ * model. Each row gets {@code bands * rows} hashes, and two rows are
+ * candidates when all {@code rows} hashes of at least one band agree. More
+ * bands raise recall; more rows per band shrink the buckets.
+ *
+ * {@link Kind#MIN_HASH} signatures approximate the Jaccard similarity of the
+ * rated sets, for Tanimoto and LogLikelihood. {@link Kind#HYPERPLANE}
+ * signatures are the signs of random ±1 projections of the mean-centered
+ * values, approximating cosine, for Pearson and Euclidean.
+ *
+ * Candidates are re-ranked with the exact similarity, so results are exact
+ * scores for a possibly incomplete set of neighbors. Rows are updated in place
+ * under a write lock; queries take the read lock.
+ */
+public class LshIndex implements Accountable {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    // band keys and bucket entry per row and band, with map overhead
+    private static final long BYTES_PER_BAND = 40;
+
+    public enum Kind {
+        MIN_HASH(4), HYPERPLANE(12);
+
+        private final int defaultRows;
+
+        Kind(final int defaultRows) {
+            this.defaultRows = defaultRows;
+        }
+
+        public int defaultRows() {
+            return defaultRows;
+        }
+
+        /** The signatures that approximate {@code metric}. */
+        public static Kind of(final CsrSimilarity.Metric metric) {
+            switch (metric) {
+                case TANIMOTO:
+                case LOG_LIKELIHOOD:
+                    return MIN_HASH;
+                default:
+                    return HYPERPLANE;
+            }
+        }
+    }
+
+    private final Kind kind;
+    private final int bands;
+    private final int rows;
+    private final long[] seeds;
+    private final Side users;
+    private final Side items;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long modelVersion;
+    private volatile long version;
+
+    private LshIndex(final Kind kind, final int bands, final int rows) {
+        if (bands <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("bands and rows must be positive.");
+        }
+        if (kind == Kind.HYPERPLANE && rows > 64) {
+            throw new IllegalArgumentException("rows must be at most 64 for hyperplane signatures.");
+        }
+        this.kind = kind;
+        this.bands = bands;
+        this.rows = rows;
+        this.seeds = new long[bands * rows];
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int h = 0; h < seeds.length; h++) {
+            seed = mix(seed + h);
+            seeds[h] = seed;
+        }
+        this.users = new Side(bands);
+        this.items = new Side(bands);
+    }
+
+    /** Hashes every user and item of {@code dataModel}. */
+    public static LshIndex build(final DataModel dataModel,
+                                 final Kind kind,
+                                 final int bands,
+                                 final int rows,
+                                 final long modelVersion) throws TasteException {
+        final LshIndex index = new LshIndex(kind, bands, rows);
+        final LongPrimitiveIterator userIds = dataModel.getUserIDs();
+        while (userIds.hasNext()) {
+            final long userId = userIds.nextLong();
+            index.put(index.users, userId, dataModel.getPreferencesFromUser(userId));
+        }
+        final LongPrimitiveIterator itemIds = dataModel.getItemIDs();
+        while (itemIds.hasNext()) {
+            final long itemId = itemIds.nextLong();
+            index.put(index.items, itemId, dataModel.getPreferencesForItem(itemId));
+        }
+        index.modelVersion = modelVersion;
+        index.version = VERSIONS.incrementAndGet();
+        return index;
+    }
+
+    /**
+     * Rehashes {@code userIds} and {@code itemIds} from {@code dataModel},
+     * which is the model at {@code modelVersion}. IDs no longer in the model
+     * are removed.
+     */
+    public void update(final DataModel dataModel,
+                       final FastIDSet userIds,
+                       final FastIDSet itemIds,
+                       final long modelVersion) throws TasteException {
+        lock.writeLock().lock();
+        try {
+            final LongPrimitiveIterator userIt = userIds.iterator();
+            while (userIt.hasNext()) {
+                final long userId = userIt.nextLong();
+                PreferenceArray prefs;
+                try {
+                    prefs = dataModel.getPreferencesFromUser(userId);
+                } catch (final NoSuchUserException e) {
+                    prefs = null;
+                }
+                put(users, userId, prefs);
+            }
+            final LongPrimitiveIterator itemIt = itemIds.iterator();
+            while (itemIt.hasNext()) {
+                final long itemId = itemIt.nextLong();
+                PreferenceArray prefs;
+                try {
+                    prefs = dataModel.getPreferencesForItem(itemId);
+                } catch (final NoSuchItemException e) {
+                    prefs = null;
+                }
+                put(items, itemId, prefs);
+            }
+            this.modelVersion = modelVersion;
+            this.version = VERSIONS.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public int bands() {
+        return bands;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    /** Version of the preloaded model the index reflects. */
+    public long modelVersion() {
+        return modelVersion;
+    }
+
+    /** Changes on every build and update, unique across the indices of this node. */
+    public long version() {
+        return version;
+    }
+
+    /** Users sharing a bucket with {@code userId}, without itself. */
+    public long[] candidateUsers(final long userId) {
+        return candidates(users, userId);
+    }
+
+    /** Items sharing a bucket with {@code itemId}, without itself. */
+    public long[] candidateItems(final long itemId) {
+        return candidates(items, itemId);
+    }
+
+    /** The {@code howMany} candidates most similar to {@code itemId} under {@code similarity}, best first. */
+    public List<RecommendedItem> mostSimilarItems(final long itemId,
+                                                  final int howMany,
+                                                  final ItemSimilarity similarity) throws TasteException {
+        final long[] candidates = candidateItems(itemId);
+        final double[] values = similarity.itemSimilarities(itemId, candidates);
+        final int[] order = best(values, howMany);
+        final List<RecommendedItem> result = new ArrayList<RecommendedItem>(order.length);
+        for (final int c : order) {
+            result.add(new GenericRecommendedItem(candidates[c], (float) values[c]));
+        }
+        return result;
+    }
+
+    /** The {@code howMany} candidates most similar to {@code userId} under {@code similarity}, best first. */
+    public long[] mostSimilarUserIDs(final long userId,
+                                     final int howMany,
+                                     final UserSimilarity similarity) throws TasteException {
+        final long[] candidates = candidateUsers(userId);
+        final double[] values = new double[candidates.length];
+        for (int c = 0; c < candidates.length; c++) {
+            values[c] = similarity.userSimilarity(userId, candidates[c]);
+        }
+        final int[] order = best(values, howMany);
+        final long[] result = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = candidates[order[i]];
+        }
+        return result;
+    }
+
+    /** Positions of the {@code howMany} largest non-NaN values, largest first. */
+    private static int[] best(final double[] values, final int howMany) {
+        int count = 0;
+        final Integer[] positions = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (!Double.isNaN(values[i])) {
+                positions[count++] = i;
+            }
+        }
+        Arrays.sort(positions, 0, count, (a, b) -> Double.compare(values[b], values[a]));
+        final int[] result = new int[Math.max(0, Math.min(howMany, count))];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = positions[i];
+        }
+        return result;
+    }
+
+    private long[] candidates(final Side side, final long id) {
+        lock.readLock().lock();
+        try {
+            final long[] keys = side.keys.get(id);
+            if (keys == null) {
+                return new long[0];
+            }
+            final FastIDSet candidates = new FastIDSet();
+            for (int b = 0; b < bands; b++) {
+                final FastIDSet bucket = side.buckets.get(b).get(keys[b]);
+                if (bucket != null) {
+                    candidates.addAll(bucket);
+                }
+            }
+            candidates.remove(id);
+            return candidates.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Replaces the band keys of {@code id}; a {@code null} or empty row removes it. */
+    private void put(final Side side, final long id, final PreferenceArray prefs) {
+        final long[] old = side.keys.remove(id);
+        if (old != null) {
+            for (int b = 0; b < bands; b++) {
+                final FastIDSet bucket = side.buckets.get(b).get(old[b]);
+                bucket.remove(id);
+                if (bucket.isEmpty()) {
+                    side.buckets.get(b).remove(old[b]);
+                }
+            }
+        }
+        if (prefs == null || prefs.length() == 0) {
+            return;
+        }
+        final long[] keys = kind == Kind.MIN_HASH ? minHashKeys(prefs) : hyperplaneKeys(prefs);
+        side.keys.put(id, keys);
+        for (int b = 0; b < bands; b++) {
+            FastIDSet bucket = side.buckets.get(b).get(keys[b]);
+            if (bucket == null) {
+                bucket = new FastIDSet();
+                side.buckets.get(b).put(keys[b], bucket);
+            }
+            bucket.add(id);
+        }
+    }
+
+    private long[] minHashKeys(final PreferenceArray prefs) {
+        final long[] mins = new long[seeds.length];
+        Arrays.fill(mins, Long.MAX_VALUE);
+        // item IDs of a user row, user IDs of an item row
+        final long[] ids = prefs.getIDs();
+        for (int i = 0; i < ids.length; i++) {
+            final long id = ids[i];
+            for (int h = 0; h < seeds.length; h++) {
+                final long value = mix(id ^ seeds[h]);
+                if (value < mins[h]) {
+                    mins[h] = value;
+                }
+            }
+        }
+        final long[] keys = new long[bands];
+        for (int b = 0; b < bands; b++) {
+            long key = b;
+            for (int r = 0; r < rows; r++) {
+                key = mix(key ^ mins[b * rows + r]);
+            }
+            keys[b] = key;
+        }
+        return keys;
+    }
+
+    private long[] hyperplaneKeys(final PreferenceArray prefs) {
+        double mean = 0;
+        for (int i = 0; i < prefs.length(); i++) {
+            mean += prefs.getValue(i);
+        }
+        mean /= prefs.length();
+        final double[] dots = new double[seeds.length];
+        final long[] ids = prefs.getIDs();
+        for (int i = 0; i < ids.length; i++) {
+            final long id = ids[i];
+            double value = prefs.getValue(i) - mean;
+            if (value == 0) {
+                // keeps rows with all-equal values, as for unary data, hashable
+                value = 1;
+            }
+            for (int h = 0; h < seeds.length; h++) {
+                dots[h] += (mix(id ^ seeds[h]) & 1) == 0 ? value : -value;
+            }
+        }
+        final long[] keys = new long[bands];
+        for (int b = 0; b < bands; b++) {
+            long bits = 0;
+            for (int r = 0; r < rows; r++) {
+                if (dots[b * rows + r] >= 0) {
+                    bits |= 1L << r;
+                }
+            }
+            keys[b] = mix(bits ^ ((long) b << 56));
+        }
+        return keys;
+    }
+
+    /** SplitMix64 finalizer. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        lock.readLock().lock();
+        try {
+            return ((long) users.keys.size() + items.keys.size()) * bands * BYTES_PER_BAND;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LshIndex[kind:" + kind + " bands:" + bands + " rows:" + rows + " users:" + users.keys.size()
+                + " items:" + items.keys.size() + " version:" + version + " modelVersion:" + modelVersion + "]";
+    }
+
+    private static class Side {
+        private final FastByIDMap<long[]> keys = new FastByIDMap<long[]>();
+        private final List<FastByIDMap<FastIDSet>> buckets;
+
+        Side(final int bands) {
+            this.buckets = new ArrayList<>(bands);
+            for (int b = 0; b < bands; b++) {
+                buckets.add(new FastByIDMap<FastIDSet>());
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Read-only {@link org.apache.mahout.cf.taste.model.DataModel} served from a
+ * memory-mapped {@link DataModelSnapshot}. Buffers are only read with absolute
+ * gets, so one instance is safe to share between threads.
+ */
+public class MappedDataModel extends AbstractCsrDataModel {
+    private static final long serialVersionUID = 1L;
+
+    private final DataModelSnapshot.Metadata metadata;
+    private final LongBuffer userIds;
+    private final IntBuffer userOffsets;
+    private final IntBuffer userItems;
+    private final FloatBuffer userValues;
+    private final LongBuffer itemIds;
+    private final IntBuffer itemOffsets;
+    private final IntBuffer itemUsers;
+    private final FloatBuffer itemValues;
+
+    MappedDataModel(final DataModelSnapshot.Metadata metadata,
+                    final float minPreference,
+                    final float maxPreference,
+                    final LongBuffer userIds,
+                    final IntBuffer userOffsets,
+                    final IntBuffer userItems,
+                    final FloatBuffer userValues,
+                    final LongBuffer itemIds,
+                    final IntBuffer itemOffsets,
+                    final IntBuffer itemUsers,
+                    final FloatBuffer itemValues) {
+        this.metadata = metadata;
+        this.userIds = userIds;
+        this.userOffsets = userOffsets;
+        this.userItems = userItems;
+        this.userValues = userValues;
+        this.itemIds = itemIds;
+        this.itemOffsets = itemOffsets;
+        this.itemUsers = itemUsers;
+        this.itemValues = itemValues;
+        setMinPreference(minPreference);
+        setMaxPreference(maxPreference);
+    }
+
+    public DataModelSnapshot.Metadata metadata() {
+        return metadata;
+    }
+
+    @Override
+    public long userIdAt(final int user) {
+        return userIds.get(user);
+    }
+
+    @Override
+    public long itemIdAt(final int item) {
+        return itemIds.get(item);
+    }
+
+    @Override
+    public int userRowStart(final int user) {
+        return userOffsets.get(user);
+    }
+
+    @Override
+    public int itemAt(final int position) {
+        return userItems.get(position);
+    }
+
+    @Override
+    public float userValueAt(final int position) {
+        return userValues.get(position);
+    }
+
+    @Override
+    public int itemRowStart(final int item) {
+        return itemOffsets.get(item);
+    }
+
+    @Override
+    public int userAt(final int position) {
+        return itemUsers.get(position);
+    }
+
+    @Override
+    public float itemValueAt(final int position) {
+        return itemValues.get(position);
+    }
+
+    @Override
+    public int getNumItems() {
+        return itemIds.limit();
+    }
+
+    @Override
+    public int getNumUsers() {
+        return userIds.limit();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedDataModel[index:" + metadata.index() + " type:" + metadata.type()
+                + " users:" + getNumUsers() + " items:" + getNumItems() + "]";
+    }
+}
@@ -0,0 +1,423 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Read-only {@link DataModel} serving a loaded model with recent changes on
+ * top. Every changed user and item gets its whole new row, sorted like the
+ * rows of the base model; an empty row hides a user or item of the base.
+ *
+ * Instances are never modified: {@link #apply(DataModel, List)} copies the
+ * rows of the previous overlay, so applying a batch costs the size of the
+ * overlay and the changed rows, not of the model, and readers need no lock.
+ */
+public class OverlayDataModel extends AbstractDataModel {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A preference set to {@code value}, or removed.
+     */
+    public static class Change {
+        private final long userId;
+        private final long itemId;
+        private final float value;
+        private final boolean remove;
+
+        private Change(final long userId, final long itemId, final float value, final boolean remove) {
+            this.userId = userId;
+            this.itemId = itemId;
+            this.value = value;
+            this.remove = remove;
+        }
+
+        public static Change set(final long userId, final long itemId, final float value) {
+            return new Change(userId, itemId, value, false);
+        }
+
+        public static Change remove(final long userId, final long itemId) {
+            return new Change(userId, itemId, Float.NaN, true);
+        }
+
+        public long userId() {
+            return userId;
+        }
+
+        public long itemId() {
+            return itemId;
+        }
+
+        public float value() {
+            return value;
+        }
+
+        public boolean isRemove() {
+            return remove;
+        }
+    }
+
+    private final DataModel base;
+    private final FastByIDMap<PreferenceArray> users;
+    private final FastByIDMap<PreferenceArray> items;
+    // changed rows that exist only here, and rows of the base that are hidden
+    private final FastIDSet addedUsers;
+    private final FastIDSet removedUsers;
+    private final FastIDSet addedItems;
+    private final FastIDSet removedItems;
+
+    private OverlayDataModel(final DataModel base,
+                             final FastByIDMap<PreferenceArray> users,
+                             final FastByIDMap<PreferenceArray> items,
+                             final FastIDSet addedUsers,
+                             final FastIDSet removedUsers,
+                             final FastIDSet addedItems,
+                             final FastIDSet removedItems) {
+        this.base = base;
+        this.users = users;
+        this.items = items;
+        this.addedUsers = addedUsers;
+        this.removedUsers = removedUsers;
+        this.addedItems = addedItems;
+        this.removedItems = removedItems;
+        setMinPreference(base.getMinPreference());
+        setMaxPreference(base.getMaxPreference());
+    }
+
+    /**
+     * {@code current} with {@code changes} applied in order. When
+     * {@code current} is an overlay, the result is on the same base.
+     */
+    public static OverlayDataModel apply(final DataModel current, final List<Change> changes) throws TasteException {
+        final OverlayDataModel previous = current instanceof OverlayDataModel ? (OverlayDataModel) current : null;
+        final DataModel base = previous != null ? previous.base : current;
+
+        // new values per row, NaN for removed preferences, in the order of the changes
+        final FastByIDMap<FastByIDMap<Float>> userChanges = new FastByIDMap<>();
+        final FastByIDMap<FastByIDMap<Float>> itemChanges = new FastByIDMap<>();
+        for (final Change change : changes) {
+            final float value = change.isRemove() ? Float.NaN : change.value();
+            row(userChanges, change.userId()).put(change.itemId(), value);
+            row(itemChanges, change.itemId()).put(change.userId(), value);
+        }
+
+        final FastByIDMap<PreferenceArray> users = copy(previous != null ? previous.users : null, userChanges.size());
+        final FastIDSet addedUsers = copy(previous != null ? previous.addedUsers : null);
+        final FastIDSet removedUsers = copy(previous != null ? previous.removedUsers : null);
+        for (final Map.Entry<Long, FastByIDMap<Float>> entry : userChanges.entrySet()) {
+            final long userId = entry.getKey();
+            final PreferenceArray row = merge(userId, userRow(current, userId), entry.getValue(), true);
+            users.put(userId, row);
+            track(userId, row.length() > 0, hasUser(base, userId), addedUsers, removedUsers);
+        }
+
+        final FastByIDMap<PreferenceArray> items = copy(previous != null ? previous.items : null, itemChanges.size());
+        final FastIDSet addedItems = copy(previous != null ? previous.addedItems : null);
+        final FastIDSet removedItems = copy(previous != null ? previous.removedItems : null);
+        for (final Map.Entry<Long, FastByIDMap<Float>> entry : itemChanges.entrySet()) {
+            final long itemId = entry.getKey();
+            final PreferenceArray row = merge(itemId, itemRow(current, itemId), entry.getValue(), false);
+            items.put(itemId, row);
+            track(itemId, row.length() > 0, hasItem(base, itemId), addedItems, removedItems);
+        }
+        return new OverlayDataModel(base, users, items, addedUsers, removedUsers, addedItems, removedItems);
+    }
+
+    public DataModel base() {
+        return base;
+    }
+
+    /** Number of users whose rows are served from the overlay. */
+    public int numChangedUsers() {
+        return users.size();
+    }
+
+    private static FastByIDMap<Float> row(final FastByIDMap<FastByIDMap<Float>> rows, final long id) {
+        FastByIDMap<Float> row = rows.get(id);
+        if (row == null) {
+            row = new FastByIDMap<>();
+            rows.put(id, row);
+        }
+        return row;
+    }
+
+    private static FastByIDMap<PreferenceArray> copy(final FastByIDMap<PreferenceArray> rows, final int extra) {
+        final FastByIDMap<PreferenceArray> copy = new FastByIDMap<>((rows == null ? 0 : rows.size()) + extra);
+        if (rows != null) {
+            for (final Map.Entry<Long, PreferenceArray> entry : rows.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return copy;
+    }
+
+    private static FastIDSet copy(final FastIDSet ids) {
+        return ids == null ? new FastIDSet() : ids.clone();
+    }
+
+    private static void track(final long id,
+                              final boolean present,
+                              final boolean inBase,
+                              final FastIDSet added,
+                              final FastIDSet removed) {
+        if (present) {
+            removed.remove(id);
+            if (!inBase) {
+                added.add(id);
+            }
+        } else {
+            added.remove(id);
+            if (inBase) {
+                removed.add(id);
+            }
+        }
+    }
+
+    private static boolean hasUser(final DataModel dataModel, final long userId) throws TasteException {
+        return userRow(dataModel, userId) != null;
+    }
+
+    private static boolean hasItem(final DataModel dataModel, final long itemId) throws TasteException {
+        return itemRow(dataModel, itemId) != null;
+    }
+
+    private static PreferenceArray userRow(final DataModel dataModel, final long userId) throws TasteException {
+        try {
+            final PreferenceArray row = dataModel.getPreferencesFromUser(userId);
+            return row.length() > 0 ? row : null;
+        } catch (final NoSuchUserException e) {
+            return null;
+        }
+    }
+
+    private static PreferenceArray itemRow(final DataModel dataModel, final long itemId) throws TasteException {
+        try {
+            final PreferenceArray row = dataModel.getPreferencesForItem(itemId);
+            return row.length() > 0 ? row : null;
+        } catch (final NoSuchItemException e) {
+            return null;
+        }
+    }
+
+    /**
+     * {@code row} with {@code changes} applied, keyed by the other ID of each
+     * preference. User rows are sorted by item, item rows by user.
+     */
+    private static PreferenceArray merge(final long id,
+                                         final PreferenceArray row,
+                                         final FastByIDMap<Float> changes,
+                                         final boolean byUser) {
+        final List<Preference> preferences = new ArrayList<>((row == null ? 0 : row.length()) + changes.size());
+        if (row != null) {
+            for (int i = 0; i < row.length(); i++) {
+                final long other = byUser ? row.getItemID(i) : row.getUserID(i);
+                if (!changes.containsKey(other)) {
+                    preferences.add(new GenericPreference(row.getUserID(i), row.getItemID(i), row.getValue(i)));
+                }
+            }
+        }
+        for (final Map.Entry<Long, Float> change : changes.entrySet()) {
+            if (!change.getValue().isNaN()) {
+                preferences.add(byUser
+                        ? new GenericPreference(id, change.getKey(), change.getValue())
+                        : new GenericPreference(change.getKey(), id, change.getValue()));
+            }
+        }
+        if (byUser) {
+            final PreferenceArray merged = preferences.isEmpty()
+                    ? new GenericUserPreferenceArray(0) : new GenericUserPreferenceArray(preferences);
+            merged.sortByItem();
+            return merged;
+        }
+        final PreferenceArray merged = preferences.isEmpty()
+                ? new GenericItemPreferenceArray(0) : new GenericItemPreferenceArray(preferences);
+        merged.sortByUser();
+        return merged;
+    }
+
+    private static long[] ids(final LongPrimitiveIterator baseIds,
+                              final int count,
+                              final FastIDSet added,
+                              final FastIDSet removed) {
+        final long[] ids = new long[count];
+        int n = 0;
+        while (baseIds.hasNext() && n < count) {
+            final long id = baseIds.nextLong();
+            if (!removed.contains(id)) {
+                ids[n++] = id;
+            }
+        }
+        final LongPrimitiveIterator it = added.iterator();
+        while (it.hasNext() && n < count) {
+            ids[n++] = it.nextLong();
+        }
+        final long[] sorted = n == count ? ids : Arrays.copyOf(ids, n);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @Override
+    public LongPrimitiveIterator getUserIDs() throws TasteException {
+        if (addedUsers.isEmpty() && removedUsers.isEmpty()) {
+            return base.getUserIDs();
+        }
+        return new LongPrimitiveArrayIterator(ids(base.getUserIDs(), getNumUsers(), addedUsers, removedUsers));
+    }
+
+    @Override
+    public PreferenceArray getPreferencesFromUser(final long userID) throws TasteException {
+        final PreferenceArray row = users.get(userID);
+        if (row == null) {
+            return base.getPreferencesFromUser(userID);
+        }
+        if (row.length() == 0) {
+            throw new NoSuchUserException(userID);
+        }
+        return row;
+    }
+
+    @Override
+    public FastIDSet getItemIDsFromUser(final long userID) throws TasteException {
+        final PreferenceArray row = users.get(userID);
+        if (row == null) {
+            return base.getItemIDsFromUser(userID);
+        }
+        if (row.length() == 0) {
+            throw new NoSuchUserException(userID);
+        }
+        final FastIDSet itemIds = new FastIDSet(row.length());
+        for (int i = 0; i < row.length(); i++) {
+            itemIds.add(row.getItemID(i));
+        }
+        return itemIds;
+    }
+
+    @Override
+    public LongPrimitiveIterator getItemIDs() throws TasteException {
+        if (addedItems.isEmpty() && removedItems.isEmpty()) {
+            return base.getItemIDs();
+        }
+        return new LongPrimitiveArrayIterator(ids(base.getItemIDs(), getNumItems(), addedItems, removedItems));
+    }
+
+    @Override
+    public PreferenceArray getPreferencesForItem(final long itemID) throws TasteException {
+        final PreferenceArray row = items.get(itemID);
+        if (row == null) {
+            return base.getPreferencesForItem(itemID);
+        }
+        if (row.length() == 0) {
+            throw new NoSuchItemException(itemID);
+        }
+        return row;
+    }
+
+    @Override
+    public Float getPreferenceValue(final long userID, final long itemID) throws TasteException {
+        final PreferenceArray row = users.get(userID);
+        if (row == null) {
+            return base.getPreferenceValue(userID, itemID);
+        }
+        if (row.length() == 0) {
+            throw new NoSuchUserException(userID);
+        }
+        for (int i = 0; i < row.length(); i++) {
+            if (row.getItemID(i) == itemID) {
+                return row.getValue(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Long getPreferenceTime(final long userID, final long itemID) throws TasteException {
+        return users.containsKey(userID) ? null : base.getPreferenceTime(userID, itemID);
+    }
+
+    @Override
+    public int getNumItems() throws TasteException {
+        return base.getNumItems() + addedItems.size() - removedItems.size();
+    }
+
+    @Override
+    public int getNumUsers() throws TasteException {
+        return base.getNumUsers() + addedUsers.size() - removedUsers.size();
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(final long itemID) throws TasteException {
+        final PreferenceArray row = items.get(itemID);
+        if (row == null) {
+            return base.getNumUsersWithPreferenceFor(itemID);
+        }
+        return row.length();
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(final long itemID1, final long itemID2) throws TasteException {
+        if (!items.containsKey(itemID1) && !items.containsKey(itemID2)) {
+            return base.getNumUsersWithPreferenceFor(itemID1, itemID2);
+        }
+        final PreferenceArray row1 = itemRow(this, itemID1);
+        final PreferenceArray row2 = itemRow(this, itemID2);
+        if (row1 == null || row2 == null) {
+            return 0;
+        }
+        // both rows are sorted by user
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < row1.length() && j < row2.length()) {
+            final long user1 = row1.getUserID(i);
+            final long user2 = row2.getUserID(j);
+            if (user1 == user2) {
+                count++;
+                i++;
+                j++;
+            } else if (user1 < user2) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void setPreference(final long userID, final long itemID, final float value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removePreference(final long userID, final long itemID) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasPreferenceValues() {
+        return base.hasPreferenceValues();
+    }
+
+    @Override
+    public void refresh(final Collection<Refreshable> alreadyRefreshed) {
+        // nothing to refresh
+    }
+}
@@ -0,0 +1,60 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.CandidateItemsStrategy;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.MostSimilarItemsCandidateItemsStrategy;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+
+/**
+ * Item-based recommender scoring the candidate items of a user with a
+ * {@link ParallelScorer}. Each candidate costs one similarity per item of the
+ * user's history, so users with long histories and many candidates are split
+ * across the scorer's pool; others are scored on the calling thread as
+ * {@link GenericItemBasedRecommender} does.
+ */
+public class ParallelItemBasedRecommender extends GenericItemBasedRecommender {
+    private final ParallelScorer scorer;
+
+    public ParallelItemBasedRecommender(final DataModel dataModel,
+                                        final ItemSimilarity similarity,
+                                        final CandidateItemsStrategy candidateItemsStrategy,
+                                        final MostSimilarItemsCandidateItemsStrategy mostSimilarItemsCandidateItemsStrategy,
+                                        final ParallelScorer scorer) {
+        super(dataModel, similarity, candidateItemsStrategy, mostSimilarItemsCandidateItemsStrategy);
+        this.scorer = scorer;
+    }
+
+    public ParallelItemBasedRecommender(final DataModel dataModel, final ItemSimilarity similarity, final ParallelScorer scorer) {
+        super(dataModel, similarity);
+        this.scorer = scorer;
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(final long userID, final int howMany, final IDRescorer rescorer) throws TasteException {
+        if (howMany < 1) {
+            throw new IllegalArgumentException("howMany must be at least 1");
+        }
+        final PreferenceArray preferencesFromUser = getDataModel().getPreferencesFromUser(userID);
+        if (preferencesFromUser.length() == 0) {
+            return Collections.emptyList();
+        }
+        final FastIDSet possibleItemIDs = getAllOtherItems(userID, preferencesFromUser);
+        final long work = (long) possibleItemIDs.size() * preferencesFromUser.length();
+        return scorer.topItems(possibleItemIDs.toArray(), howMany, work, itemID -> {
+            if (rescorer != null && rescorer.isFiltered(itemID)) {
+                return Float.NaN;
+            }
+            final float preference = doEstimatePreference(userID, preferencesFromUser, itemID);
+            return rescorer == null ? preference : (float) rescorer.rescore(itemID, preference);
+        });
+    }
+}
@@ -0,0 +1,225 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * Scores the candidate items of one request on a fork-join pool owned by the
+ * plugin. Candidates are split into ranges, each worker keeps its own bounded
+ * {@link TopN} and the heaps are merged when the ranges join, so no state is
+ * shared while scoring. Requests below {@link #THRESHOLD_SETTING} are scored on
+ * the calling thread. The same pool runs the entries of batch requests.
+ */
+public class ParallelScorer implements Closeable {
+    public static final Setting<Integer> PARALLELISM_SETTING =
+            new Setting<>("flavor.scoring.parallelism", s -> Integer.toString(EsExecutors.numberOfProcessors(s)),
+                          s -> Setting.parseInt(s, 1, "flavor.scoring.parallelism"), Property.NodeScope);
+    public static final Setting<Long> THRESHOLD_SETTING =
+            Setting.longSetting("flavor.scoring.threshold", 200000L, 0L, Property.NodeScope);
+
+    // smallest range worth a task of its own
+    private static final int MIN_CHUNK = 16;
+
+    /**
+     * Score of one candidate; {@code NaN} leaves it out.
+     */
+    @FunctionalInterface
+    public interface Scorer {
+        float score(long itemID) throws TasteException;
+    }
+
+    private final int parallelism;
+    private final long threshold;
+    private final ForkJoinPool pool;
+
+    public ParallelScorer(final Settings settings) {
+        this(PARALLELISM_SETTING.get(settings), THRESHOLD_SETTING.get(settings), EsExecutors.threadName(settings, "flavor_scoring"));
+    }
+
+    public ParallelScorer(final int parallelism, final long threshold) {
+        this(parallelism, threshold, "flavor_scoring");
+    }
+
+    private ParallelScorer(final int parallelism, final long threshold, final String threadName) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1.");
+        }
+        this.parallelism = parallelism;
+        this.threshold = threshold;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(threadName + "[T#" + thread.getPoolIndex() + "]");
+            return thread;
+        }, null, false) : null;
+    }
+
+    public int parallelism() {
+        return parallelism;
+    }
+
+    public long threshold() {
+        return threshold;
+    }
+
+    /**
+     * Whether a request doing {@code work} similarity computations, candidates
+     * times history length, is scored in parallel.
+     */
+    public boolean isParallel(final long work) {
+        return pool != null && work >= threshold;
+    }
+
+    /**
+     * Up to {@code howMany} of {@code candidates} with the highest score, best
+     * first. Equal scores keep the lower ID, so the result is the same whether
+     * scored in parallel or not.
+     */
+    public List<RecommendedItem> topItems(final long[] candidates,
+                                          final int howMany,
+                                          final long work,
+                                          final Scorer scorer) throws TasteException {
+        if (!isParallel(work) || candidates.length < 2 * MIN_CHUNK) {
+            return score(candidates, 0, candidates.length, howMany, scorer).toList();
+        }
+        final int chunk = Math.max(MIN_CHUNK, candidates.length / (parallelism * 4));
+        try {
+            return invoke(new ScoreTask(candidates, 0, candidates.length, chunk, howMany, scorer)).toList();
+        } catch (final ScoringException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Runs {@code task} for every index below {@code count}, in ranges spread
+     * over the pool, and returns once all have run. Runs them in order on the
+     * calling thread when the pool is disabled.
+     */
+    public void forEach(final int count, final IntConsumer task) {
+        if (pool == null || count < 2) {
+            for (int i = 0; i < count; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        invoke(new RangeAction(0, count, Math.max(1, count / (parallelism * 4)), task));
+    }
+
+    /** Joins the pool when called from one of its workers, e.g. scoring inside {@link #forEach}. */
+    private <T> T invoke(final ForkJoinTask<T> task) {
+        return ForkJoinTask.getPool() == pool ? task.invoke() : pool.invoke(task);
+    }
+
+    private static TopN score(final long[] candidates,
+                              final int from,
+                              final int to,
+                              final int howMany,
+                              final Scorer scorer) throws TasteException {
+        final TopN top = new TopN(howMany);
+        for (int i = from; i < to; i++) {
+            top.offer(candidates[i], scorer.score(candidates[i]));
+        }
+        return top;
+    }
+
+    private static class ScoreTask extends RecursiveTask<TopN> {
+        private static final long serialVersionUID = 1L;
+        private final long[] candidates;
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final int howMany;
+        private final Scorer scorer;
+
+        ScoreTask(final long[] candidates, final int from, final int to, final int chunk, final int howMany, final Scorer scorer) {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.howMany = howMany;
+            this.scorer = scorer;
+        }
+
+        @Override
+        protected TopN compute() {
+            if (to - from <= chunk) {
+                try {
+                    return score(candidates, from, to, howMany, scorer);
+                } catch (final TasteException e) {
+                    throw new ScoringException(e);
+                }
+            }
+            final int middle = (from + to) >>> 1;
+            final ScoreTask left = new ScoreTask(candidates, from, middle, chunk, howMany, scorer);
+            left.fork();
+            final TopN top = new ScoreTask(candidates, middle, to, chunk, howMany, scorer).compute();
+            top.addAll(left.join());
+            return top;
+        }
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final IntConsumer task;
+
+        RangeAction(final int from, final int to, final int chunk, final IntConsumer task) {
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                for (int i = from; i < to; i++) {
+                    task.accept(i);
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new RangeAction(from, middle, chunk, task), new RangeAction(middle, to, chunk, task));
+        }
+    }
+
+    private static class ScoringException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ScoringException(final TasteException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized TasteException getCause() {
+            return (TasteException) super.getCause();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
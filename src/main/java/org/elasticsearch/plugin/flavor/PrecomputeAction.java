@@ -0,0 +1,387 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Runs one operation for every user, or every item for {@code similar_items},
+ * of a preloaded model and writes the hits to a target index, one document per
+ * ID. The job runs as a {@link PrecomputeTask}, so it is listed and can be
+ * cancelled with the {@code _tasks} API. See {@link PrecomputeJob}.
+ */
+public class PrecomputeAction extends Action<PrecomputeAction.Request, PrecomputeAction.Response, PrecomputeAction.RequestBuilder> {
+    public static final PrecomputeAction INSTANCE = new PrecomputeAction();
+    public static final String NAME = "indices:data/write/flavor/precompute";
+
+    /** Operations that can be precomputed. */
+    public static final List<String> OPERATIONS = Collections.unmodifiableList(Arrays.asList(
+            "user_based_recommend", "item_based_recommend", "factorized_recommend", "similar_users", "similar_items"));
+
+    private PrecomputeAction() {
+        super(NAME);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(final ElasticsearchClient client) {
+        return new RequestBuilder(client, this);
+    }
+
+    public static class Request extends ActionRequest {
+        private String index;
+        private String type;
+        private String target;
+        private String operation;
+        private int size = 10;
+        private Map<String, String> params = new HashMap<>();
+        private boolean incremental = false;
+        private boolean resume = true;
+        private int bulkActions = 1000;
+        private int concurrentRequests = 1;
+        private int checkpointInterval = 10000;
+        private int maxFailures = 0;
+
+        public Request() {
+        }
+
+        public Request(final String index, final String type) {
+            this.index = index;
+            this.type = type;
+        }
+
+        /** Preloaded model the job runs on. */
+        public Request source(final String index, final String type) {
+            this.index = index;
+            this.type = type;
+            return this;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public String target() {
+            return target;
+        }
+
+        /** Index the documents and the checkpoint are written for. */
+        public Request target(final String target) {
+            this.target = target;
+            return this;
+        }
+
+        public String operation() {
+            return operation;
+        }
+
+        public Request operation(final String operation) {
+            this.operation = operation;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Request size(final int size) {
+            this.size = size;
+            return this;
+        }
+
+        public Map<String, String> params() {
+            return params;
+        }
+
+        /** Recommender parameters, as for the operation's URL. */
+        public Request params(final Map<String, String> params) {
+            this.params = params;
+            return this;
+        }
+
+        public boolean incremental() {
+            return incremental;
+        }
+
+        /** Only recompute the IDs whose preferences changed since the last completed run. */
+        public Request incremental(final boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        public boolean resume() {
+            return resume;
+        }
+
+        /** Continue an interrupted run with the same parameters from its checkpoint. */
+        public Request resume(final boolean resume) {
+            this.resume = resume;
+            return this;
+        }
+
+        public int bulkActions() {
+            return bulkActions;
+        }
+
+        public Request bulkActions(final int bulkActions) {
+            this.bulkActions = bulkActions;
+            return this;
+        }
+
+        public int concurrentRequests() {
+            return concurrentRequests;
+        }
+
+        /** Bulk requests in flight at once; {@code 0} sends them one at a time from the job thread. */
+        public Request concurrentRequests(final int concurrentRequests) {
+            this.concurrentRequests = concurrentRequests;
+            return this;
+        }
+
+        public int checkpointInterval() {
+            return checkpointInterval;
+        }
+
+        /** IDs written between two checkpoints. */
+        public Request checkpointInterval(final int checkpointInterval) {
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        public int maxFailures() {
+            return maxFailures;
+        }
+
+        /**
+         * IDs that may fail with an error other than being gone from the model
+         * before the job fails; they are skipped until then.
+         */
+        public Request maxFailures(final int maxFailures) {
+            this.maxFailures = maxFailures;
+            return this;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException e = null;
+            if (index == null || type == null) {
+                e = addValidationError("index and type are missing", e);
+            }
+            if (target == null) {
+                e = addValidationError("target is missing", e);
+            }
+            if (!OPERATIONS.contains(operation)) {
+                e = addValidationError("operation must be one of " + OPERATIONS, e);
+            }
+            if (size <= 0 || bulkActions <= 0 || checkpointInterval <= 0) {
+                e = addValidationError("size, bulk_actions and checkpoint_interval must be positive", e);
+            }
+            if (concurrentRequests < 0 || maxFailures < 0) {
+                e = addValidationError("concurrent_requests and max_failures must not be negative", e);
+            }
+            return e;
+        }
+
+        @Override
+        public Task createTask(final long id,
+                               final String type,
+                               final String action,
+                               final TaskId parentTaskId,
+                               final Map<String, String> headers) {
+            return new PrecomputeTask(id, type, action, getDescription(), parentTaskId, headers);
+        }
+
+        @Override
+        public String getDescription() {
+            return toString();
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            index = in.readString();
+            type = in.readString();
+            target = in.readString();
+            operation = in.readString();
+            size = in.readVInt();
+            params = in.readMap(StreamInput::readString, StreamInput::readString);
+            incremental = in.readBoolean();
+            resume = in.readBoolean();
+            bulkActions = in.readVInt();
+            concurrentRequests = in.readVInt();
+            checkpointInterval = in.readVInt();
+            maxFailures = in.readVInt();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(index);
+            out.writeString(type);
+            out.writeString(target);
+            out.writeString(operation);
+            out.writeVInt(size);
+            out.writeMap(params, StreamOutput::writeString, StreamOutput::writeString);
+            out.writeBoolean(incremental);
+            out.writeBoolean(resume);
+            out.writeVInt(bulkActions);
+            out.writeVInt(concurrentRequests);
+            out.writeVInt(checkpointInterval);
+            out.writeVInt(maxFailures);
+        }
+
+        @Override
+        public String toString() {
+            return "precompute[" + index + "/" + type + " " + operation + " -> " + target + (incremental ? ", incremental" : "") + "]";
+        }
+    }
+
+    public static class Response extends ActionResponse implements ToXContentObject {
+        private String target;
+        private long total;
+        private long written;
+        private long skipped;
+        private boolean incremental;
+        private boolean resumed;
+        private long took;
+
+        Response() {
+        }
+
+        Response(final String target,
+                 final long total,
+                 final long written,
+                 final long skipped,
+                 final boolean incremental,
+                 final boolean resumed,
+                 final long took) {
+            this.target = target;
+            this.total = total;
+            this.written = written;
+            this.skipped = skipped;
+            this.incremental = incremental;
+            this.resumed = resumed;
+            this.took = took;
+        }
+
+        public String target() {
+            return target;
+        }
+
+        /** IDs this run had to compute, including those done before it resumed. */
+        public long total() {
+            return total;
+        }
+
+        public long written() {
+            return written;
+        }
+
+        /** IDs that were gone from the model, or failed within {@code max_failures}, and got no document. */
+        public long skipped() {
+            return skipped;
+        }
+
+        public boolean incremental() {
+            return incremental;
+        }
+
+        public boolean resumed() {
+            return resumed;
+        }
+
+        public long took() {
+            return took;
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+            return builder
+                .startObject()
+                .field("target", target)
+                .field("took", took)
+                .field("total", total)
+                .field("written", written)
+                .field("skipped", skipped)
+                .field("incremental", incremental)
+                .field("resumed", resumed)
+                .endObject();
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            target = in.readString();
+            total = in.readVLong();
+            written = in.readVLong();
+            skipped = in.readVLong();
+            incremental = in.readBoolean();
+            resumed = in.readBoolean();
+            took = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(target);
+            out.writeVLong(total);
+            out.writeVLong(written);
+            out.writeVLong(skipped);
+            out.writeBoolean(incremental);
+            out.writeBoolean(resumed);
+            out.writeVLong(took);
+        }
+    }
+
+    public static class RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder> {
+        RequestBuilder(final ElasticsearchClient client, final PrecomputeAction action) {
+            super(client, action, new Request());
+        }
+
+        public RequestBuilder setSource(final String index, final String type) {
+            request.source(index, type);
+            return this;
+        }
+
+        public RequestBuilder setTarget(final String target) {
+            request.target(target);
+            return this;
+        }
+
+        public RequestBuilder setOperation(final String operation) {
+            request.operation(operation);
+            return this;
+        }
+
+        public RequestBuilder setIncremental(final boolean incremental) {
+            request.incremental(incremental);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Booleans;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.IndexNotFoundException;
+
+/**
+ * Writes the hits of one operation for every user, or every item for
+ * {@code similar_items}, of a preloaded model to a target index:
+ * {@code {"user_id", "operation", "model_version", "hits": {"total", "hits": [...]}}}
+ * with the ID as {@code _id}, so reads are a plain get.
+ *
+ * IDs are taken in ascending order, {@link PrecomputeAction.Request#checkpointInterval()}
+ * at a time: the batch is computed on the {@link ParallelScorer} pool, indexed
+ * with a {@link BulkProcessor} that keeps at most
+ * {@link PrecomputeAction.Request#concurrentRequests()} bulk requests in flight
+ * and backs off on rejections, and once every document is acknowledged the last
+ * ID is recorded in a checkpoint document of {@link #CHECKPOINT_INDEX}. A run
+ * with the same parameters that finds an unfinished checkpoint, e.g. after the
+ * node running it failed or the task was cancelled, resumes after that ID.
+ *
+ * The checkpoint of a completed run keeps the watermark of the model it ran on.
+ * An incremental run only recomputes the IDs with a preference at or after that
+ * watermark, which needs the model's {@code watermarkField}; without it, or
+ * without a completed run, every ID is computed.
+ *
+ * An ID that is gone from the model is skipped. Any other error is counted
+ * and the ID skipped as well, but once more than
+ * {@link PrecomputeAction.Request#maxFailures()} IDs failed the job fails
+ * before writing the batch, so its checkpoint is neither advanced nor marked
+ * completed.
+ */
+public class PrecomputeJob {
+    public static final String CHECKPOINT_INDEX = ".flavor-precompute";
+    public static final String CHECKPOINT_TYPE = "checkpoint";
+    public static final String TYPE = "recommendation";
+
+    /** Request parameters passed on to the recommenders. */
+    public static final List<String> RECOMMENDER_PARAMS = Collections.unmodifiableList(Arrays.asList(
+            "similarity", "neighborhood", "neighborhoodN", "neighborhoodThreshold", "neighborhoodScan",
+            "neighborhoodCandidates", "maxItemsPerUser", "maxUsersPerItem", "maxCandidateItems", "precomputed"));
+
+    private Logger logger = Loggers.getLogger(PrecomputeJob.class);
+
+    private final Client client;
+    private final ParallelScorer scorer;
+    private final ElasticsearchPreloadDataModelFactory factory;
+    private final PrecomputeAction.Request request;
+    private final PrecomputeTask task;
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+
+    public PrecomputeJob(final Client client,
+                         final ParallelScorer scorer,
+                         final ElasticsearchPreloadDataModelFactory factory,
+                         final PrecomputeAction.Request request,
+                         final PrecomputeTask task) {
+        this.client = client;
+        this.scorer = scorer;
+        this.factory = factory;
+        this.request = request;
+        this.task = task;
+    }
+
+    /**
+     * Runs the job on the calling thread, blocking on the bulk and checkpoint
+     * requests; call it from the generic pool.
+     */
+    public PrecomputeAction.Response run() throws Exception {
+        final long startTime = System.currentTimeMillis();
+        final ElasticsearchPreloadDataModel model = (ElasticsearchPreloadDataModel) factory.dataModel();
+        final DataModel dataModel;
+        final long version;
+        synchronized (model) {
+            dataModel = model.delegate();
+            version = model.version();
+        }
+        final boolean items = "similar_items".equals(request.operation());
+
+        final Checkpoint previous = readCheckpoint();
+        final boolean resumed = request.resume() && previous != null && !previous.completed && previous.matches(request);
+        Checkpoint checkpoint;
+        if (resumed) {
+            checkpoint = previous;
+        } else if (request.incremental() && previous != null && previous.completed && previous.matches(request)
+                && previous.watermark != null && model.watermarkField() != null) {
+            checkpoint = new Checkpoint(request, previous.watermark, model.watermark());
+        } else {
+            checkpoint = new Checkpoint(request, null, model.watermark());
+        }
+
+        FastIDSet changed = null;
+        if (checkpoint.since != null) {
+            final PlainActionFuture<FastByIDMap<PreferenceArray>> changes = PlainActionFuture.newFuture();
+            model.changesSince(checkpoint.since, changes);
+            changed = changedIds(changes.actionGet(), items);
+        }
+        final long[] ids = ids(dataModel, items, changed);
+        final long[] remaining = after(ids, checkpoint.after);
+        task.start(ids.length, checkpoint.written, checkpoint.skipped, checkpoint.after, checkpoint.since != null);
+        logger.info("Precompute {} of {}/{} into [{}]: {} of {} IDs{}{}",
+                request.operation(), request.index(), request.type(), request.target(), remaining.length, ids.length,
+                checkpoint.since != null ? ", changed since " + checkpoint.since : "",
+                resumed ? ", resumed after " + checkpoint.after : "");
+
+        final BatchRecommender batch = batchRecommender(dataModel);
+        final String idField = items ? "item_id" : "user_id";
+        for (int from = 0; from < remaining.length; from += request.checkpointInterval()) {
+            task.ensureNotCancelled();
+            final int offset = from;
+            final int to = Math.min(remaining.length, from + request.checkpointInterval());
+            final BytesReference[] documents = new BytesReference[to - from];
+            scorer.forEach(documents.length, i -> {
+                if (!task.isCancelled()) {
+                    documents[i] = document(batch, idField, remaining[offset + i], version);
+                }
+            });
+            task.ensureNotCancelled();
+            if (failures.get() > request.maxFailures()) {
+                throw new ElasticsearchException("Failed to precompute " + request.operation() + " for " + failures.get()
+                        + " IDs, more than max_failures [" + request.maxFailures() + "]", firstFailure.get());
+            }
+            write(remaining, from, documents);
+            checkpoint = checkpoint.advance(remaining[to - 1], task.written(), task.skipped(), false);
+            writeCheckpoint(checkpoint);
+            task.checkpoint(checkpoint.after);
+        }
+        writeCheckpoint(checkpoint.advance(checkpoint.after, task.written(), task.skipped(), true));
+
+        final long took = System.currentTimeMillis() - startTime;
+        logger.info("Precomputed {} of {}/{} into [{}]: {} written, {} skipped. {}ms",
+                request.operation(), request.index(), request.type(), request.target(),
+                task.written(), task.skipped(), took);
+        return new PrecomputeAction.Response(request.target(), ids.length, task.written(), task.skipped(),
+                                             checkpoint.since != null, resumed, took);
+    }
+
+    private BatchRecommender batchRecommender(final DataModel dataModel) throws TasteException {
+        final Map<String, String> params = request.params();
+        final SimilarityIndex similarityIndex = factory.similarityIndex(params.get("similarity"),
+                                                                        booleanParam(params, "precomputed", true));
+        final BatchRecommender batch = new BatchRecommender(scorer)
+                .dataModel(dataModel)
+                .similarityIndex(similarityIndex)
+                .factorization(factory.factorization());
+        switch (request.operation()) {
+            case "similar_users":
+            case "user_based_recommend":
+                batch.userBased(factory.recommenders().userBased(recommenderBuilder(params)));
+                break;
+            case "similar_items":
+            case "item_based_recommend":
+                batch.itemBased(factory.recommenders().itemBased(recommenderBuilder(params)
+                        .similarityIndex(similarityIndex)
+                        .parallelScorer(scorer)));
+                break;
+            default:
+                if (factory.factorization() == null) {
+                    throw new IllegalStateException("No factorization for " + request.index() + "/" + request.type());
+                }
+                break;
+        }
+        return batch;
+    }
+
+    /**
+     * Same recommender as the operation's URL with {@code params}, with user
+     * neighborhoods scanning co-rating users by default as for batch requests.
+     */
+    static RecommenderBuilder recommenderBuilder(final Map<String, String> params) {
+        return RecommenderBuilder
+                .builder()
+                .similarity(params.get("similarity"))
+                .neighborhood(params.get("neighborhood"))
+                .neighborhoodNearestN(intParam(params, "neighborhoodN", 10))
+                .neighborhoodThreshold(Double.parseDouble(params.getOrDefault("neighborhoodThreshold", "0.1")))
+                .neighborhoodScan(params.getOrDefault("neighborhoodScan", "co_rated"))
+                .neighborhoodCandidates(intParam(params, "neighborhoodCandidates", 0))
+                .fanOutLimits(new FanOutLimits(intParam(params, "maxItemsPerUser", 0),
+                                               intParam(params, "maxUsersPerItem", 0),
+                                               intParam(params, "maxCandidateItems", 0)));
+    }
+
+    private static int intParam(final Map<String, String> params, final String name, final int defaultValue) {
+        final String value = params.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static boolean booleanParam(final Map<String, String> params, final String name, final boolean defaultValue) {
+        return Booleans.parseBoolean(params.get(name), defaultValue);
+    }
+
+    /**
+     * Document of one ID, or {@code null} when it is gone from the model or
+     * failed; failures are counted for {@link PrecomputeAction.Request#maxFailures()}.
+     */
+    private BytesReference document(final BatchRecommender batch, final String idField, final long id, final long version) {
+        try {
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder
+                .startObject()
+                .field(idField, id)
+                .field("operation", request.operation())
+                .field("model_version", version);
+            batch.hits(builder, new BatchRecommender.Entry(request.operation(), id, request.size()));
+            return BytesReference.bytes(builder.endObject());
+        } catch (final NoSuchUserException | NoSuchItemException e) {
+            // removed from the model by a reload since the IDs were listed
+            return null;
+        } catch (final Exception e) {
+            failures.incrementAndGet();
+            if (firstFailure.compareAndSet(null, e)) {
+                logger.warn(() -> "Failed to precompute " + request.operation() + " for " + id, e);
+            } else {
+                logger.debug(() -> "Failed to precompute " + request.operation() + " for " + id, e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Indexes {@code documents}, the documents of {@code ids} from {@code from},
+     * and returns once every bulk request has been answered.
+     */
+    private void write(final long[] ids, final int from, final BytesReference[] documents) throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final BulkProcessor bulk = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(final long executionId, final BulkRequest bulkRequest) {
+            }
+
+            @Override
+            public void afterBulk(final long executionId, final BulkRequest bulkRequest, final BulkResponse response) {
+                if (response.hasFailures()) {
+                    failure.compareAndSet(null, new ElasticsearchException(
+                            "Failed to write to [" + request.target() + "]: " + response.buildFailureMessage()));
+                } else {
+                    task.written(bulkRequest.numberOfActions());
+                }
+            }
+
+            @Override
+            public void afterBulk(final long executionId, final BulkRequest bulkRequest, final Throwable t) {
+                failure.compareAndSet(null, t instanceof Exception ? (Exception) t : new ElasticsearchException(t));
+            }
+        })
+            .setBulkActions(request.bulkActions())
+            .setConcurrentRequests(request.concurrentRequests())
+            .setBackoffPolicy(BackoffPolicy.exponentialBackoff())
+            .build();
+        try {
+            for (int i = 0; i < documents.length; i++) {
+                if (documents[i] == null) {
+                    task.skipped(1);
+                    continue;
+                }
+                bulk.add(new IndexRequest(request.target(), TYPE, Long.toString(ids[from + i]))
+                        .source(documents[i], XContentType.JSON));
+            }
+        } finally {
+            bulk.awaitClose(1, TimeUnit.DAYS);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private Checkpoint readCheckpoint() {
+        try {
+            final GetResponse response = client.prepareGet(CHECKPOINT_INDEX, CHECKPOINT_TYPE, request.target()).get();
+            return response.isExists() ? Checkpoint.fromMap(response.getSourceAsMap()) : null;
+        } catch (final IndexNotFoundException e) {
+            return null;
+        }
+    }
+
+    private void writeCheckpoint(final Checkpoint checkpoint) throws IOException {
+        final XContentBuilder builder = JsonXContent.contentBuilder();
+        checkpoint.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        client.prepareIndex(CHECKPOINT_INDEX, CHECKPOINT_TYPE, request.target()).setSource(builder).get();
+    }
+
+    /**
+     * IDs of the users, or the items, of {@code dataModel} in ascending order;
+     * only those in {@code changed} unless it is {@code null}.
+     */
+    static long[] ids(final DataModel dataModel, final boolean items, final FastIDSet changed) throws TasteException {
+        final LongPrimitiveIterator it = items ? dataModel.getItemIDs() : dataModel.getUserIDs();
+        final long[] ids = new long[items ? dataModel.getNumItems() : dataModel.getNumUsers()];
+        int count = 0;
+        while (it.hasNext()) {
+            final long id = it.nextLong();
+            if (changed == null || changed.contains(id)) {
+                ids[count++] = id;
+            }
+        }
+        final long[] kept = Arrays.copyOf(ids, count);
+        Arrays.sort(kept);
+        return kept;
+    }
+
+    /** The users, or the items, with a preference in {@code changes}. */
+    static FastIDSet changedIds(final FastByIDMap<PreferenceArray> changes, final boolean items) {
+        final FastIDSet ids = new FastIDSet(changes.size());
+        for (final Map.Entry<Long, PreferenceArray> entry : changes.entrySet()) {
+            if (items) {
+                for (final long itemId : entry.getValue().getIDs()) {
+                    ids.add(itemId);
+                }
+            } else {
+                ids.add(entry.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /** The IDs of {@code sorted} greater than {@code after}, all of them if it is {@code null}. */
+    static long[] after(final long[] sorted, final Long after) {
+        if (after == null) {
+            return sorted;
+        }
+        int i = Arrays.binarySearch(sorted, after);
+        i = i < 0 ? -i - 1 : i + 1;
+        return Arrays.copyOfRange(sorted, i, sorted.length);
+    }
+
+    /**
+     * Progress of the last run into a target index: its parameters, the
+     * watermark it started from ({@code since}, for an incremental run) and the
+     * one of the model it ran on, and the last ID written.
+     */
+    static class Checkpoint implements ToXContent {
+        final String index;
+        final String type;
+        final String operation;
+        final int size;
+        final Map<String, String> params;
+        final Long since;
+        final Long watermark;
+        final Long after;
+        final long written;
+        final long skipped;
+        final boolean completed;
+
+        Checkpoint(final PrecomputeAction.Request request, final Long since, final Long watermark) {
+            this(request.index(), request.type(), request.operation(), request.size(), request.params(),
+                 since, watermark, null, 0, 0, false);
+        }
+
+        Checkpoint(final String index,
+                   final String type,
+                   final String operation,
+                   final int size,
+                   final Map<String, String> params,
+                   final Long since,
+                   final Long watermark,
+                   final Long after,
+                   final long written,
+                   final long skipped,
+                   final boolean completed) {
+            this.index = index;
+            this.type = type;
+            this.operation = operation;
+            this.size = size;
+            this.params = params;
+            this.since = since;
+            this.watermark = watermark;
+            this.after = after;
+            this.written = written;
+            this.skipped = skipped;
+            this.completed = completed;
+        }
+
+        Checkpoint advance(final Long after, final long written, final long skipped, final boolean completed) {
+            return new Checkpoint(index, type, operation, size, params, since, watermark, after, written, skipped, completed);
+        }
+
+        /** Whether {@code request} computes the same documents. */
+        boolean matches(final PrecomputeAction.Request request) {
+            return index.equals(request.index())
+                    && type.equals(request.type())
+                    && operation.equals(request.operation())
+                    && size == request.size()
+                    && params.equals(request.params());
+        }
+
+        @SuppressWarnings("unchecked")
+        static Checkpoint fromMap(final Map<String, Object> source) {
+            final Map<String, String> params = new HashMap<>();
+            final Map<String, Object> stored = (Map<String, Object>) source.get("params");
+            if (stored != null) {
+                for (final Map.Entry<String, Object> entry : stored.entrySet()) {
+                    params.put(entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+            return new Checkpoint((String) source.get("index"),
+                                  (String) source.get("type"),
+                                  (String) source.get("operation"),
+                                  ((Number) source.get("size")).intValue(),
+                                  params,
+                                  longValue(source.get("since")),
+                                  longValue(source.get("watermark")),
+                                  longValue(source.get("after")),
+                                  ((Number) source.get("written")).longValue(),
+                                  ((Number) source.get("skipped")).longValue(),
+                                  Boolean.TRUE.equals(source.get("completed")));
+        }
+
+        private static Long longValue(final Object value) {
+            return value == null ? null : ((Number) value).longValue();
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+            return builder
+                .startObject()
+                .field("index", index)
+                .field("type", type)
+                .field("operation", operation)
+                .field("size", size)
+                .field("params", this.params)
+                .field("since", since)
+                .field("watermark", watermark)
+                .field("after", after)
+                .field("written", written)
+                .field("skipped", skipped)
+                .field("completed", completed)
+                .field("updated", System.currentTimeMillis())
+                .endObject();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.tasks.TaskId;
+
+/**
+ * Task of a {@link PrecomputeAction} run. Its progress is the {@code status}
+ * shown by {@code GET _tasks}, and {@code POST _tasks/{id}/_cancel} stops the
+ * job before its next batch of IDs.
+ */
+public class PrecomputeTask extends CancellableTask {
+    private volatile long total;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile Long checkpoint;
+    private volatile boolean incremental;
+
+    public PrecomputeTask(final long id,
+                          final String type,
+                          final String action,
+                          final String description,
+                          final TaskId parentTaskId,
+                          final Map<String, String> headers) {
+        super(id, type, action, description, parentTaskId, headers);
+    }
+
+    @Override
+    public boolean shouldCancelChildrenOnCancellation() {
+        return true;
+    }
+
+    /** Throws if the task was cancelled. */
+    public void ensureNotCancelled() {
+        if (isCancelled()) {
+            throw new TaskCancelledException("Cancelled: " + getReasonCancelled());
+        }
+    }
+
+    void start(final long total, final long written, final long skipped, final Long checkpoint, final boolean incremental) {
+        this.total = total;
+        this.written.set(written);
+        this.skipped.set(skipped);
+        this.checkpoint = checkpoint;
+        this.incremental = incremental;
+    }
+
+    void written(final long count) {
+        written.addAndGet(count);
+    }
+
+    void skipped(final long count) {
+        skipped.addAndGet(count);
+    }
+
+    void checkpoint(final long id) {
+        this.checkpoint = id;
+    }
+
+    public long total() {
+        return total;
+    }
+
+    public long written() {
+        return written.get();
+    }
+
+    public long skipped() {
+        return skipped.get();
+    }
+
+    @Override
+    public Task.Status getStatus() {
+        return new Status(total, written.get(), skipped.get(), checkpoint, incremental);
+    }
+
+    /**
+     * Progress of a run: IDs to compute, documents written, IDs skipped, and
+     * the last ID of the last checkpoint.
+     */
+    public static class Status implements Task.Status {
+        public static final String NAME = "flavor_precompute";
+
+        private final long total;
+        private final long written;
+        private final long skipped;
+        private final Long checkpoint;
+        private final boolean incremental;
+
+        public Status(final long total, final long written, final long skipped, final Long checkpoint, final boolean incremental) {
+            this.total = total;
+            this.written = written;
+            this.skipped = skipped;
+            this.checkpoint = checkpoint;
+            this.incremental = incremental;
+        }
+
+        public Status(final StreamInput in) throws IOException {
+            total = in.readVLong();
+            written = in.readVLong();
+            skipped = in.readVLong();
+            checkpoint = in.readOptionalLong();
+            incremental = in.readBoolean();
+        }
+
+        public long total() {
+            return total;
+        }
+
+        public long written() {
+            return written;
+        }
+
+        public long skipped() {
+            return skipped;
+        }
+
+        public Long checkpoint() {
+            return checkpoint;
+        }
+
+        public boolean incremental() {
+            return incremental;
+        }
+
+        @Override
+        public String getWriteableName() {
+            return NAME;
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeVLong(total);
+            out.writeVLong(written);
+            out.writeVLong(skipped);
+            out.writeOptionalLong(checkpoint);
+            out.writeBoolean(incremental);
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+            builder
+                .startObject()
+                .field("total", total)
+                .field("written", written)
+                .field("skipped", skipped)
+                .field("incremental", incremental);
+            if (checkpoint != null) {
+                builder.field("checkpoint", checkpoint.longValue());
+            }
+            return builder.endObject();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Collects preference hits grouped by user into growable primitive buffers and
+ * emits one compact {@link PreferenceArray} per user at the end, so loading is
+ * linear in the number of preferences.
+ */
+public class PreferenceArrayBuilder {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final FastByIDMap<Buffer> users;
+    private long size;
+
+    public PreferenceArrayBuilder() {
+        this.users = new FastByIDMap<Buffer>();
+    }
+
+    public PreferenceArrayBuilder(final int expectedUsers) {
+        this.users = new FastByIDMap<Buffer>(Math.max(expectedUsers, 2));
+    }
+
+    public void add(final long userId, final long itemId, final float value) {
+        Buffer buffer = users.get(userId);
+        if (buffer == null) {
+            buffer = new Buffer(INITIAL_CAPACITY);
+            users.put(userId, buffer);
+        }
+        buffer.add(itemId, value);
+        size++;
+    }
+
+    /**
+     * Appends every preference collected by {@code other} to this builder.
+     */
+    public void addAll(final PreferenceArrayBuilder other) {
+        for (Map.Entry<Long, Buffer> entry : other.users.entrySet()) {
+            final long userId = entry.getKey();
+            final Buffer source = entry.getValue();
+            final Buffer target = users.get(userId);
+            if (target == null) {
+                users.put(userId, source.copy());
+            } else {
+                target.addAll(source);
+            }
+        }
+        size += other.size;
+    }
+
+    public int numUsers() {
+        return users.size();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public FastByIDMap<PreferenceArray> build() {
+        final FastByIDMap<PreferenceArray> result = new FastByIDMap<PreferenceArray>(Math.max(users.size(), 2));
+        for (Map.Entry<Long, Buffer> entry : users.entrySet()) {
+            final long userId = entry.getKey();
+            result.put(userId, entry.getValue().toPreferenceArray(userId));
+        }
+        return result;
+    }
+
+    private static final class Buffer {
+        private long[] itemIds;
+        private float[] values;
+        private int length;
+
+        Buffer(final int capacity) {
+            this.itemIds = new long[capacity];
+            this.values = new float[capacity];
+        }
+
+        void add(final long itemId, final float value) {
+            if (length == itemIds.length) {
+                grow(length + 1);
+            }
+            itemIds[length] = itemId;
+            values[length] = value;
+            length++;
+        }
+
+        void addAll(final Buffer other) {
+            if (length + other.length > itemIds.length) {
+                grow(length + other.length);
+            }
+            System.arraycopy(other.itemIds, 0, itemIds, length, other.length);
+            System.arraycopy(other.values, 0, values, length, other.length);
+            length += other.length;
+        }
+
+        Buffer copy() {
+            final Buffer copy = new Buffer(Math.max(length, INITIAL_CAPACITY));
+            copy.addAll(this);
+            return copy;
+        }
+
+        private void grow(final int minCapacity) {
+            final int newCapacity = Math.max(minCapacity, itemIds.length + (itemIds.length >> 1));
+            itemIds = Arrays.copyOf(itemIds, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+
+        PreferenceArray toPreferenceArray(final long userId) {
+            final GenericUserPreferenceArray array = new GenericUserPreferenceArray(length);
+            array.setUserID(0, userId);
+            for (int i = 0; i < length; i++) {
+                array.setItemID(i, itemIds[i]);
+                array.setValue(i, values[i]);
+            }
+            return array;
+        }
+    }
+}
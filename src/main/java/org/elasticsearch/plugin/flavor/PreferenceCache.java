@@ -0,0 +1,372 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.IndexingOperationListener;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.translog.Translog;
+
+/**
+ * Node-level cache of user to preference vector and item to user set entries
+ * read by the dynamic data model. Entries are weighted by their size, evicted in
+ * LRU order once {@link #SIZE_SETTING} is reached and expire after
+ * {@link #EXPIRE_SETTING}.
+ *
+ * Registered as an {@link IndexingOperationListener} on every index: an indexed
+ * preference invalidates its user and item, a delete invalidates the whole
+ * index/type because deletes carry no source. Only shards on this node are
+ * observed, so entries for indices without a local shard rely on the expiry.
+ *
+ * A write is only invalidated once a refresh of its shard made it visible to
+ * searches, so a lookup in between cannot cache the old preferences again.
+ * Each shard waits for one refresh at a time. Writes made while it waits are
+ * invalidated after the next refresh. Lookups take a {@link #stamp()} before
+ * they search, and a put is dropped when its key was invalidated after the
+ * stamp, since the lookup may have read the preferences from before the write.
+ */
+public class PreferenceCache implements IndexingOperationListener, IndexEventListener {
+    public static final Setting<ByteSizeValue> SIZE_SETTING =
+            Setting.memorySizeSetting("flavor.cache.size", "2%", Property.NodeScope);
+    public static final Setting<TimeValue> EXPIRE_SETTING =
+            Setting.timeSetting("flavor.cache.expire", TimeValue.timeValueMinutes(10), Property.NodeScope);
+
+    // entry, key and array headers
+    private static final long ENTRY_OVERHEAD = 128;
+    // keys share the invalidation sequence of their stripe
+    private static final int STRIPES = 1024;
+
+    private final Cache<Key, Object> cache;
+    private final boolean enabled;
+    private final Set<String> indices = ConcurrentCollections.newConcurrentSet();
+    private final Map<ShardId, ShardInvalidations> shards = ConcurrentCollections.newConcurrentMap();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLongArray invalidatedStripes = new AtomicLongArray(STRIPES);
+    private final AtomicLong invalidatedTypes = new AtomicLong();
+
+    public PreferenceCache(final Settings settings) {
+        this(SIZE_SETTING.get(settings).getBytes(), EXPIRE_SETTING.get(settings));
+    }
+
+    public PreferenceCache(final long maximumWeight, final TimeValue expire) {
+        this.enabled = maximumWeight > 0;
+        final CacheBuilder<Key, Object> builder = CacheBuilder.<Key, Object>builder()
+                .setMaximumWeight(Math.max(1, maximumWeight))
+                .weigher((key, value) -> ENTRY_OVERHEAD + weight(value));
+        if (expire.millis() > 0) {
+            builder.setExpireAfterWrite(expire);
+        }
+        this.cache = builder.build();
+    }
+
+    private static long weight(final Object value) {
+        if (value instanceof PreferenceArray) {
+            return ((PreferenceArray) value).length() * (long) (Long.BYTES + Float.BYTES);
+        }
+        return RamUsageEstimator.sizeOf((long[]) value);
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    private boolean cacheable(final String index, final String type) {
+        return enabled && index != null && type != null;
+    }
+
+    /**
+     * Taken before a lookup; puts of its results with this stamp are dropped
+     * for keys invalidated since.
+     */
+    public long stamp() {
+        return invalidations.get();
+    }
+
+    /** Preferences of {@code userId}, or {@code null} if they are not cached. */
+    public PreferenceArray getUser(final String index, final String type, final long userId) {
+        return cacheable(index, type) ? (PreferenceArray) cache.get(new Key(index, type, true, userId)) : null;
+    }
+
+    public void putUser(final String index, final String type, final long userId, final PreferenceArray preferences) {
+        putUser(index, type, userId, preferences, stamp());
+    }
+
+    public void putUser(final String index,
+                        final String type,
+                        final long userId,
+                        final PreferenceArray preferences,
+                        final long stamp) {
+        if (cacheable(index, type)) {
+            put(index, new Key(index, type, true, userId), preferences, stamp);
+        }
+    }
+
+    /** Users who have a preference for {@code itemId}, or {@code null} if they are not cached. */
+    public long[] getItem(final String index, final String type, final long itemId) {
+        return cacheable(index, type) ? (long[]) cache.get(new Key(index, type, false, itemId)) : null;
+    }
+
+    public void putItem(final String index, final String type, final long itemId, final long[] userIds) {
+        putItem(index, type, itemId, userIds, stamp());
+    }
+
+    public void putItem(final String index, final String type, final long itemId, final long[] userIds, final long stamp) {
+        if (cacheable(index, type)) {
+            put(index, new Key(index, type, false, itemId), userIds, stamp);
+        }
+    }
+
+    private void put(final String index, final Key key, final Object value, final long stamp) {
+        indices.add(index);
+        if (invalidatedSince(key, stamp)) {
+            return;
+        }
+        cache.put(key, value);
+        // an invalidation between the check and the put may have missed the entry
+        if (invalidatedSince(key, stamp)) {
+            cache.invalidate(key);
+        }
+    }
+
+    private boolean invalidatedSince(final Key key, final long stamp) {
+        return invalidatedStripes.get(stripe(key)) > stamp || invalidatedTypes.get() > stamp;
+    }
+
+    private static int stripe(final Key key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    public void invalidate(final String index, final String type, final Long userId, final Long itemId) {
+        final long seq = invalidations.incrementAndGet();
+        if (userId != null) {
+            invalidate(new Key(index, type, true, userId), seq);
+        }
+        if (itemId != null) {
+            invalidate(new Key(index, type, false, itemId), seq);
+        }
+    }
+
+    private void invalidate(final Key key, final long seq) {
+        invalidatedStripes.accumulateAndGet(stripe(key), seq, Math::max);
+        cache.invalidate(key);
+    }
+
+    /**
+     * Invalidates every entry of index/type, or of the index when
+     * {@code type} is {@code null}. Lookups of every index in flight drop
+     * their results.
+     */
+    public void invalidate(final String index, final String type) {
+        invalidatedTypes.accumulateAndGet(invalidations.incrementAndGet(), Math::max);
+        final Iterator<Key> it = cache.keys().iterator();
+        while (it.hasNext()) {
+            final Key key = it.next();
+            if (key.index.equals(index) && (type == null || key.type.equals(type))) {
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    public long ramBytesUsed() {
+        return cache.weight();
+    }
+
+    @Override
+    public void postIndex(final ShardId shardId, final Engine.Index index, final Engine.IndexResult result) {
+        final String indexName = shardId.getIndexName();
+        if (!indices.contains(indexName) || result.getFailure() != null) {
+            return;
+        }
+        Runnable invalidation;
+        try {
+            final Map<String, Object> source = XContentHelper
+                    .convertToMap(index.source(), false, index.parsedDoc().getXContentType())
+                    .v2();
+            final Long userId = toLong(source.get("user_id"));
+            final Long itemId = toLong(source.get("item_id"));
+            if (userId == null && itemId == null) {
+                invalidation = () -> invalidate(indexName, index.type());
+            } else {
+                invalidation = () -> invalidate(indexName, index.type(), userId, itemId);
+            }
+        } catch (final Exception e) {
+            invalidation = () -> invalidate(indexName, index.type());
+        }
+        afterRefresh(shardId, result.getTranslogLocation(), invalidation);
+    }
+
+    @Override
+    public void postDelete(final ShardId shardId, final Engine.Delete delete, final Engine.DeleteResult result) {
+        final String indexName = shardId.getIndexName();
+        if (indices.contains(indexName)) {
+            afterRefresh(shardId, result.getTranslogLocation(), () -> invalidate(indexName, delete.type()));
+        }
+    }
+
+    @Override
+    public void afterIndexShardCreated(final IndexShard indexShard) {
+        shards.put(indexShard.shardId(), new ShardInvalidations(indexShard));
+    }
+
+    @Override
+    public void beforeIndexShardClosed(final ShardId shardId, final IndexShard indexShard, final Settings indexSettings) {
+        final ShardInvalidations closed = shards.remove(shardId);
+        if (closed != null) {
+            closed.runAll();
+        }
+    }
+
+    /**
+     * Runs {@code invalidation} once the write at {@code location} is visible to
+     * searches, or now if the shard or the location is unknown.
+     */
+    private void afterRefresh(final ShardId shardId, final Translog.Location location, final Runnable invalidation) {
+        final ShardInvalidations shard = shards.get(shardId);
+        if (shard == null || location == null) {
+            invalidation.run();
+            return;
+        }
+        shard.add(location, invalidation);
+    }
+
+    /**
+     * Invalidations of one shard waiting for a refresh. {@code waiting} runs
+     * once the refresh listener fires; invalidations of later writes collect
+     * in {@code next} and wait for the refresh after it, so the shard never
+     * holds more than one refresh listener.
+     */
+    private static final class ShardInvalidations {
+        private final IndexShard shard;
+        private List<Runnable> waiting = new ArrayList<>();
+        private List<Runnable> next = new ArrayList<>();
+        private Translog.Location latest;
+        private boolean listening;
+
+        ShardInvalidations(final IndexShard shard) {
+            this.shard = shard;
+        }
+
+        void add(final Translog.Location location, final Runnable invalidation) {
+            synchronized (this) {
+                if (listening) {
+                    next.add(invalidation);
+                    if (latest == null || location.compareTo(latest) > 0) {
+                        latest = location;
+                    }
+                    return;
+                }
+                waiting.add(invalidation);
+                listening = true;
+            }
+            listen(location);
+        }
+
+        private void listen(final Translog.Location location) {
+            try {
+                shard.addRefreshListener(location, forced -> onRefresh());
+            } catch (final Exception e) {
+                onRefresh();
+            }
+        }
+
+        private void onRefresh() {
+            final List<Runnable> visible;
+            final Translog.Location location;
+            synchronized (this) {
+                visible = waiting;
+                waiting = next;
+                next = new ArrayList<>();
+                location = latest;
+                latest = null;
+                listening = !waiting.isEmpty();
+            }
+            visible.forEach(Runnable::run);
+            if (location != null) {
+                listen(location);
+            }
+        }
+
+        void runAll() {
+            final List<Runnable> all = new ArrayList<>();
+            synchronized (this) {
+                all.addAll(waiting);
+                all.addAll(next);
+                waiting.clear();
+                next.clear();
+            }
+            all.forEach(Runnable::run);
+        }
+    }
+
+    private static Long toLong(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof String) {
+            return Long.parseLong((String) value);
+        }
+        return null;
+    }
+
+    private static final class Key {
+        private final String index;
+        private final String type;
+        private final boolean user;
+        private final long id;
+
+        Key(final String index, final String type, final boolean user, final long id) {
+            this.index = index;
+            this.type = type;
+            this.user = user;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return id == other.id && user == other.user && index.equals(other.index) && type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, type, user, id);
+        }
+    }
+}
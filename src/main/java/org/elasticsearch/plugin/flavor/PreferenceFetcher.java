@@ -0,0 +1,38 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.security.InvalidParameterException;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Decides how the preference fields of a hit are fetched and decoded.
+ */
+public interface PreferenceFetcher {
+    public static final String SOURCE = "source";
+    public static final String DOC_VALUES = "doc_values";
+    public static final String STORED_FIELDS = "stored_fields";
+
+    /**
+     * Requests {@code fields} on {@code search} and returns it for chaining.
+     */
+    public SearchRequestBuilder prepare(final SearchRequestBuilder search, final String... fields);
+
+    public long getLong(final SearchHit hit, final String field) throws TasteException;
+
+    public float getFloat(final SearchHit hit, final String field) throws TasteException;
+
+    public String name();
+
+    public static PreferenceFetcher of(final String name) {
+        if (name == null || name.isEmpty() || name.equals(SOURCE)) {
+            return SourcePreferenceFetcher.INSTANCE;
+        } else if (name.equals(DOC_VALUES)) {
+            return DocValuesPreferenceFetcher.INSTANCE;
+        } else if (name.equals(STORED_FIELDS)) {
+            return StoredFieldsPreferenceFetcher.INSTANCE;
+        }
+        throw new InvalidParameterException("Fetch mode has not been supported: " + name);
+    }
+}
@@ -0,0 +1,321 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+import org.apache.logging.log4j.Logger;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Applies preference events to the preloaded models of this node and writes
+ * them behind to their preference index.
+ *
+ * An event is queued on its model, and every {@link #INTERVAL_SETTING} the
+ * queued events of each model are published as one new version, see
+ * {@link ElasticsearchPreloadDataModel#applyPending()}. Once a model serves
+ * more than {@link #COMPACT_THRESHOLD_SETTING} changed users from its overlay,
+ * or holds that many changes not folded yet, the overlay is folded into the
+ * base on the generic pool. Events are indexed
+ * by a {@link BulkProcessor} with {@code user_id_item_id} as {@code _id}, so a
+ * repeated event overwrites the previous one and a removal deletes it; the
+ * model's {@code watermarkField} is set to the time of the event, so delta
+ * refreshes pick it up on other nodes. Preferences indexed by other means may
+ * use any {@code _id}: at each publish, the documents with the user_id and
+ * item_id of an event written since and another {@code _id} are searched with
+ * one multi search and deleted by the same bulk processor.
+ */
+public class PreferenceIngester implements Closeable {
+    public static final Setting<TimeValue> INTERVAL_SETTING =
+            Setting.positiveTimeSetting("flavor.ingest.interval", TimeValue.timeValueMillis(500), Property.NodeScope);
+    public static final Setting<Integer> COMPACT_THRESHOLD_SETTING =
+            Setting.intSetting("flavor.ingest.compact_threshold", 10000, 1, Property.NodeScope);
+    public static final Setting<Integer> BULK_ACTIONS_SETTING =
+            Setting.intSetting("flavor.ingest.bulk_actions", 1000, 1, Property.NodeScope);
+    public static final Setting<TimeValue> FLUSH_INTERVAL_SETTING =
+            Setting.positiveTimeSetting("flavor.ingest.flush_interval", TimeValue.timeValueSeconds(1), Property.NodeScope);
+    public static final Setting<Integer> CONCURRENT_REQUESTS_SETTING =
+            Setting.intSetting("flavor.ingest.concurrent_requests", 1, 0, Property.NodeScope);
+
+    /** Documents of one preference with another {@code _id} deleted per event. */
+    private static final int SUPERSEDED_SIZE = 100;
+
+    private Logger logger = Loggers.getLogger(PreferenceIngester.class);
+
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final DataModelRegistry registry;
+    private final int compactThreshold;
+    private final BulkProcessor bulk;
+    private final Scheduler.Cancellable scheduledPublish;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final int searchBatchSize;
+    private final Queue<Event> written = new ConcurrentLinkedQueue<>();
+
+    public PreferenceIngester(final Settings settings,
+                              final Client client,
+                              final ThreadPool threadPool,
+                              final DataModelRegistry registry) {
+        this.client = client;
+        this.threadPool = threadPool;
+        this.registry = registry;
+        this.searchBatchSize = BULK_ACTIONS_SETTING.get(settings);
+        this.compactThreshold = COMPACT_THRESHOLD_SETTING.get(settings);
+        this.bulk = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(final long executionId, final BulkRequest request) {
+            }
+
+            @Override
+            public void afterBulk(final long executionId, final BulkRequest request, final BulkResponse response) {
+                if (response.hasFailures()) {
+                    int failed = 0;
+                    for (final BulkItemResponse item : response.getItems()) {
+                        if (item.isFailed()) {
+                            failed++;
+                        }
+                    }
+                    logger.warn("Failed to write {} of {} ingested preferences: {}",
+                            failed, request.numberOfActions(), response.buildFailureMessage());
+                }
+            }
+
+            @Override
+            public void afterBulk(final long executionId, final BulkRequest request, final Throwable failure) {
+                logger.error("Failed to write " + request.numberOfActions() + " ingested preferences", failure);
+            }
+        })
+            .setBulkActions(BULK_ACTIONS_SETTING.get(settings))
+            .setFlushInterval(FLUSH_INTERVAL_SETTING.get(settings))
+            .setConcurrentRequests(CONCURRENT_REQUESTS_SETTING.get(settings))
+            .setBackoffPolicy(BackoffPolicy.exponentialBackoff())
+            .build();
+        this.scheduledPublish = threadPool.scheduleWithFixedDelay(this::publish, INTERVAL_SETTING.get(settings),
+                                                                  ThreadPool.Names.GENERIC);
+    }
+
+    /**
+     * A preference change for the preference index {@code index/type}.
+     */
+    public static class Event {
+        private final String index;
+        private final String type;
+        private final OverlayDataModel.Change change;
+
+        public Event(final String index, final String type, final OverlayDataModel.Change change) {
+            this.index = index;
+            this.type = type;
+            this.change = change;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public OverlayDataModel.Change change() {
+            return change;
+        }
+    }
+
+    /**
+     * Parses newline-delimited events
+     * {@code {"index", "type", "user_id", "item_id", "value"}}, or with
+     * {@code "remove": true} instead of a value. {@code index} and {@code type}
+     * default to the ones of the URL.
+     */
+    public static List<Event> parse(final String content, final String defaultIndex, final String defaultType) {
+        final List<Event> events = new ArrayList<>();
+        final Gson gson = new Gson();
+        int lineNumber = 0;
+        for (final String line : content.split("\n")) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            final JsonObject json;
+            try {
+                json = gson.fromJson(line, JsonObject.class);
+            } catch (final JsonSyntaxException e) {
+                throw new IllegalArgumentException("Malformed event on line " + lineNumber + ".", e);
+            }
+            final String index = json.has("index") ? json.get("index").getAsString() : defaultIndex;
+            final String type = json.has("type") ? json.get("type").getAsString() : defaultType;
+            final JsonElement userId = json.get("user_id");
+            final JsonElement itemId = json.get("item_id");
+            final JsonElement value = json.get("value");
+            final boolean remove = json.has("remove") && json.get("remove").getAsBoolean();
+            if (index == null || type == null || userId == null || itemId == null || (value == null && !remove)) {
+                throw new IllegalArgumentException("Event on line " + lineNumber
+                        + " needs an index, a type, a user_id, an item_id and a value or \"remove\": true.");
+            }
+            events.add(new Event(index, type, remove
+                    ? OverlayDataModel.Change.remove(userId.getAsLong(), itemId.getAsLong())
+                    : OverlayDataModel.Change.set(userId.getAsLong(), itemId.getAsLong(), value.getAsFloat())));
+        }
+        return events;
+    }
+
+    /**
+     * Queues the event on the preloaded model of {@code index/type}, if there
+     * is one, and adds it to the next bulk request.
+     *
+     * @return the model the event was queued on, or {@code null}
+     */
+    public ElasticsearchPreloadDataModel ingest(final String index,
+                                                final String type,
+                                                final OverlayDataModel.Change change) {
+        final ElasticsearchPreloadDataModel model = preloaded(index, type);
+        if (model != null) {
+            model.enqueue(change);
+        }
+        final String id = id(change);
+        written.add(new Event(index, type, change));
+        if (change.isRemove()) {
+            bulk.add(new DeleteRequest(index, type, id));
+            return model;
+        }
+        final Map<String, Object> source = new HashMap<>();
+        source.put("user_id", change.userId());
+        source.put("item_id", change.itemId());
+        source.put("value", change.value());
+        if (model != null && model.watermarkField() != null) {
+            source.put(model.watermarkField(), System.currentTimeMillis());
+        }
+        bulk.add(new IndexRequest(index, type, id).source(source));
+        return model;
+    }
+
+    private static String id(final OverlayDataModel.Change change) {
+        return change.userId() + "_" + change.itemId();
+    }
+
+    private ElasticsearchPreloadDataModel preloaded(final String index, final String type) {
+        final ElasticsearchPreloadDataModelFactory factory = registry.get(index, type);
+        final DataModel dataModel = factory == null ? null : factory.dataModel();
+        return dataModel instanceof ElasticsearchPreloadDataModel ? (ElasticsearchPreloadDataModel) dataModel : null;
+    }
+
+    /**
+     * Publishes the queued events of every preloaded model, starts a
+     * compaction for the first model over the threshold, and deletes the
+     * documents superseded by the events written since the last publish.
+     */
+    void publish() {
+        deleteSuperseded();
+        for (final ElasticsearchPreloadDataModelFactory factory : registry.list()) {
+            final DataModel dataModel = factory.dataModel();
+            if (!(dataModel instanceof ElasticsearchPreloadDataModel)) {
+                continue;
+            }
+            final ElasticsearchPreloadDataModel model = (ElasticsearchPreloadDataModel) dataModel;
+            try {
+                model.applyPending();
+            } catch (final Exception e) {
+                logger.error("Failed to apply ingested preferences to " + factory.index() + "/" + factory.type(), e);
+                continue;
+            }
+            if ((model.overlaySize() >= compactThreshold || model.unfoldedChanges() >= compactThreshold)
+                    && compacting.compareAndSet(false, true)) {
+                threadPool.generic().execute(() -> {
+                    try {
+                        model.compact();
+                    } catch (final Exception e) {
+                        logger.error("Failed to compact " + factory.index() + "/" + factory.type(), e);
+                    } finally {
+                        compacting.set(false);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Searches the documents of the preferences of the written events that do
+     * not have the {@code _id} of the write-behind, {@link #searchBatchSize}
+     * events per multi search, and deletes them.
+     */
+    private void deleteSuperseded() {
+        while (!written.isEmpty()) {
+            final List<Event> events = new ArrayList<>();
+            Event event;
+            while (events.size() < searchBatchSize && (event = written.poll()) != null) {
+                events.add(event);
+            }
+            final MultiSearchRequestBuilder search = client.prepareMultiSearch();
+            for (final Event e : events) {
+                search.add(client.prepareSearch(e.index())
+                        .setTypes(e.type())
+                        // the write-behind may not have created the index yet
+                        .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                        .setQuery(QueryBuilders.boolQuery()
+                                .filter(QueryBuilders.termQuery("user_id", e.change().userId()))
+                                .filter(QueryBuilders.termQuery("item_id", e.change().itemId()))
+                                .mustNot(QueryBuilders.idsQuery().addIds(id(e.change()))))
+                        .setFetchSource(false)
+                        .setSize(SUPERSEDED_SIZE));
+            }
+            search.execute(ActionListener.wrap(response -> {
+                for (final MultiSearchResponse.Item item : response.getResponses()) {
+                    if (item.isFailure()) {
+                        logger.warn("Failed to search preferences superseded by ingested ones: {}", item.getFailureMessage());
+                        continue;
+                    }
+                    for (final SearchHit hit : item.getResponse().getHits().getHits()) {
+                        final DocumentField routing = hit.field("_routing");
+                        bulk.add(new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId())
+                                .routing(routing == null ? null : routing.getValue()));
+                    }
+                }
+            }, e -> logger.warn("Failed to search preferences superseded by " + events.size() + " ingested ones", e)));
+        }
+    }
+
+    /**
+     * Stops publishing and waits up to ten seconds for pending writes.
+     */
+    @Override
+    public void close() {
+        scheduledPublish.cancel();
+        try {
+            bulk.awaitClose(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
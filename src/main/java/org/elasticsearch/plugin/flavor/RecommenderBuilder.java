@@ -4,9 +4,12 @@ import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.logging.Loggers;
 
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.recommender.UserBasedRecommender;
 import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.CandidateItemsStrategy;
+import org.apache.mahout.cf.taste.recommender.MostSimilarItemsCandidateItemsStrategy;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
 import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
@@ -19,6 +22,7 @@ import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
 import org.apache.mahout.cf.taste.impl.neighborhood.ThresholdUserNeighborhood;
 import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
 import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.recommender.AllSimilarItemsCandidateItemsStrategy;
 
 public class RecommenderBuilder {
     private Logger logger = Loggers.getLogger(FlavorRestAction.class);
@@ -26,7 +30,16 @@ public class RecommenderBuilder {
     private String neighborhoodName = "NearestNUserNeighborhood";
     private int neighborhoodNearestN = 10;
     private double neighborhoodThreshold = 0.1;
+    private String neighborhoodScan = "all";
+    private int neighborhoodCandidates = 0;
+    private int maxItemsPerUser = 0;
+    private int maxUsersPerItem = 0;
+    private int maxCandidateItems = 0;
     private DataModel dataModel;
+    private SimilarityIndex similarityIndex;
+    private ParallelScorer parallelScorer;
+    private int cacheSize = 0;
+    private Caches caches;
 
     public static RecommenderBuilder builder() {
         return new RecommenderBuilder();
@@ -57,67 +70,276 @@ public class RecommenderBuilder {
         return this;
     }
 
-    public UserBasedRecommender userBasedRecommender() throws TasteException {
-        UserSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+    /**
+     * {@code all} scores every user of the model for a user neighborhood;
+     * {@code co_rated} only the users sharing an item with the target, see
+     * {@link CoRatingUserNeighborhood}.
+     */
+    public RecommenderBuilder neighborhoodScan(final String scan) {
+        this.neighborhoodScan = scan;
+        return this;
+    }
+
+    /**
+     * With {@code co_rated}, scores at most this many users, those sharing the
+     * most items first. {@code 0} scores all of them.
+     */
+    public RecommenderBuilder neighborhoodCandidates(final int max) {
+        this.neighborhoodCandidates = max;
+        return this;
+    }
+
+    public RecommenderBuilder maxItemsPerUser(final int max) {
+        this.maxItemsPerUser = max;
+        return this;
+    }
+
+    public RecommenderBuilder maxUsersPerItem(final int max) {
+        this.maxUsersPerItem = max;
+        return this;
+    }
+
+    public RecommenderBuilder maxCandidateItems(final int max) {
+        this.maxCandidateItems = max;
+        return this;
+    }
+
+    /**
+     * Scores item-based recommendations from precomputed neighbors instead of
+     * the configured similarity.
+     */
+    public RecommenderBuilder similarityIndex(final SimilarityIndex similarityIndex) {
+        this.similarityIndex = similarityIndex;
+        return this;
+    }
+
+    /**
+     * Scores the candidates of item-based recommendations with
+     * {@code parallelScorer}, in parallel for users with large histories.
+     * Results are the same with or without it.
+     */
+    public RecommenderBuilder parallelScorer(final ParallelScorer parallelScorer) {
+        this.parallelScorer = parallelScorer;
+        return this;
+    }
+
+    /**
+     * Caches up to {@code size} pairwise similarities and, for user-based
+     * recommenders, user neighborhoods, so a recommender shared between requests
+     * reuses them. {@code 0} disables caching.
+     */
+    public RecommenderBuilder cacheSize(final int size) {
+        this.cacheSize = size;
+        return this;
+    }
+
+    /**
+     * The caches of the last recommender built with a {@link #cacheSize(int)},
+     * or {@code null}.
+     */
+    public Caches caches() {
+        return caches;
+    }
+
+    /**
+     * Identifies the recommender this builder makes for its data model, so equal
+     * configurations can share one instance.
+     */
+    public String key() {
+        final String similarity = similarityName == null || similarityName.isEmpty()
+                ? "PearsonCorrelationSimilarity" : similarityName;
+        final String neighborhood = neighborhoodName == null || neighborhoodName.isEmpty()
+                ? "NearestNUserNeighborhood" : neighborhoodName;
+        final String scan = neighborhoodScan == null || neighborhoodScan.isEmpty() ? "all" : neighborhoodScan;
+        return similarity + "/" + neighborhood + "/" + neighborhoodNearestN + "/" + neighborhoodThreshold
+                + "/" + scan + "/" + neighborhoodCandidates
+                + "/" + maxItemsPerUser + "/" + maxUsersPerItem + "/" + maxCandidateItems
+                + "/" + (similarityIndex == null ? 0 : similarityIndex.version());
+    }
+
+    public RecommenderBuilder fanOutLimits(final FanOutLimits limits) {
+        return maxItemsPerUser(limits.maxItemsPerUser())
+                .maxUsersPerItem(limits.maxUsersPerItem())
+                .maxCandidateItems(limits.maxCandidateItems());
+    }
+
+    private FanOutLimits limits() {
+        return new FanOutLimits(maxItemsPerUser, maxUsersPerItem, maxCandidateItems);
+    }
+
+    public UserSimilarity userSimilarity() throws TasteException {
         if (similarityName == null || similarityName.isEmpty()) {
             this.similarityName = "PearsonCorrelationSimilarity";
         }
 
+        final CsrSimilarity.Metric metric = CsrSimilarity.Metric.of(similarityName);
+        if (dataModel instanceof AbstractCsrDataModel && (metric == CsrSimilarity.Metric.PEARSON
+                                                          || metric == CsrSimilarity.Metric.EUCLIDEAN)) {
+            return new CsrSimilarity((AbstractCsrDataModel) dataModel, metric);
+        }
+
         if (similarityName.equals("PearsonCorrelationSimilarity")) {
-            similarity = new PearsonCorrelationSimilarity(dataModel);
+            return new PearsonCorrelationSimilarity(dataModel);
 
         } else if (similarityName.equals("EuclideanDistanceSimilarity")) {
-            similarity = new EuclideanDistanceSimilarity(dataModel);
+            return new EuclideanDistanceSimilarity(dataModel);
             
-        } else {
-            throw new TasteException("UserSimilarity algorithm has not been supported: " + similarityName);
         }
-            
-        UserNeighborhood neighborhood = new NearestNUserNeighborhood(10, similarity, dataModel);
+        throw new TasteException("UserSimilarity algorithm has not been supported: " + similarityName);
+    }
+
+    public UserNeighborhood userNeighborhood(final UserSimilarity similarity) throws TasteException {
         if (neighborhoodName == null || neighborhoodName.isEmpty()) {
             this.neighborhoodName = "NearestNUserNeighborhood";
         }
 
+        if ("co_rated".equals(neighborhoodScan)) {
+            if (neighborhoodName.equals("NearestNUserNeighborhood")) {
+                return new CoRatingUserNeighborhood(neighborhoodNearestN, Double.NEGATIVE_INFINITY,
+                                                    similarity, dataModel, neighborhoodCandidates, limits());
+            } else if (neighborhoodName.equals("ThresholdUserNeighborhood")) {
+                return new CoRatingUserNeighborhood(Integer.MAX_VALUE, neighborhoodThreshold,
+                                                    similarity, dataModel, neighborhoodCandidates, limits());
+            }
+        } else if (neighborhoodScan != null && !neighborhoodScan.isEmpty() && !neighborhoodScan.equals("all")) {
+            throw new TasteException("UserNeighborhood scan has not been supported: " + neighborhoodScan);
+        }
+
         if (neighborhoodName.equals("NearestNUserNeighborhood")) {
-            neighborhood = new NearestNUserNeighborhood(neighborhoodNearestN,
-                                                        similarity,
-                                                        dataModel);
+            return new NearestNUserNeighborhood(neighborhoodNearestN,
+                                                similarity,
+                                                dataModel);
             
         } else if (neighborhoodName.equals("ThresholdUserNeighborhood")) {
-            neighborhood = new ThresholdUserNeighborhood(neighborhoodThreshold,
-                                                         similarity,
-                                                         dataModel);
+            return new ThresholdUserNeighborhood(neighborhoodThreshold,
+                                                 similarity,
+                                                 dataModel);
             
-        } else {
-            throw new TasteException("UserNeighborhood algorithm has not been supported: " + neighborhoodName);
         }
+        throw new TasteException("UserNeighborhood algorithm has not been supported: " + neighborhoodName);
+    }
 
-        similarity.setPreferenceInferrer(new AveragingPreferenceInferrer(dataModel));
+    public UserBasedRecommender userBasedRecommender() throws TasteException {
+        UserSimilarity similarity = userSimilarity();
+        final AveragingPreferenceInferrer inferrer = new AveragingPreferenceInferrer(dataModel);
+        similarity.setPreferenceInferrer(inferrer);
+        if (cacheSize > 0) {
+            similarity = CachingSimilarity.ofUsers(similarity, cacheSize);
+        }
+        UserNeighborhood neighborhood = userNeighborhood(similarity);
+        if (cacheSize > 0) {
+            neighborhood = new BoundedCachingUserNeighborhood(neighborhood, cacheSize);
+            caches = new Caches((CachingSimilarity) similarity, (BoundedCachingUserNeighborhood) neighborhood, inferrer);
+        }
+
+        if (maxCandidateItems > 0) {
+            final int max = maxCandidateItems;
+            return new GenericUserBasedRecommender(dataModel, neighborhood, similarity) {
+                @Override
+                protected FastIDSet getAllOtherItems(final long[] theNeighborhood, final long theUserID) throws TasteException {
+                    final FastIDSet items = super.getAllOtherItems(theNeighborhood, theUserID);
+                    if (items.size() <= max) {
+                        return items;
+                    }
+                    return new FastIDSet(FanOutLimits.sample(items.toArray(), max, theUserID));
+                }
+            };
+        }
         return new GenericUserBasedRecommender(dataModel, neighborhood, similarity);
     }
 
-    public ItemBasedRecommender itemBasedRecommender() throws TasteException {
-        ItemSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+    public ItemSimilarity itemSimilarity() throws TasteException {
         if (similarityName == null || similarityName.isEmpty()) {
             this.similarityName = "PearsonCorrelationSimilarity";
         }
 
+        final CsrSimilarity.Metric metric = CsrSimilarity.Metric.of(similarityName);
+        if (dataModel instanceof AbstractCsrDataModel && metric != null) {
+            // merges the sorted rows of the model directly
+            return new CsrSimilarity((AbstractCsrDataModel) dataModel, metric);
+        }
+
         if (similarityName.equals("PearsonCorrelationSimilarity")) {
-            similarity = new PearsonCorrelationSimilarity(dataModel);
+            return new PearsonCorrelationSimilarity(dataModel);
             
         } else if (similarityName.equals("EuclideanDistanceSimilarity")) {
-            similarity = new EuclideanDistanceSimilarity(dataModel);
+            return new EuclideanDistanceSimilarity(dataModel);
             
         } else if (similarityName.equals("LogLikelihoodSimilarity")) {
-            similarity = new LogLikelihoodSimilarity(dataModel);
+            return new LogLikelihoodSimilarity(dataModel);
             
         } else if (similarityName.equals("TanimotoCoefficientSimilarity")) {
-            similarity = new TanimotoCoefficientSimilarity(dataModel);
+            return new TanimotoCoefficientSimilarity(dataModel);
             
-        } else {
-            throw new TasteException("ItemSimilarity algorithm not support: " + similarityName);
+        }
+        throw new TasteException("ItemSimilarity algorithm not support: " + similarityName);
+    }
+
+    public ItemBasedRecommender itemBasedRecommender() throws TasteException {
+        if (similarityIndex != null) {
+            // candidates are the precomputed neighbors of the user's items
+            final AllSimilarItemsCandidateItemsStrategy strategy = new AllSimilarItemsCandidateItemsStrategy(similarityIndex);
+            return itemBasedRecommender(similarityIndex, strategy, strategy);
+        }
+        final ItemSimilarity similarity = cacheSize > 0
+                ? CachingSimilarity.ofItems(itemSimilarity(), cacheSize)
+                : itemSimilarity();
+        if (cacheSize > 0) {
+            caches = new Caches((CachingSimilarity) similarity, null, null);
+        }
+        final FanOutLimits limits = limits();
+        if (limits.isLimited()) {
+            final CappedCandidateItemsStrategy strategy = new CappedCandidateItemsStrategy(limits);
+            return itemBasedRecommender(similarity, strategy, strategy);
+        }
+        if (parallelScorer != null) {
+            return new ParallelItemBasedRecommender(dataModel, similarity, parallelScorer);
         }
         return new GenericItemBasedRecommender(dataModel, similarity);
     }
-    
+
+    private ItemBasedRecommender itemBasedRecommender(final ItemSimilarity similarity,
+                                                      final CandidateItemsStrategy candidateItemsStrategy,
+                                                      final MostSimilarItemsCandidateItemsStrategy mostSimilarItemsCandidateItemsStrategy) {
+        if (parallelScorer != null) {
+            return new ParallelItemBasedRecommender(dataModel, similarity, candidateItemsStrategy,
+                                                    mostSimilarItemsCandidateItemsStrategy, parallelScorer);
+        }
+        return new GenericItemBasedRecommender(dataModel, similarity, candidateItemsStrategy, mostSimilarItemsCandidateItemsStrategy);
+    }
+
+    /**
+     * What a recommender built with a {@link #cacheSize(int)} remembers about
+     * its data model, so it can keep serving a model that changes.
+     */
+    public static class Caches {
+        private final CachingSimilarity similarity;
+        private final BoundedCachingUserNeighborhood neighborhood;
+        private final AveragingPreferenceInferrer inferrer;
+
+        Caches(final CachingSimilarity similarity,
+               final BoundedCachingUserNeighborhood neighborhood,
+               final AveragingPreferenceInferrer inferrer) {
+            this.similarity = similarity;
+            this.neighborhood = neighborhood;
+            this.inferrer = inferrer;
+        }
+
+        /**
+         * Drops what depends on the preferences of {@code userIds} and
+         * {@code itemIds}: their cached similarities, the average preferences
+         * and every neighborhood, since any of them may now include or leave
+         * out a changed user.
+         */
+        public void forget(final FastIDSet userIds, final FastIDSet itemIds) {
+            if (neighborhood != null) {
+                similarity.forget(userIds);
+                neighborhood.clear();
+                inferrer.refresh(null);
+            } else {
+                similarity.forget(itemIds);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,133 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.apache.mahout.cf.taste.recommender.UserBasedRecommender;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+
+/**
+ * Recommenders of one preloaded model, shared between requests with the same
+ * {@link RecommenderBuilder#key()}. Each one caches up to
+ * {@link #SIMILARITY_CACHE_SIZE} pairwise similarities and neighborhoods, so
+ * hot users and items are only compared once until their preferences change.
+ *
+ * Recommenders read the model currently served, and a newer version only drops
+ * what depends on the users and items it changed, see
+ * {@link RecommenderBuilder.Caches#forget(FastIDSet, FastIDSet)}, as long as
+ * {@link ElasticsearchPreloadDataModel#deltaSince(long)} knows them; after a
+ * reload, every recommender is dropped. A similarity computed from the previous
+ * version by a request running across the swap may stay cached until its users
+ * or items change again. Compact models are the exception: recommenders are
+ * built on the data of one version, so their similarities can merge its rows
+ * directly, and are dropped the first time a newer version is seen. Requests
+ * still holding an older version get a recommender that is not cached.
+ */
+public class RecommenderCache {
+    public static final int MAX_RECOMMENDERS = 16;
+    public static final int SIMILARITY_CACHE_SIZE = 100000;
+
+    private final ElasticsearchPreloadDataModel model;
+    private final Cache<String, Cached> recommenders = CacheBuilder.<String, Cached>builder()
+            .setMaximumWeight(MAX_RECOMMENDERS)
+            .build();
+    private long version = -1;
+
+    public RecommenderCache(final ElasticsearchPreloadDataModel model) {
+        this.model = model;
+    }
+
+    public UserBasedRecommender userBased(final RecommenderBuilder builder) throws TasteException {
+        return (UserBasedRecommender) get("user/", builder, true);
+    }
+
+    public ItemBasedRecommender itemBased(final RecommenderBuilder builder) throws TasteException {
+        return (ItemBasedRecommender) get("item/", builder, false);
+    }
+
+    private Recommender get(final String kind, final RecommenderBuilder builder, final boolean userBased) throws TasteException {
+        final DataModel dataModel;
+        final long current;
+        synchronized (model) {
+            dataModel = model.delegate();
+            current = model.version();
+        }
+        final boolean live = !(dataModel instanceof AbstractCsrDataModel);
+        builder.dataModel(live ? model : dataModel).cacheSize(SIMILARITY_CACHE_SIZE);
+        synchronized (this) {
+            if (current > version) {
+                forget(version);
+                version = current;
+            } else if (current < version) {
+                builder.dataModel(dataModel).cacheSize(0);
+                return userBased ? builder.userBasedRecommender() : builder.itemBasedRecommender();
+            }
+        }
+        // the version keeps a recommender built on one version from being reused after a swap
+        final String key = (live ? "live" : Long.toString(current)) + "/" + kind + builder.key();
+        try {
+            return recommenders.computeIfAbsent(key, k -> {
+                final Recommender recommender = userBased ? builder.userBasedRecommender() : builder.itemBasedRecommender();
+                return new Cached(recommender, live ? builder.caches() : null);
+            }).recommender;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof TasteException) {
+                throw (TasteException) e.getCause();
+            }
+            throw new TasteException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops the recommenders built on one version, and what the others
+     * remember about the users and items changed since {@code fromVersion}, or
+     * all of them when the changes are not known. Call it holding this
+     * object's monitor.
+     */
+    private void forget(final long fromVersion) {
+        final ElasticsearchPreloadDataModel.Delta delta = model.deltaSince(fromVersion);
+        if (delta == null) {
+            recommenders.invalidateAll();
+            return;
+        }
+        final List<String> keys = new ArrayList<>();
+        recommenders.keys().forEach(keys::add);
+        for (final String key : keys) {
+            final Cached cached = recommenders.get(key);
+            if (cached == null) {
+                continue;
+            }
+            if (cached.caches == null) {
+                recommenders.invalidate(key);
+            } else {
+                cached.caches.forget(delta.userIds(), delta.itemIds());
+            }
+        }
+    }
+
+    public int count() {
+        return recommenders.count();
+    }
+
+    public synchronized void clear() {
+        recommenders.invalidateAll();
+    }
+
+    private static class Cached {
+        private final Recommender recommender;
+        // null for a recommender built on one version
+        private final RecommenderBuilder.Caches caches;
+
+        Cached(final Recommender recommender, final RecommenderBuilder.Caches caches) {
+            this.recommender = recommender;
+            this.caches = caches;
+        }
+    }
+}
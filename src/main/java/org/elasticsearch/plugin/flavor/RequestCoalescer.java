@@ -0,0 +1,88 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.rest.RestChannel;
+
+/**
+ * Single-flight table of recommendation requests. The first request for a key
+ * computes the result; identical requests arriving before it is done wait for
+ * that result instead of starting their own scroll and scoring.
+ *
+ * Joining and completing a key are atomic with respect to each other, so a
+ * request either waits for a flight that has not completed yet or leads a new one.
+ */
+public class RequestCoalescer {
+
+    /**
+     * A request waiting for the result of another one.
+     */
+    public static class Waiter {
+        private final RestChannel channel;
+        private final long startTime;
+
+        Waiter(final RestChannel channel, final long startTime) {
+            this.channel = channel;
+            this.startTime = startTime;
+        }
+
+        public RestChannel channel() {
+            return channel;
+        }
+
+        public long startTime() {
+            return startTime;
+        }
+    }
+
+    private final ConcurrentMap<String, List<Waiter>> flights = ConcurrentCollections.newConcurrentMap();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Starts a flight for {@code key}, or attaches the request to the one in
+     * progress.
+     *
+     * @return {@code true} if the caller leads the flight and has to compute the
+     *         result, {@code false} if it will be answered by the leader
+     */
+    public boolean join(final String key, final RestChannel channel, final long startTime) {
+        final boolean[] leader = new boolean[1];
+        flights.compute(key, (k, waiters) -> {
+            if (waiters == null) {
+                leader[0] = true;
+                return new ArrayList<Waiter>();
+            }
+            waiters.add(new Waiter(channel, startTime));
+            return waiters;
+        });
+        if (!leader[0]) {
+            coalesced.incrementAndGet();
+        }
+        return leader[0];
+    }
+
+    /**
+     * Ends the flight for {@code key}; later requests start a new one.
+     *
+     * @return the requests to answer with the leader's result
+     */
+    public List<Waiter> complete(final String key) {
+        final List<Waiter> waiters = flights.remove(key);
+        return waiters == null ? Collections.<Waiter>emptyList() : waiters;
+    }
+
+    /** Number of flights in progress. */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    /** Number of requests answered by another request's computation. */
+    public long coalesced() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,178 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.rest.RestRequest;
+
+/**
+ * Node-level cache of rendered recommendations keyed on the request parameters
+ * and the generation of the data they were computed from: the version of a
+ * preloaded model, or the {@link #generation(Client, String)} of the preference
+ * index. A new generation simply stops matching old entries, which then age out
+ * through LRU eviction or {@link #EXPIRE_SETTING}.
+ */
+public class ResultCache {
+    public static final Setting<ByteSizeValue> SIZE_SETTING =
+            Setting.memorySizeSetting("flavor.result_cache.size", "1%", Property.NodeScope);
+    public static final Setting<TimeValue> EXPIRE_SETTING =
+            Setting.timeSetting("flavor.result_cache.expire", TimeValue.timeValueMinutes(1), Property.NodeScope);
+    public static final Setting<TimeValue> GENERATION_INTERVAL_SETTING =
+            Setting.timeSetting("flavor.result_cache.generation_interval", TimeValue.timeValueSeconds(1), Property.NodeScope);
+
+    private static final String[] KEY_PARAMS = {
+        "index", "type", "operation", "id", "size",
+        "similarity", "neighborhood", "neighborhoodN", "neighborhoodThreshold",
+        "fetch", "engine", "candidates", "targetItems",
+        "maxItemsPerUser", "maxUsersPerItem", "maxCandidateItems", "precomputed", "factorized",
+        "approximate", "neighborhoodScan", "neighborhoodCandidates"
+    };
+
+    // entry, key and list headers
+    private static final long ENTRY_OVERHEAD = 256;
+    // RecommendedItem object with its reference in the list
+    private static final long ITEM_BYTES = 32;
+
+    /**
+     * Items or user IDs answered by one request.
+     */
+    public static class Result {
+        private final List<RecommendedItem> items;
+        private final long[] userIds;
+
+        public Result(final List<RecommendedItem> items) {
+            this.items = items;
+            this.userIds = null;
+        }
+
+        public Result(final long[] userIds) {
+            this.items = null;
+            this.userIds = userIds;
+        }
+
+        public List<RecommendedItem> items() {
+            return items;
+        }
+
+        public long[] userIds() {
+            return userIds;
+        }
+
+        long weight() {
+            return items != null ? items.size() * ITEM_BYTES : userIds.length * (long) Long.BYTES;
+        }
+    }
+
+    private static final class Generation {
+        private final long value;
+        private final long time;
+
+        Generation(final long value, final long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private final Cache<String, Result> cache;
+    private final boolean enabled;
+    private final long generationInterval;
+    private final ConcurrentMap<String, Generation> generations = ConcurrentCollections.newConcurrentMap();
+
+    public ResultCache(final Settings settings) {
+        this(SIZE_SETTING.get(settings).getBytes(), EXPIRE_SETTING.get(settings), GENERATION_INTERVAL_SETTING.get(settings));
+    }
+
+    public ResultCache(final long maximumWeight, final TimeValue expire) {
+        this(maximumWeight, expire, GENERATION_INTERVAL_SETTING.getDefault(Settings.EMPTY));
+    }
+
+    public ResultCache(final long maximumWeight, final TimeValue expire, final TimeValue generationInterval) {
+        this.enabled = maximumWeight > 0;
+        this.generationInterval = generationInterval.millis();
+        final CacheBuilder<String, Result> builder = CacheBuilder.<String, Result>builder()
+                .setMaximumWeight(Math.max(1, maximumWeight))
+                .weigher((key, value) -> ENTRY_OVERHEAD + key.length() * 2L + value.weight());
+        if (expire.millis() > 0) {
+            builder.setExpireAfterWrite(expire);
+        }
+        this.cache = builder.build();
+    }
+
+    public static String key(final RestRequest request, final String generation) {
+        final StringBuilder key = new StringBuilder(generation);
+        for (final String param : KEY_PARAMS) {
+            key.append('\u0000').append(request.param(param, ""));
+        }
+        return key.toString();
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Refresh count of the primaries of {@code index}, summed over the cluster by
+     * the indices stats API. Preferences written through any node only become
+     * searchable with a refresh, so results of the dynamic engines computed
+     * before it no longer match. Polled at most once per
+     * {@link #GENERATION_INTERVAL_SETTING} and index; changes within the interval
+     * are served from the cache until the next poll.
+     */
+    public long generation(final Client client, final String index) {
+        if (index == null) {
+            return 0;
+        }
+        final long now = System.currentTimeMillis();
+        final Generation current = generations.get(index);
+        if (current != null && now - current.time < generationInterval) {
+            return current.value;
+        }
+        final IndicesStatsResponse stats = client
+            .admin()
+            .indices()
+            .prepareStats(index)
+            .clear()
+            .setRefresh(true)
+            .get();
+        final long value = stats.getPrimaries().getRefresh().getTotal();
+        generations.put(index, new Generation(value, now));
+        return value;
+    }
+
+    public Result get(final String key) {
+        return enabled ? cache.get(key) : null;
+    }
+
+    public void put(final String key, final Result result) {
+        if (enabled) {
+            cache.put(key, result);
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    public long ramBytesUsed() {
+        return cache.weight();
+    }
+}
@@ -0,0 +1,295 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+
+/**
+ * Top-K most similar items of every item of a preloaded model, computed ahead
+ * of time under one similarity. Neighbor lists are stored back to back in
+ * primitive arrays, best first, so {@link #mostSimilarItems(long, int)} is a
+ * binary search and a copy.
+ *
+ * As an {@link ItemSimilarity} it answers with the stored value for pairs in a
+ * neighbor list and {@code NaN} otherwise, which lets an item-based recommender
+ * score from the index instead of recomputing similarities.
+ */
+public class SimilarityIndex implements ItemSimilarity, Accountable {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final String similarity;
+    private final int k;
+    private final long modelVersion;
+    private final long version;
+    private final long[] itemIds;
+    private final int[] offsets;
+    private final long[] neighbors;
+    private final float[] values;
+
+    private SimilarityIndex(final String similarity,
+                            final int k,
+                            final long modelVersion,
+                            final long[] itemIds,
+                            final int[] offsets,
+                            final long[] neighbors,
+                            final float[] values) {
+        this.similarity = similarity;
+        this.k = k;
+        this.modelVersion = modelVersion;
+        this.version = VERSIONS.incrementAndGet();
+        this.itemIds = itemIds;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.values = values;
+    }
+
+    /**
+     * Computes the top {@code k} neighbors of every item of {@code dataModel}.
+     * Items are split into {@code parallelism} ranges run on {@code executor};
+     * the calling thread waits for all of them, so it must not be one of the
+     * executor's threads when that executor is bounded.
+     *
+     * Candidates of an item are the items co-rated by one of its users; items
+     * never rated together have no defined similarity.
+     */
+    public static SimilarityIndex build(final DataModel dataModel,
+                                        final ItemSimilarity itemSimilarity,
+                                        final String similarity,
+                                        final int k,
+                                        final long modelVersion,
+                                        final Executor executor,
+                                        final int parallelism) throws TasteException {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive.");
+        }
+        final long[] itemIds = new long[dataModel.getNumItems()];
+        final LongPrimitiveIterator it = dataModel.getItemIDs();
+        for (int i = 0; i < itemIds.length && it.hasNext(); i++) {
+            itemIds[i] = it.nextLong();
+        }
+        Arrays.sort(itemIds);
+
+        final int ranges = Math.max(1, Math.min(parallelism, itemIds.length));
+        final long[][] rangeNeighbors = new long[ranges][];
+        final float[][] rangeValues = new float[ranges][];
+        final int[][] rangeCounts = new int[ranges][];
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch done = new CountDownLatch(ranges);
+        for (int r = 0; r < ranges; r++) {
+            final int range = r;
+            final int from = (int) ((long) itemIds.length * r / ranges);
+            final int to = (int) ((long) itemIds.length * (r + 1) / ranges);
+            executor.execute(() -> {
+                try {
+                    final int[] counts = new int[to - from];
+                    final long[] ns = new long[(to - from) * k];
+                    final float[] vs = new float[(to - from) * k];
+                    int p = 0;
+                    for (int i = from; i < to && failure.get() == null; i++) {
+                        final int count = topK(dataModel, itemSimilarity, itemIds[i], k, ns, vs, p);
+                        counts[i - from] = count;
+                        p += count;
+                    }
+                    rangeNeighbors[range] = Arrays.copyOf(ns, p);
+                    rangeValues[range] = Arrays.copyOf(vs, p);
+                    rangeCounts[range] = counts;
+                } catch (final Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TasteException("Interrupted while building the similarity index.", e);
+        }
+        if (failure.get() != null) {
+            throw new TasteException("Failed to build the similarity index.", failure.get());
+        }
+
+        int total = 0;
+        for (int r = 0; r < ranges; r++) {
+            total += rangeNeighbors[r].length;
+        }
+        final int[] offsets = new int[itemIds.length + 1];
+        final long[] neighbors = new long[total];
+        final float[] values = new float[total];
+        int item = 0;
+        int p = 0;
+        for (int r = 0; r < ranges; r++) {
+            System.arraycopy(rangeNeighbors[r], 0, neighbors, p, rangeNeighbors[r].length);
+            System.arraycopy(rangeValues[r], 0, values, p, rangeValues[r].length);
+            p += rangeNeighbors[r].length;
+            for (final int count : rangeCounts[r]) {
+                offsets[item + 1] = offsets[item] + count;
+                item++;
+            }
+        }
+        return new SimilarityIndex(similarity, k, modelVersion, itemIds, offsets, neighbors, values);
+    }
+
+    /**
+     * Writes the best {@code k} neighbors of {@code itemId} at {@code offset},
+     * best first, and returns how many were written.
+     */
+    private static int topK(final DataModel dataModel,
+                            final ItemSimilarity itemSimilarity,
+                            final long itemId,
+                            final int k,
+                            final long[] neighbors,
+                            final float[] values,
+                            final int offset) throws TasteException {
+        final FastIDSet candidates = new FastIDSet();
+        final PreferenceArray users = dataModel.getPreferencesForItem(itemId);
+        for (int u = 0; u < users.length(); u++) {
+            final PreferenceArray items = dataModel.getPreferencesFromUser(users.getUserID(u));
+            for (int i = 0; i < items.length(); i++) {
+                candidates.add(items.getItemID(i));
+            }
+        }
+        candidates.remove(itemId);
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        final long[] candidateIds = candidates.toArray();
+        final double[] similarities = itemSimilarity.itemSimilarities(itemId, candidateIds);
+        int count = 0;
+        for (int c = 0; c < candidateIds.length; c++) {
+            final float value = (float) similarities[c];
+            if (Float.isNaN(value) || (count == k && value <= values[offset + k - 1])) {
+                continue;
+            }
+            // insertion into the sorted window, dropping the worst when full
+            int i = count == k ? k - 1 : count++;
+            while (i > 0 && values[offset + i - 1] < value) {
+                neighbors[offset + i] = neighbors[offset + i - 1];
+                values[offset + i] = values[offset + i - 1];
+                i--;
+            }
+            neighbors[offset + i] = candidateIds[c];
+            values[offset + i] = value;
+        }
+        return count;
+    }
+
+    public String similarity() {
+        return similarity;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    /** Version of the preloaded model this index was built from. */
+    public long modelVersion() {
+        return modelVersion;
+    }
+
+    /** Build version, unique across the indices of this node. */
+    public long version() {
+        return version;
+    }
+
+    public int numItems() {
+        return itemIds.length;
+    }
+
+    /** Item ID at {@code item}, in ascending ID order. */
+    public long itemIdAt(final int item) {
+        return itemIds[item];
+    }
+
+    /** Neighbors of the item at {@code item}, best first. */
+    public List<RecommendedItem> neighborsAt(final int item, final int howMany) {
+        final int start = offsets[item];
+        final int end = Math.min(offsets[item + 1], start + howMany);
+        final List<RecommendedItem> items = new ArrayList<RecommendedItem>(Math.max(0, end - start));
+        for (int p = start; p < end; p++) {
+            items.add(new GenericRecommendedItem(neighbors[p], values[p]));
+        }
+        return items;
+    }
+
+    /**
+     * Up to {@code howMany} most similar items of {@code itemId}, at most
+     * {@link #k()}; empty for an unknown item.
+     */
+    public List<RecommendedItem> mostSimilarItems(final long itemId, final int howMany) {
+        final int item = Arrays.binarySearch(itemIds, itemId);
+        if (item < 0) {
+            return Collections.emptyList();
+        }
+        return neighborsAt(item, howMany);
+    }
+
+    @Override
+    public double itemSimilarity(final long itemID1, final long itemID2) {
+        final int item = Arrays.binarySearch(itemIds, itemID1);
+        if (item >= 0) {
+            for (int p = offsets[item]; p < offsets[item + 1]; p++) {
+                if (neighbors[p] == itemID2) {
+                    return values[p];
+                }
+            }
+        }
+        return Double.NaN;
+    }
+
+    @Override
+    public double[] itemSimilarities(final long itemID1, final long[] itemID2s) {
+        final double[] result = new double[itemID2s.length];
+        for (int i = 0; i < itemID2s.length; i++) {
+            result[i] = itemSimilarity(itemID1, itemID2s[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] allSimilarItemIDs(final long itemID) {
+        final int item = Arrays.binarySearch(itemIds, itemID);
+        if (item < 0) {
+            return new long[0];
+        }
+        return Arrays.copyOfRange(neighbors, offsets[item], offsets[item + 1]);
+    }
+
+    @Override
+    public void refresh(final Collection<Refreshable> alreadyRefreshed) {
+        // immutable, rebuilt instead
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(itemIds)
+                + RamUsageEstimator.sizeOf(offsets)
+                + RamUsageEstimator.sizeOf(neighbors)
+                + RamUsageEstimator.sizeOf(values);
+    }
+
+    @Override
+    public String toString() {
+        return "SimilarityIndex[similarity:" + similarity + " k:" + k + " items:" + itemIds.length
+                + " version:" + version + " modelVersion:" + modelVersion + "]";
+    }
+}
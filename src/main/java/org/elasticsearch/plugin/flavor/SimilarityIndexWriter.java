@@ -0,0 +1,92 @@
+package org.elasticsearch.plugin.flavor;
+
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+/**
+ * Writes a {@link SimilarityIndex} to a companion index, one document per item
+ * with its ID as {@code _id}:
+ * {@code {"item_id", "similarity", "version", "neighbors": [{"item_id", "value"}]}}.
+ * Bulk requests of {@link #batchSize(int)} items are sent one after another.
+ */
+public class SimilarityIndexWriter {
+    public static final String TYPE = "similarity";
+
+    private final Client client;
+    private int batchSize = 1000;
+
+    public SimilarityIndexWriter(final Client client) {
+        this.client = client;
+    }
+
+    public SimilarityIndexWriter batchSize(final int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive.");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Indexes every item of {@code similarityIndex} into {@code index} and reports
+     * the number of written documents.
+     */
+    public void write(final SimilarityIndex similarityIndex, final String index, final ActionListener<Integer> listener) {
+        write(similarityIndex, index, 0, listener);
+    }
+
+    private void write(final SimilarityIndex similarityIndex,
+                       final String index,
+                       final int from,
+                       final ActionListener<Integer> listener) {
+        final int to = Math.min(similarityIndex.numItems(), from + batchSize);
+        if (from >= to) {
+            listener.onResponse(similarityIndex.numItems());
+            return;
+        }
+        final BulkRequestBuilder bulk = client.prepareBulk();
+        try {
+            for (int item = from; item < to; item++) {
+                final long itemId = similarityIndex.itemIdAt(item);
+                bulk.add(client
+                    .prepareIndex(index, TYPE, Long.toString(itemId))
+                    .setSource(document(similarityIndex, item, itemId)));
+            }
+        } catch (final Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        bulk.execute(ActionListener.wrap(response -> {
+            if (response.hasFailures()) {
+                throw new IllegalStateException("Failed to write similarity index: " + response.buildFailureMessage());
+            }
+            write(similarityIndex, index, to, listener);
+        }, listener::onFailure));
+    }
+
+    private static XContentBuilder document(final SimilarityIndex similarityIndex,
+                                            final int item,
+                                            final long itemId) throws Exception {
+        final XContentBuilder builder = JsonXContent.contentBuilder();
+        builder
+            .startObject()
+            .field("item_id", itemId)
+            .field("similarity", similarityIndex.similarity())
+            .field("version", similarityIndex.version())
+            .startArray("neighbors");
+        for (final RecommendedItem neighbor : similarityIndex.neighborsAt(item, similarityIndex.k())) {
+            builder
+                .startObject()
+                .field("item_id", neighbor.getItemID())
+                .field("value", neighbor.getValue())
+                .endObject();
+        }
+        return builder
+            .endArray()
+            .endObject();
+    }
+}
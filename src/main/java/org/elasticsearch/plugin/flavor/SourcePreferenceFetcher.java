@@ -0,0 +1,42 @@
+package org.elasticsearch.plugin.flavor;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Reads preference fields from the parsed {@code _source} of each hit.
+ */
+public class SourcePreferenceFetcher implements PreferenceFetcher {
+    public static final SourcePreferenceFetcher INSTANCE = new SourcePreferenceFetcher();
+
+    @Override
+    public SearchRequestBuilder prepare(final SearchRequestBuilder search, final String... fields) {
+        return search.setFetchSource(fields, null);
+    }
+
+    @Override
+    public long getLong(final SearchHit hit, final String field) throws TasteException {
+        return getNumber(hit, field).longValue();
+    }
+
+    @Override
+    public float getFloat(final SearchHit hit, final String field) throws TasteException {
+        return getNumber(hit, field).floatValue();
+    }
+
+    private Number getNumber(final SearchHit hit, final String field) throws TasteException {
+        final Object result = hit.getSourceAsMap().get(field);
+        if (result == null) {
+            throw new TasteException(field + " is not found.");
+        }
+        if (! (result instanceof Number))
+            throw new TasteException(field + " is not Number.");
+        return (Number) result;
+    }
+
+    @Override
+    public String name() {
+        return SOURCE;
+    }
+}
@@ -0,0 +1,22 @@
+package org.elasticsearch.plugin.flavor;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+
+/**
+ * Reads preference fields from stored fields. The fields must be mapped with
+ * {@code "store": true}.
+ */
+public class StoredFieldsPreferenceFetcher extends DocValuesPreferenceFetcher {
+    public static final StoredFieldsPreferenceFetcher INSTANCE = new StoredFieldsPreferenceFetcher();
+
+    @Override
+    public SearchRequestBuilder prepare(final SearchRequestBuilder search, final String... fields) {
+        search.setFetchSource(false);
+        return search.storedFields(fields);
+    }
+
+    @Override
+    public String name() {
+        return STORED_FIELDS;
+    }
+}
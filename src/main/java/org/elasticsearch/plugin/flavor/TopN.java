@@ -0,0 +1,119 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+/**
+ * Bounded top-N of IDs by value: a min-heap on primitive arrays whose root is
+ * the worst value kept. Equal values keep the lower ID, so results do not
+ * depend on the order of offers.
+ */
+final class TopN {
+    private final long[] ids;
+    private final float[] values;
+    private int size;
+
+    TopN(final int n) {
+        this.ids = new long[Math.max(0, n)];
+        this.values = new float[ids.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == ids.length;
+    }
+
+    /** Value an offer has to beat once full. */
+    float threshold() {
+        return values[0];
+    }
+
+    /** Keeps {@code id} if it is among the best so far; {@code NaN} is ignored. */
+    void offer(final long id, final float value) {
+        if (Float.isNaN(value) || ids.length == 0) {
+            return;
+        }
+        if (size < ids.length) {
+            ids[size] = id;
+            values[size] = value;
+            siftUp(size++);
+        } else if (worse(ids[0], values[0], id, value)) {
+            ids[0] = id;
+            values[0] = value;
+            siftDown(size);
+        }
+    }
+
+    void addAll(final TopN other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ids[i], other.values[i]);
+        }
+    }
+
+    /** The kept IDs, best first. Empties this top-N. */
+    List<RecommendedItem> toList() {
+        final RecommendedItem[] result = new RecommendedItem[size];
+        for (int i = size - 1; i >= 0; i--) {
+            result[i] = new GenericRecommendedItem(ids[0], values[0]);
+            ids[0] = ids[i];
+            values[0] = values[i];
+            siftDown(i);
+        }
+        size = 0;
+        final List<RecommendedItem> list = new ArrayList<RecommendedItem>(result.length);
+        for (final RecommendedItem item : result) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    /** Whether {@code (id1, value1)} ranks below {@code (id2, value2)}. */
+    private static boolean worse(final long id1, final float value1, final long id2, final float value2) {
+        return value1 < value2 || (value1 == value2 && id1 > id2);
+    }
+
+    private void siftUp(int i) {
+        final long id = ids[i];
+        final float value = values[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (!worse(id, value, ids[parent], values[parent])) {
+                break;
+            }
+            ids[i] = ids[parent];
+            values[i] = values[parent];
+            i = parent;
+        }
+        ids[i] = id;
+        values[i] = value;
+    }
+
+    private void siftDown(final int size) {
+        final long id = ids[0];
+        final float value = values[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(ids[child + 1], values[child + 1], ids[child], values[child])) {
+                child++;
+            }
+            if (!worse(ids[child], values[child], id, value)) {
+                break;
+            }
+            ids[i] = ids[child];
+            values[i] = values[child];
+            i = child;
+        }
+        ids[i] = id;
+        values[i] = value;
+    }
+}
@@ -0,0 +1,262 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.mahout.math.list.LongArrayList;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.NumberFieldMapper;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Runs {@link CooccurrenceAction} on one copy of every shard, on the search
+ * pool. Each shard collects the documents matching the values with a terms
+ * query on its own searcher and counts the doc values of the group field.
+ */
+public class TransportCooccurrenceAction extends TransportBroadcastAction<CooccurrenceAction.Request,
+                                                                          CooccurrenceAction.Response,
+                                                                          TransportCooccurrenceAction.ShardRequest,
+                                                                          TransportCooccurrenceAction.ShardResponse> {
+    private final IndicesService indicesService;
+
+    @Inject
+    public TransportCooccurrenceAction(final Settings settings,
+                                       final ThreadPool threadPool,
+                                       final ClusterService clusterService,
+                                       final TransportService transportService,
+                                       final IndicesService indicesService,
+                                       final ActionFilters actionFilters,
+                                       final IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings, CooccurrenceAction.NAME, threadPool, clusterService, transportService, actionFilters,
+              indexNameExpressionResolver, CooccurrenceAction.Request::new, ShardRequest::new, ThreadPool.Names.SEARCH);
+        this.indicesService = indicesService;
+    }
+
+    // the signature is raw in TransportBroadcastAction
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected CooccurrenceAction.Response newResponse(final CooccurrenceAction.Request request,
+                                                      final AtomicReferenceArray shardsResponses,
+                                                      final ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        final List<DefaultShardOperationFailedException> shardFailures = new ArrayList<>();
+        final OpenLongIntHashMap counts = new OpenLongIntHashMap();
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            final Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // no active copy of this shard
+                failedShards++;
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                successfulShards++;
+                final ShardResponse response = (ShardResponse) shardResponse;
+                for (int j = 0; j < response.ids.length; j++) {
+                    counts.adjustOrPutValue(response.ids[j], response.counts[j], response.counts[j]);
+                }
+            }
+        }
+        final long[] ids = sortedKeys(counts);
+        return new CooccurrenceAction.Response(ids, values(counts, ids), shardsResponses.length(),
+                                               successfulShards, failedShards, shardFailures);
+    }
+
+    @Override
+    protected ShardRequest newShardRequest(final int numShards, final ShardRouting shard, final CooccurrenceAction.Request request) {
+        return new ShardRequest(shard.shardId(), request);
+    }
+
+    @Override
+    protected ShardResponse newShardResponse() {
+        return new ShardResponse();
+    }
+
+    @Override
+    protected ShardResponse shardOperation(final ShardRequest request, final Task task) throws IOException {
+        final IndexService indexService = indicesService.indexServiceSafe(request.shardId().getIndex());
+        final IndexShard indexShard = indexService.getShard(request.shardId().id());
+        final MappedFieldType field = indexService.mapperService().fullName(request.field);
+        final MappedFieldType groupField = indexService.mapperService().fullName(request.groupField);
+        if (field == null || groupField == null || request.values.length == 0) {
+            // nothing indexed yet on this index
+            return new ShardResponse(request.shardId(), new long[0], new int[0]);
+        }
+        if (!(groupField instanceof NumberFieldMapper.NumberFieldType)) {
+            throw new IllegalArgumentException("[" + request.groupField + "] must be a numeric field.");
+        }
+        final List<Long> values = new ArrayList<>(request.values.length);
+        for (final long value : request.values) {
+            values.add(value);
+        }
+        final OpenLongIntHashMap counts = new OpenLongIntHashMap();
+        try (Engine.Searcher searcher = indexShard.acquireSearcher("flavor_cooccurrence")) {
+            count(searcher.searcher(), field.termsQuery(values, null), groupField.name(), counts);
+        }
+        final long[] ids = sortedKeys(counts);
+        return new ShardResponse(request.shardId(), ids, values(counts, ids));
+    }
+
+    /**
+     * Adds one to {@code counts} for every value of {@code groupField} of the
+     * live documents matching {@code query}.
+     */
+    static void count(final IndexSearcher searcher,
+                      final Query query,
+                      final String groupField,
+                      final OpenLongIntHashMap counts) throws IOException {
+        searcher.search(query, new SimpleCollector() {
+            private SortedNumericDocValues docValues;
+
+            @Override
+            protected void doSetNextReader(final LeafReaderContext context) throws IOException {
+                docValues = DocValues.getSortedNumeric(context.reader(), groupField);
+            }
+
+            @Override
+            public void collect(final int doc) throws IOException {
+                if (docValues.advanceExact(doc)) {
+                    for (int i = docValues.docValueCount(); i > 0; i--) {
+                        counts.adjustOrPutValue(docValues.nextValue(), 1, 1);
+                    }
+                }
+            }
+
+            @Override
+            public boolean needsScores() {
+                return false;
+            }
+        });
+    }
+
+    static long[] sortedKeys(final OpenLongIntHashMap counts) {
+        final LongArrayList keys = new LongArrayList(counts.size());
+        counts.keys(keys);
+        final long[] ids = Arrays.copyOf(keys.elements(), keys.size());
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private static int[] values(final OpenLongIntHashMap counts, final long[] ids) {
+        final int[] values = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            values[i] = counts.get(ids[i]);
+        }
+        return values;
+    }
+
+    @Override
+    protected GroupShardsIterator<ShardIterator> shards(final ClusterState clusterState,
+                                                        final CooccurrenceAction.Request request,
+                                                        final String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, "_local");
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(final ClusterState state, final CooccurrenceAction.Request request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(final ClusterState state,
+                                                      final CooccurrenceAction.Request request,
+                                                      final String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    public static class ShardRequest extends BroadcastShardRequest {
+        private String field;
+        private long[] values;
+        private String groupField;
+
+        public ShardRequest() {
+        }
+
+        ShardRequest(final ShardId shardId, final CooccurrenceAction.Request request) {
+            super(shardId, request);
+            this.field = request.field();
+            this.values = request.values();
+            this.groupField = request.groupField();
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            field = in.readString();
+            values = in.readLongArray();
+            groupField = in.readString();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(field);
+            out.writeLongArray(values);
+            out.writeString(groupField);
+        }
+    }
+
+    public static class ShardResponse extends BroadcastShardResponse {
+        private long[] ids;
+        private int[] counts;
+
+        ShardResponse() {
+        }
+
+        ShardResponse(final ShardId shardId, final long[] ids, final int[] counts) {
+            super(shardId);
+            this.ids = ids;
+            this.counts = counts;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            ids = in.readLongArray();
+            counts = in.readVIntArray();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeLongArray(ids);
+            out.writeVIntArray(counts);
+        }
+    }
+}
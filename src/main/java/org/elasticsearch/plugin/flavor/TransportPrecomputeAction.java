@@ -0,0 +1,88 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Runs a {@link PrecomputeJob} on the generic pool of the node holding the
+ * preloaded model. Only one job at a time writes to a target index.
+ */
+public class TransportPrecomputeAction extends HandledTransportAction<PrecomputeAction.Request, PrecomputeAction.Response> {
+    private final Client client;
+    private final DataModelRegistry registry;
+    private final ParallelScorer scorer;
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    public TransportPrecomputeAction(final Settings settings,
+                                     final ThreadPool threadPool,
+                                     final TransportService transportService,
+                                     final ActionFilters actionFilters,
+                                     final IndexNameExpressionResolver indexNameExpressionResolver,
+                                     final Client client,
+                                     final DataModelRegistry registry,
+                                     final ParallelScorer scorer) {
+        super(settings, PrecomputeAction.NAME, threadPool, transportService, actionFilters, indexNameExpressionResolver,
+              PrecomputeAction.Request::new);
+        this.client = client;
+        this.registry = registry;
+        this.scorer = scorer;
+    }
+
+    @Override
+    protected void doExecute(final PrecomputeAction.Request request, final ActionListener<PrecomputeAction.Response> listener) {
+        throw new UnsupportedOperationException("Precompute runs with a task.");
+    }
+
+    @Override
+    protected void doExecute(final Task task,
+                             final PrecomputeAction.Request request,
+                             final ActionListener<PrecomputeAction.Response> listener) {
+        final ElasticsearchPreloadDataModelFactory factory = registry.get(request.index(), request.type());
+        if (factory == null || !(factory.dataModel() instanceof ElasticsearchPreloadDataModel)) {
+            listener.onFailure(new ResourceNotFoundException("No preloaded model for {}/{}", request.index(), request.type()));
+            return;
+        }
+        if (!running.add(request.target())) {
+            listener.onFailure(new ElasticsearchStatusException("A precompute job is already writing to [{}]",
+                                                                RestStatus.CONFLICT, request.target()));
+            return;
+        }
+        threadPool.generic().execute(new AbstractRunnable() {
+            @Override
+            public void onFailure(final Exception e) {
+                running.remove(request.target());
+                if (e instanceof TaskCancelledException) {
+                    logger.info("Cancelled {}; the next run with the same parameters resumes from its checkpoint", request);
+                } else {
+                    logger.error("Failed to precompute " + request, e);
+                }
+                listener.onFailure(e);
+            }
+
+            @Override
+            protected void doRun() throws Exception {
+                final PrecomputeAction.Response response =
+                        new PrecomputeJob(client, scorer, factory, request, (PrecomputeTask) task).run();
+                running.remove(request.target());
+                listener.onResponse(response);
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.UserBasedRecommender;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class BatchRecommenderTests extends ESTestCase {
+
+    private static DataModel dataModel(Random random) {
+        return RandomDataModelBuilder.builder(random)
+            .users(100).items(60).itemsPerUser(3, 12)
+            .build();
+    }
+
+    private static void assertItems(List<RecommendedItem> expected, JsonObject line) {
+        JsonArray hits = line.getAsJsonObject("hits").getAsJsonArray("hits");
+        assertEquals(expected.size(), hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            assertEquals(expected.get(i).getItemID(), hits.get(i).getAsJsonObject().get("item_id").getAsLong());
+            assertEquals(expected.get(i).getValue(), hits.get(i).getAsJsonObject().get("value").getAsFloat(), 0F);
+        }
+    }
+
+    @Test
+    public void testParse() {
+        List<BatchRecommender.Entry> entries = BatchRecommender.parse(
+                "{\"operation\":\"user_based_recommend\",\"id\":3}\n\n{\"operation\":\"similar_items\",\"id\":7,\"size\":2}\n", 10, 5);
+        assertEquals(2, entries.size());
+        assertEquals("user_based_recommend", entries.get(0).operation());
+        assertEquals(3, entries.get(0).id());
+        assertEquals(10, entries.get(0).size());
+        assertEquals(7, entries.get(1).id());
+        assertEquals(2, entries.get(1).size());
+        assertTrue(BatchRecommender.uses(entries, "similar_items", "item_based_recommend"));
+        assertFalse(BatchRecommender.uses(entries, "similar_users"));
+
+        expectThrows(IllegalArgumentException.class, () -> BatchRecommender.parse("{\"operation\":\"similar_items\"}", 10, 5));
+        expectThrows(IllegalArgumentException.class, () -> BatchRecommender.parse("{\"operation\":", 10, 5));
+        expectThrows(IllegalArgumentException.class,
+                     () -> BatchRecommender.parse("{\"operation\":\"similar_items\",\"id\":1}\n{\"operation\":\"similar_items\",\"id\":2}", 10, 1));
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        DataModel dataModel = dataModel(random());
+        UserBasedRecommender userBased = RecommenderBuilder.builder().dataModel(dataModel).userBasedRecommender();
+        ItemBasedRecommender itemBased = RecommenderBuilder.builder().dataModel(dataModel).itemBasedRecommender();
+        StringBuilder body = new StringBuilder();
+        String[] operations = { "user_based_recommend", "item_based_recommend", "similar_items", "similar_users" };
+        for (long id = 0; id < 60; id++) {
+            body.append("{\"operation\":\"").append(operations[(int) id % operations.length]).append("\",\"id\":").append(id).append("}\n");
+        }
+        body.append("{\"operation\":\"item_based_recommend\",\"id\":1000}\n");
+        body.append("{\"operation\":\"unknown\",\"id\":1}\n");
+        List<BatchRecommender.Entry> entries = BatchRecommender.parse(body.toString(), 5, 1000);
+
+        try (ParallelScorer scorer = new ParallelScorer(4, 0)) {
+            String[] lines = new BatchRecommender(scorer)
+                    .dataModel(dataModel)
+                    .userBased(userBased)
+                    .itemBased(itemBased)
+                    .execute(entries)
+                    .utf8ToString()
+                    .split("\n");
+            assertEquals(entries.size(), lines.length);
+            Gson gson = new Gson();
+            for (int i = 0; i < 60; i++) {
+                JsonObject line = gson.fromJson(lines[i], JsonObject.class);
+                long id = entries.get(i).id();
+                assertEquals(entries.get(i).operation(), line.get("operation").getAsString());
+                assertEquals(id, line.get("id").getAsLong());
+                switch (entries.get(i).operation()) {
+                    case "user_based_recommend":
+                        assertItems(userBased.recommend(id, 5), line);
+                        break;
+                    case "item_based_recommend":
+                        assertItems(itemBased.recommend(id, 5), line);
+                        break;
+                    case "similar_items":
+                        assertItems(itemBased.mostSimilarItems(id, 5), line);
+                        break;
+                    default:
+                        long[] userIds = userBased.mostSimilarUserIDs(id, 5);
+                        JsonArray hits = line.getAsJsonObject("hits").getAsJsonArray("hits");
+                        List<Long> actual = new ArrayList<>();
+                        for (int j = 0; j < hits.size(); j++) {
+                            actual.add(hits.get(j).getAsJsonObject().get("user_id").getAsLong());
+                        }
+                        assertEquals(userIds.length, actual.size());
+                        for (int j = 0; j < userIds.length; j++) {
+                            assertEquals(userIds[j], actual.get(j).longValue());
+                        }
+                        break;
+                }
+            }
+            assertEquals(404, gson.fromJson(lines[60], JsonObject.class).get("status").getAsInt());
+            JsonObject invalid = gson.fromJson(lines[61], JsonObject.class);
+            assertEquals(404, invalid.get("status").getAsInt());
+            assertEquals("Invalid operation: unknown", invalid.get("error").getAsString());
+        }
+    }
+}
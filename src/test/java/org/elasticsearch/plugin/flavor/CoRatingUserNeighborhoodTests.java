@@ -0,0 +1,115 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.neighborhood.ThresholdUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class CoRatingUserNeighborhoodTests extends ESTestCase {
+
+    private static DataModel dataModel(Random random) {
+        return RandomDataModelBuilder.builder(random)
+            .users(300).items(50).itemsPerUser(8, 8).groups(6)
+            .build();
+    }
+
+    private static double[] scores(UserSimilarity similarity, long userId, long[] neighbors) throws Exception {
+        double[] scores = new double[neighbors.length];
+        for (int i = 0; i < neighbors.length; i++) {
+            scores[i] = similarity.userSimilarity(userId, neighbors[i]);
+        }
+        Arrays.sort(scores);
+        return scores;
+    }
+
+    private static void assertSameNeighbors(DataModel dataModel, UserSimilarity similarity,
+                                            UserNeighborhood expected, UserNeighborhood actual) throws Exception {
+        LongPrimitiveIterator userIds = dataModel.getUserIDs();
+        while (userIds.hasNext()) {
+            long userId = userIds.nextLong();
+            long[] exact = expected.getUserNeighborhood(userId);
+            long[] neighbors = actual.getUserNeighborhood(userId);
+            // ThresholdUserNeighborhood keeps ID order and ties may come in another order; compare scores
+            assertArrayEquals(scores(similarity, userId, exact), scores(similarity, userId, neighbors), 1e-9);
+            for (int i = 1; i < neighbors.length; i++) {
+                assertTrue(similarity.userSimilarity(userId, neighbors[i - 1])
+                           >= similarity.userSimilarity(userId, neighbors[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesFullScan() throws Exception {
+        DataModel dataModel = dataModel(new Random(random().nextLong()));
+        UserSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+
+        assertSameNeighbors(dataModel, similarity,
+                new NearestNUserNeighborhood(10, similarity, dataModel),
+                new CoRatingUserNeighborhood(10, Double.NEGATIVE_INFINITY, similarity, dataModel, 0, FanOutLimits.UNLIMITED));
+        assertSameNeighbors(dataModel, similarity,
+                new ThresholdUserNeighborhood(0.3, similarity, dataModel),
+                new CoRatingUserNeighborhood(Integer.MAX_VALUE, 0.3, similarity, dataModel, 0, FanOutLimits.UNLIMITED));
+    }
+
+    @Test
+    public void testCandidatesShareItems() throws Exception {
+        DataModel dataModel = dataModel(new Random(random().nextLong()));
+        UserSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+        CoRatingUserNeighborhood all =
+                new CoRatingUserNeighborhood(10, Double.NEGATIVE_INFINITY, similarity, dataModel, 0, FanOutLimits.UNLIMITED);
+        CoRatingUserNeighborhood capped =
+                new CoRatingUserNeighborhood(10, Double.NEGATIVE_INFINITY, similarity, dataModel, 5, FanOutLimits.UNLIMITED);
+
+        FastIDSet items = dataModel.getItemIDsFromUser(7);
+        long[] candidates = all.candidates(7);
+        assertTrue(candidates.length > 5);
+        int minOverlap = Integer.MAX_VALUE;
+        for (long candidate : candidates) {
+            assertNotEquals(7, candidate);
+            assertEquals(7 % 6, candidate % 6);
+            int overlap = items.intersectionSize(dataModel.getItemIDsFromUser(candidate));
+            assertTrue(overlap > 0);
+            minOverlap = Math.min(minOverlap, overlap);
+        }
+        long[] best = capped.candidates(7);
+        assertEquals(5, best.length);
+        int cappedMin = Integer.MAX_VALUE;
+        for (long candidate : best) {
+            cappedMin = Math.min(cappedMin, items.intersectionSize(dataModel.getItemIDsFromUser(candidate)));
+        }
+        assertTrue(cappedMin >= minOverlap);
+        assertArrayEquals(best, capped.candidates(7));
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        DataModel dataModel = dataModel(new Random(0));
+        RecommenderBuilder builder = RecommenderBuilder.builder().dataModel(dataModel).neighborhoodScan("co_rated");
+        assertTrue(builder.userNeighborhood(builder.userSimilarity()) instanceof CoRatingUserNeighborhood);
+        assertNotEquals(RecommenderBuilder.builder().key(), builder.key());
+        assertEquals(RecommenderBuilder.builder().key(), RecommenderBuilder.builder().neighborhoodScan("all").key());
+        assertFalse(builder.userBasedRecommender().recommend(1, 5).isEmpty());
+        try {
+            RecommenderBuilder.builder().dataModel(dataModel).neighborhoodScan("some").userBasedRecommender();
+            fail();
+        } catch (TasteException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class CompactDataModelTests extends ESTestCase {
+
+    private static PreferenceArrayBuilder preferences() {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 1; i <= 1000; i++) {
+            builder.add(i % 37, 1000 - i % 101, i % 5);
+        }
+        return builder;
+    }
+
+    private static void assertSameModel(DataModel expected, DataModel actual, float delta) throws Exception {
+        assertEquals(expected.getNumUsers(), actual.getNumUsers());
+        assertEquals(expected.getNumItems(), actual.getNumItems());
+        LongPrimitiveIterator userIds = expected.getUserIDs();
+        while (userIds.hasNext()) {
+            long userId = userIds.nextLong();
+            PreferenceArray prefs = expected.getPreferencesFromUser(userId);
+            assertEquals(expected.getItemIDsFromUser(userId), actual.getItemIDsFromUser(userId));
+            for (int i = 0; i < prefs.length(); i++) {
+                assertEquals(prefs.getValue(i), actual.getPreferenceValue(userId, prefs.getItemID(i)), delta);
+            }
+        }
+        LongPrimitiveIterator itemIds = expected.getItemIDs();
+        while (itemIds.hasNext()) {
+            long itemId = itemIds.nextLong();
+            assertEquals(expected.getPreferencesForItem(itemId).length(), actual.getPreferencesForItem(itemId).length());
+            assertEquals(expected.getNumUsersWithPreferenceFor(itemId, 1000),
+                         actual.getNumUsersWithPreferenceFor(itemId, 1000));
+        }
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        DataModel expected = new GenericDataModel(preferences().build());
+        CompactDataModel actual = CompactDataModel.build(preferences().build(), false);
+
+        assertFalse(actual.isQuantized());
+        assertEquals(1000, actual.numPreferences());
+        assertSameModel(expected, actual, 0F);
+        assertEquals(expected.getMinPreference(), actual.getMinPreference(), 0F);
+        assertEquals(expected.getMaxPreference(), actual.getMaxPreference(), 0F);
+        assertNull(actual.getPreferenceValue(1, 1));
+        assertTrue(actual.ramBytesUsed() > 0);
+        try {
+            actual.getPreferencesFromUser(12345);
+            fail();
+        } catch (NoSuchUserException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testQuantizeExact() throws Exception {
+        DataModel expected = new GenericDataModel(preferences().build());
+        CompactDataModel actual = CompactDataModel.build(preferences().build(), true);
+
+        assertTrue(actual.isQuantized());
+        assertSameModel(expected, actual, 0F);
+        assertTrue(actual.ramBytesUsed() < CompactDataModel.build(preferences().build(), false).ramBytesUsed());
+    }
+
+    @Test
+    public void testQuantizeLossy() throws Exception {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.add(i % 13, i, randomFloat() * 10);
+        }
+        DataModel expected = new GenericDataModel(builder.build());
+        CompactDataModel actual = CompactDataModel.copyOf(expected, true);
+
+        float step = (expected.getMaxPreference() - expected.getMinPreference()) / 255;
+        assertSameModel(expected, actual, step / 2 + 1e-5F);
+    }
+
+    @Test
+    public void testDuplicatePreferences() throws Exception {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        builder.add(1, 10, 1);
+        builder.add(1, 20, 2);
+        builder.add(1, 10, 3);
+        CompactDataModel actual = CompactDataModel.build(builder.build(), false);
+
+        assertEquals(2, actual.numPreferences());
+        float value = actual.getPreferenceValue(1, 10);
+        assertTrue(value == 1F || value == 3F);
+        assertEquals(1, actual.getNumUsersWithPreferenceFor(10));
+    }
+}
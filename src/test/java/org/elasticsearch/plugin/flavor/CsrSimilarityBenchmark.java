@@ -0,0 +1,145 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.similarity.EuclideanDistanceSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Compares Mahout's similarities on a {@link GenericDataModel} with
+ * {@link CsrSimilarity} on the same preferences in a {@link CompactDataModel}.
+ * Item popularity is skewed, so some item pairs gallop.
+ *
+ * <pre>
+ * java -cp ... org.elasticsearch.plugin.flavor.CsrSimilarityBenchmark -users 20000 -items 5000 -prefs 100
+ * </pre>
+ */
+public class CsrSimilarityBenchmark {
+    @Option(name = "-users", usage = "number of users")
+    private int numUsers = 20000;
+
+    @Option(name = "-items", usage = "number of items")
+    private int numItems = 5000;
+
+    @Option(name = "-prefs", usage = "preferences per user")
+    private int preferencesPerUser = 100;
+
+    @Option(name = "-pairs", usage = "pairs measured per iteration")
+    private int pairs = 100000;
+
+    @Option(name = "-iterations", usage = "measured iterations per similarity")
+    private int iterations = 5;
+
+    private double sink;
+
+    public static void main(final String[] args) throws Exception {
+        final CsrSimilarityBenchmark benchmark = new CsrSimilarityBenchmark();
+        final CmdLineParser parser = new CmdLineParser(benchmark);
+        try {
+            parser.parseArgument(args);
+        } catch (final CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            return;
+        }
+        benchmark.run();
+    }
+
+    private void run() throws Exception {
+        final Random random = new Random(0);
+        final PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int user = 0; user < numUsers; user++) {
+            final FastIDSet items = new FastIDSet();
+            while (items.size() < Math.min(preferencesPerUser, numItems)) {
+                // squared uniform skews popularity toward low item IDs
+                final double r = random.nextDouble();
+                final long itemId = (long) (r * r * numItems);
+                if (items.add(itemId)) {
+                    builder.add(user, itemId, 1 + random.nextInt(5));
+                }
+            }
+        }
+        final FastByIDMap<PreferenceArray> preferences = builder.build();
+        final DataModel generic = new GenericDataModel(preferences);
+        final CompactDataModel compact = CompactDataModel.build(preferences, false);
+        final long[] userPairs = new long[pairs * 2];
+        final long[] itemPairs = new long[pairs * 2];
+        for (int i = 0; i < userPairs.length; i++) {
+            userPairs[i] = random.nextInt(numUsers);
+            itemPairs[i] = compact.itemIdAt(random.nextInt(compact.getNumItems()));
+        }
+
+        System.out.println("similarity\tmahout user(ns/pair)\tcsr user(ns/pair)\tmahout item(ns/pair)\tcsr item(ns/pair)");
+        row("PearsonCorrelationSimilarity", new PearsonCorrelationSimilarity(generic),
+                new CsrSimilarity(compact, CsrSimilarity.Metric.PEARSON), userPairs, itemPairs);
+        row("EuclideanDistanceSimilarity", new EuclideanDistanceSimilarity(generic),
+                new CsrSimilarity(compact, CsrSimilarity.Metric.EUCLIDEAN), userPairs, itemPairs);
+        row("TanimotoCoefficientSimilarity", new TanimotoCoefficientSimilarity(generic),
+                new CsrSimilarity(compact, CsrSimilarity.Metric.TANIMOTO), userPairs, itemPairs);
+        row("LogLikelihoodSimilarity", new LogLikelihoodSimilarity(generic),
+                new CsrSimilarity(compact, CsrSimilarity.Metric.LOG_LIKELIHOOD), userPairs, itemPairs);
+        System.out.println("# checksum " + sink);
+    }
+
+    private <S extends UserSimilarity & ItemSimilarity> void row(final String name,
+                                                                 final S mahout,
+                                                                 final CsrSimilarity csr,
+                                                                 final long[] userPairs,
+                                                                 final long[] itemPairs) throws Exception {
+        System.out.println(name
+                + "\t" + measure(() -> users(mahout, userPairs)) / pairs
+                + "\t" + measure(() -> users(csr, userPairs)) / pairs
+                + "\t" + measure(() -> items(mahout, itemPairs)) / pairs
+                + "\t" + measure(() -> items(csr, itemPairs)) / pairs);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private long measure(final Task task) throws Exception {
+        // warm up once
+        task.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private void users(final UserSimilarity similarity, final long[] userPairs) throws Exception {
+        double sum = 0;
+        for (int i = 0; i < userPairs.length; i += 2) {
+            final double value = similarity.userSimilarity(userPairs[i], userPairs[i + 1]);
+            if (!Double.isNaN(value)) {
+                sum += value;
+            }
+        }
+        sink += sum;
+    }
+
+    private void items(final ItemSimilarity similarity, final long[] itemPairs) throws Exception {
+        double sum = 0;
+        for (int i = 0; i < itemPairs.length; i += 2) {
+            final double value = similarity.itemSimilarity(itemPairs[i], itemPairs[i + 1]);
+            if (!Double.isNaN(value)) {
+                sum += value;
+            }
+        }
+        sink += sum;
+    }
+}
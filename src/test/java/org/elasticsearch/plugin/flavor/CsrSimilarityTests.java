@@ -0,0 +1,167 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.similarity.AveragingPreferenceInferrer;
+import org.apache.mahout.cf.taste.impl.similarity.EuclideanDistanceSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class CsrSimilarityTests extends ESTestCase {
+
+    private static FastByIDMap<PreferenceArray> preferences() {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 1; i <= 3000; i++) {
+            builder.add(i % 61, (i * 37) % 211, 1 + (i * 7) % 5);
+        }
+        // a heavy user and a heavy item, so short rows gallop through long ones
+        for (int item = 0; item < 1500; item++) {
+            builder.add(1000, item, 1 + item % 4);
+        }
+        for (int user = 0; user < 1500; user++) {
+            builder.add(user, 5000, 1 + user % 3);
+        }
+        return builder.build();
+    }
+
+    private static long[] ids(LongPrimitiveIterator it) {
+        FastIDSet ids = new FastIDSet();
+        while (it.hasNext()) {
+            ids.add(it.nextLong());
+        }
+        return ids.toArray();
+    }
+
+    private static void assertSimilar(double expected, double actual) {
+        if (Double.isNaN(expected)) {
+            assertTrue("expected NaN but was " + actual, Double.isNaN(actual));
+        } else {
+            assertEquals(expected, actual, 1e-6);
+        }
+    }
+
+    private static void assertSameUserSimilarity(DataModel expectedModel, UserSimilarity expected,
+                                                 DataModel actualModel, UserSimilarity actual) throws Exception {
+        long[] userIds = ids(expectedModel.getUserIDs());
+        for (int i = 0; i < userIds.length; i += 3) {
+            for (int j = 0; j < userIds.length; j += 7) {
+                assertSimilar(expected.userSimilarity(userIds[i], userIds[j]),
+                              actual.userSimilarity(userIds[i], userIds[j]));
+            }
+            assertSimilar(expected.userSimilarity(userIds[i], 1000), actual.userSimilarity(userIds[i], 1000));
+        }
+    }
+
+    private static void assertSameItemSimilarity(DataModel expectedModel, ItemSimilarity expected,
+                                                 ItemSimilarity actual) throws Exception {
+        long[] itemIds = ids(expectedModel.getItemIDs());
+        for (int i = 0; i < itemIds.length; i += 5) {
+            for (int j = 0; j < itemIds.length; j += 11) {
+                assertSimilar(expected.itemSimilarity(itemIds[i], itemIds[j]),
+                              actual.itemSimilarity(itemIds[i], itemIds[j]));
+            }
+            assertSimilar(expected.itemSimilarity(itemIds[i], 5000), actual.itemSimilarity(itemIds[i], 5000));
+        }
+    }
+
+    @Test
+    public void testMatchesMahoutUserSimilarities() throws Exception {
+        FastByIDMap<PreferenceArray> preferences = preferences();
+        DataModel generic = new GenericDataModel(preferences);
+        CompactDataModel compact = CompactDataModel.build(preferences, false);
+
+        assertSameUserSimilarity(generic, new PearsonCorrelationSimilarity(generic),
+                compact, new CsrSimilarity(compact, CsrSimilarity.Metric.PEARSON));
+        assertSameUserSimilarity(generic, new EuclideanDistanceSimilarity(generic),
+                compact, new CsrSimilarity(compact, CsrSimilarity.Metric.EUCLIDEAN));
+        assertSameUserSimilarity(generic, new TanimotoCoefficientSimilarity(generic),
+                compact, new CsrSimilarity(compact, CsrSimilarity.Metric.TANIMOTO));
+        assertSameUserSimilarity(generic, new LogLikelihoodSimilarity(generic),
+                compact, new CsrSimilarity(compact, CsrSimilarity.Metric.LOG_LIKELIHOOD));
+    }
+
+    @Test
+    public void testMatchesMahoutWithAveragingInferrer() throws Exception {
+        FastByIDMap<PreferenceArray> preferences = preferences();
+        DataModel generic = new GenericDataModel(preferences);
+        CompactDataModel compact = CompactDataModel.build(preferences, false);
+
+        UserSimilarity expected = new PearsonCorrelationSimilarity(generic);
+        expected.setPreferenceInferrer(new AveragingPreferenceInferrer(generic));
+        UserSimilarity actual = new CsrSimilarity(compact, CsrSimilarity.Metric.PEARSON);
+        actual.setPreferenceInferrer(new AveragingPreferenceInferrer(compact));
+        assertSameUserSimilarity(generic, expected, compact, actual);
+
+        expected = new EuclideanDistanceSimilarity(generic);
+        expected.setPreferenceInferrer(new AveragingPreferenceInferrer(generic));
+        actual = new CsrSimilarity(compact, CsrSimilarity.Metric.EUCLIDEAN);
+        actual.setPreferenceInferrer(new AveragingPreferenceInferrer(compact));
+        assertSameUserSimilarity(generic, expected, compact, actual);
+    }
+
+    @Test
+    public void testMatchesMahoutItemSimilarities() throws Exception {
+        FastByIDMap<PreferenceArray> preferences = preferences();
+        DataModel generic = new GenericDataModel(preferences);
+        CompactDataModel compact = CompactDataModel.build(preferences, false);
+
+        assertSameItemSimilarity(generic, new PearsonCorrelationSimilarity(generic),
+                new CsrSimilarity(compact, CsrSimilarity.Metric.PEARSON));
+        assertSameItemSimilarity(generic, new EuclideanDistanceSimilarity(generic),
+                new CsrSimilarity(compact, CsrSimilarity.Metric.EUCLIDEAN));
+        assertSameItemSimilarity(generic, new TanimotoCoefficientSimilarity(generic),
+                new CsrSimilarity(compact, CsrSimilarity.Metric.TANIMOTO));
+        assertSameItemSimilarity(generic, new LogLikelihoodSimilarity(generic),
+                new CsrSimilarity(compact, CsrSimilarity.Metric.LOG_LIKELIHOOD));
+
+        CsrSimilarity similarity = new CsrSimilarity(compact, CsrSimilarity.Metric.LOG_LIKELIHOOD);
+        FastIDSet similar = new FastIDSet(similarity.allSimilarItemIDs(5000));
+        assertFalse(similar.contains(5000));
+        assertEquals(generic.getNumItems() - 1, similar.size());
+    }
+
+    @Test
+    public void testUnknownIds() throws Exception {
+        CompactDataModel compact = CompactDataModel.build(preferences(), false);
+        CsrSimilarity similarity = new CsrSimilarity(compact, CsrSimilarity.Metric.PEARSON);
+        try {
+            similarity.userSimilarity(1, -1);
+            fail();
+        } catch (NoSuchUserException e) {
+            // expected
+        }
+        try {
+            similarity.itemSimilarity(-1, 1);
+            fail();
+        } catch (NoSuchItemException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBuilderUsesCsrSimilarityOnCompactModels() throws Exception {
+        CompactDataModel compact = CompactDataModel.build(preferences(), false);
+        assertTrue(RecommenderBuilder.builder().dataModel(compact)
+                .similarity("LogLikelihoodSimilarity").itemSimilarity() instanceof CsrSimilarity);
+        assertTrue(RecommenderBuilder.builder().dataModel(compact).userSimilarity() instanceof CsrSimilarity);
+        DataModel generic = new GenericDataModel(preferences());
+        assertFalse(RecommenderBuilder.builder().dataModel(generic).userSimilarity() instanceof CsrSimilarity);
+    }
+}
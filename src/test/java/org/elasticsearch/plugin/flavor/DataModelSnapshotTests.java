@@ -0,0 +1,62 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class DataModelSnapshotTests extends ESTestCase {
+
+    @Test
+    public void testWriteAndOpen() throws Exception {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 1; i <= 1000; i++) {
+            builder.add(i % 37, 1000 - i % 101, i % 5);
+        }
+        DataModel expected = new GenericDataModel(builder.build());
+
+        Path file = createTempDir().resolve("myindex").resolve("preference.snapshot");
+        DataModelSnapshot.write(expected, "myindex", "preference", 42L, "uuid/0:10,1:12", file);
+        assertTrue(Files.exists(file));
+
+        MappedDataModel actual = DataModelSnapshot.open(file);
+        assertEquals("myindex", actual.metadata().index());
+        assertEquals(Long.valueOf(42L), actual.metadata().watermark());
+        assertEquals(1000, actual.metadata().numPreferences());
+        assertEquals("uuid/0:10,1:12", actual.metadata().indexState());
+        assertEquals(expected.getNumUsers(), actual.getNumUsers());
+        assertEquals(expected.getNumItems(), actual.getNumItems());
+
+        LongPrimitiveIterator userIds = expected.getUserIDs();
+        while (userIds.hasNext()) {
+            long userId = userIds.nextLong();
+            PreferenceArray prefs = expected.getPreferencesFromUser(userId);
+            assertEquals(prefs.length(), actual.getPreferencesFromUser(userId).length());
+            assertEquals(expected.getItemIDsFromUser(userId), actual.getItemIDsFromUser(userId));
+            for (int i = 0; i < prefs.length(); i++) {
+                assertEquals(prefs.getValue(i), actual.getPreferenceValue(userId, prefs.getItemID(i)), 0F);
+            }
+        }
+
+        LongPrimitiveIterator itemIds = expected.getItemIDs();
+        while (itemIds.hasNext()) {
+            long itemId = itemIds.nextLong();
+            assertEquals(expected.getNumUsersWithPreferenceFor(itemId), actual.getNumUsersWithPreferenceFor(itemId));
+            assertEquals(expected.getNumUsersWithPreferenceFor(itemId, 1000),
+                         actual.getNumUsersWithPreferenceFor(itemId, 1000));
+        }
+        assertNull(actual.getPreferenceValue(1, 1));
+        assertEquals(expected.getMaxPreference(), actual.getMaxPreference(), 0F);
+    }
+}
@@ -0,0 +1,141 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class ElasticsearchCooccurrenceDataModelFactoryTests extends ESTestCase {
+
+    private static DataModel dataModel(Random random) {
+        return RandomDataModelBuilder.builder(random)
+            .users(200).items(100).itemsPerUser(3, 17).binary()
+            .build();
+    }
+
+    private static int[] counts(OpenLongIntHashMap counts, long[] ids) {
+        int[] values = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            values[i] = counts.get(ids[i]);
+        }
+        return values;
+    }
+
+    /** What the shards would sum up for the item: co-occurrences, then preferences of the candidates. */
+    private static List<RecommendedItem> fromCounts(DataModel dataModel, long itemId, CsrSimilarity.Metric metric) throws Exception {
+        long[] userIds = dataModel.getPreferencesForItem(itemId).getIDs();
+        OpenLongIntHashMap cooccurrences = new OpenLongIntHashMap();
+        for (long userId : userIds) {
+            for (long otherId : dataModel.getPreferencesFromUser(userId).getIDs()) {
+                cooccurrences.adjustOrPutValue(otherId, 1, 1);
+            }
+        }
+        long[] ids = TransportCooccurrenceAction.sortedKeys(cooccurrences);
+        long[] candidates = ElasticsearchCooccurrenceDataModelFactory.candidates(itemId, ids, counts(cooccurrences, ids), 0);
+        OpenLongIntHashMap rows = new OpenLongIntHashMap();
+        for (long candidate : candidates) {
+            rows.put(candidate, dataModel.getNumUsersWithPreferenceFor(candidate));
+        }
+        long[] countedIds = TransportCooccurrenceAction.sortedKeys(rows);
+        return ElasticsearchCooccurrenceDataModelFactory.mostSimilar(userIds.length, ids, counts(cooccurrences, ids),
+                                                                     countedIds, counts(rows, countedIds), candidates,
+                                                                     dataModel.getNumUsers(), metric, 10);
+    }
+
+    private static void assertSameAsMahout(DataModel dataModel, ItemSimilarity similarity, CsrSimilarity.Metric metric) throws Exception {
+        GenericItemBasedRecommender recommender = new GenericItemBasedRecommender(dataModel, similarity);
+        LongPrimitiveIterator itemIds = dataModel.getItemIDs();
+        while (itemIds.hasNext()) {
+            long itemId = itemIds.nextLong();
+            List<RecommendedItem> expected = recommender.mostSimilarItems(itemId, 10);
+            List<RecommendedItem> items = fromCounts(dataModel, itemId, metric);
+            assertEquals(expected.size(), items.size());
+            for (int i = 0; i < items.size(); i++) {
+                // ties may come in another order; compare values
+                assertEquals(expected.get(i).getValue(), items.get(i).getValue(), 1e-6);
+                assertEquals(items.get(i).getValue(), similarity.itemSimilarity(itemId, items.get(i).getItemID()), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testLogLikelihoodFromCounts() throws Exception {
+        DataModel dataModel = dataModel(random());
+        assertSameAsMahout(dataModel, new LogLikelihoodSimilarity(dataModel), CsrSimilarity.Metric.LOG_LIKELIHOOD);
+    }
+
+    @Test
+    public void testTanimotoFromCounts() throws Exception {
+        DataModel dataModel = dataModel(random());
+        assertSameAsMahout(dataModel, new TanimotoCoefficientSimilarity(dataModel), CsrSimilarity.Metric.TANIMOTO);
+    }
+
+    @Test
+    public void testCandidates() {
+        long[] ids = { 1, 2, 3, 4, 5 };
+        int[] cooccurrences = { 2, 9, 9, 1, 4 };
+        assertArrayEquals(new long[] { 1, 3, 4, 5 }, ElasticsearchCooccurrenceDataModelFactory.candidates(2, ids, cooccurrences, 0));
+        // most co-occurrences first, ties by ID
+        assertArrayEquals(new long[] { 2, 3 }, ElasticsearchCooccurrenceDataModelFactory.candidates(7, ids, cooccurrences, 2));
+        assertArrayEquals(new long[] { 3, 5 }, ElasticsearchCooccurrenceDataModelFactory.candidates(2, ids, cooccurrences, 2));
+    }
+
+    @Test
+    public void testShardCount() throws Exception {
+        try (Directory directory = new RAMDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            long[][] preferences = { { 1, 10 }, { 1, 11 }, { 2, 10 }, { 2, 12 }, { 3, 11 }, { 3, 12 }, { 4, 10 } };
+            for (long[] preference : preferences) {
+                Document doc = new Document();
+                doc.add(new LongPoint("user_id", preference[0]));
+                doc.add(new SortedNumericDocValuesField("user_id", preference[0]));
+                doc.add(new LongPoint("item_id", preference[1]));
+                doc.add(new SortedNumericDocValuesField("item_id", preference[1]));
+                writer.addDocument(doc);
+                if (preference[0] == 2) {
+                    // deleted documents are not counted
+                    writer.commit();
+                }
+            }
+            writer.deleteDocuments(LongPoint.newExactQuery("user_id", 4));
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                OpenLongIntHashMap counts = new OpenLongIntHashMap();
+                TransportCooccurrenceAction.count(searcher, LongPoint.newSetQuery("user_id", 1, 2), "item_id", counts);
+                long[] ids = TransportCooccurrenceAction.sortedKeys(counts);
+                assertArrayEquals(new long[] { 10, 11, 12 }, ids);
+                assertArrayEquals(new int[] { 2, 1, 1 }, counts(counts, ids));
+
+                counts = new OpenLongIntHashMap();
+                TransportCooccurrenceAction.count(searcher, LongPoint.newSetQuery("item_id", 10, 12), "item_id", counts);
+                ids = TransportCooccurrenceAction.sortedKeys(counts);
+                assertArrayEquals(new long[] { 10, 12 }, ids);
+                assertArrayEquals(new int[] { 2, 2 }, counts(counts, ids));
+            }
+        }
+    }
+}
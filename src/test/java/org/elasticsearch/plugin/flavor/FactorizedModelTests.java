@@ -0,0 +1,168 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class FactorizedModelTests extends ESTestCase {
+    private static final int USERS = 50;
+    private static final int ITEMS = 700;
+    private static final int FEATURES = 8;
+
+    private static Factorization factorization(Random random) {
+        FastByIDMap<Integer> userIds = new FastByIDMap<Integer>();
+        FastByIDMap<Integer> itemIds = new FastByIDMap<Integer>();
+        double[][] userFeatures = new double[USERS][FEATURES];
+        double[][] itemFeatures = new double[ITEMS][FEATURES];
+        for (int u = 0; u < USERS; u++) {
+            // mapped indices deliberately out of ID order
+            userIds.put(1000 + u * 3, USERS - 1 - u);
+            for (int f = 0; f < FEATURES; f++) {
+                userFeatures[u][f] = random.nextGaussian();
+            }
+        }
+        for (int i = 0; i < ITEMS; i++) {
+            itemIds.put(i * 7, ITEMS - 1 - i);
+            for (int f = 0; f < FEATURES; f++) {
+                itemFeatures[i][f] = random.nextGaussian();
+            }
+        }
+        return new Factorization(userIds, itemIds, userFeatures, itemFeatures);
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double sum = 0;
+        for (int f = 0; f < x.length; f++) {
+            sum += (float) x[f] * (float) y[f];
+        }
+        return sum;
+    }
+
+    @Test
+    public void testRecommendMatchesFullScan() throws Exception {
+        Factorization factorization = factorization(new Random(random().nextLong()));
+        FactorizedModel model = FactorizedModel.of(factorization, 3);
+        assertEquals(3, model.modelVersion());
+        assertEquals(USERS, model.numUsers());
+        assertEquals(ITEMS, model.numItems());
+        assertTrue(model.ramBytesUsed() > 0);
+
+        long userId = 1000 + 3 * 17;
+        double[] user = factorization.getUserFeatures(userId);
+        Double[] scores = new Double[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            scores[i] = dot(user, factorization.getItemFeatures(i * 7));
+        }
+        Double[] sorted = scores.clone();
+        Arrays.sort(sorted, (a, b) -> Double.compare(b, a));
+
+        List<RecommendedItem> items = model.recommend(userId, 20, null);
+        assertEquals(20, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(sorted[i], items.get(i).getValue(), 1e-4);
+            assertEquals(scores[(int) (items.get(i).getItemID() / 7)], items.get(i).getValue(), 1e-4);
+            assertEquals(items.get(i).getValue(), model.estimatePreference(userId, items.get(i).getItemID()), 1e-6);
+        }
+
+        FastIDSet excluded = new FastIDSet();
+        excluded.add(items.get(0).getItemID());
+        excluded.add(items.get(3).getItemID());
+        List<RecommendedItem> rest = model.recommend(userId, 20, excluded);
+        assertEquals(20, rest.size());
+        for (RecommendedItem item : rest) {
+            assertFalse(excluded.contains(item.getItemID()));
+        }
+        assertEquals(items.get(1).getItemID(), rest.get(0).getItemID());
+
+        assertEquals(ITEMS, model.recommend(userId, ITEMS + 10, null).size());
+        assertTrue(model.recommend(userId, 0, null).isEmpty());
+    }
+
+    @Test
+    public void testMostSimilarItemsByCosine() throws Exception {
+        Factorization factorization = factorization(new Random(random().nextLong()));
+        FactorizedModel model = FactorizedModel.of(factorization, 1);
+
+        long itemId = 7 * 123;
+        double[] item = factorization.getItemFeatures(itemId);
+        double best = Double.NEGATIVE_INFINITY;
+        long bestId = -1;
+        for (int i = 0; i < ITEMS; i++) {
+            if (i * 7 == itemId) {
+                continue;
+            }
+            double[] other = factorization.getItemFeatures(i * 7);
+            double cosine = dot(item, other) / Math.sqrt(dot(item, item) * dot(other, other));
+            if (cosine > best) {
+                best = cosine;
+                bestId = i * 7;
+            }
+        }
+        List<RecommendedItem> similar = model.mostSimilarItems(itemId, 10);
+        assertEquals(10, similar.size());
+        assertEquals(bestId, similar.get(0).getItemID());
+        assertEquals(best, similar.get(0).getValue(), 1e-4);
+        for (int i = 1; i < similar.size(); i++) {
+            assertTrue(similar.get(i - 1).getValue() >= similar.get(i).getValue());
+            assertNotEquals(itemId, similar.get(i).getItemID());
+        }
+    }
+
+    @Test
+    public void testUnknownIds() throws Exception {
+        FactorizedModel model = FactorizedModel.of(factorization(new Random(0)), 1);
+        try {
+            model.recommend(-1, 10, null);
+            fail();
+        } catch (NoSuchUserException e) {
+            // expected
+        }
+        try {
+            model.mostSimilarItems(-1, 10);
+            fail();
+        } catch (NoSuchItemException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTrain() throws Exception {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 1; i <= 2000; i++) {
+            builder.add(i % 97, (i * 31) % 113, 1 + i % 5);
+        }
+        FastByIDMap<PreferenceArray> preferences = builder.build();
+        DataModel dataModel = new GenericDataModel(preferences);
+        FactorizedModel model = FactorizedModel.train(dataModel, 5, 0.065, 5, false, 40, 2, 9);
+        assertEquals(9, model.modelVersion());
+        assertEquals(5, model.numFeatures());
+        assertEquals(dataModel.getNumUsers(), model.numUsers());
+        assertEquals(dataModel.getNumItems(), model.numItems());
+
+        long userId = dataModel.getUserIDs().nextLong();
+        FastIDSet rated = dataModel.getItemIDsFromUser(userId);
+        List<RecommendedItem> items = model.recommend(userId, 10, rated);
+        assertEquals(10, items.size());
+        for (RecommendedItem item : items) {
+            assertFalse(rated.contains(item.getItemID()));
+        }
+    }
+}
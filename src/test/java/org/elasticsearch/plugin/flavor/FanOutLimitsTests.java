@@ -0,0 +1,113 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class FanOutLimitsTests extends ESTestCase {
+
+    private static FastByIDMap<PreferenceArray> preferences() {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        // user 0 rates every item, the others a few
+        for (int i = 0; i < 500; i++) {
+            builder.add(0, i, 1);
+        }
+        for (int u = 1; u <= 50; u++) {
+            for (int i = 0; i < 5; i++) {
+                builder.add(u, (u * 7 + i) % 500, 1);
+            }
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        long[] ids = new long[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        long[] sampled = FanOutLimits.sample(ids, 100, 42);
+        assertEquals(100, sampled.length);
+        assertArrayEquals(sampled, FanOutLimits.sample(ids, 100, 42));
+        assertEquals(100, new FastIDSet(sampled).size());
+        assertSame(ids, FanOutLimits.sample(ids, 0, 42));
+        assertSame(ids, FanOutLimits.sample(ids, 1000, 42));
+    }
+
+    @Test
+    public void testSampleRowsKeepsRequired() throws Exception {
+        FanOutLimits limits = new FanOutLimits(20, 0, 0);
+        FastByIDMap<PreferenceArray> users = limits.sampleRows(preferences(), new FastIDSet(new long[] { 499, 3 }));
+
+        PreferenceArray heavy = users.get(0);
+        assertEquals(20, heavy.length());
+        assertEquals(0, heavy.getUserID(0));
+        FastIDSet items = new FastIDSet(heavy.getIDs());
+        assertTrue(items.contains(499));
+        assertTrue(items.contains(3));
+        assertEquals(5, users.get(1).length());
+    }
+
+    @Test
+    public void testCappedCandidates() throws Exception {
+        DataModel dataModel = new GenericDataModel(preferences());
+        CappedCandidateItemsStrategy uncapped = new CappedCandidateItemsStrategy(FanOutLimits.UNLIMITED);
+        FastIDSet all = uncapped.getCandidateItems(new long[] { 7 }, dataModel);
+        assertEquals(499, all.size());
+        assertFalse(all.contains(7));
+
+        CappedCandidateItemsStrategy capped = new CappedCandidateItemsStrategy(new FanOutLimits(10, 0, 30));
+        FastIDSet candidates = capped.getCandidateItems(new long[] { 7 }, dataModel);
+        assertTrue(candidates.size() <= 30);
+        assertFalse(candidates.contains(7));
+
+        ItemBasedRecommender recommender = RecommenderBuilder.builder()
+            .dataModel(dataModel)
+            .similarity("LogLikelihoodSimilarity")
+            .maxItemsPerUser(10)
+            .maxCandidateItems(30)
+            .itemBasedRecommender();
+        List<RecommendedItem> similar = recommender.mostSimilarItems(7, 10);
+        assertFalse(similar.isEmpty());
+        for (RecommendedItem item : similar) {
+            assertNotEquals(7, item.getItemID());
+        }
+        FastIDSet rated = new FastIDSet(dataModel.getItemIDsFromUser(1).toArray());
+        List<RecommendedItem> recommended = recommender.recommend(1, 10);
+        assertFalse(recommended.isEmpty());
+        for (RecommendedItem item : recommended) {
+            assertFalse(rated.contains(item.getItemID()));
+        }
+    }
+
+    @Test
+    public void testPreferredItemsDoNotCountTowardsCap() throws Exception {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 1; i <= 5; i++) {
+            builder.add(1, i, 1);
+            builder.add(2, i, 1);
+            builder.add(2, 99 + i, 1);
+        }
+        DataModel dataModel = new GenericDataModel(builder.build());
+        CappedCandidateItemsStrategy capped = new CappedCandidateItemsStrategy(new FanOutLimits(0, 0, 3));
+        FastIDSet candidates = capped.getCandidateItems(new long[] { 1, 2, 3, 4, 5 }, dataModel);
+        assertEquals(3, candidates.size());
+        for (long itemId : candidates) {
+            assertTrue(itemId >= 100);
+        }
+    }
+}
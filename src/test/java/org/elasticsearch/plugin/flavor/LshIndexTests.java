@@ -0,0 +1,153 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class LshIndexTests extends ESTestCase {
+
+    /** Users of cluster {@code c} rate {@code perUser} of the 30 items of cluster {@code c}. */
+    private static FastByIDMap<PreferenceArray> clustered(Random random, int clusters, int usersPerCluster, int perUser) {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int c = 0; c < clusters; c++) {
+            for (int u = 0; u < usersPerCluster; u++) {
+                long userId = c * usersPerCluster + u;
+                FastIDSet rated = new FastIDSet();
+                while (rated.size() < perUser) {
+                    long itemId = c * 30 + random.nextInt(30);
+                    if (rated.add(itemId)) {
+                        builder.add(userId, itemId, 1 + random.nextInt(5));
+                    }
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static long[] sorted(long[] ids) {
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void testMinHashFindsExactNeighbors() throws Exception {
+        DataModel dataModel = new GenericDataModel(clustered(new Random(random().nextLong()), 10, 40, 27));
+        LshIndex index = LshIndex.build(dataModel, LshIndex.Kind.MIN_HASH, 16, 4, 5);
+        assertEquals(5, index.modelVersion());
+        assertTrue(index.ramBytesUsed() > 0);
+
+        TanimotoCoefficientSimilarity similarity = new TanimotoCoefficientSimilarity(dataModel);
+        int found = 0;
+        int total = 0;
+        LongPrimitiveIterator itemIds = dataModel.getItemIDs();
+        while (itemIds.hasNext()) {
+            long itemId = itemIds.nextLong();
+            List<RecommendedItem> exact = RecommenderBuilder.builder()
+                    .dataModel(dataModel)
+                    .similarity("TanimotoCoefficientSimilarity")
+                    .itemBasedRecommender()
+                    .mostSimilarItems(itemId, 1);
+            List<RecommendedItem> approximate = index.mostSimilarItems(itemId, 5, similarity);
+            for (int i = 1; i < approximate.size(); i++) {
+                assertTrue(approximate.get(i - 1).getValue() >= approximate.get(i).getValue());
+            }
+            for (RecommendedItem item : approximate) {
+                assertEquals(similarity.itemSimilarity(itemId, item.getItemID()), item.getValue(), 1e-6);
+                assertNotEquals(itemId, item.getItemID());
+            }
+            total++;
+            if (!approximate.isEmpty() && approximate.get(0).getValue() >= exact.get(0).getValue() - 1e-6) {
+                found++;
+            }
+        }
+        assertTrue("recall " + found + "/" + total, found >= total * 0.8);
+        assertEquals(0, index.candidateItems(-1).length);
+    }
+
+    @Test
+    public void testHyperplaneGroupsIdenticalRows() throws Exception {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (long itemId = 0; itemId < 50; itemId++) {
+            builder.add(1, itemId, 1 + itemId % 5);
+            builder.add(2, itemId, 1 + itemId % 5);
+            builder.add(3, itemId, 5 - itemId % 5);
+        }
+        DataModel dataModel = new GenericDataModel(builder.build());
+        LshIndex index = LshIndex.build(dataModel, LshIndex.Kind.HYPERPLANE, 8, 12, 1);
+        FastIDSet candidates = new FastIDSet(index.candidateUsers(1));
+        assertTrue(candidates.contains(2));
+        assertFalse(candidates.contains(1));
+        // opposite ratings flip every sign
+        assertFalse(candidates.contains(3));
+    }
+
+    @Test
+    public void testUpdateMatchesRebuild() throws Exception {
+        Random random = new Random(random().nextLong());
+        FastByIDMap<PreferenceArray> before = clustered(random, 5, 20, 15);
+        FastByIDMap<PreferenceArray> after = new FastByIDMap<PreferenceArray>();
+        FastIDSet changedUsers = new FastIDSet();
+        FastIDSet changedItems = new FastIDSet();
+        for (Map.Entry<Long, PreferenceArray> entry : before.entrySet()) {
+            after.put(entry.getKey(), entry.getValue());
+        }
+        // move a few users to another cluster and add a new user
+        PreferenceArrayBuilder changes = new PreferenceArrayBuilder();
+        for (long userId : new long[] {3, 42, 77, 1000}) {
+            changedUsers.add(userId);
+            if (before.containsKey(userId)) {
+                for (long itemId : before.get(userId).getIDs()) {
+                    changedItems.add(itemId);
+                }
+            }
+            for (long itemId = 120; itemId < 135; itemId++) {
+                changes.add(userId, itemId, 3);
+                changedItems.add(itemId);
+            }
+        }
+        for (Map.Entry<Long, PreferenceArray> entry : changes.build().entrySet()) {
+            after.put(entry.getKey(), entry.getValue());
+        }
+
+        for (LshIndex.Kind kind : LshIndex.Kind.values()) {
+            LshIndex updated = LshIndex.build(new GenericDataModel(before), kind, 8, kind.defaultRows(), 1);
+            long version = updated.version();
+            DataModel afterModel = new GenericDataModel(after);
+            updated.update(afterModel, changedUsers, changedItems, 2);
+            assertEquals(2, updated.modelVersion());
+            assertTrue(updated.version() > version);
+
+            LshIndex rebuilt = LshIndex.build(afterModel, kind, 8, kind.defaultRows(), 2);
+            LongPrimitiveIterator userIds = afterModel.getUserIDs();
+            while (userIds.hasNext()) {
+                long userId = userIds.nextLong();
+                assertArrayEquals(sorted(rebuilt.candidateUsers(userId)), sorted(updated.candidateUsers(userId)));
+            }
+            LongPrimitiveIterator itemIds = afterModel.getItemIDs();
+            while (itemIds.hasNext()) {
+                long itemId = itemIds.nextLong();
+                assertArrayEquals(sorted(rebuilt.candidateItems(itemId)), sorted(updated.candidateItems(itemId)));
+            }
+            // items nobody rates anymore are dropped
+            assertEquals(rebuilt.ramBytesUsed(), updated.ramBytesUsed());
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class OverlayDataModelTests extends ESTestCase {
+
+    private static DataModel model(Map<Long, Map<Long, Float>> users) {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (Map.Entry<Long, Map<Long, Float>> user : users.entrySet()) {
+            for (Map.Entry<Long, Float> item : user.getValue().entrySet()) {
+                builder.add(user.getKey(), item.getKey(), item.getValue());
+            }
+        }
+        return new GenericDataModel(builder.build());
+    }
+
+    private static long[] ids(LongPrimitiveIterator it) {
+        List<Long> ids = new ArrayList<>();
+        while (it.hasNext()) {
+            ids.add(it.nextLong());
+        }
+        long[] array = ids.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(array);
+        return array;
+    }
+
+    private static void assertSameModel(DataModel expected, DataModel actual) throws Exception {
+        assertEquals(expected.getNumUsers(), actual.getNumUsers());
+        assertEquals(expected.getNumItems(), actual.getNumItems());
+        assertArrayEquals(ids(expected.getUserIDs()), ids(actual.getUserIDs()));
+        assertArrayEquals(ids(expected.getItemIDs()), ids(actual.getItemIDs()));
+        LongPrimitiveIterator userIds = expected.getUserIDs();
+        while (userIds.hasNext()) {
+            long userId = userIds.nextLong();
+            PreferenceArray prefs = expected.getPreferencesFromUser(userId);
+            PreferenceArray actualPrefs = actual.getPreferencesFromUser(userId);
+            assertEquals(prefs.length(), actualPrefs.length());
+            assertEquals(expected.getItemIDsFromUser(userId), actual.getItemIDsFromUser(userId));
+            for (int i = 0; i < prefs.length(); i++) {
+                // rows are sorted by item in both models
+                assertEquals(prefs.getItemID(i), actualPrefs.getItemID(i));
+                assertEquals(prefs.getValue(i), actualPrefs.getValue(i), 0F);
+                assertEquals(prefs.getValue(i), actual.getPreferenceValue(userId, prefs.getItemID(i)), 0F);
+            }
+        }
+        long[] itemIds = ids(expected.getItemIDs());
+        for (long itemId : itemIds) {
+            PreferenceArray prefs = expected.getPreferencesForItem(itemId);
+            PreferenceArray actualPrefs = actual.getPreferencesForItem(itemId);
+            assertEquals(prefs.length(), actualPrefs.length());
+            for (int i = 0; i < prefs.length(); i++) {
+                assertEquals(prefs.getUserID(i), actualPrefs.getUserID(i));
+            }
+            assertEquals(expected.getNumUsersWithPreferenceFor(itemId), actual.getNumUsersWithPreferenceFor(itemId));
+            assertEquals(expected.getNumUsersWithPreferenceFor(itemId, itemIds[0]),
+                         actual.getNumUsersWithPreferenceFor(itemId, itemIds[0]));
+        }
+    }
+
+    private static List<OverlayDataModel.Change> changes(Random random, Map<Long, Map<Long, Float>> users, int count) {
+        List<OverlayDataModel.Change> changes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long userId = random.nextInt(40);
+            long itemId = random.nextInt(30);
+            Map<Long, Float> items = users.get(userId);
+            if (random.nextInt(3) == 0) {
+                changes.add(OverlayDataModel.Change.remove(userId, itemId));
+                if (items != null) {
+                    items.remove(itemId);
+                    if (items.isEmpty()) {
+                        users.remove(userId);
+                    }
+                }
+            } else {
+                float value = 1 + random.nextInt(5);
+                changes.add(OverlayDataModel.Change.set(userId, itemId, value));
+                users.computeIfAbsent(userId, k -> new HashMap<>()).put(itemId, value);
+            }
+        }
+        return changes;
+    }
+
+    private static Map<Long, Map<Long, Float>> initial(Random random) {
+        Map<Long, Map<Long, Float>> users = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            users.computeIfAbsent((long) random.nextInt(30), k -> new HashMap<>())
+                 .put((long) random.nextInt(25), (float) (1 + random.nextInt(5)));
+        }
+        return users;
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        Random random = new Random(random().nextLong());
+        Map<Long, Map<Long, Float>> users = initial(random);
+        DataModel base = model(users);
+        DataModel current = base;
+        for (int batch = 0; batch < 20; batch++) {
+            current = OverlayDataModel.apply(current, changes(random, users, 1 + random.nextInt(30)));
+            assertSame(base, ((OverlayDataModel) current).base());
+            assertSameModel(model(users), current);
+        }
+    }
+
+    @Test
+    public void testRemoved() throws Exception {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        builder.add(1, 10, 1);
+        builder.add(1, 11, 2);
+        builder.add(2, 11, 3);
+        DataModel overlay = OverlayDataModel.apply(new GenericDataModel(builder.build()), Arrays.asList(
+                OverlayDataModel.Change.remove(1, 10),
+                OverlayDataModel.Change.remove(1, 11),
+                OverlayDataModel.Change.set(3, 12, 4)));
+        assertEquals(2, overlay.getNumUsers());
+        assertEquals(2, overlay.getNumItems());
+        assertArrayEquals(new long[] { 2, 3 }, ids(overlay.getUserIDs()));
+        assertArrayEquals(new long[] { 11, 12 }, ids(overlay.getItemIDs()));
+        assertNull(overlay.getPreferenceValue(2, 10));
+        try {
+            overlay.getPreferencesFromUser(1);
+            fail();
+        } catch (NoSuchUserException e) {
+            // removed with its last preference
+        }
+        try {
+            overlay.getPreferencesForItem(10);
+            fail();
+        } catch (NoSuchItemException e) {
+            // removed with its last preference
+        }
+        try {
+            overlay.setPreference(1, 10, 1);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // overlays are immutable
+        }
+    }
+
+    @Test
+    public void testPublishAndCompact() throws Exception {
+        Random random = new Random(random().nextLong());
+        Map<Long, Map<Long, Float>> users = initial(random);
+        ElasticsearchPreloadDataModel model = new ElasticsearchPreloadDataModel(null, "my_index", "preference");
+        for (Map.Entry<Long, Map<Long, Float>> user : users.entrySet()) {
+            for (Map.Entry<Long, Float> item : user.getValue().entrySet()) {
+                model.enqueue(OverlayDataModel.Change.set(user.getKey(), item.getKey(), item.getValue()));
+            }
+        }
+        long version = model.version();
+        assertTrue(model.applyPending() > 0);
+        assertTrue(model.version() > version);
+        assertEquals(0, model.applyPending());
+        assertSameModel(model(users), model.delegate());
+
+        for (OverlayDataModel.Change change : changes(random, users, 50)) {
+            model.enqueue(change);
+        }
+        model.applyPending();
+        ElasticsearchPreloadDataModel.Delta delta = model.delta();
+        assertEquals(model.version(), delta.toVersion());
+        assertTrue(model.overlaySize() > 0);
+
+        version = model.version();
+        assertTrue(model.compact());
+        assertFalse(model.delegate() instanceof OverlayDataModel);
+        assertEquals(0, model.overlaySize());
+        assertEquals(version, model.version());
+        assertSameModel(model(users), model.delegate());
+        assertFalse(model.compact());
+
+        model.setPreference(1000, 2000, 5);
+        model.removePreference(1000, 2000);
+        model.setPreference(1001, 2000, 4);
+        users.computeIfAbsent(1001L, k -> new HashMap<>()).put(2000L, 4F);
+        assertSameModel(model(users), model.delegate());
+    }
+
+    @Test
+    public void testPublishKeepsBaseVersion() throws Exception {
+        ElasticsearchPreloadDataModel model = new ElasticsearchPreloadDataModel(null, "my_index", "preference");
+        long base = model.baseVersion();
+        model.setPreference(1, 10, 1);
+        long first = model.version();
+        model.setPreference(2, 20, 1);
+        model.setPreference(1, 21, 1);
+        assertEquals(base, model.baseVersion());
+        assertTrue(model.version() > first);
+
+        assertEquals(model.version(), model.version(1, false));
+        assertEquals(first, model.version(10, true));
+        assertEquals(base, model.version(3, false));
+        assertEquals(base, model.version(1, true));
+
+        ElasticsearchPreloadDataModel.Delta delta = model.deltaSince(first);
+        assertEquals(model.version(), delta.toVersion());
+        assertEquals(2, delta.userIds().size());
+        assertTrue(delta.userIds().contains(1) && delta.userIds().contains(2));
+        assertEquals(2, delta.itemIds().size());
+        assertFalse(delta.itemIds().contains(10));
+        assertEquals(3, model.deltaSince(base).itemIds().size());
+        assertTrue(model.deltaSince(model.version()).userIds().isEmpty());
+
+        // folding the overlay changes neither
+        long version = model.version();
+        assertTrue(model.compact());
+        assertEquals(version, model.version(1, false));
+        assertEquals(2, model.deltaSince(first).userIds().size());
+    }
+
+    @Test
+    public void testReplayLogTrimmed() throws Exception {
+        ElasticsearchPreloadDataModel model = new ElasticsearchPreloadDataModel(null, "my_index", "preference");
+        for (int i = 0; i < 5; i++) {
+            model.enqueue(OverlayDataModel.Change.set(1, i, 1));
+            model.applyPending();
+        }
+        // within the window, unfolded batches are kept
+        assertEquals(5, model.replayLogSize());
+        assertEquals(5, model.unfoldedChanges());
+
+        model.setReplayWindow(0);
+        model.enqueue(OverlayDataModel.Change.set(1, 5, 1));
+        model.applyPending();
+        // not folded into the base yet, so still needed to serve it
+        assertEquals(6, model.replayLogSize());
+
+        // let the batches age past the empty window
+        Thread.sleep(10);
+        assertTrue(model.compact());
+        assertEquals(0, model.unfoldedChanges());
+        assertEquals(0, model.replayLogSize());
+        model.enqueue(OverlayDataModel.Change.set(1, 6, 1));
+        model.applyPending();
+        assertEquals(1, model.replayLogSize());
+        assertEquals(7, model.getItemIDsFromUser(1).size());
+    }
+
+    @Test
+    public void testParse() {
+        List<PreferenceIngester.Event> events = PreferenceIngester.parse(
+                "{\"user_id\":1,\"item_id\":10,\"value\":3}\n"
+                + "\n"
+                + "{\"index\":\"other\",\"type\":\"pref\",\"user_id\":2,\"item_id\":11,\"remove\":true}\n",
+                "my_index", "preference");
+        assertEquals(2, events.size());
+        assertEquals("my_index", events.get(0).index());
+        assertEquals("preference", events.get(0).type());
+        assertEquals(1, events.get(0).change().userId());
+        assertEquals(10, events.get(0).change().itemId());
+        assertEquals(3F, events.get(0).change().value(), 0F);
+        assertFalse(events.get(0).change().isRemove());
+        assertEquals("other", events.get(1).index());
+        assertTrue(events.get(1).change().isRemove());
+
+        expectThrows(IllegalArgumentException.class, () -> PreferenceIngester.parse("{\"user_id\":1,\"item_id\":10}", "i", "t"));
+        expectThrows(IllegalArgumentException.class, () -> PreferenceIngester.parse("{\"user_id\":1,\"item_id\":10,\"value\":1}", null, null));
+        expectThrows(IllegalArgumentException.class, () -> PreferenceIngester.parse("{not json", "i", "t"));
+    }
+}
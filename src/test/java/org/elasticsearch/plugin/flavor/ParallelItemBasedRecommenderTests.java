@@ -0,0 +1,144 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class ParallelItemBasedRecommenderTests extends ESTestCase {
+
+    private static DataModel dataModel(Random random) {
+        return RandomDataModelBuilder.builder(random)
+            .users(200).items(400).itemsPerUser(5, 24).heavyUsers(10, 150)
+            .build();
+    }
+
+    private static void assertSameRecommendations(DataModel dataModel,
+                                                  ItemBasedRecommender expected,
+                                                  ItemBasedRecommender actual,
+                                                  IDRescorer rescorer) throws Exception {
+        LongPrimitiveIterator userIds = dataModel.getUserIDs();
+        while (userIds.hasNext()) {
+            long userId = userIds.nextLong();
+            List<RecommendedItem> exact = expected.recommend(userId, 10, rescorer);
+            List<RecommendedItem> items = actual.recommend(userId, 10, rescorer);
+            assertEquals(exact.size(), items.size());
+            for (int i = 0; i < items.size(); i++) {
+                // the generic recommender breaks ties in no particular order; compare values
+                assertEquals(exact.get(i).getValue(), items.get(i).getValue(), 1e-6);
+                if (rescorer == null) {
+                    assertEquals(items.get(i).getValue(), actual.estimatePreference(userId, items.get(i).getItemID()), 1e-6);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsGenericRecommender() throws Exception {
+        DataModel dataModel = dataModel(random());
+        ItemSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+        ItemBasedRecommender expected = new GenericItemBasedRecommender(dataModel, similarity);
+        try (ParallelScorer parallel = new ParallelScorer(4, 0);
+             ParallelScorer sequential = new ParallelScorer(4, Long.MAX_VALUE)) {
+            assertTrue(parallel.isParallel(1));
+            assertFalse(sequential.isParallel(1000000));
+            assertSameRecommendations(dataModel, expected, new ParallelItemBasedRecommender(dataModel, similarity, parallel), null);
+            assertSameRecommendations(dataModel, expected, new ParallelItemBasedRecommender(dataModel, similarity, sequential), null);
+        }
+    }
+
+    @Test
+    public void testRescorer() throws Exception {
+        DataModel dataModel = dataModel(random());
+        ItemSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+        IDRescorer rescorer = new IDRescorer() {
+            @Override
+            public double rescore(long id, double originalScore) {
+                return id % 3 == 0 ? originalScore * 2 : originalScore;
+            }
+
+            @Override
+            public boolean isFiltered(long id) {
+                return id % 7 == 0;
+            }
+        };
+        try (ParallelScorer scorer = new ParallelScorer(4, 0)) {
+            assertSameRecommendations(dataModel, new GenericItemBasedRecommender(dataModel, similarity),
+                                      new ParallelItemBasedRecommender(dataModel, similarity, scorer), rescorer);
+        }
+    }
+
+    @Test
+    public void testBuilderSetsScorer() throws Exception {
+        DataModel dataModel = dataModel(random());
+        try (ParallelScorer scorer = new ParallelScorer(2, 0)) {
+            RecommenderBuilder builder = RecommenderBuilder.builder().dataModel(dataModel).parallelScorer(scorer);
+            assertTrue(builder.itemBasedRecommender() instanceof ParallelItemBasedRecommender);
+            assertTrue(builder.maxCandidateItems(50).itemBasedRecommender() instanceof ParallelItemBasedRecommender);
+            assertFalse(RecommenderBuilder.builder().dataModel(dataModel).itemBasedRecommender() instanceof ParallelItemBasedRecommender);
+        }
+    }
+
+    @Test
+    public void testScorerException() throws Exception {
+        long[] candidates = new long[1000];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = i;
+        }
+        try (ParallelScorer scorer = new ParallelScorer(4, 0)) {
+            try {
+                scorer.topItems(candidates, 10, Long.MAX_VALUE, id -> {
+                    if (id == 777) {
+                        throw new TasteException("failed on " + id);
+                    }
+                    return id;
+                });
+                fail();
+            } catch (TasteException e) {
+                assertEquals("failed on 777", e.getMessage());
+            }
+            List<RecommendedItem> items = scorer.topItems(candidates, 3, Long.MAX_VALUE, id -> id % 2 == 0 ? Float.NaN : 1F);
+            // equal scores keep the lower IDs, NaN is left out
+            assertEquals(3, items.size());
+            assertEquals(1, items.get(0).getItemID());
+            assertEquals(3, items.get(1).getItemID());
+            assertEquals(5, items.get(2).getItemID());
+        }
+    }
+
+    @Test
+    public void testTopN() {
+        TopN top = new TopN(3);
+        top.offer(5, 1F);
+        top.offer(3, 4F);
+        top.offer(9, Float.NaN);
+        assertFalse(top.isFull());
+        top.offer(7, 2F);
+        top.offer(1, 2F);
+        assertTrue(top.isFull());
+        assertEquals(2F, top.threshold(), 0F);
+        List<RecommendedItem> items = top.toList();
+        assertEquals(3, items.size());
+        assertEquals(3, items.get(0).getItemID());
+        assertEquals(1, items.get(1).getItemID());
+        assertEquals(7, items.get(2).getItemID());
+        assertEquals(0, top.size());
+        assertTrue(new TopN(0).toList().isEmpty());
+    }
+}
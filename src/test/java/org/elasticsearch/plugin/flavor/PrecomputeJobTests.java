@@ -0,0 +1,146 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class PrecomputeJobTests extends ESTestCase {
+
+    private static DataModel dataModel() {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        builder.add(30, 7, 1);
+        builder.add(30, 8, 2);
+        builder.add(10, 7, 3);
+        builder.add(20, 9, 4);
+        builder.add(5, 8, 5);
+        return new GenericDataModel(builder.build());
+    }
+
+    @Test
+    public void testIds() throws Exception {
+        DataModel dataModel = dataModel();
+        assertArrayEquals(new long[] { 5, 10, 20, 30 }, PrecomputeJob.ids(dataModel, false, null));
+        assertArrayEquals(new long[] { 7, 8, 9 }, PrecomputeJob.ids(dataModel, true, null));
+
+        FastIDSet changed = new FastIDSet();
+        changed.add(30);
+        changed.add(10);
+        changed.add(99);
+        assertArrayEquals(new long[] { 10, 30 }, PrecomputeJob.ids(dataModel, false, changed));
+    }
+
+    @Test
+    public void testChangedIds() {
+        PreferenceArrayBuilder changes = new PreferenceArrayBuilder();
+        changes.add(1, 100, 1);
+        changes.add(1, 101, 1);
+        changes.add(2, 101, 1);
+        FastIDSet users = PrecomputeJob.changedIds(changes.build(), false);
+        assertEquals(2, users.size());
+        assertTrue(users.contains(1) && users.contains(2));
+        FastIDSet items = PrecomputeJob.changedIds(changes.build(), true);
+        assertEquals(2, items.size());
+        assertTrue(items.contains(100) && items.contains(101));
+    }
+
+    @Test
+    public void testAfter() {
+        long[] ids = { 2, 4, 6, 8 };
+        assertArrayEquals(ids, PrecomputeJob.after(ids, null));
+        assertArrayEquals(new long[] { 6, 8 }, PrecomputeJob.after(ids, 4L));
+        // the checkpointed ID may have left the model since
+        assertArrayEquals(new long[] { 6, 8 }, PrecomputeJob.after(ids, 5L));
+        assertArrayEquals(new long[0], PrecomputeJob.after(ids, 8L));
+        assertArrayEquals(ids, PrecomputeJob.after(ids, 1L));
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put("similarity", "LogLikelihoodSimilarity");
+        params.put("neighborhoodN", "20");
+        PrecomputeAction.Request request = new PrecomputeAction.Request("my_index", "preference")
+                .target("recommendations")
+                .operation("user_based_recommend")
+                .size(5)
+                .params(params);
+        PrecomputeJob.Checkpoint checkpoint = new PrecomputeJob.Checkpoint(request, 100L, 200L).advance(42L, 40, 2, false);
+
+        XContentBuilder builder = JsonXContent.contentBuilder();
+        checkpoint.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        PrecomputeJob.Checkpoint read = PrecomputeJob.Checkpoint.fromMap(
+                XContentHelper.convertToMap(BytesReference.bytes(builder), false, XContentType.JSON).v2());
+        assertEquals(Long.valueOf(100), read.since);
+        assertEquals(Long.valueOf(200), read.watermark);
+        assertEquals(Long.valueOf(42), read.after);
+        assertEquals(40, read.written);
+        assertEquals(2, read.skipped);
+        assertFalse(read.completed);
+        assertTrue(read.matches(request));
+
+        assertFalse(read.matches(new PrecomputeAction.Request("my_index", "preference")
+                .target("recommendations").operation("user_based_recommend").size(10).params(params)));
+        assertFalse(read.matches(new PrecomputeAction.Request("my_index", "preference")
+                .target("recommendations").operation("user_based_recommend").size(5)));
+
+        PrecomputeJob.Checkpoint full = new PrecomputeJob.Checkpoint(request, null, null).advance(null, 0, 0, true);
+        builder = JsonXContent.contentBuilder();
+        full.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        read = PrecomputeJob.Checkpoint.fromMap(XContentHelper.convertToMap(BytesReference.bytes(builder), false, XContentType.JSON).v2());
+        assertNull(read.since);
+        assertNull(read.watermark);
+        assertNull(read.after);
+        assertTrue(read.completed);
+    }
+
+    @Test
+    public void testValidate() {
+        PrecomputeAction.Request request = new PrecomputeAction.Request("my_index", "preference").operation("user_based_recommend");
+        assertNotNull(request.validate());
+        request.target("recommendations");
+        assertNull(request.validate());
+        request.operation("unknown");
+        assertNotNull(request.validate());
+        request.operation("similar_items").checkpointInterval(0);
+        assertNotNull(request.validate());
+        request.checkpointInterval(100).maxFailures(-1);
+        assertNotNull(request.validate());
+        request.maxFailures(10);
+        assertNull(request.validate());
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+        PrecomputeTask.Status status = new PrecomputeTask.Status(1000, 400, 3, 512L, true);
+        BytesStreamOutput out = new BytesStreamOutput();
+        status.writeTo(out);
+        PrecomputeTask.Status read = new PrecomputeTask.Status(out.bytes().streamInput());
+        assertEquals(1000, read.total());
+        assertEquals(400, read.written());
+        assertEquals(3, read.skipped());
+        assertEquals(Long.valueOf(512), read.checkpoint());
+        assertTrue(read.incremental());
+
+        out = new BytesStreamOutput();
+        new PrecomputeTask.Status(10, 0, 0, null, false).writeTo(out);
+        assertNull(new PrecomputeTask.Status(out.bytes().streamInput()).checkpoint());
+    }
+}
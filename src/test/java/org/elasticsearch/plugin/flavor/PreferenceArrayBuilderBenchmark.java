@@ -0,0 +1,120 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Compares the per-hit copy-on-append loading that the scroll loops used to do
+ * with {@link PreferenceArrayBuilder}. Doubling the preferences per user should
+ * roughly double the builder time and quadruple the copying time.
+ *
+ * <pre>
+ * java -cp ... org.elasticsearch.plugin.flavor.PreferenceArrayBuilderBenchmark -users 10 -max 32000
+ * </pre>
+ */
+public class PreferenceArrayBuilderBenchmark {
+    @Option(name = "-users", usage = "number of users")
+    private int numUsers = 10;
+
+    @Option(name = "-min", usage = "smallest number of preferences per user")
+    private int minPreferences = 1000;
+
+    @Option(name = "-max", usage = "largest number of preferences per user")
+    private int maxPreferences = 32000;
+
+    @Option(name = "-iterations", usage = "measured iterations per size")
+    private int iterations = 5;
+
+    @Option(name = "-copy", usage = "also measure the copy-on-append loader")
+    private boolean copy = true;
+
+    public static void main(final String[] args) throws Exception {
+        final PreferenceArrayBuilderBenchmark benchmark = new PreferenceArrayBuilderBenchmark();
+        final CmdLineParser parser = new CmdLineParser(benchmark);
+        try {
+            parser.parseArgument(args);
+        } catch (final CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            return;
+        }
+        benchmark.run();
+    }
+
+    private void run() {
+        System.out.println("prefs/user\tbuilder(ms)\tbuilder(ns/pref)\tcopy(ms)\tcopy(ns/pref)");
+        for (int n = minPreferences; n <= maxPreferences; n *= 2) {
+            final long[] userIds = new long[numUsers * n];
+            final long[] itemIds = new long[userIds.length];
+            final float[] values = new float[userIds.length];
+            final Random random = new Random(n);
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = random.nextInt(numUsers);
+                itemIds[i] = random.nextInt(Integer.MAX_VALUE);
+                values[i] = random.nextFloat();
+            }
+
+            final long builderNanos = measure(() -> builder(userIds, itemIds, values));
+            final long copyNanos = copy ? measure(() -> copyOnAppend(userIds, itemIds, values)) : 0;
+            System.out.println(n
+                    + "\t" + builderNanos / 1000000
+                    + "\t" + builderNanos / userIds.length
+                    + "\t" + copyNanos / 1000000
+                    + "\t" + copyNanos / userIds.length);
+        }
+    }
+
+    private long measure(final Runnable task) {
+        // warm up once
+        task.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static FastByIDMap<PreferenceArray> builder(final long[] userIds, final long[] itemIds, final float[] values) {
+        final PreferenceArrayBuilder users = new PreferenceArrayBuilder();
+        for (int i = 0; i < userIds.length; i++) {
+            users.add(userIds[i], itemIds[i], values[i]);
+        }
+        return users.build();
+    }
+
+    private static FastByIDMap<PreferenceArray> copyOnAppend(final long[] userIds, final long[] itemIds, final float[] values) {
+        final FastByIDMap<PreferenceArray> users = new FastByIDMap<PreferenceArray>();
+        for (int n = 0; n < userIds.length; n++) {
+            final long userId = userIds[n];
+            if (users.containsKey(userId)) {
+                GenericUserPreferenceArray user = (GenericUserPreferenceArray) users.get(userId);
+                GenericUserPreferenceArray newUser = new GenericUserPreferenceArray(user.length() + 1);
+                int currentLength = user.length();
+                for (int i = 0; i < currentLength; i++) {
+                    newUser.setUserID(i, user.getUserID(i));
+                    newUser.setItemID(i, user.getItemID(i));
+                    newUser.setValue(i, user.getValue(i));
+                }
+                newUser.setUserID(currentLength, userId);
+                newUser.setItemID(currentLength, itemIds[n]);
+                newUser.setValue(currentLength, values[n]);
+                users.put(userId, newUser);
+            } else {
+                GenericUserPreferenceArray user = new GenericUserPreferenceArray(1);
+                user.setUserID(0, userId);
+                user.setItemID(0, itemIds[n]);
+                user.setValue(0, values[n]);
+                users.put(userId, user);
+            }
+        }
+        return users;
+    }
+}
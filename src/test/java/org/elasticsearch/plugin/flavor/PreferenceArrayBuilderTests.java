@@ -0,0 +1,58 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class PreferenceArrayBuilderTests extends ESTestCase {
+
+    @Test
+    public void testBuild() throws Exception {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.add(i % 10, i, i / 10F);
+        }
+        assertEquals(10, builder.numUsers());
+        assertEquals(1000, builder.size());
+
+        FastByIDMap<PreferenceArray> users = builder.build();
+        assertEquals(10, users.size());
+        PreferenceArray user3 = users.get(3);
+        assertEquals(100, user3.length());
+        for (int i = 0; i < user3.length(); i++) {
+            assertEquals(3, user3.getUserID(i));
+            assertEquals(i * 10 + 3, user3.getItemID(i));
+            assertEquals((i * 10 + 3) / 10F, user3.getValue(i), 0F);
+        }
+    }
+
+    @Test
+    public void testAddAll() throws Exception {
+        PreferenceArrayBuilder left = new PreferenceArrayBuilder();
+        PreferenceArrayBuilder right = new PreferenceArrayBuilder();
+        left.add(1, 101, 1F);
+        left.add(2, 102, 2F);
+        right.add(1, 103, 3F);
+        right.add(3, 101, 4F);
+
+        left.addAll(right);
+        assertEquals(3, left.numUsers());
+        assertEquals(4, left.size());
+
+        FastByIDMap<PreferenceArray> users = left.build();
+        assertEquals(2, users.get(1).length());
+        assertEquals(103, users.get(1).getItemID(1));
+        assertEquals(1, users.get(3).length());
+
+        // the merged source must stay independent of the target
+        right.add(3, 102, 5F);
+        assertEquals(1, left.build().get(3).length());
+    }
+}
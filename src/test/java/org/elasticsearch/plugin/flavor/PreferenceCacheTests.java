@@ -0,0 +1,91 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class PreferenceCacheTests extends ESTestCase {
+
+    private static PreferenceArray preferences(long userId, int length) {
+        PreferenceArray prefs = new GenericUserPreferenceArray(length);
+        prefs.setUserID(0, userId);
+        for (int i = 0; i < length; i++) {
+            prefs.setItemID(i, i);
+            prefs.setValue(i, 1);
+        }
+        return prefs;
+    }
+
+    @Test
+    public void testPutAndInvalidate() throws Exception {
+        PreferenceCache cache = new PreferenceCache(1 << 20, TimeValue.ZERO);
+        cache.putUser("myindex", "preference", 1, preferences(1, 3));
+        cache.putItem("myindex", "preference", 10, new long[] { 1, 2 });
+        cache.putUser("other", "preference", 1, preferences(1, 1));
+
+        assertEquals(3, cache.getUser("myindex", "preference", 1).length());
+        assertArrayEquals(new long[] { 1, 2 }, cache.getItem("myindex", "preference", 10));
+        assertNull(cache.getUser("myindex", "preference", 2));
+        assertNull(cache.getUser("myindex", "other", 1));
+        assertEquals(2, cache.stats().getMisses());
+
+        cache.invalidate("myindex", "preference", 1L, null);
+        assertNull(cache.getUser("myindex", "preference", 1));
+        assertNotNull(cache.getItem("myindex", "preference", 10));
+
+        cache.invalidate("myindex", null);
+        assertNull(cache.getItem("myindex", "preference", 10));
+        assertNotNull(cache.getUser("other", "preference", 1));
+        assertEquals(1, cache.count());
+    }
+
+    @Test
+    public void testStalePutDropped() throws Exception {
+        PreferenceCache cache = new PreferenceCache(1 << 20, TimeValue.ZERO);
+        long stamp = cache.stamp();
+        cache.invalidate("myindex", "preference", 1L, 10L);
+        // read before the invalidation, so possibly stale
+        cache.putUser("myindex", "preference", 1, preferences(1, 3), stamp);
+        cache.putItem("myindex", "preference", 10, new long[] { 1 }, stamp);
+        assertNull(cache.getUser("myindex", "preference", 1));
+        assertNull(cache.getItem("myindex", "preference", 10));
+
+        stamp = cache.stamp();
+        cache.putUser("myindex", "preference", 1, preferences(1, 3), stamp);
+        assertEquals(3, cache.getUser("myindex", "preference", 1).length());
+
+        stamp = cache.stamp();
+        cache.invalidate("myindex", null);
+        cache.putUser("myindex", "preference", 2, preferences(2, 1), stamp);
+        assertNull(cache.getUser("myindex", "preference", 2));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        PreferenceCache cache = new PreferenceCache(4096, TimeValue.ZERO);
+        for (int i = 0; i < 100; i++) {
+            cache.putUser("myindex", "preference", i, preferences(i, 10));
+        }
+        assertTrue(cache.ramBytesUsed() <= 4096);
+        assertTrue(cache.stats().getEvictions() > 0);
+        assertNotNull(cache.getUser("myindex", "preference", 99));
+        assertNull(cache.getUser("myindex", "preference", 0));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        PreferenceCache cache = new PreferenceCache(0, TimeValue.ZERO);
+        cache.putUser("myindex", "preference", 1, preferences(1, 3));
+        assertFalse(cache.enabled());
+        assertNull(cache.getUser("myindex", "preference", 1));
+        assertEquals(0, cache.count());
+    }
+}
@@ -0,0 +1,91 @@
+package org.elasticsearch.plugin.flavor;
+
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+/**
+ * Random preferences for recommender tests. Every user rates a random number of
+ * distinct items, with values from 1 to 5 unless {@link #binary()} is set.
+ */
+public class RandomDataModelBuilder {
+    private final Random random;
+    private int numUsers = 100;
+    private int numItems = 60;
+    private int minItemsPerUser = 3;
+    private int maxItemsPerUser = 12;
+    private int heavyUserInterval = 0;
+    private int heavyUserItems = 0;
+    private int groups = 1;
+    private boolean binary = false;
+
+    private RandomDataModelBuilder(final Random random) {
+        this.random = random;
+    }
+
+    public static RandomDataModelBuilder builder(final Random random) {
+        return new RandomDataModelBuilder(random);
+    }
+
+    public RandomDataModelBuilder users(final int numUsers) {
+        this.numUsers = numUsers;
+        return this;
+    }
+
+    /** Number of items, per group when {@link #groups(int)} is set. */
+    public RandomDataModelBuilder items(final int numItems) {
+        this.numItems = numItems;
+        return this;
+    }
+
+    /** Each user rates between {@code min} and {@code max} items, both inclusive. */
+    public RandomDataModelBuilder itemsPerUser(final int min, final int max) {
+        this.minItemsPerUser = min;
+        this.maxItemsPerUser = max;
+        return this;
+    }
+
+    /** Every {@code interval}-th user, starting with user 0, rates {@code items} items. */
+    public RandomDataModelBuilder heavyUsers(final int interval, final int items) {
+        this.heavyUserInterval = interval;
+        this.heavyUserItems = items;
+        return this;
+    }
+
+    /** User {@code u} only rates the items of group {@code u % groups}, so users only meet within a group. */
+    public RandomDataModelBuilder groups(final int groups) {
+        this.groups = groups;
+        return this;
+    }
+
+    /** Every preference has the value 1. */
+    public RandomDataModelBuilder binary() {
+        this.binary = true;
+        return this;
+    }
+
+    public DataModel build() {
+        final PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (long userId = 0; userId < numUsers; userId++) {
+            final int count;
+            if (heavyUserInterval > 0 && userId % heavyUserInterval == 0) {
+                count = heavyUserItems;
+            } else if (minItemsPerUser == maxItemsPerUser) {
+                count = minItemsPerUser;
+            } else {
+                count = minItemsPerUser + random.nextInt(maxItemsPerUser - minItemsPerUser + 1);
+            }
+            final long offset = (userId % groups) * numItems;
+            final FastIDSet rated = new FastIDSet();
+            while (rated.size() < count) {
+                final long itemId = offset + random.nextInt(numItems);
+                if (rated.add(itemId)) {
+                    builder.add(userId, itemId, binary ? 1 : 1 + random.nextInt(5));
+                }
+            }
+        }
+        return new GenericDataModel(builder.build());
+    }
+}
@@ -0,0 +1,102 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.UserBasedRecommender;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class RecommenderBuilderTests extends ESTestCase {
+
+    private static DataModel dataModel() {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 1; i <= 1000; i++) {
+            builder.add(i % 37, (i * 7) % 53, 1 + i % 5);
+        }
+        return new GenericDataModel(builder.build());
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        assertEquals(RecommenderBuilder.builder().key(),
+                     RecommenderBuilder.builder().similarity("PearsonCorrelationSimilarity").key());
+        assertNotEquals(RecommenderBuilder.builder().key(),
+                        RecommenderBuilder.builder().neighborhoodNearestN(20).key());
+        assertNotEquals(RecommenderBuilder.builder().key(),
+                        RecommenderBuilder.builder().maxCandidateItems(10).key());
+    }
+
+    @Test
+    public void testCachingRecommendersAnswerLikeUncached() throws Exception {
+        DataModel dataModel = dataModel();
+        UserBasedRecommender uncached = RecommenderBuilder.builder()
+                .dataModel(dataModel)
+                .userBasedRecommender();
+        UserBasedRecommender cached = RecommenderBuilder.builder()
+                .dataModel(dataModel)
+                .cacheSize(100)
+                .userBasedRecommender();
+        for (int round = 0; round < 2; round++) {
+            for (long userId = 0; userId < 37; userId++) {
+                assertArrayEquals(uncached.mostSimilarUserIDs(userId, 5), cached.mostSimilarUserIDs(userId, 5));
+                assertEquals(uncached.recommend(userId, 5).size(), cached.recommend(userId, 5).size());
+            }
+        }
+
+        GenericItemBasedRecommender items = (GenericItemBasedRecommender) RecommenderBuilder.builder()
+                .dataModel(dataModel)
+                .similarity("LogLikelihoodSimilarity")
+                .cacheSize(100)
+                .itemBasedRecommender();
+        assertTrue(items.getSimilarity() instanceof CachingSimilarity);
+    }
+
+    @Test
+    public void testCachedRecommendersFollowIngestedChanges() throws Exception {
+        ElasticsearchPreloadDataModel model = new ElasticsearchPreloadDataModel(null, "my_index", "preference");
+        for (int i = 1; i <= 1000; i++) {
+            model.enqueue(OverlayDataModel.Change.set(i % 37, (i * 7) % 53, 1 + i % 5));
+        }
+        model.applyPending();
+        RecommenderCache recommenders = new RecommenderCache(model);
+        UserBasedRecommender users = recommenders.userBased(RecommenderBuilder.builder().similarity("EuclideanDistanceSimilarity"));
+        GenericItemBasedRecommender items = (GenericItemBasedRecommender) recommenders.itemBased(
+                RecommenderBuilder.builder().similarity("LogLikelihoodSimilarity"));
+        for (long userId = 0; userId < 37; userId++) {
+            users.mostSimilarUserIDs(userId, 5);
+            items.recommend(userId, 5);
+        }
+
+        for (int i = 0; i < 40; i++) {
+            model.enqueue(OverlayDataModel.Change.set(i % 5, 100 + i % 7, 5));
+            model.enqueue(OverlayDataModel.Change.remove(5 + i % 3, (i * 11) % 53));
+        }
+        model.applyPending();
+        // the same recommenders, without what the changes made stale
+        assertSame(users, recommenders.userBased(RecommenderBuilder.builder().similarity("EuclideanDistanceSimilarity")));
+        assertSame(items, recommenders.itemBased(RecommenderBuilder.builder().similarity("LogLikelihoodSimilarity")));
+        UserBasedRecommender freshUsers = RecommenderBuilder.builder()
+                .dataModel(model.delegate())
+                .similarity("EuclideanDistanceSimilarity")
+                .userBasedRecommender();
+        ItemBasedRecommender freshItems = RecommenderBuilder.builder()
+                .dataModel(model.delegate())
+                .similarity("LogLikelihoodSimilarity")
+                .itemBasedRecommender();
+        for (long userId = 0; userId < 37; userId++) {
+            assertArrayEquals(freshUsers.mostSimilarUserIDs(userId, 5), users.mostSimilarUserIDs(userId, 5));
+            assertEquals(freshItems.recommend(userId, 5), items.recommend(userId, 5));
+        }
+        for (long itemId = 100; itemId < 107; itemId++) {
+            assertEquals(freshItems.mostSimilarItems(itemId, 5), items.mostSimilarItems(itemId, 5));
+        }
+    }
+}
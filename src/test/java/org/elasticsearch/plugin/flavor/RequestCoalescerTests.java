@@ -0,0 +1,62 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.rest.FakeRestChannel;
+import org.elasticsearch.test.rest.FakeRestRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class RequestCoalescerTests extends ESTestCase {
+
+    @Test
+    public void testJoinAndComplete() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        assertTrue(coalescer.join("a", null, 1));
+        assertFalse(coalescer.join("a", null, 2));
+        assertFalse(coalescer.join("a", null, 3));
+        assertTrue(coalescer.join("b", null, 4));
+        assertEquals(2, coalescer.inFlight());
+        assertEquals(2, coalescer.coalesced());
+
+        List<RequestCoalescer.Waiter> waiters = coalescer.complete("a");
+        assertEquals(2, waiters.size());
+        assertEquals(2, waiters.get(0).startTime());
+        assertEquals(3, waiters.get(1).startTime());
+        assertTrue(coalescer.complete("a").isEmpty());
+
+        // a completed key starts a new flight
+        assertTrue(coalescer.join("a", null, 5));
+        assertTrue(coalescer.complete("b").isEmpty());
+        assertEquals(1, coalescer.inFlight());
+    }
+
+    @Test
+    public void testFailureBuiltPerChannel() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        FakeRestChannel leader = new FakeRestChannel(new FakeRestRequest(), true, 1);
+        FakeRestChannel detailed = new FakeRestChannel(new FakeRestRequest(), true, 1);
+        FakeRestChannel plain = new FakeRestChannel(new FakeRestRequest(), false, 1);
+        assertTrue(coalescer.join("a", leader, 1));
+        assertFalse(coalescer.join("a", detailed, 2));
+        assertFalse(coalescer.join("a", plain, 3));
+
+        KeyedRestChannel keyed = new KeyedRestChannel(leader, "a", true, coalescer);
+        keyed.sendFailure(new IllegalArgumentException("boom"));
+        assertEquals(0, coalescer.inFlight());
+        for (FakeRestChannel channel : new FakeRestChannel[] { leader, detailed, plain }) {
+            assertEquals(1, channel.errors().get());
+            assertEquals(RestStatus.BAD_REQUEST, channel.capturedResponse().status());
+        }
+        assertNotSame(leader.capturedResponse(), detailed.capturedResponse());
+        // each error follows the detail setting of its own request
+        assertTrue(detailed.capturedResponse().content().utf8ToString().contains("root_cause"));
+        assertFalse(plain.capturedResponse().content().utf8ToString().contains("root_cause"));
+    }
+}
@@ -0,0 +1,64 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.rest.FakeRestRequest;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class ResultCacheTests extends ESTestCase {
+
+    private RestRequest request(String id, String size) {
+        Map<String, String> params = new HashMap<>();
+        params.put("index", "myindex");
+        params.put("type", "preference");
+        params.put("operation", "similar_items");
+        params.put("id", id);
+        params.put("size", size);
+        return new FakeRestRequest.Builder(xContentRegistry()).withParams(params).build();
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        String key = ResultCache.key(request("1", "10"), "g1");
+        assertEquals(key, ResultCache.key(request("1", "10"), "g1"));
+        assertNotEquals(key, ResultCache.key(request("2", "10"), "g1"));
+        assertNotEquals(key, ResultCache.key(request("1", "5"), "g1"));
+        assertNotEquals(key, ResultCache.key(request("1", "10"), "g2"));
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20, TimeValue.ZERO);
+        RecommendedItem item = new GenericRecommendedItem(10, 0.5F);
+        cache.put("a", new ResultCache.Result(Arrays.asList(item)));
+        cache.put("b", new ResultCache.Result(new long[] { 1, 2 }));
+
+        assertEquals(item, cache.get("a").items().get(0));
+        assertArrayEquals(new long[] { 1, 2 }, cache.get("b").userIds());
+        assertNull(cache.get("c"));
+        assertEquals(2, cache.stats().getHits());
+        assertEquals(1, cache.stats().getMisses());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ResultCache cache = new ResultCache(0, TimeValue.ZERO);
+        cache.put("a", new ResultCache.Result(new long[] { 1 }));
+        assertFalse(cache.enabled());
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.count());
+    }
+}
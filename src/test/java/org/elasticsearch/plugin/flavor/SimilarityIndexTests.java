@@ -0,0 +1,80 @@
+package org.elasticsearch.plugin.flavor;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+@RunWith(RandomizedRunner.class)
+public class SimilarityIndexTests extends ESTestCase {
+
+    private static DataModel dataModel() {
+        PreferenceArrayBuilder builder = new PreferenceArrayBuilder();
+        for (int i = 1; i <= 2000; i++) {
+            builder.add(i % 97, (i * 31) % 113, 1 + i % 5);
+        }
+        return new GenericDataModel(builder.build());
+    }
+
+    @Test
+    public void testMatchesLiveSimilarity() throws Exception {
+        DataModel dataModel = dataModel();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            SimilarityIndex index = SimilarityIndex.build(dataModel, new LogLikelihoodSimilarity(dataModel),
+                    "LogLikelihoodSimilarity", 10, 7, executor, 4);
+            assertEquals(dataModel.getNumItems(), index.numItems());
+            assertEquals(7, index.modelVersion());
+            assertTrue(index.ramBytesUsed() > 0);
+
+            LongPrimitiveIterator itemIds = dataModel.getItemIDs();
+            while (itemIds.hasNext()) {
+                long itemId = itemIds.nextLong();
+                List<RecommendedItem> expected = RecommenderBuilder.builder()
+                        .dataModel(dataModel)
+                        .similarity("LogLikelihoodSimilarity")
+                        .itemBasedRecommender()
+                        .mostSimilarItems(itemId, 10);
+                List<RecommendedItem> actual = index.mostSimilarItems(itemId, 10);
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).getValue(), actual.get(i).getValue(), 1e-6F);
+                }
+                if (!actual.isEmpty()) {
+                    long neighbor = actual.get(0).getItemID();
+                    assertEquals(actual.get(0).getValue(), index.itemSimilarity(itemId, neighbor), 1e-6);
+                }
+            }
+            assertTrue(index.mostSimilarItems(-1, 10).isEmpty());
+            assertTrue(Double.isNaN(index.itemSimilarity(-1, 1)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testServesItemBasedRecommend() throws Exception {
+        DataModel dataModel = dataModel();
+        SimilarityIndex index = SimilarityIndex.build(dataModel, new LogLikelihoodSimilarity(dataModel),
+                "LogLikelihoodSimilarity", 20, 1, Runnable::run, 1);
+        List<RecommendedItem> items = RecommenderBuilder.builder()
+                .dataModel(dataModel)
+                .similarityIndex(index)
+                .itemBasedRecommender()
+                .recommend(1, 5);
+        assertFalse(items.isEmpty());
+        assertTrue(items.size() <= 5);
+    }
+}